@@ -0,0 +1,65 @@
+package edu.stanford.hivdb.sars2.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.SARS2SequenceTriage;
+import edu.stanford.hivdb.sequences.Aligner;
+import edu.stanford.hivdb.sequences.Sequence;
+
+/**
+ * Whole-genome vs gene-scoped alignment
+ *
+ * With genes=S the genome is first cut down by
+ * {@link SARS2SequenceTriage#scopeToGenes}, as /sequences-analysis does for
+ * ?genes=S; the cut is part of the measured time. The aligner cache is not
+ * involved: every invocation runs PostAlign and computes the mutations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AlignmentBenchmark {
+
+	@Param({"EPI_ISL_455161.fas", "MT568634.fas"})
+	public String fixture;
+
+	@Param({"all", "S"})
+	public String genes;
+
+	private final SARS2SequenceTriage triage = new SARS2SequenceTriage();
+	private Aligner<SARS2> aligner;
+	private Sequence sequence;
+
+	@Setup
+	public void setup() {
+		aligner = Aligner.getInstance(BenchmarkFixtures.sars2);
+		sequence = BenchmarkFixtures.loadSequence(fixture);
+	}
+
+	@Benchmark
+	public MutationSet<SARS2> align() {
+		Sequence input = sequence;
+		if (!genes.equals("all")) {
+			input = triage.scopeToGenes(input, List.of(genes.split(",")));
+		}
+		return aligner.align(input).getMutations();
+	}
+
+}
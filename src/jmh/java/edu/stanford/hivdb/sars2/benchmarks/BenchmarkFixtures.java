@@ -0,0 +1,52 @@
+package edu.stanford.hivdb.sars2.benchmarks;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.utilities.FastaUtils;
+import edu.stanford.hivdb.viruses.Gene;
+
+/**
+ * Offline fixtures shared by the benchmarks
+ *
+ * The DRDB file and the mutation comments are loaded from the local
+ * directories given by COVID_DRDB_RESURL_PREFIX and
+ * MUTATION_COMMENTS_URL_PREFIX (set by `./gradlew jmh`); sequences are
+ * the FASTA files of unit tests.
+ */
+public class BenchmarkFixtures {
+
+	public static final SARS2 sars2 = SARS2.getInstance();
+
+	public static final String DRDB_VERSION = System.getenv().getOrDefault("JMH_DRDB_VERSION", "20220328-162024-slim");
+	public static final String CMT_VERSION = "20210406";
+
+	// Spike mutations of typical queries, from a single mutation to a full variant
+	public static final Map<String, String> MUTATIONS = Map.of(
+		"single", "S:484K",
+		"alpha", "S:69del, S:70del, S:144del, S:501Y, S:570D, S:614G, S:681H, S:716I, S:982A, S:1118H",
+		"beta", "S:80A, S:215G, S:241del, S:242del, S:243del, S:417N, S:484K, S:501Y, S:614G, S:701V",
+		"delta", "S:19R, S:156del, S:157del, S:158G, S:452R, S:478K, S:614G, S:681R, S:950N"
+	);
+
+	public static List<String> getAllAbstractGenes() {
+		return (
+			sars2.getGenes(sars2.getMainStrain()).stream()
+			.map(Gene::getAbstractGene)
+			.collect(Collectors.toList())
+		);
+	}
+
+	public static Sequence loadSequence(String resourceName) {
+		InputStream input = BenchmarkFixtures.class.getClassLoader().getResourceAsStream(resourceName);
+		if (input == null) {
+			throw new IllegalArgumentException("Fixture not found: " + resourceName);
+		}
+		return FastaUtils.readStream(input).get(0);
+	}
+
+}
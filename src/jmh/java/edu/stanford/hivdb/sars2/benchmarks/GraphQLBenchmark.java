@@ -0,0 +1,101 @@
+package edu.stanford.hivdb.sars2.benchmarks;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.hivdb.graphql.SierraSchema;
+import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.graphql.SARS2DataLoaders;
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+import graphql.language.Document;
+import graphql.parser.Parser;
+
+/**
+ * Parsing and execution of a representative mutations report query
+ *
+ * The query requests the same susceptibility summaries, comments and
+ * validation results as the report page of the web application.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GraphQLBenchmark {
+
+	public static final String REPORT_QUERY = String.join("\n",
+		"query MutationsReport($mutations: [String]!, $drdbVersion: String!, $cmtVersion: String!) {",
+		"  mutationsAnalysis(mutations: $mutations) {",
+		"    validationResults { level message }",
+		"    mutationComments(cmtVersion: $cmtVersion) { triggeredGenes { name } comment version }",
+		"    antibodySuscSummary(drdbVersion: $drdbVersion) { ...suscSummary",
+		"      itemsByAntibody { antibodies { name } ...suscSummary }",
+		"      itemsByResistLevel { resistanceLevel ...suscSummary }",
+		"    }",
+		"    convPlasmaSuscSummary(drdbVersion: $drdbVersion) { ...suscSummary",
+		"      itemsByVariantOrMutations { ...suscSummary }",
+		"    }",
+		"    vaccPlasmaSuscSummary(drdbVersion: $drdbVersion) { ...suscSummary",
+		"      itemsByVaccine { vaccineName ...suscSummary }",
+		"    }",
+		"  }",
+		"}",
+		"fragment suscSummary on SuscSummary {",
+		"  lastUpdate isolateMatchType numDiffMutations numDiffDRMs cumulativeCount",
+		"  references { refName DOI URL }",
+		"}"
+	);
+
+	@Param({"single", "alpha", "beta", "delta"})
+	public String mutations;
+
+	private GraphQL graphql;
+	private Map<String, Object> variables;
+
+	@Setup
+	public void setup() {
+		graphql = GraphQL.newGraphQL(SierraSchema.makeSchema(SARS2.getInstance())).build();
+		variables = Map.of(
+			"mutations", Arrays.asList(BenchmarkFixtures.MUTATIONS.get(mutations).split(", ")),
+			"drdbVersion", BenchmarkFixtures.DRDB_VERSION,
+			"cmtVersion", BenchmarkFixtures.CMT_VERSION
+		);
+		ExecutionResult result = execute();
+		if (!result.getErrors().isEmpty()) {
+			throw new IllegalStateException("Invalid benchmark query: " + result.getErrors());
+		}
+	}
+
+	@Benchmark
+	public Document parse() {
+		return new Parser().parseDocument(REPORT_QUERY);
+	}
+
+	@Benchmark
+	public ExecutionResult execute() {
+		return graphql.execute(
+			ExecutionInput.newExecutionInput()
+			.query(REPORT_QUERY)
+			.variables(variables)
+			.dataLoaderRegistry(SARS2DataLoaders.newDataLoaderRegistry(null))
+			.build()
+		);
+	}
+
+}
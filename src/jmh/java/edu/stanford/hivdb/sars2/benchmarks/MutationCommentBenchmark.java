@@ -0,0 +1,51 @@
+package edu.stanford.hivdb.sars2.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.SARS2MutationComment;
+import edu.stanford.hivdb.sars2.SARS2MutationComment.SARS2BoundMutationComment;
+
+/**
+ * Matching of mutation comments against query mutations
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MutationCommentBenchmark {
+
+	@Param({"single", "alpha", "beta", "delta"})
+	public String mutations;
+
+	private MutationSet<SARS2> queryMuts;
+
+	@Setup
+	public void setup() {
+		queryMuts = BenchmarkFixtures.sars2.newMutationSet(BenchmarkFixtures.MUTATIONS.get(mutations));
+		// load the comments outside of the measurement
+		SARS2MutationComment.query(BenchmarkFixtures.CMT_VERSION, queryMuts);
+	}
+
+	@Benchmark
+	public List<SARS2BoundMutationComment> query() {
+		return SARS2MutationComment.query(BenchmarkFixtures.CMT_VERSION, queryMuts);
+	}
+
+}
@@ -0,0 +1,56 @@
+package edu.stanford.hivdb.sars2.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sars2.SARS2;
+
+/**
+ * Mutation string parsing of SARS2DataLoader
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MutationParserBenchmark {
+
+	@Param({"single", "alpha", "beta", "delta"})
+	public String mutations;
+
+	private String formattedMuts;
+	private String[] mutTexts;
+
+	@Setup
+	public void setup() {
+		formattedMuts = BenchmarkFixtures.MUTATIONS.get(mutations);
+		mutTexts = formattedMuts.split(", ");
+	}
+
+	@Benchmark
+	public void parseMutationString(Blackhole blackhole) {
+		for (String mutText : mutTexts) {
+			blackhole.consume(BenchmarkFixtures.sars2.parseMutationString(mutText));
+		}
+	}
+
+	@Benchmark
+	public MutationSet<SARS2> newMutationSet() {
+		return BenchmarkFixtures.sars2.newMutationSet(formattedMuts);
+	}
+
+}
@@ -0,0 +1,84 @@
+package edu.stanford.hivdb.sars2.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.drdb.AntibodySuscResult;
+import edu.stanford.hivdb.sars2.drdb.BoundSuscResult;
+import edu.stanford.hivdb.sars2.drdb.ConvPlasmaSuscResult;
+import edu.stanford.hivdb.sars2.drdb.DRDB;
+import edu.stanford.hivdb.sars2.drdb.SuscSummary;
+import edu.stanford.hivdb.sars2.drdb.VaccPlasmaSuscResult;
+
+/**
+ * Search tree queries and summary construction of each susceptibility kind
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SuscResultBenchmark {
+
+	@Param({"single", "alpha", "beta", "delta"})
+	public String mutations;
+
+	private MutationSet<SARS2> queryMuts;
+	private String lastUpdate;
+
+	@Setup
+	public void setup() {
+		queryMuts = BenchmarkFixtures.sars2.newMutationSet(BenchmarkFixtures.MUTATIONS.get(mutations));
+		lastUpdate = DRDB.getInstance(BenchmarkFixtures.DRDB_VERSION).queryLastUpdate();
+		// build the search trees outside of the measurement
+		AntibodySuscResult.query(BenchmarkFixtures.DRDB_VERSION, queryMuts);
+		ConvPlasmaSuscResult.query(BenchmarkFixtures.DRDB_VERSION, queryMuts);
+		VaccPlasmaSuscResult.query(BenchmarkFixtures.DRDB_VERSION, queryMuts);
+	}
+
+	@Benchmark
+	public List<BoundSuscResult> queryAntibodySuscResults() {
+		return AntibodySuscResult.query(BenchmarkFixtures.DRDB_VERSION, queryMuts);
+	}
+
+	@Benchmark
+	public List<BoundSuscResult> queryConvPlasmaSuscResults() {
+		return ConvPlasmaSuscResult.query(BenchmarkFixtures.DRDB_VERSION, queryMuts);
+	}
+
+	@Benchmark
+	public List<BoundSuscResult> queryVaccPlasmaSuscResults() {
+		return VaccPlasmaSuscResult.query(BenchmarkFixtures.DRDB_VERSION, queryMuts);
+	}
+
+	@Benchmark
+	public SuscSummary antibodySuscSummary() {
+		return SuscSummary.queryAntibodySuscSummary(BenchmarkFixtures.DRDB_VERSION, lastUpdate, queryMuts);
+	}
+
+	@Benchmark
+	public SuscSummary convPlasmaSuscSummary() {
+		return SuscSummary.queryConvPlasmaSuscSummary(BenchmarkFixtures.DRDB_VERSION, lastUpdate, queryMuts);
+	}
+
+	@Benchmark
+	public SuscSummary vaccPlasmaSuscSummary() {
+		return SuscSummary.queryVaccPlasmaSuscSummary(BenchmarkFixtures.DRDB_VERSION, lastUpdate, queryMuts);
+	}
+
+}
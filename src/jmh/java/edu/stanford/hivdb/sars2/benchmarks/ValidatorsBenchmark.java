@@ -0,0 +1,134 @@
+package edu.stanford.hivdb.sars2.benchmarks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.stanford.hivdb.graphql.SierraSchema;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.SARS2DefaultMutationsValidator;
+import edu.stanford.hivdb.sars2.SARS2DefaultSequenceValidator;
+import edu.stanford.hivdb.sars2.SARS2ReferenceIndex;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Aligner;
+import edu.stanford.hivdb.utilities.ValidationResult;
+import graphql.ExecutionInput;
+import graphql.ExecutionResult;
+import graphql.GraphQL;
+
+/**
+ * The three default validators
+ *
+ * The sequence is aligned once during setup. SequenceReads objects are
+ * only built by the GraphQL layer, so the reads validator is measured
+ * through a sequenceReadsAnalysis query requesting only the validation
+ * results; its numbers include building the reads of the Spike gene.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidatorsBenchmark {
+
+	// NC_045512.2 position of the first Spike codon
+	private static final int SPIKE_NA_START = 21563;
+	private static final int SPIKE_AA_SIZE = 1273;
+
+	private static final String READS_QUERY = String.join("\n",
+		"query ReadsValidation($sequenceReads: [SequenceReadsInput]!) {",
+		"  sequenceReadsAnalysis(sequenceReads: $sequenceReads) {",
+		"    validationResults { level message }",
+		"  }",
+		"}"
+	);
+
+	private final SARS2DefaultSequenceValidator sequenceValidator = new SARS2DefaultSequenceValidator();
+	private final SARS2DefaultMutationsValidator mutationsValidator = new SARS2DefaultMutationsValidator();
+
+	private List<String> includeGenes;
+	private AlignedSequence<SARS2> alignedSequence;
+	private MutationSet<SARS2> mutations;
+	private GraphQL graphql;
+	private Map<String, Object> readsVariables;
+
+	@Setup
+	public void setup() {
+		SARS2 sars2 = BenchmarkFixtures.sars2;
+		includeGenes = BenchmarkFixtures.getAllAbstractGenes();
+		alignedSequence = Aligner.getInstance(sars2).align(BenchmarkFixtures.loadSequence("EPI_ISL_455161.fas"));
+		mutations = sars2.newMutationSet(BenchmarkFixtures.MUTATIONS.get("delta"));
+		graphql = GraphQL.newGraphQL(SierraSchema.makeSchema(sars2)).build();
+		readsVariables = Map.of("sequenceReads", List.of(makeSpikeReads()));
+		ExecutionResult result = validateSequenceReads();
+		if (!result.getErrors().isEmpty()) {
+			throw new IllegalStateException("Invalid benchmark query: " + result.getErrors());
+		}
+	}
+
+	// Spike reads of the reference genome with a 2% minor codon at every tenth position
+	private static Map<String, Object> makeSpikeReads() {
+		String refSeq = SARS2ReferenceIndex.getInstance().getRefSequence();
+		List<Map<String, Object>> allReads = new ArrayList<>();
+		for (int pos = 1; pos <= SPIKE_AA_SIZE; pos ++) {
+			int naStart = SPIKE_NA_START - 1 + (pos - 1) * 3;
+			String codon = refSeq.substring(naStart, naStart + 3);
+			List<Map<String, Object>> codonReads = new ArrayList<>();
+			codonReads.add(Map.of("codon", codon, "reads", pos % 10 == 0 ? 980 : 1000));
+			if (pos % 10 == 0) {
+				String minorCodon = codon.substring(0, 2) + (codon.charAt(2) == 'A' ? 'G' : 'A');
+				codonReads.add(Map.of("codon", minorCodon, "reads", 20));
+			}
+			allReads.add(Map.of(
+				"gene", "S",
+				"position", pos,
+				"totalReads", 1000,
+				"allCodonReads", codonReads
+			));
+		}
+		Map<String, Object> seqReads = new LinkedHashMap<>();
+		seqReads.put("name", "spike-reads");
+		seqReads.put("strain", "SARS2");
+		seqReads.put("allReads", allReads);
+		seqReads.put("minPrevalence", 0.01);
+		seqReads.put("minCodonReads", 1);
+		seqReads.put("minPositionReads", 1);
+		return seqReads;
+	}
+
+	@Benchmark
+	public List<ValidationResult> validateSequence() {
+		return sequenceValidator.validate(alignedSequence, includeGenes);
+	}
+
+	@Benchmark
+	public List<ValidationResult> validateMutations() {
+		return mutationsValidator.validate(mutations, includeGenes);
+	}
+
+	@Benchmark
+	public ExecutionResult validateSequenceReads() {
+		return graphql.execute(
+			ExecutionInput.newExecutionInput()
+			.query(READS_QUERY)
+			.variables(readsVariables)
+			.build()
+		);
+	}
+
+}
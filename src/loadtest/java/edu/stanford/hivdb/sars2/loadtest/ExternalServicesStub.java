@@ -0,0 +1,140 @@
+package edu.stanford.hivdb.sars2.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.gson.reflect.TypeToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import edu.stanford.hivdb.utilities.Json;
+
+/**
+ * Local stand-in for S3, the CMS bucket and the Pangolin Lambda function
+ *
+ * GET requests are served from a fixtures directory laid out like the
+ * buckets, e.g. cms.hivdb.org/covid-drdb/covid-drdb-{version}.db, and
+ * answer S3's NoSuchKey error when the file is missing. Lambda invocations
+ * return a fixed lineage after a configurable latency and store the
+ * report under {bucket}/reports/{runHash}.json, like the real function,
+ * so that repeated sequences are served from the "S3" cache.
+ */
+public class ExternalServicesStub {
+
+	public static final String PANGOLIN_VERSION = "loadtest";
+
+	private static final Pattern LAMBDA_INVOKE = Pattern.compile("^/2015-03-31/functions/[^/]+/invocations$");
+	private static final String NO_SUCH_KEY = (
+		"<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+		"<Error><Code>NoSuchKey</Code><Message>The specified key does not exist.</Message></Error>"
+	);
+
+	private final HttpServer server;
+	private final Path fixturesDir;
+	private final String pangolinBucket;
+	private final long lambdaLatency;
+	private final Map<String, byte[]> reports = new ConcurrentHashMap<>();
+
+	public ExternalServicesStub(int port, Path fixturesDir, String pangolinBucket, long lambdaLatency) throws IOException {
+		this.fixturesDir = fixturesDir.toAbsolutePath().normalize();
+		this.pangolinBucket = pangolinBucket;
+		this.lambdaLatency = lambdaLatency;
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "external-services-stub");
+			thread.setDaemon(true);
+			return thread;
+		}));
+		server.createContext("/", this::handle);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getPath();
+			if ("POST".equals(exchange.getRequestMethod()) && LAMBDA_INVOKE.matcher(path).matches()) {
+				invokePangolin(exchange);
+			}
+			else if (path.equals("/" + pangolinBucket + "/latest_version")) {
+				send(exchange, 200, "text/plain", PANGOLIN_VERSION.getBytes(StandardCharsets.UTF_8));
+			}
+			else if (reports.containsKey(path)) {
+				send(exchange, 200, "application/json", reports.get(path));
+			}
+			else {
+				sendFixture(exchange, path);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void invokePangolin(HttpExchange exchange) throws IOException {
+		String request;
+		try (InputStream input = exchange.getRequestBody()) {
+			request = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		String fastaText = (String) Json.loads(request, new TypeToken<Map<String, Object>>() {}).get("body");
+		String runHash = DigestUtils.sha512Hex(fastaText);
+		try {
+			Thread.sleep(lambdaLatency);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		String report = Json.dumps(Map.of(
+			"runHash", runHash,
+			"version", PANGOLIN_VERSION,
+			"reportTimestamp", Instant.now().toString(),
+			"reports", List.of(Map.of(
+				"taxon", runHash,
+				"lineage", "B.1",
+				"probability", 1.0,
+				"status", "passed_qc",
+				"note", ""
+			))
+		));
+		reports.put(
+			String.format("/%s/reports/%s.json", pangolinBucket, runHash),
+			report.getBytes(StandardCharsets.UTF_8)
+		);
+		send(exchange, 200, "application/json", Json.dumps(Map.of("body", report)).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void sendFixture(HttpExchange exchange, String path) throws IOException {
+		Path file = fixturesDir.resolve(path.substring(1)).normalize();
+		if (!file.startsWith(fixturesDir) || !Files.isRegularFile(file)) {
+			send(exchange, 404, "application/xml", NO_SUCH_KEY.getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		send(exchange, 200, "application/octet-stream", Files.readAllBytes(file));
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(body);
+		}
+	}
+
+}
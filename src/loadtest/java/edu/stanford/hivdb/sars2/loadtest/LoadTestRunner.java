@@ -0,0 +1,219 @@
+package edu.stanford.hivdb.sars2.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+
+import com.google.gson.reflect.TypeToken;
+
+import edu.stanford.hivdb.sars2.web.WebApplication;
+import edu.stanford.hivdb.utilities.Json;
+
+/**
+ * Replay recorded GraphQL workloads against an embedded web application
+ *
+ * The JAX-RS application is booted on an embedded Grizzly server while
+ * S3, the CMS bucket and the Pangolin Lambda function are served by
+ * {@link ExternalServicesStub}, so results are reproducible and no
+ * network access is needed. The application reads the stub endpoints
+ * from CMS_BASE_URL, PANGOLIN_LAMBDA_ENDPOINT and PANGOLIN_LAMBDA_S3_ENDPOINT,
+ * which `./gradlew loadtest` points to LOADTEST_STUB_PORT. The stub's
+ * DRDB file is the one downloaded for the benchmarks by the jmhFixtures
+ * task; without network access, pass a local copy with -PjmhDrdbFile.
+ *
+ * A workload is a JSON array of recorded requests ({name, query,
+ * variables}); requests are replayed round-robin by LOADTEST_CONCURRENCY
+ * clients until LOADTEST_REQUESTS requests are sent, after
+ * LOADTEST_WARMUP_REQUESTS unmeasured ones, once the application
+ * reports ready. p50/p99 latency and throughput are reported per request
+ * name.
+ */
+public class LoadTestRunner {
+
+	private static class RecordedRequest {
+		private String name;
+		private String query;
+		private Map<String, Object> variables;
+	}
+
+	private static class Sample {
+		private final long nanos;
+		private final boolean failed;
+
+		private Sample(long nanos, boolean failed) {
+			this.nanos = nanos;
+			this.failed = failed;
+		}
+	}
+
+	private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+	private final URI graphqlURI;
+	private final List<RecordedRequest> workload;
+
+	private LoadTestRunner(URI graphqlURI, List<RecordedRequest> workload) {
+		this.graphqlURI = graphqlURI;
+		this.workload = workload;
+	}
+
+	private static List<RecordedRequest> loadWorkload(Path path) throws IOException {
+		String raw = Files.readString(path, StandardCharsets.UTF_8);
+		return Json.loads(raw, new TypeToken<List<RecordedRequest>>() {});
+	}
+
+	private Sample send(RecordedRequest request) {
+		String body = Json.dumps(Map.of(
+			"query", request.query,
+			"variables", request.variables == null ? Collections.emptyMap() : request.variables
+		));
+		HttpRequest httpRequest = (
+			HttpRequest.newBuilder(graphqlURI)
+			.header("Content-Type", "application/json")
+			.POST(HttpRequest.BodyPublishers.ofString(body))
+			.build()
+		);
+		long start = System.nanoTime();
+		try {
+			HttpResponse<String> response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+			long nanos = System.nanoTime() - start;
+			Map<String, Object> result = Json.loads(response.body(), new TypeToken<Map<String, Object>>() {});
+			return new Sample(nanos, response.statusCode() != 200 || result.containsKey("errors"));
+		} catch (IOException | RuntimeException e) {
+			return new Sample(System.nanoTime() - start, true);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new Sample(System.nanoTime() - start, true);
+		}
+	}
+
+	private void awaitReady(URI readyURI) throws IOException, InterruptedException {
+		HttpRequest request = HttpRequest.newBuilder(readyURI).GET().build();
+		while (httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() != 200) {
+			Thread.sleep(1000);
+		}
+	}
+
+	/**
+	 * Send numRequests requests using the given number of concurrent clients
+	 *
+	 * @return latency samples by request name and the wall time
+	 */
+	public Result run(int numRequests, int concurrency) throws InterruptedException {
+		Map<String, List<Sample>> samples = new ConcurrentHashMap<>();
+		AtomicInteger counter = new AtomicInteger();
+		ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+		long start = System.nanoTime();
+		for (int idx = 0; idx < concurrency; idx ++) {
+			clients.execute(() -> {
+				int reqIdx;
+				while ((reqIdx = counter.getAndIncrement()) < numRequests) {
+					RecordedRequest request = workload.get(reqIdx % workload.size());
+					Sample sample = send(request);
+					samples.computeIfAbsent(request.name, k -> Collections.synchronizedList(new ArrayList<>())).add(sample);
+				}
+			});
+		}
+		clients.shutdown();
+		clients.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		return new Result(samples, System.nanoTime() - start);
+	}
+
+	public static class Result {
+		private final Map<String, List<Sample>> samples;
+		private final long wallNanos;
+
+		private Result(Map<String, List<Sample>> samples, long wallNanos) {
+			this.samples = new TreeMap<>(samples);
+			this.wallNanos = wallNanos;
+		}
+
+		private static double percentile(List<Long> sortedNanos, double pct) {
+			int idx = (int) Math.ceil(pct * sortedNanos.size()) - 1;
+			return sortedNanos.get(Math.max(idx, 0)) / 1e6;
+		}
+
+		private String formatRow(String name, List<Sample> rows) {
+			List<Long> nanos = new ArrayList<>();
+			int numFailed = 0;
+			for (Sample sample : rows) {
+				nanos.add(sample.nanos);
+				numFailed += sample.failed ? 1 : 0;
+			}
+			Collections.sort(nanos);
+			return String.format(
+				"%-24s %8d %8d %10.1f %10.1f %10.2f",
+				name, rows.size(), numFailed,
+				percentile(nanos, 0.5), percentile(nanos, 0.99),
+				rows.size() / (wallNanos / 1e9)
+			);
+		}
+
+		public String format() {
+			StringBuilder out = new StringBuilder();
+			out.append(String.format(
+				"%-24s %8s %8s %10s %10s %10s%n",
+				"request", "count", "errors", "p50 (ms)", "p99 (ms)", "req/s"
+			));
+			List<Sample> all = new ArrayList<>();
+			for (Map.Entry<String, List<Sample>> entry : samples.entrySet()) {
+				out.append(formatRow(entry.getKey(), entry.getValue())).append('\n');
+				all.addAll(entry.getValue());
+			}
+			if (!all.isEmpty()) {
+				out.append(formatRow("TOTAL", all)).append('\n');
+			}
+			return out.toString();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> envs = System.getenv();
+		int appPort = Integer.parseInt(envs.getOrDefault("LOADTEST_APP_PORT", "18113"));
+		int stubPort = Integer.parseInt(envs.getOrDefault("LOADTEST_STUB_PORT", "18114"));
+		int concurrency = Integer.parseInt(envs.getOrDefault("LOADTEST_CONCURRENCY", "8"));
+		int numRequests = Integer.parseInt(envs.getOrDefault("LOADTEST_REQUESTS", "500"));
+		int numWarmup = Integer.parseInt(envs.getOrDefault("LOADTEST_WARMUP_REQUESTS", "50"));
+		long lambdaLatency = Long.parseLong(envs.getOrDefault("LOADTEST_LAMBDA_LATENCY", "2000"));
+		Path fixturesDir = Path.of(envs.getOrDefault("LOADTEST_FIXTURES_DIR", "build/loadtest-fixtures"));
+		Path workloadPath = Path.of(envs.getOrDefault("LOADTEST_WORKLOAD", "src/loadtest/resources/workloads/default.json"));
+		String pangolinBucket = envs.getOrDefault("PANGOLIN_LAMBDA_S3_BUCKET", "pangolin-assets.hivdb.org");
+
+		ExternalServicesStub stub = new ExternalServicesStub(stubPort, fixturesDir, pangolinBucket, lambdaLatency);
+		stub.start();
+		URI baseURI = URI.create(String.format("http://localhost:%d/", appPort));
+		HttpServer server = GrizzlyHttpServerFactory.createHttpServer(
+			baseURI, ResourceConfig.forApplication(new WebApplication()));
+		try {
+			LoadTestRunner runner = new LoadTestRunner(baseURI.resolve("graphql"), loadWorkload(workloadPath));
+			System.out.println("Waiting for the application to be ready...");
+			runner.awaitReady(baseURI.resolve("health/ready"));
+			System.out.printf("Warming up with %d requests...%n", numWarmup);
+			runner.run(numWarmup, concurrency);
+			System.out.printf("Sending %d requests with %d concurrent clients...%n", numRequests, concurrency);
+			System.out.print(runner.run(numRequests, concurrency).format());
+		} finally {
+			server.shutdownNow();
+			stub.stop();
+		}
+	}
+
+}
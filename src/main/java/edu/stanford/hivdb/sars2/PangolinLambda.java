@@ -1,11 +1,13 @@
 package edu.stanford.hivdb.sars2;
 
+import java.net.URI;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.codec.digest.DigestUtils;
 
@@ -18,9 +20,12 @@ import edu.stanford.hivdb.utilities.Json;
 import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.lambda.LambdaAsyncClient;
+import software.amazon.awssdk.services.lambda.LambdaAsyncClientBuilder;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
 import software.amazon.awssdk.services.lambda.model.InvokeResponse;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
@@ -37,6 +42,8 @@ public class PangolinLambda {
 	private static final LambdaAsyncClient client;
 	protected static final S3Client s3Client;
 	private static final S3Presigner s3Presigner;
+	private static final AtomicLong numReportCacheHits = new AtomicLong();
+	private static final AtomicLong numReportCacheMisses = new AtomicLong();
 	private CompletableFuture<InvokeResponse> asyncResponse;
 	private String runHash;
 	private boolean loaded = false;
@@ -57,23 +64,30 @@ public class PangolinLambda {
 		FUNCTION_REGION = envs.getOrDefault("PANGOLIN_LAMBDA_REGION", "us-west-2");
 		S3_REGION = envs.getOrDefault("PANGOLIN_LAMBDA_S3_REGION", "us-west-2");
 		S3_BUCKET = envs.getOrDefault("PANGOLIN_LAMBDA_S3_BUCKET", "pangolin-assets.hivdb.org");
-		client = (
-			LambdaAsyncClient.builder()
-			.region(Region.of(FUNCTION_REGION))
-			.build()
-		);
-		s3Client = (
-			S3Client.builder()
-			.region(Region.of(S3_REGION))
-			.build()
-		);
-		s3Presigner = (
-			S3Presigner.builder()
-			.region(Region.of(S3_REGION))
-			.build()
-		);
+		// endpoints can be overridden to use local stand-ins, e.g. for load tests
+		String functionEndpoint = envs.get("PANGOLIN_LAMBDA_ENDPOINT");
+		String s3Endpoint = envs.get("PANGOLIN_LAMBDA_S3_ENDPOINT");
+
+		LambdaAsyncClientBuilder clientBuilder = LambdaAsyncClient.builder().region(Region.of(FUNCTION_REGION));
+		S3ClientBuilder s3ClientBuilder = S3Client.builder().region(Region.of(S3_REGION));
+		S3Presigner.Builder s3PresignerBuilder = S3Presigner.builder().region(Region.of(S3_REGION));
+		if (functionEndpoint != null) {
+			clientBuilder.endpointOverride(URI.create(functionEndpoint));
+		}
+		if (s3Endpoint != null) {
+			S3Configuration pathStyle = S3Configuration.builder().pathStyleAccessEnabled(true).build();
+			s3ClientBuilder.endpointOverride(URI.create(s3Endpoint)).serviceConfiguration(pathStyle);
+			s3PresignerBuilder.endpointOverride(URI.create(s3Endpoint)).serviceConfiguration(pathStyle);
+		}
+		client = clientBuilder.build();
+		s3Client = s3ClientBuilder.build();
+		s3Presigner = s3PresignerBuilder.build();
 	}
 	
+	public static long getNumReportCacheHits() { return numReportCacheHits.get(); }
+
+	public static long getNumReportCacheMisses() { return numReportCacheMisses.get(); }
+
 	public PangolinLambda(Sequence seq) {
 		String fastaText = FastaUtils.writeString(seq, /* useSHA512Name */true);
 		runHash = DigestUtils.sha512Hex(fastaText);
@@ -121,8 +135,16 @@ public class PangolinLambda {
 			populatePayload(payload, true);
 		}
 		catch (NoSuchKeyException exc) {
+			numReportCacheMisses.incrementAndGet();
 			return;
 		}
+		if (loaded) {
+			numReportCacheHits.incrementAndGet();
+		}
+		else {
+			// outdated report
+			numReportCacheMisses.incrementAndGet();
+		}
 	}
 	
 	private void populatePayload(String payload, boolean checkVersion) {
@@ -0,0 +1,200 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.collections4.map.LRUMap;
+
+/**
+ * Content-hash cache of alignment results
+ *
+ * Keys are made of the alignment-config.json version and the SHA-512 of
+ * the normalized nucleotide sequence (see {@link #newKey}); the header is
+ * not part of the key. Normalization keeps positions (see
+ * {@link SARS2ReferenceAligner#normalize}), so a cached value must not
+ * embed the input: callers cache a {@link SARS2AlignmentRecord} and attach
+ * the sequence of each request to it.
+ *
+ * Values are kept in a size-bounded in-memory LRU map of
+ * ALIGNMENT_CACHE_ENTRIES per cache. A whole-genome record holds three
+ * ints per aligned codon (~120 KB) plus its mutations, so the default of
+ * 200 entries keeps the memory tier around 25 MB. The disk tier is opt-in:
+ * when ALIGNMENT_CACHE_DIR is set, {@link Serializable} values are also
+ * written there, one file per key, and survive restarts. Entries which can
+ * not be read back (corrupt, or written by an incompatible release) are
+ * deleted.
+ *
+ * @param <V> alignment result type
+ */
+public class SARS2AlignmentCache<V> {
+
+	private static final String ALIGNCONFIG_RESPATH = "alignment-config.json";
+	private static final int MAX_ENTRIES;
+	private static final String CACHE_DIR;
+	private static String configVersion;
+
+	static {
+		Map<String, String> envs = System.getenv();
+		MAX_ENTRIES = Integer.parseInt(envs.getOrDefault("ALIGNMENT_CACHE_ENTRIES", "200"));
+		CACHE_DIR = envs.get("ALIGNMENT_CACHE_DIR");
+	}
+
+	/**
+	 * Get the version of alignment-config.json
+	 *
+	 * @return first 16 hex digits of the SHA-512 of the configuration file
+	 */
+	public static synchronized String getConfigVersion() {
+		if (configVersion == null) {
+			configVersion = DigestUtils
+				.sha512Hex(SARS2DataLoader.loadResource(ALIGNCONFIG_RESPATH))
+				.substring(0, 16);
+		}
+		return configVersion;
+	}
+
+	/**
+	 * Make a cache key
+	 *
+	 * @param naSeq nucleotide sequence, as received
+	 * @return a cache key
+	 */
+	public static String newKey(String naSeq) {
+		return getConfigVersion() + "/" + DigestUtils.sha512Hex(SARS2ReferenceAligner.normalize(naSeq));
+	}
+
+	private final Map<String, V> memory = Collections.synchronizedMap(new LRUMap<>(MAX_ENTRIES));
+	private final Path diskDir;
+	private final AtomicLong numHits = new AtomicLong();
+	private final AtomicLong numDiskHits = new AtomicLong();
+	private final AtomicLong numMisses = new AtomicLong();
+
+	/**
+	 * @param namespace name of the sub-directory of the disk tier
+	 */
+	public SARS2AlignmentCache(String namespace) {
+		this(CACHE_DIR == null ? null : Paths.get(CACHE_DIR, namespace));
+	}
+
+	/**
+	 * @param diskDir directory of the disk tier; null to keep the cache in memory
+	 */
+	protected SARS2AlignmentCache(Path diskDir) {
+		this.diskDir = diskDir;
+	}
+
+	private Path getDiskPath(String key) {
+		// configVersion/ab/abcdef...
+		int slash = key.indexOf('/');
+		return diskDir
+			.resolve(key.substring(0, slash))
+			.resolve(key.substring(slash + 1, slash + 3))
+			.resolve(key.substring(slash + 1));
+	}
+
+	@SuppressWarnings("unchecked")
+	private V readDisk(String key) {
+		Path path = getDiskPath(key);
+		if (!Files.exists(path)) {
+			return null;
+		}
+		try (
+			InputStream stream = Files.newInputStream(path);
+			ObjectInputStream objStream = new ObjectInputStream(stream);
+		) {
+			return (V) objStream.readObject();
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+			// corrupt or incompatible entry
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e2) {
+				// ignore
+			}
+			return null;
+		}
+	}
+
+	private void writeDisk(String key, V value) {
+		Path path = getDiskPath(key);
+		try {
+			Files.createDirectories(path.getParent());
+			Path tmpPath = Files.createTempFile(path.getParent(), ".", ".tmp");
+			try (
+				OutputStream stream = Files.newOutputStream(tmpPath);
+				ObjectOutputStream objStream = new ObjectOutputStream(stream);
+			) {
+				objStream.writeObject(value);
+			}
+			Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			// the disk tier is best-effort
+		}
+	}
+
+	public V get(String key) {
+		V value = memory.get(key);
+		if (value == null && diskDir != null) {
+			value = readDisk(key);
+			if (value != null) {
+				numDiskHits.incrementAndGet();
+				memory.put(key, value);
+			}
+		}
+		if (value == null) {
+			numMisses.incrementAndGet();
+		}
+		else {
+			numHits.incrementAndGet();
+		}
+		return value;
+	}
+
+	public void put(String key, V value) {
+		memory.put(key, value);
+		if (diskDir != null && value instanceof Serializable) {
+			writeDisk(key, value);
+		}
+	}
+
+	public int size() { return memory.size(); }
+
+	/**
+	 * @return number of hits, including those served by the disk tier
+	 */
+	public long getNumHits() { return numHits.get(); }
+
+	public long getNumDiskHits() { return numDiskHits.get(); }
+
+	public long getNumMisses() { return numMisses.get(); }
+
+}
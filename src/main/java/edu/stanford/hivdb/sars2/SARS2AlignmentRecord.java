@@ -0,0 +1,218 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.stanford.hivdb.mutations.CodonMutation;
+import edu.stanford.hivdb.mutations.FrameShift;
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.sequences.AlignedGeneSeq;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.AlignedSite;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.viruses.Gene;
+
+/**
+ * Alignment of a nucleotide sequence, without the sequence
+ *
+ * Holds what AlignedSequence and AlignedGeneSeq are built from: the aligned
+ * range, sites and mutations of each gene. Positions are positions of the
+ * aligned nucleotide sequence, so one record serves every input with the
+ * same sequence whatever its header; {@link #toAlignedSequence} attaches
+ * the input.
+ */
+public class SARS2AlignmentRecord implements Serializable {
+
+	private static final long serialVersionUID = 3795562108917395163L;
+
+	protected static class MutationRecord implements Serializable {
+		private static final long serialVersionUID = 6061944539432364415L;
+
+		private final int position;
+		private final String aas;
+		private final String triplet;
+		private final String insertedNAs;
+
+		protected MutationRecord(int position, String aas, String triplet, String insertedNAs) {
+			this.position = position;
+			this.aas = aas;
+			this.triplet = triplet;
+			this.insertedNAs = insertedNAs;
+		}
+
+		private Mutation<SARS2> toMutation(Gene<SARS2> gene) {
+			return new CodonMutation<>(gene, position, aas, triplet, insertedNAs, 0xff);
+		}
+	}
+
+	protected static class GeneRecord implements Serializable {
+		private static final long serialVersionUID = -5390166283367530766L;
+
+		private final String geneName;
+		private final int firstAA;
+		private final int lastAA;
+		private final int firstNA;
+		private final int lastNA;
+		// {posAA, posNA, lengthNA} of each aligned codon
+		private final int[] sites;
+		private final List<MutationRecord> mutations;
+		private final int leftTrimmed;
+		private final int rightTrimmed;
+
+		protected GeneRecord(
+			String geneName,
+			int firstAA,
+			int lastAA,
+			int firstNA,
+			int lastNA,
+			int[] sites,
+			List<MutationRecord> mutations
+		) {
+			this(geneName, firstAA, lastAA, firstNA, lastNA, sites, mutations, 0, 0);
+		}
+
+		protected GeneRecord(
+			String geneName,
+			int firstAA,
+			int lastAA,
+			int firstNA,
+			int lastNA,
+			int[] sites,
+			List<MutationRecord> mutations,
+			int leftTrimmed,
+			int rightTrimmed
+		) {
+			this.geneName = geneName;
+			this.firstAA = firstAA;
+			this.lastAA = lastAA;
+			this.firstNA = firstNA;
+			this.lastNA = lastNA;
+			this.sites = sites;
+			this.mutations = mutations;
+			this.leftTrimmed = leftTrimmed;
+			this.rightTrimmed = rightTrimmed;
+		}
+
+		private AlignedGeneSeq<SARS2> toAlignedGeneSeq(
+			Sequence sequence,
+			Gene<SARS2> gene,
+			boolean sequenceReversed
+		) {
+			List<AlignedSite> alignedSites = new ArrayList<>(sites.length / 3);
+			for (int idx = 0; idx < sites.length; idx += 3) {
+				alignedSites.add(new AlignedSite(sites[idx], sites[idx + 1], sites[idx + 2]));
+			}
+			List<Mutation<SARS2>> geneMutations = new ArrayList<>(mutations.size());
+			for (MutationRecord mutation : mutations) {
+				geneMutations.add(mutation.toMutation(gene));
+			}
+			List<FrameShift<SARS2>> frameShifts = Collections.emptyList();
+			return new AlignedGeneSeq<>(
+				sequence, gene, firstAA, lastAA, firstNA, lastNA,
+				alignedSites, geneMutations, frameShifts, leftTrimmed, rightTrimmed, sequenceReversed
+			);
+		}
+	}
+
+	private final boolean sequenceReversed;
+	private final List<GeneRecord> genes;
+	private final Map<String, String> discardedGenes;
+
+	protected SARS2AlignmentRecord(
+		boolean sequenceReversed,
+		List<GeneRecord> genes,
+		Map<String, String> discardedGenes
+	) {
+		this.sequenceReversed = sequenceReversed;
+		this.genes = Collections.unmodifiableList(genes);
+		this.discardedGenes = Collections.unmodifiableMap(discardedGenes);
+	}
+
+	/**
+	 * Make the record of an alignment made by another aligner
+	 *
+	 * Frame shifts and reverse-complemented input are not recorded; such
+	 * alignments are not turned into records.
+	 *
+	 * @param alignedSeq
+	 * @return a new record, or null if the alignment can not be recorded
+	 */
+	protected static SARS2AlignmentRecord fromAlignedSequence(AlignedSequence<SARS2> alignedSeq) {
+		if (alignedSeq.isReverseComplement() || !alignedSeq.getFrameShifts().isEmpty()) {
+			return null;
+		}
+		List<GeneRecord> genes = new ArrayList<>();
+		for (AlignedGeneSeq<SARS2> geneSeq : alignedSeq.getAlignedGeneSequences()) {
+			List<AlignedSite> alignedSites = geneSeq.getAlignedSites();
+			int[] sites = new int[alignedSites.size() * 3];
+			int idx = 0;
+			for (AlignedSite site : alignedSites) {
+				sites[idx ++] = site.getPosAA();
+				sites[idx ++] = site.getPosNA();
+				sites[idx ++] = site.getLengthNA();
+			}
+			List<MutationRecord> mutations = new ArrayList<>();
+			for (Mutation<SARS2> mut : geneSeq.getMutations()) {
+				mutations.add(new MutationRecord(
+					mut.getPosition(), mut.getAAs(), mut.getTriplet(), mut.getInsertedNAs()));
+			}
+			genes.add(new GeneRecord(
+				geneSeq.getGene().getName(),
+				geneSeq.getFirstAA(), geneSeq.getLastAA(),
+				geneSeq.getFirstNA(), geneSeq.getLastNA(),
+				sites, mutations,
+				geneSeq.getLeftTrimmed(), geneSeq.getRightTrimmed()
+			));
+		}
+		Map<String, String> discardedGenes = new LinkedHashMap<>();
+		for (Map.Entry<Gene<SARS2>, String> entry : alignedSeq.getDiscardedGenes().entrySet()) {
+			discardedGenes.put(entry.getKey().getName(), entry.getValue());
+		}
+		return new SARS2AlignmentRecord(false, genes, discardedGenes);
+	}
+
+	/**
+	 * Build the AlignedSequence of an input sequence
+	 *
+	 * @param sequence input whose nucleotide sequence was aligned; its
+	 *                 header and invalid characters are reported as usual
+	 * @return a new AlignedSequence
+	 */
+	public AlignedSequence<SARS2> toAlignedSequence(Sequence sequence) {
+		SARS2 sars2 = SARS2.getInstance();
+		Map<Gene<SARS2>, AlignedGeneSeq<SARS2>> alignedGeneSeqs = new LinkedHashMap<>();
+		for (GeneRecord gene : genes) {
+			Gene<SARS2> sarsGene = sars2.getGene(gene.geneName);
+			alignedGeneSeqs.put(sarsGene, gene.toAlignedGeneSeq(sequence, sarsGene, sequenceReversed));
+		}
+		Map<Gene<SARS2>, String> discarded = new LinkedHashMap<>();
+		for (Map.Entry<String, String> entry : discardedGenes.entrySet()) {
+			discarded.put(sars2.getGene(entry.getKey()), entry.getValue());
+		}
+		return new AlignedSequence<>(
+			sars2.getMainStrain(), sequence, alignedGeneSeqs, discarded, sequenceReversed);
+	}
+
+}
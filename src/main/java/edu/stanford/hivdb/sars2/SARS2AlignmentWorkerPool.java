@@ -0,0 +1,553 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Aligner;
+import edu.stanford.hivdb.sequences.Sequence;
+
+/**
+ * Long-lived pool of alignment workers
+ *
+ * Workers take contiguous batches from their queue and align each one
+ * with one {@link Aligner#parallelAlign} call; a sequence finishes when its
+ * whole batch does. Batches are balanced by size in nucleotides: a worker
+ * takes sequences until its batch reaches the lane's queued nucleotides
+ * divided by the lane's workers (see {@link #getTargetBatchNAs}), so that
+ * a large upload is spread over every worker, and a few whole genomes are
+ * not batched behind each other while a worker stays idle. Batches are
+ * also capped by ALIGNMENT_MAX_BATCH_NAS and ALIGNMENT_MAX_BATCH_SIZE.
+ * Each batch's wait and alignment time is recorded (see {@link Stats}). GraphQL sequenceAnalysis
+ * (see {@link edu.stanford.hivdb.sars2.graphql.SARS2GraphQLExtension}),
+ * /sequences-analysis and the warm-up align through this pool.
+ *
+ * There are two lanes, each with its own queue and workers:
+ *
+ * - the interactive lane ({@link #submit}, {@link #align}) is served by
+ *   ALIGNMENT_INTERACTIVE_WORKERS workers;
+ * - the bulk lane ({@link #submitBulk}, {@link #alignAll}) is served by
+ *   ALIGNMENT_WORKERS workers.
+ *
+ * Each queue is bounded by ALIGNMENT_QUEUE_CAPACITY. A worker which dies is
+ * replaced by a fresh thread. So is a worker which sees
+ * ALIGNMENT_MAX_FAILURES consecutive aligner failures: a batch counts as an
+ * aligner failure only when none of its sequences can be aligned, even one
+ * by one, and a reference sequence can not be aligned either. A malformed
+ * sequence only fails its own future.
+ *
+ * When alignment-config.json selects "SARS2Reference", the workers align
+ * with {@link SARS2ReferenceAligner} in the JVM and only the sequences it
+ * does not handle (reverse complement, frame shifts) go through PostAlign.
+ *
+ * Results are cached by {@link SARS2AlignmentCache} as
+ * {@link SARS2AlignmentRecord}s keyed by the normalized sequence, so inputs
+ * differing only by header or case share an entry; a cache hit never
+ * reaches the queues and is rebuilt with the sequence of the request.
+ */
+public class SARS2AlignmentWorkerPool {
+
+	private static final int NUM_INTERACTIVE_WORKERS;
+	private static final int NUM_BULK_WORKERS;
+	private static final int QUEUE_CAPACITY;
+	private static final int MAX_BATCH_SIZE;
+	private static final long MAX_BATCH_NAS;
+	private static final int MAX_FAILURES;
+
+	// NC_045512.2 Spike gene, aligned to tell aligner failures from bad input
+	private static final int PROBE_NA_START = 21563;
+	private static final int PROBE_NA_END = 25384;
+
+	private static volatile SARS2AlignmentWorkerPool singleton;
+
+	static {
+		Map<String, String> envs = System.getenv();
+		NUM_INTERACTIVE_WORKERS = Integer.parseInt(envs.getOrDefault("ALIGNMENT_INTERACTIVE_WORKERS", "1"));
+		NUM_BULK_WORKERS = Integer.parseInt(envs.getOrDefault(
+			"ALIGNMENT_WORKERS",
+			String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / 4))
+		));
+		QUEUE_CAPACITY = Integer.parseInt(envs.getOrDefault("ALIGNMENT_QUEUE_CAPACITY", "2000"));
+		MAX_BATCH_SIZE = Integer.parseInt(envs.getOrDefault("ALIGNMENT_MAX_BATCH_SIZE", "200"));
+		MAX_BATCH_NAS = Long.parseLong(envs.getOrDefault("ALIGNMENT_MAX_BATCH_NAS", "3000000"));
+		MAX_FAILURES = Integer.parseInt(envs.getOrDefault("ALIGNMENT_MAX_FAILURES", "3"));
+	}
+
+	public static synchronized SARS2AlignmentWorkerPool getInstance() {
+		if (singleton == null) {
+			singleton = new SARS2AlignmentWorkerPool(SARS2.getInstance());
+		}
+		return singleton;
+	}
+
+	/**
+	 * Get the statistics of the pool without creating it
+	 *
+	 * Creating the pool starts its workers and loads the aligner, which a
+	 * metrics scrape must not do; until then every value is zero.
+	 *
+	 * @return a snapshot of the pool statistics
+	 */
+	public static Stats getStats() {
+		SARS2AlignmentWorkerPool pool = singleton;
+		return pool == null ? new Stats() : new Stats(pool);
+	}
+
+	public static class Stats {
+		private final int interactiveQueueDepth;
+		private final int bulkQueueDepth;
+		private final long numBatches;
+		private final long numBatchedNAs;
+		private final double batchWaitSeconds;
+		private final double batchAlignSeconds;
+		private final long numAligned;
+		private final long numRestarts;
+		private final boolean isHealthy;
+		private final long numCacheHits;
+		private final long numCacheDiskHits;
+		private final long numCacheMisses;
+		private final int cacheSize;
+
+		private Stats() {
+			interactiveQueueDepth = 0;
+			bulkQueueDepth = 0;
+			numBatches = 0;
+			numBatchedNAs = 0;
+			batchWaitSeconds = 0;
+			batchAlignSeconds = 0;
+			numAligned = 0;
+			numRestarts = 0;
+			isHealthy = false;
+			numCacheHits = 0;
+			numCacheDiskHits = 0;
+			numCacheMisses = 0;
+			cacheSize = 0;
+		}
+
+		private Stats(SARS2AlignmentWorkerPool pool) {
+			interactiveQueueDepth = pool.getInteractiveQueueDepth();
+			bulkQueueDepth = pool.getBulkQueueDepth();
+			numBatches = pool.getNumBatches();
+			numBatchedNAs = pool.numBatchedNAs.get();
+			batchWaitSeconds = pool.batchWaitNanos.get() / 1e9;
+			batchAlignSeconds = pool.batchAlignNanos.get() / 1e9;
+			numAligned = pool.getNumAligned();
+			numRestarts = pool.getNumRestarts();
+			isHealthy = pool.isHealthy();
+			numCacheHits = pool.cache.getNumHits();
+			numCacheDiskHits = pool.cache.getNumDiskHits();
+			numCacheMisses = pool.cache.getNumMisses();
+			cacheSize = pool.cache.size();
+		}
+
+		public int getInteractiveQueueDepth() { return interactiveQueueDepth; }
+
+		public int getBulkQueueDepth() { return bulkQueueDepth; }
+
+		public long getNumBatches() { return numBatches; }
+
+		public long getNumBatchedNAs() { return numBatchedNAs; }
+
+		/**
+		 * @return total time the batches waited in the queues, counted from
+		 *         the enqueuing of their first sequence
+		 */
+		public double getBatchWaitSeconds() { return batchWaitSeconds; }
+
+		public double getBatchAlignSeconds() { return batchAlignSeconds; }
+
+		public long getNumAligned() { return numAligned; }
+
+		public long getNumRestarts() { return numRestarts; }
+
+		/**
+		 * @return true if the pool is created and {@link SARS2AlignmentWorkerPool#isHealthy}
+		 */
+		public boolean isHealthy() { return isHealthy; }
+
+		public long getNumCacheHits() { return numCacheHits; }
+
+		public long getNumCacheDiskHits() { return numCacheDiskHits; }
+
+		public long getNumCacheMisses() { return numCacheMisses; }
+
+		public int getCacheSize() { return cacheSize; }
+	}
+
+	private static class Job {
+		private final Sequence sequence;
+		private final String cacheKey;
+		private final int numNAs;
+		private final long queuedAt = System.nanoTime();
+		private final CompletableFuture<AlignedSequence<SARS2>> future = new CompletableFuture<>();
+
+		private Job(Sequence sequence) {
+			this.sequence = sequence;
+			this.cacheKey = SARS2AlignmentCache.newKey(sequence.getSequence());
+			this.numNAs = sequence.getSequence().length();
+		}
+	}
+
+	private final Aligner<SARS2> aligner;
+	private final SARS2ReferenceAligner referenceAligner;
+	private final SARS2AlignmentCache<SARS2AlignmentRecord> cache = new SARS2AlignmentCache<>("alignments");
+	private final BlockingQueue<Job> interactiveQueue;
+	private final BlockingQueue<Job> bulkQueue;
+	private final AtomicLong interactiveQueuedNAs = new AtomicLong();
+	private final AtomicLong bulkQueuedNAs = new AtomicLong();
+	private final Thread[] workers;
+	private final AtomicInteger[] consecutiveFailures;
+	private final AtomicLong numRestarts = new AtomicLong();
+	private final AtomicLong numBatches = new AtomicLong();
+	private final AtomicLong numBatchedNAs = new AtomicLong();
+	private final AtomicLong batchWaitNanos = new AtomicLong();
+	private final AtomicLong batchAlignNanos = new AtomicLong();
+	private final AtomicLong numAligned = new AtomicLong();
+
+	private SARS2AlignmentWorkerPool(SARS2 sars2) {
+		aligner = Aligner.getInstance(sars2);
+		referenceAligner = SARS2ReferenceAligner.isSelected() ? SARS2ReferenceAligner.getInstance() : null;
+		interactiveQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		bulkQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		int numWorkers = NUM_INTERACTIVE_WORKERS + NUM_BULK_WORKERS;
+		workers = new Thread[numWorkers];
+		consecutiveFailures = new AtomicInteger[numWorkers];
+		for (int idx = 0; idx < numWorkers; idx ++) {
+			consecutiveFailures[idx] = new AtomicInteger();
+			startWorker(idx);
+		}
+	}
+
+	private synchronized void startWorker(final int idx) {
+		String name = idx < NUM_INTERACTIVE_WORKERS ?
+			"alignment-interactive-worker-" + idx :
+			"alignment-worker-" + (idx - NUM_INTERACTIVE_WORKERS);
+		Thread worker = new Thread(() -> runWorker(idx), name);
+		worker.setDaemon(true);
+		worker.setUncaughtExceptionHandler((thread, e) -> restartWorker(idx, thread));
+		workers[idx] = worker;
+		consecutiveFailures[idx].set(0);
+		worker.start();
+	}
+
+	private synchronized void restartWorker(int idx, Thread deadWorker) {
+		if (workers[idx] == deadWorker) {
+			numRestarts.incrementAndGet();
+			startWorker(idx);
+		}
+	}
+
+	/**
+	 * Get the size a batch should reach before it is aligned
+	 *
+	 * @param queuedNAs nucleotides queued in the lane, including the batch
+	 * @param numWorkers number of workers of the lane
+	 * @param maxBatchNAs ALIGNMENT_MAX_BATCH_NAS
+	 * @return target size in nucleotides, at least 1
+	 */
+	protected static long getTargetBatchNAs(long queuedNAs, int numWorkers, long maxBatchNAs) {
+		return Math.max(1, Math.min(maxBatchNAs, queuedNAs / Math.max(1, numWorkers)));
+	}
+
+	private void runWorker(int idx) {
+		boolean isInteractive = idx < NUM_INTERACTIVE_WORKERS;
+		BlockingQueue<Job> queue = isInteractive ? interactiveQueue : bulkQueue;
+		AtomicLong queuedNAs = isInteractive ? interactiveQueuedNAs : bulkQueuedNAs;
+		int numLaneWorkers = isInteractive ? NUM_INTERACTIVE_WORKERS : NUM_BULK_WORKERS;
+		List<Job> batch = new ArrayList<>(MAX_BATCH_SIZE);
+		while (!Thread.currentThread().isInterrupted()) {
+			Job next;
+			try {
+				next = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			long targetNAs = getTargetBatchNAs(queuedNAs.get(), numLaneWorkers, MAX_BATCH_NAS);
+			long batchNAs = 0;
+			while (next != null) {
+				queuedNAs.addAndGet(-next.numNAs);
+				batch.add(next);
+				batchNAs += next.numNAs;
+				if (batch.size() >= MAX_BATCH_SIZE || batchNAs >= targetNAs) {
+					break;
+				}
+				next = queue.poll();
+			}
+			try {
+				alignBatch(batch);
+				consecutiveFailures[idx].set(0);
+			} catch (RuntimeException e) {
+				if (alignOneByOne(batch) > 0 || alignProbe()) {
+					// the batch was broken by its sequences, not by the aligner
+					consecutiveFailures[idx].set(0);
+				}
+				else if (consecutiveFailures[idx].incrementAndGet() >= MAX_FAILURES) {
+					// the worker is probably in a bad state; let a fresh thread take over
+					throw e;
+				}
+			} finally {
+				for (Job job : batch) {
+					job.future.completeExceptionally(
+						new IllegalStateException("Alignment worker stopped unexpectedly."));
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	private void alignBatch(List<Job> batch) {
+		List<Sequence> sequences = batch.stream()
+			.map(job -> job.sequence)
+			.collect(Collectors.toList());
+		long startedAt = System.nanoTime();
+		List<AlignedSequence<SARS2>> alignedSeqs = alignSequences(sequences);
+		batchAlignNanos.addAndGet(System.nanoTime() - startedAt);
+		batchWaitNanos.addAndGet(startedAt - batch.get(0).queuedAt);
+		numBatchedNAs.addAndGet(batch.stream().mapToLong(job -> job.numNAs).sum());
+		numBatches.incrementAndGet();
+		for (int idx = 0; idx < batch.size(); idx ++) {
+			Job job = batch.get(idx);
+			cacheResult(job, alignedSeqs.get(idx));
+			job.future.complete(alignedSeqs.get(idx));
+		}
+		numAligned.addAndGet(batch.size());
+	}
+
+	/**
+	 * Align sequences with the configured aligner
+	 *
+	 * @param sequences
+	 * @return aligned sequences in the same order
+	 */
+	private List<AlignedSequence<SARS2>> alignSequences(List<Sequence> sequences) {
+		if (referenceAligner == null) {
+			return aligner.parallelAlign(sequences);
+		}
+		List<SARS2AlignmentRecord> records = sequences.parallelStream()
+			.map(sequence -> referenceAligner.align(sequence.getSequence()))
+			.collect(Collectors.toList());
+		List<AlignedSequence<SARS2>> alignedSeqs = new ArrayList<>(sequences.size());
+		List<Sequence> fallbackSeqs = new ArrayList<>();
+		for (int idx = 0; idx < sequences.size(); idx ++) {
+			SARS2AlignmentRecord record = records.get(idx);
+			if (record == null) {
+				fallbackSeqs.add(sequences.get(idx));
+				alignedSeqs.add(null);
+			}
+			else {
+				alignedSeqs.add(record.toAlignedSequence(sequences.get(idx)));
+			}
+		}
+		if (!fallbackSeqs.isEmpty()) {
+			Iterator<AlignedSequence<SARS2>> fallbackResults = aligner.parallelAlign(fallbackSeqs).iterator();
+			for (int idx = 0; idx < alignedSeqs.size(); idx ++) {
+				if (alignedSeqs.get(idx) == null) {
+					alignedSeqs.set(idx, fallbackResults.next());
+				}
+			}
+		}
+		return alignedSeqs;
+	}
+
+	/**
+	 * Cache the record of an alignment
+	 *
+	 * Records hold no AlignedSequence, so requests sharing an entry never
+	 * share its lazily computed annotations.
+	 */
+	private void cacheResult(Job job, AlignedSequence<SARS2> alignedSeq) {
+		SARS2AlignmentRecord record = SARS2AlignmentRecord.fromAlignedSequence(alignedSeq);
+		if (record != null) {
+			cache.put(job.cacheKey, record);
+		}
+	}
+
+	private CompletableFuture<AlignedSequence<SARS2>> getCached(Job job) {
+		SARS2AlignmentRecord record = cache.get(job.cacheKey);
+		return record == null ? null : CompletableFuture.completedFuture(record.toAlignedSequence(job.sequence));
+	}
+
+	/**
+	 * Isolate the sequence which broke a batch so that the rest still succeed
+	 *
+	 * @return the number of aligned sequences
+	 */
+	private int alignOneByOne(List<Job> batch) {
+		int numSucceeded = 0;
+		for (Job job : batch) {
+			if (job.future.isDone()) {
+				continue;
+			}
+			try {
+				AlignedSequence<SARS2> alignedSeq = alignSequences(List.of(job.sequence)).get(0);
+				cacheResult(job, alignedSeq);
+				job.future.complete(alignedSeq);
+				numAligned.incrementAndGet();
+				numSucceeded ++;
+			} catch (RuntimeException e) {
+				job.future.completeExceptionally(e);
+			}
+		}
+		return numSucceeded;
+	}
+
+	/**
+	 * Check if the aligner still works by aligning a reference sequence
+	 *
+	 * @return true if the reference sequence is aligned
+	 */
+	private boolean alignProbe() {
+		String refSeq = SARS2ReferenceIndex.getInstance().getRefSequence();
+		try {
+			aligner.align(new Sequence("probe", refSeq.substring(PROBE_NA_START - 1, PROBE_NA_END)));
+			return true;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	private static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Queue a sequence for alignment in the interactive lane
+	 *
+	 * @param sequence
+	 * @return a future of the aligned sequence
+	 * @throws RejectedExecutionException if the queue is full
+	 */
+	public CompletableFuture<AlignedSequence<SARS2>> submit(Sequence sequence) {
+		Job job = new Job(sequence);
+		CompletableFuture<AlignedSequence<SARS2>> cached = getCached(job);
+		if (cached != null) {
+			return cached;
+		}
+		interactiveQueuedNAs.addAndGet(job.numNAs);
+		if (!interactiveQueue.offer(job)) {
+			interactiveQueuedNAs.addAndGet(-job.numNAs);
+			throw new RejectedExecutionException(String.format(
+				"Alignment queue is full (%d sequences waiting).", QUEUE_CAPACITY));
+		}
+		return job.future;
+	}
+
+	/**
+	 * Queue a sequence for alignment in the bulk lane
+	 *
+	 * Unlike {@link #submit}, this method waits for queue space instead of
+	 * failing when the queue is full.
+	 *
+	 * @param sequence
+	 * @return a future of the aligned sequence
+	 */
+	public CompletableFuture<AlignedSequence<SARS2>> submitBulk(Sequence sequence) {
+		Job job = new Job(sequence);
+		CompletableFuture<AlignedSequence<SARS2>> cached = getCached(job);
+		if (cached != null) {
+			return cached;
+		}
+		bulkQueuedNAs.addAndGet(job.numNAs);
+		try {
+			bulkQueue.put(job);
+		} catch (InterruptedException e) {
+			bulkQueuedNAs.addAndGet(-job.numNAs);
+			Thread.currentThread().interrupt();
+			throw new CompletionException(e);
+		}
+		return job.future;
+	}
+
+	/**
+	 * Align sequences in the bulk lane and wait for the results
+	 *
+	 * @param sequences
+	 * @return aligned sequences in the same order
+	 */
+	public List<AlignedSequence<SARS2>> alignAll(Collection<Sequence> sequences) {
+		List<CompletableFuture<AlignedSequence<SARS2>>> futures = new ArrayList<>();
+		for (Sequence sequence : sequences) {
+			futures.add(submitBulk(sequence));
+		}
+		return futures.stream()
+			.map(SARS2AlignmentWorkerPool::await)
+			.collect(Collectors.toList());
+	}
+
+	/**
+	 * Align a sequence in the interactive lane and wait for the result
+	 *
+	 * @param sequence
+	 * @return aligned sequence
+	 * @throws RejectedExecutionException if the queue is full
+	 */
+	public AlignedSequence<SARS2> align(Sequence sequence) {
+		return await(submit(sequence));
+	}
+
+	/**
+	 * Check if every worker is alive and has not reached ALIGNMENT_MAX_FAILURES
+	 *
+	 * @return true if healthy
+	 */
+	public synchronized boolean isHealthy() {
+		for (int idx = 0; idx < workers.length; idx ++) {
+			if (!workers[idx].isAlive() || consecutiveFailures[idx].get() >= MAX_FAILURES) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public int getQueueDepth() { return interactiveQueue.size() + bulkQueue.size(); }
+
+	public int getInteractiveQueueDepth() { return interactiveQueue.size(); }
+
+	public int getBulkQueueDepth() { return bulkQueue.size(); }
+
+	public long getNumRestarts() { return numRestarts.get(); }
+
+	public long getNumBatches() { return numBatches.get(); }
+
+	public long getNumAligned() { return numAligned.get(); }
+
+	public SARS2AlignmentCache<SARS2AlignmentRecord> getCache() { return cache; }
+
+}
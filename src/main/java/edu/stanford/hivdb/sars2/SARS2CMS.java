@@ -0,0 +1,38 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+/**
+ * Location of the CMS bucket serving DRDB files, mutation comments and
+ * resistance mutations
+ *
+ * BASE_URL defaults to the production bucket and is overridden by the
+ * CMS_BASE_URL environment variable, e.g. to a local stub. Resources are
+ * fetched over HTTP(S) except the DRDB files and the mutation comments,
+ * which also accept file: URLs through COVID_DRDB_RESURL_PREFIX and
+ * MUTATION_COMMENTS_URL_PREFIX.
+ */
+public class SARS2CMS {
+
+	public static final String BASE_URL = System.getenv().getOrDefault(
+		"CMS_BASE_URL", "https://s3-us-west-2.amazonaws.com/cms.hivdb.org");
+
+	private SARS2CMS() {}
+
+}
@@ -0,0 +1,291 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Streaming codfreq reader with per-gene incremental assembly
+ *
+ * Codfreq rows (gene, position, total, codon, count) are read line by
+ * line. Rows are expected to be grouped by gene, as codfreq files are.
+ * Only the rows of the current gene are buffered: when the gene changes
+ * (or the stream ends) the gene is finalized into a {@link GeneAssembly}
+ * (coverage, mixtures and consensus), passed to the consumer, and its
+ * codon reads are released.
+ *
+ * The genome consensus is assembled by {@link SARS2ReadsAssembly} as the
+ * genes are finalized, the same way
+ * {@link SARS2CodonReadsTable#getAssembledUnambiguousConsensus} does for a
+ * whole table.
+ */
+public class SARS2CodfreqStreamReader {
+
+	private static final String[] COLUMNS = {"gene", "position", "total", "codon", "count"};
+
+	public static class GeneAssembly {
+		private final String gene;
+		private final int numPositions;
+		private final int numCoveredPositions;
+		private final long minPositionReads;
+		private final long numNAs;
+		private final long numMixtures;
+		private final String consensus;
+
+		private GeneAssembly(
+			String gene,
+			int numPositions,
+			int numCoveredPositions,
+			long minPositionReads,
+			long numNAs,
+			long numMixtures,
+			String consensus
+		) {
+			this.gene = gene;
+			this.numPositions = numPositions;
+			this.numCoveredPositions = numCoveredPositions;
+			this.minPositionReads = minPositionReads;
+			this.numNAs = numNAs;
+			this.numMixtures = numMixtures;
+			this.consensus = consensus;
+		}
+
+		/**
+		 * @return abstract gene name
+		 */
+		public String getGene() { return gene; }
+
+		/**
+		 * @return number of positions found in the codfreq
+		 */
+		public int getNumPositions() { return numPositions; }
+
+		/**
+		 * @return number of positions not trimmed by minPositionReads
+		 */
+		public int getNumCoveredPositions() { return numCoveredPositions; }
+
+		/**
+		 * @return minimum total reads among covered positions
+		 */
+		public long getMinPositionReads() { return minPositionReads; }
+
+		public long getNumNAs() { return numNAs; }
+
+		public long getNumMixtures() { return numMixtures; }
+
+		/**
+		 * Get the unambiguous consensus of this gene
+		 *
+		 * Covers the whole gene (uncovered positions are "NNN") with the
+		 * assembly "trim" positions removed; deletions are removed.
+		 *
+		 * @return consensus nucleotides
+		 */
+		public String getConsensus() { return consensus; }
+	}
+
+	public static class Result {
+		private final List<GeneAssembly> genes;
+		private final String assembledConsensus;
+
+		private Result(List<GeneAssembly> genes, String assembledConsensus) {
+			this.genes = Collections.unmodifiableList(genes);
+			this.assembledConsensus = assembledConsensus;
+		}
+
+		/**
+		 * @return assemblies of genes found in the codfreq, in input order
+		 */
+		public List<GeneAssembly> getGenes() { return genes; }
+
+		public String getAssembledConsensus() { return assembledConsensus; }
+
+		public double getMixtureRate() {
+			long numNAs = genes.stream().mapToLong(GeneAssembly::getNumNAs).sum();
+			long numMixtures = genes.stream().mapToLong(GeneAssembly::getNumMixtures).sum();
+			return numNAs == 0 ? 0. : (double) numMixtures / numNAs;
+		}
+
+		public long getMinPositionReads() {
+			return genes.stream()
+				.filter(gene -> gene.getNumCoveredPositions() > 0)
+				.mapToLong(GeneAssembly::getMinPositionReads)
+				.min()
+				.orElse(0);
+		}
+	}
+
+	private final double minPrevalence;
+	private final long minCodonReads;
+	private final long minPositionReads;
+	private final List<Map<String, Object>> regions;
+
+	public SARS2CodfreqStreamReader(double minPrevalence, long minCodonReads, long minPositionReads) {
+		this(minPrevalence, minCodonReads, minPositionReads, SARS2ReadsAssembly.getAssemblyRegions());
+	}
+
+	protected SARS2CodfreqStreamReader(
+		double minPrevalence,
+		long minCodonReads,
+		long minPositionReads,
+		List<Map<String, Object>> regions
+	) {
+		this.minPrevalence = minPrevalence;
+		this.minCodonReads = minCodonReads;
+		this.minPositionReads = minPositionReads;
+		this.regions = regions;
+	}
+
+	public Result read(InputStream codfreq) throws IOException {
+		return read(codfreq, geneAssembly -> {});
+	}
+
+	/**
+	 * Read a codfreq stream
+	 *
+	 * @param codfreq CSV or TSV codfreq content
+	 * @param onGene called with each gene once it is finalized
+	 * @return assemblies of all genes and the assembled genome consensus
+	 * @throws IOException
+	 */
+	public Result read(InputStream codfreq, Consumer<GeneAssembly> onGene) throws IOException {
+		SARS2ReadsAssembly assembly = new SARS2ReadsAssembly(regions);
+		List<GeneAssembly> geneAssemblies = new ArrayList<>();
+		Set<String> finalizedGenes = new HashSet<>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(codfreq, StandardCharsets.UTF_8));
+		String delimiter = null;
+		int[] columns = null;
+		String curGene = null;
+		int curPosition = 0;
+		int numPositions = 0;
+		SARS2CodonReadsTable.Builder builder = null;
+		String line;
+		int lineNo = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNo ++;
+			if (line.isBlank()) {
+				continue;
+			}
+			if (delimiter == null) {
+				delimiter = line.indexOf('\t') > -1 ? "\t" : ",";
+				columns = parseHeader(line.split(delimiter, -1));
+				if (columns != null) {
+					continue;
+				}
+				// headless codfreq
+				columns = new int[] {0, 1, 2, 3, 4};
+			}
+			String[] row = line.split(delimiter, -1);
+			String gene;
+			int position;
+			long total;
+			String codon;
+			long count;
+			try {
+				gene = row[columns[0]].trim();
+				position = Integer.parseInt(row[columns[1]].trim());
+				total = Long.parseLong(row[columns[2]].trim());
+				codon = row[columns[3]].trim();
+				count = Long.parseLong(row[columns[4]].trim());
+			} catch (IndexOutOfBoundsException | NumberFormatException e) {
+				throw new IllegalArgumentException(
+					String.format("Malformed codfreq row at line %d: %s", lineNo, line), e);
+			}
+			if (gene.startsWith("SARS2")) {
+				gene = gene.substring(5);
+			}
+			if (!gene.equals(curGene)) {
+				if (curGene != null) {
+					GeneAssembly geneAssembly = finalizeGene(assembly, curGene, numPositions, builder.build());
+					geneAssemblies.add(geneAssembly);
+					assembly.addGene(curGene, geneAssembly.getConsensus());
+					onGene.accept(geneAssembly);
+				}
+				if (!finalizedGenes.add(gene)) {
+					throw new IllegalArgumentException(String.format(
+						"Codfreq rows of gene %s are not contiguous (line %d)", gene, lineNo));
+				}
+				curGene = gene;
+				curPosition = 0;
+				numPositions = 0;
+				// the previous builder is released here
+				builder = SARS2CodonReadsTable.newBuilder();
+			}
+			if (position != curPosition) {
+				curPosition = position;
+				numPositions ++;
+			}
+			builder.add(gene, position, total, codon, count);
+		}
+		if (curGene != null) {
+			GeneAssembly geneAssembly = finalizeGene(assembly, curGene, numPositions, builder.build());
+			geneAssemblies.add(geneAssembly);
+			assembly.addGene(curGene, geneAssembly.getConsensus());
+			onGene.accept(geneAssembly);
+		}
+		return new Result(geneAssemblies, assembly.finish());
+	}
+
+	private static int[] parseHeader(String[] header) {
+		List<String> names = new ArrayList<>();
+		for (String name : header) {
+			names.add(name.trim().toLowerCase());
+		}
+		int[] columns = new int[COLUMNS.length];
+		for (int idx = 0; idx < COLUMNS.length; idx ++) {
+			columns[idx] = names.indexOf(COLUMNS[idx]);
+			if (columns[idx] < 0) {
+				return null;
+			}
+		}
+		return columns;
+	}
+
+	private GeneAssembly finalizeGene(
+		SARS2ReadsAssembly assembly,
+		String gene,
+		int numPositions,
+		SARS2CodonReadsTable table
+	) {
+		long[] mixtures = table.countMixtures(minPrevalence, minCodonReads, minPositionReads);
+		String[] codons = table.getConsensusCodons(gene, minPositionReads);
+		return new GeneAssembly(
+			gene,
+			numPositions,
+			table.getCoveredPositions(gene, minPositionReads).length,
+			table.getMinPositionReads(minPositionReads),
+			mixtures[0],
+			mixtures[1],
+			assembly.toGeneConsensus(gene, codons)
+		);
+	}
+
+}
@@ -0,0 +1,556 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
+
+import edu.stanford.hivdb.seqreads.CodonReads;
+import edu.stanford.hivdb.seqreads.GeneSequenceReads;
+import edu.stanford.hivdb.seqreads.PositionCodonReads;
+import edu.stanford.hivdb.seqreads.SequenceReads;
+
+/**
+ * Primitive-array table of codon reads
+ *
+ * Codon reads (as in codfreq files) are stored per gene in parallel arrays:
+ * sorted positions, total reads of each position, and for each position a
+ * slice of codon codes and codon reads. ACGT triplets are encoded as
+ * 0-63; other codons (deletions, insertions, ambiguous bases) are
+ * dictionary-encoded from 64.
+ *
+ * Cutoff, mixture-rate, coverage and consensus computations are plain
+ * loops over these arrays. Genes are processed in parallel when the table
+ * has at least CODON_READS_PARALLEL_THRESHOLD codons.
+ *
+ * {@link #of(SequenceReads)} keeps one table per SequenceReads object, so
+ * that the reads validator and the Pangolin fetcher share it.
+ */
+public class SARS2CodonReadsTable {
+
+	private static final int PARALLEL_THRESHOLD;
+	private static final int NUM_TRIPLETS = 64;
+	private static final String NAS = "ACGT";
+
+	static {
+		PARALLEL_THRESHOLD = Integer.parseInt(
+			System.getenv().getOrDefault("CODON_READS_PARALLEL_THRESHOLD", "100000"));
+	}
+
+	public static class Builder {
+		private final Map<String, Map<Integer, Long>> totalReads = new LinkedHashMap<>();
+		private final Map<String, Map<Integer, Map<String, Long>>> codonReads = new HashMap<>();
+
+		/**
+		 * Add a row of codon reads
+		 *
+		 * @param gene abstract gene name
+		 * @param position amino acid position
+		 * @param posTotalReads total reads of the position
+		 * @param codon
+		 * @param reads
+		 * @return this builder
+		 */
+		public Builder add(String gene, int position, long posTotalReads, String codon, long reads) {
+			totalReads.computeIfAbsent(gene, k -> new HashMap<>()).put(position, posTotalReads);
+			codonReads
+				.computeIfAbsent(gene, k -> new HashMap<>())
+				.computeIfAbsent(position, k -> new LinkedHashMap<>())
+				.merge(codon.toUpperCase(), reads, Long::sum);
+			return this;
+		}
+
+		public SARS2CodonReadsTable build() {
+			SARS2CodonReadsTable table = new SARS2CodonReadsTable();
+			for (Map.Entry<String, Map<Integer, Long>> entry : totalReads.entrySet()) {
+				String gene = entry.getKey();
+				table.geneTables.put(gene, table.newGeneTable(entry.getValue(), codonReads.get(gene)));
+			}
+			return table;
+		}
+	}
+
+	private class GeneTable {
+		private final int[] positions;
+		private final long[] totalReads;
+		// codons of positions[i] are codons[codonStart[i]..codonStart[i + 1])
+		private final int[] codonStart;
+		private final short[] codons;
+		private final long[] codonReads;
+
+		private GeneTable(int numPositions, int numCodons) {
+			positions = new int[numPositions];
+			totalReads = new long[numPositions];
+			codonStart = new int[numPositions + 1];
+			codons = new short[numCodons];
+			codonReads = new long[numCodons];
+		}
+	}
+
+	private final Map<String, GeneTable> geneTables = new LinkedHashMap<>();
+	private final List<String> extraCodons = new ArrayList<>();
+	private final Map<String, Short> extraCodonLookup = new HashMap<>();
+
+	private static final Map<SequenceReads<SARS2>, SARS2CodonReadsTable> seqReadsTables = (
+		Collections.synchronizedMap(new WeakHashMap<>())
+	);
+
+	private SARS2CodonReadsTable() {}
+
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	/**
+	 * Make a table of position codon reads
+	 *
+	 * @param allReads
+	 * @return a new table
+	 */
+	public static SARS2CodonReadsTable fromPositionCodonReads(Collection<PositionCodonReads<SARS2>> allReads) {
+		Builder builder = newBuilder();
+		for (PositionCodonReads<SARS2> pcr : allReads) {
+			String gene = pcr.getGene().getAbstractGene();
+			int position = (int) pcr.getPosition();
+			long totalReads = pcr.getTotalReads();
+			for (CodonReads<SARS2> codonReads : pcr.getCodonReads()) {
+				builder.add(gene, position, totalReads, codonReads.getCodon(), codonReads.getReads());
+			}
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Get the table of a SequenceReads object
+	 *
+	 * The table is built once and kept as long as the SequenceReads object.
+	 *
+	 * @param seqReads
+	 * @return a table of all codon reads of seqReads
+	 */
+	public static SARS2CodonReadsTable of(SequenceReads<SARS2> seqReads) {
+		return seqReadsTables.computeIfAbsent(seqReads, key -> {
+			List<PositionCodonReads<SARS2>> allReads = new ArrayList<>();
+			for (GeneSequenceReads<SARS2> geneSeqReads : key.getAllGeneSequenceReads()) {
+				allReads.addAll(geneSeqReads.getAllPositionCodonReads());
+			}
+			return fromPositionCodonReads(allReads);
+		});
+	}
+
+	private short encodeCodon(String codon) {
+		if (codon.length() == 3) {
+			int code = 0;
+			for (int idx = 0; idx < 3; idx ++) {
+				int na = NAS.indexOf(codon.charAt(idx));
+				if (na < 0) {
+					code = -1;
+					break;
+				}
+				code = (code << 2) | na;
+			}
+			if (code > -1) {
+				return (short) code;
+			}
+		}
+		return extraCodonLookup.computeIfAbsent(codon, k -> {
+			extraCodons.add(k);
+			return (short) (NUM_TRIPLETS + extraCodons.size() - 1);
+		});
+	}
+
+	private String decodeCodon(short code) {
+		if (code < NUM_TRIPLETS) {
+			return new String(new char[] {
+				NAS.charAt(code >> 4), NAS.charAt((code >> 2) & 3), NAS.charAt(code & 3)
+			});
+		}
+		return extraCodons.get(code - NUM_TRIPLETS);
+	}
+
+	/**
+	 * Get the 4-bit mask (A=1, C=2, G=4, T=8) of the idx-th NA of a codon
+	 */
+	private int getNAMask(short code, int idx) {
+		if (code < NUM_TRIPLETS) {
+			return 1 << ((code >> (4 - idx * 2)) & 3);
+		}
+		String codon = extraCodons.get(code - NUM_TRIPLETS);
+		int na = idx < codon.length() ? NAS.indexOf(codon.charAt(idx)) : -1;
+		return na < 0 ? 0 : 1 << na;
+	}
+
+	private GeneTable newGeneTable(Map<Integer, Long> posTotalReads, Map<Integer, Map<String, Long>> posCodonReads) {
+		int[] positions = posTotalReads.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+		int numCodons = posCodonReads.values().stream().mapToInt(Map::size).sum();
+		GeneTable table = new GeneTable(positions.length, numCodons);
+		int offset = 0;
+		for (int idx = 0; idx < positions.length; idx ++) {
+			table.positions[idx] = positions[idx];
+			table.totalReads[idx] = posTotalReads.get(positions[idx]);
+			table.codonStart[idx] = offset;
+			for (Map.Entry<String, Long> codonReads : posCodonReads.get(positions[idx]).entrySet()) {
+				table.codons[offset] = encodeCodon(codonReads.getKey());
+				table.codonReads[offset] = codonReads.getValue();
+				offset ++;
+			}
+		}
+		table.codonStart[positions.length] = offset;
+		return table;
+	}
+
+	private boolean isParallel() {
+		long numCodons = geneTables.values().stream().mapToLong(table -> table.codons.length).sum();
+		return numCodons >= PARALLEL_THRESHOLD;
+	}
+
+	public List<String> getGenes() {
+		return Collections.unmodifiableList(new ArrayList<>(geneTables.keySet()));
+	}
+
+	/**
+	 * @param gene abstract gene name
+	 * @return number of positions of the gene with codon reads
+	 */
+	public int getNumPositions(String gene) {
+		GeneTable table = geneTables.get(gene);
+		return table == null ? 0 : table.positions.length;
+	}
+
+	private int[] filterPositions(String gene, long minPositionReads, boolean trimmed) {
+		GeneTable table = geneTables.get(gene);
+		if (table == null) {
+			return new int[0];
+		}
+		int[] positions = new int[table.positions.length];
+		int numPositions = 0;
+		for (int posIdx = 0; posIdx < table.positions.length; posIdx ++) {
+			if ((table.totalReads[posIdx] < minPositionReads) == trimmed) {
+				positions[numPositions ++] = table.positions[posIdx];
+			}
+		}
+		return Arrays.copyOf(positions, numPositions);
+	}
+
+	/**
+	 * Get positions of a gene trimmed for having too few reads
+	 *
+	 * @param gene abstract gene name
+	 * @param minPositionReads
+	 * @return sorted positions whose total reads are below minPositionReads
+	 */
+	public int[] getTrimmedPositions(String gene, long minPositionReads) {
+		return filterPositions(gene, minPositionReads, true);
+	}
+
+	/**
+	 * Get positions of a gene which are not trimmed
+	 *
+	 * @param gene abstract gene name
+	 * @param minPositionReads
+	 * @return sorted positions whose total reads are at least minPositionReads
+	 */
+	public int[] getCoveredPositions(String gene, long minPositionReads) {
+		return filterPositions(gene, minPositionReads, false);
+	}
+
+	/**
+	 * Count NAs and mixtures of a gene
+	 *
+	 * A position is skipped if its total reads are below minPositionReads.
+	 * A codon is included if its reads are at least minCodonReads and its
+	 * prevalence is at least minPrevalence. An NA is a mixture if more
+	 * than one nucleotide is found there among included codons.
+	 *
+	 * @return {numNAs, numMixtures}
+	 */
+	private long[] countMixtures(GeneTable table, double minPrevalence, long minCodonReads, long minPositionReads) {
+		long numNAs = 0;
+		long numMixtures = 0;
+		for (int posIdx = 0; posIdx < table.positions.length; posIdx ++) {
+			long total = table.totalReads[posIdx];
+			if (total < minPositionReads || total == 0) {
+				continue;
+			}
+			int mask0 = 0;
+			int mask1 = 0;
+			int mask2 = 0;
+			for (int idx = table.codonStart[posIdx]; idx < table.codonStart[posIdx + 1]; idx ++) {
+				long reads = table.codonReads[idx];
+				if (reads < minCodonReads || (double) reads / total < minPrevalence) {
+					continue;
+				}
+				short code = table.codons[idx];
+				mask0 |= getNAMask(code, 0);
+				mask1 |= getNAMask(code, 1);
+				mask2 |= getNAMask(code, 2);
+			}
+			numNAs += 3;
+			numMixtures += (Integer.bitCount(mask0) > 1 ? 1 : 0)
+				+ (Integer.bitCount(mask1) > 1 ? 1 : 0)
+				+ (Integer.bitCount(mask2) > 1 ? 1 : 0);
+		}
+		return new long[] {numNAs, numMixtures};
+	}
+
+	/**
+	 * Count NAs and mixtures of all genes
+	 *
+	 * @param minPrevalence
+	 * @param minCodonReads
+	 * @param minPositionReads
+	 * @return {numNAs, numMixtures}
+	 */
+	public long[] countMixtures(double minPrevalence, long minCodonReads, long minPositionReads) {
+		return (isParallel() ? geneTables.values().parallelStream() : geneTables.values().stream())
+			.map(table -> countMixtures(table, minPrevalence, minCodonReads, minPositionReads))
+			.reduce(new long[] {0, 0}, (a, b) -> new long[] {a[0] + b[0], a[1] + b[1]});
+	}
+
+	/**
+	 * Get the mixture rate of all genes
+	 *
+	 * @param minPrevalence
+	 * @param minCodonReads
+	 * @param minPositionReads
+	 * @return numMixtures / numNAs
+	 */
+	public double getMixtureRate(double minPrevalence, long minCodonReads, long minPositionReads) {
+		long[] total = countMixtures(minPrevalence, minCodonReads, minPositionReads);
+		return total[0] == 0 ? 0. : (double) total[1] / total[0];
+	}
+
+	/**
+	 * Get the minimum total reads among positions which are not trimmed
+	 *
+	 * @param minPositionReads
+	 * @return the minimum, or 0 if all positions are trimmed
+	 */
+	public long getMinPositionReads(long minPositionReads) {
+		long min = Long.MAX_VALUE;
+		for (GeneTable table : geneTables.values()) {
+			for (long total : table.totalReads) {
+				if (total >= minPositionReads && total < min) {
+					min = total;
+				}
+			}
+		}
+		return min == Long.MAX_VALUE ? 0 : min;
+	}
+
+	/**
+	 * Compute the actual prevalence cutoff
+	 *
+	 * Codons are included in descending order of prevalence (down to
+	 * minPrevalence) until including the next one would make the mixture
+	 * rate greater than maxMixtureRate.
+	 *
+	 * @param maxMixtureRate
+	 * @param minPrevalence
+	 * @param minCodonReads
+	 * @param minPositionReads
+	 * @return the lowest prevalence included
+	 */
+	public double computePrevalenceCutoff(
+		double maxMixtureRate,
+		double minPrevalence,
+		long minCodonReads,
+		long minPositionReads
+	) {
+		List<GeneTable> tables = new ArrayList<>(geneTables.values());
+		int[] tableOffsets = new int[tables.size() + 1];
+		long numNAs = 0;
+		for (int tIdx = 0; tIdx < tables.size(); tIdx ++) {
+			GeneTable table = tables.get(tIdx);
+			tableOffsets[tIdx + 1] = tableOffsets[tIdx] + table.codons.length;
+			for (long total : table.totalReads) {
+				if (total >= minPositionReads && total > 0) {
+					numNAs += 3;
+				}
+			}
+		}
+
+		// sort keys: high 32 bits are the float bits of the prevalence
+		// (monotonic for non-negative floats), low 32 bits the codon index
+		int numCodons = tableOffsets[tables.size()];
+		long[] keys = new long[numCodons];
+		double[] prevalences = new double[numCodons];
+		int[] tableIndices = new int[numCodons];
+		int[] posIndices = new int[numCodons];
+		int numKeys = 0;
+		for (int tIdx = 0; tIdx < tables.size(); tIdx ++) {
+			GeneTable table = tables.get(tIdx);
+			for (int posIdx = 0; posIdx < table.positions.length; posIdx ++) {
+				long total = table.totalReads[posIdx];
+				if (total < minPositionReads || total == 0) {
+					continue;
+				}
+				for (int idx = table.codonStart[posIdx]; idx < table.codonStart[posIdx + 1]; idx ++) {
+					long reads = table.codonReads[idx];
+					double prevalence = (double) reads / total;
+					if (reads < minCodonReads || prevalence < minPrevalence) {
+						continue;
+					}
+					int globalIdx = tableOffsets[tIdx] + idx;
+					prevalences[globalIdx] = prevalence;
+					tableIndices[globalIdx] = tIdx;
+					posIndices[globalIdx] = posIdx;
+					keys[numKeys ++] = ((long) Float.floatToIntBits((float) prevalence) << 32) | globalIdx;
+				}
+			}
+		}
+		keys = Arrays.copyOf(keys, numKeys);
+		if (isParallel()) {
+			Arrays.parallelSort(keys);
+		}
+		else {
+			Arrays.sort(keys);
+		}
+
+		// 4-bit NA masks of every position, 3 NAs per position
+		int[][] masks = new int[tables.size()][];
+		for (int tIdx = 0; tIdx < tables.size(); tIdx ++) {
+			masks[tIdx] = new int[tables.get(tIdx).positions.length * 3];
+		}
+		long numMixtures = 0;
+		double cutoff = 1.;
+		for (int keyIdx = numKeys - 1; keyIdx > -1; keyIdx --) {
+			int globalIdx = (int) keys[keyIdx];
+			int tIdx = tableIndices[globalIdx];
+			GeneTable table = tables.get(tIdx);
+			short code = table.codons[globalIdx - tableOffsets[tIdx]];
+			int[] tableMasks = masks[tIdx];
+			int base = posIndices[globalIdx] * 3;
+			long newMixtures = 0;
+			for (int naIdx = 0; naIdx < 3; naIdx ++) {
+				int mask = tableMasks[base + naIdx];
+				int newMask = mask | getNAMask(code, naIdx);
+				if (Integer.bitCount(mask) < 2 && Integer.bitCount(newMask) > 1) {
+					newMixtures ++;
+				}
+			}
+			if (numNAs > 0 && (double) (numMixtures + newMixtures) / numNAs > maxMixtureRate) {
+				break;
+			}
+			for (int naIdx = 0; naIdx < 3; naIdx ++) {
+				tableMasks[base + naIdx] |= getNAMask(code, naIdx);
+			}
+			numMixtures += newMixtures;
+			cutoff = prevalences[globalIdx];
+		}
+		return Math.max(cutoff, minPrevalence);
+	}
+
+	private String[] buildConsensusCodons(GeneTable table, long minPositionReads) {
+		int numPositions = table.positions.length == 0 ? 0 : table.positions[table.positions.length - 1];
+		String[] codons = new String[numPositions];
+		Arrays.fill(codons, "NNN");
+		for (int posIdx = 0; posIdx < table.positions.length; posIdx ++) {
+			int start = table.codonStart[posIdx];
+			int end = table.codonStart[posIdx + 1];
+			if (table.totalReads[posIdx] < minPositionReads || start == end) {
+				continue;
+			}
+			int best = start;
+			for (int idx = start + 1; idx < end; idx ++) {
+				if (table.codonReads[idx] > table.codonReads[best]) {
+					best = idx;
+				}
+			}
+			codons[table.positions[posIdx] - 1] = decodeCodon(table.codons[best]);
+		}
+		return codons;
+	}
+
+	private String buildConsensus(GeneTable table, long minPositionReads) {
+		StringBuilder consensus = new StringBuilder();
+		for (String codon : buildConsensusCodons(table, minPositionReads)) {
+			for (char na : codon.toCharArray()) {
+				// deletions are removed from the consensus
+				if (na != '-') {
+					consensus.append(na);
+				}
+			}
+		}
+		return consensus.toString();
+	}
+
+	/**
+	 * Get the most abundant codon of each position of a gene
+	 *
+	 * Unlike {@link #getUnambiguousConsensus(long)}, deletions ("-") are
+	 * kept so that the array index is always the position minus one.
+	 *
+	 * @param gene abstract gene name
+	 * @param minPositionReads
+	 * @return codons from position 1 to the last position; "NNN" if missing or trimmed
+	 */
+	public String[] getConsensusCodons(String gene, long minPositionReads) {
+		GeneTable table = geneTables.get(gene);
+		return table == null ? new String[0] : buildConsensusCodons(table, minPositionReads);
+	}
+
+	/**
+	 * Get the unambiguous consensus of each gene
+	 *
+	 * The most abundant codon is used at each position. Positions which are
+	 * missing or have fewer total reads than minPositionReads are "NNN".
+	 *
+	 * @param minPositionReads
+	 * @return a map of gene to consensus nucleotides, from codon 1 to the last position
+	 */
+	public Map<String, String> getUnambiguousConsensus(long minPositionReads) {
+		Map<String, String> consensus = new LinkedHashMap<>();
+		List<String> genes = new ArrayList<>(geneTables.keySet());
+		List<String> geneConsensus = (isParallel() ? genes.parallelStream() : genes.stream())
+			.map(gene -> buildConsensus(geneTables.get(gene), minPositionReads))
+			.collect(Collectors.toList());
+		for (int idx = 0; idx < genes.size(); idx ++) {
+			consensus.put(genes.get(idx), geneConsensus.get(idx));
+		}
+		return consensus;
+	}
+
+	/**
+	 * Get the unambiguous consensus of the genome
+	 *
+	 * Gene consensus are assembled following assembly-config.json, as
+	 * SequenceReads#getAssembledUnambiguousConsensus does; untranslated
+	 * regions and genes without codon reads are N.
+	 *
+	 * @param minPositionReads
+	 * @return genome consensus nucleotides
+	 */
+	public String getAssembledUnambiguousConsensus(long minPositionReads) {
+		SARS2ReadsAssembly assembly = new SARS2ReadsAssembly();
+		for (String gene : geneTables.keySet()) {
+			assembly.addGene(gene, assembly.toGeneConsensus(gene, getConsensusCodons(gene, minPositionReads)));
+		}
+		return assembly.finish();
+	}
+
+}
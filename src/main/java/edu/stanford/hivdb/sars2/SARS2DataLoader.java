@@ -24,7 +24,6 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -32,8 +31,7 @@ import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 
@@ -71,21 +69,8 @@ import edu.stanford.hivdb.viruses.Virus;
 
 public class SARS2DataLoader<T extends Virus<T>> {
 
-	private static final Pattern SARS2_MUTATION_PATTERN = Pattern.compile(
-		"^\\s*" +
-		"(__ASI__)?((?i:nsp(?:1|2|3|4|5|6|7|8|9|10|13|14|15|16)|PLpro|PL|_?3CLpro|3CL|Mpro|RdRP|S|Spike|E|M|N|ORF(?:3a|6|7a|7b|8|10)))?[:_-]?" +
-		"([AC-IK-NP-TV-Y])?" +
-		"(\\d{1,4})" +
-		"([AC-IK-NP-TV-Zid.*]+(?:[#_]?[AC-IK-NP-TV-Z.*]+)?|[id_#~-]|[iI]ns(?:ertion)?|[dD]el(?:etion)?)" +
-		"(?::([ACGTRYMWSKBDHVN-]{3})?)?" +
-		"\\s*$");
-	
-	private static final Pattern NON_ASI_AA_PATTERN = Pattern.compile(
-		"^([AC-IK-NP-TV-Z.*]+(?:[#_]?[AC-IK-NP-TV-Z.*]+)?|[id_#~-]|[iI]ns(?:ertion)?|[dD]el(?:etion)?)$"
-	);
-
 	protected static String loadResource(String resPath) {
-		if (resPath.toLowerCase().startsWith("https://")) {
+		if (resPath.toLowerCase().matches("^https?://.*")) {
 			try {
 				URL url = new URL(resPath);
 				HttpURLConnection conn = (HttpURLConnection) url.openConnection();
@@ -117,7 +102,10 @@ public class SARS2DataLoader<T extends Virus<T>> {
 		}
 	}
 	
-	private static final String URL_ALLOW_PURGING_CACHE = "https://s3-us-west-2.amazonaws.com/cms.hivdb.org/sierra-sars2-allow-purging-cache";
+	private static final String URL_ALLOW_PURGING_CACHE = (
+		SARS2CMS.BASE_URL +
+		"/sierra-sars2-allow-purging-cache"
+	);
 
 	private final T virus;
 	private final String VIRUS_NAME;
@@ -153,13 +141,14 @@ public class SARS2DataLoader<T extends Virus<T>> {
 	private transient Map<DrugClass<T>, MutationSet<T>> rxSelectedMutations;
 	private transient MutationSet<T> apobecMutations;
 	private transient MutationSet<T> apobecDRMs;
-	private transient Map<String, AminoAcidPercents<T>> aminoAcidPcnts = new HashMap<>();
-	private transient Map<String, CodonPercents<T>> codonPcnts = new HashMap<>();
+	private transient Map<String, Gene<T>> geneAliasLookup = new ConcurrentHashMap<>();
+	private transient Map<String, AminoAcidPercents<T>> aminoAcidPcnts = new ConcurrentHashMap<>();
+	private transient Map<String, CodonPercents<T>> codonPcnts = new ConcurrentHashMap<>();
 	private transient Map<String, MutationType<T>> mutationTypes;
 	private transient List<MutationTypePair<T>> mutationTypePairs;
 	private transient Map<Strain<T>, List<String>> mainSubtypes;
-	private transient Map<GenePosition<T>, List<MutationPrevalence<T>>> mutPrevalenceMap = new HashMap<>();
-	private transient Map<Strain<T>, Map<Gene<T>, Map<String, Integer[]>>> allAAPcntsNumPatients = new HashMap<>();
+	private transient volatile Map<Gene<T>, List<MutationPrevalence<T>>[]> mutPrevalenceTable;
+	private transient Map<Strain<T>, Map<Gene<T>, Map<String, Integer[]>>> allAAPcntsNumPatients = new ConcurrentHashMap<>();
 	private transient Map<String, Genotype<T>> allGenotypes;
 	private transient List<GenotypeReference<T>> allGenotypeReferences;
 	private transient Genotyper<T> genotyper;
@@ -493,20 +482,37 @@ public class SARS2DataLoader<T extends Virus<T>> {
 	
 	public Gene<T> extractMutationGene(String mutText) {
 		Gene<T> gene = null;
-		Matcher m = SARS2_MUTATION_PATTERN.matcher(mutText);
-		if (m.matches()) {
-			try {
-				gene = getGene(MAIN_STRAIN + m.group(2).toUpperCase());
-			} catch (NullPointerException e) {
+		SARS2MutationParser.ParsedMutation m = SARS2MutationParser.parse(mutText);
+		if (m != null) {
+			gene = getGeneByAlias(m.getGeneAlias());
+			if (gene == null) {
 				throw new Mutation.InvalidMutationException(
 					"Gene is not specified and also not found in the " +
 					"given text: " + mutText + ". The correct format " +
 					"for an input mutation string is, for example, " +
-					"RT:215Y.", e);
+					"RT:215Y.");
 			}
 		}
 		return gene;
 	}
+	
+	/**
+	 * Resolves an uppercased gene alias (e.g. "SPIKE") into a Gene object
+	 * 
+	 * @param upperGeneAlias
+	 * @return a Gene object, or null if upperGeneAlias is null
+	 */
+	private Gene<T> getGeneByAlias(String upperGeneAlias) {
+		if (upperGeneAlias == null) {
+			return null;
+		}
+		Gene<T> gene = geneAliasLookup.get(upperGeneAlias);
+		if (gene == null) {
+			gene = getGene(MAIN_STRAIN + upperGeneAlias);
+			geneAliasLookup.put(upperGeneAlias, gene);
+		}
+		return gene;
+	}
 
 	/**
 	 * Converts gene and mutText string into a Mutation object
@@ -516,33 +522,32 @@ public class SARS2DataLoader<T extends Virus<T>> {
 	 */
 	
 	public Mutation<T> parseMutationString(Gene<T> defaultGene, String mutText) {
-		Matcher m = SARS2_MUTATION_PATTERN.matcher(mutText);
+		SARS2MutationParser.ParsedMutation m = SARS2MutationParser.parse(mutText);
 		Mutation<T> mut = null;
-		if (m.matches()) {
+		if (m != null) {
 			Gene<T> gene;
-			boolean isASI = m.group(1) == null ? false : m.group(1).equals("__ASI__");
-			try {
-				gene = getGene(MAIN_STRAIN + m.group(2).toUpperCase());
-			} catch (NullPointerException e) {
+			boolean isASI = m.isASI();
+			gene = getGeneByAlias(m.getGeneAlias());
+			if (gene == null) {
 				if (defaultGene == null) {
 					throw new Mutation.InvalidMutationException(
 						"Gene is not specified and also not found in the " +
 						"given text: " + mutText + ". The correct format " +
 						"for an input mutation string is, for example, " +
-						"RT:215Y.", e);
+						"RT:215Y.");
 				}
 				else {
 					gene = defaultGene;
 				}
 			}
-			int pos = Integer.parseInt(m.group(4));
-			String aas = m.group(5);
-			if (!isASI && !NON_ASI_AA_PATTERN.matcher(aas).matches()) {
+			int pos = m.getPosition();
+			String aas = m.getAAs();
+			if (!isASI && !m.isNonASIAAs()) {
 				throw new Mutation.InvalidMutationException(
 					"Tried to parse mutation string using invalid parameters: " + mutText);
 			}
 			aas = AAUtils.normalizeAAs(aas);
-			String triplet = m.group(6);
+			String triplet = m.getTriplet();
 			if (triplet == null) triplet = "";
 			if (isASI) {
 				mut = new AAMutation<>(gene, pos, aas.toCharArray());
@@ -607,7 +612,7 @@ public class SARS2DataLoader<T extends Virus<T>> {
 		}
 		return newMutationSet(
 			defaultGene,
-			Arrays.asList(formattedMuts.split("[\\s,;+\\.]+"))
+			SARS2MutationParser.splitMutations(formattedMuts)
 		);
 	}
 
@@ -691,12 +696,9 @@ public class SARS2DataLoader<T extends Virus<T>> {
 	public AminoAcidPercents<T> getAminoAcidPercents(Strain<T> strain, String treatment, String subtype) {
 		String resourceName = String.format(AAPCNTS_RESPATH, treatment, subtype);
 		String resourceKey = String.format("%s::%s", resourceName, strain.getName());
-		if (!aminoAcidPcnts.containsKey(resourceKey)) {
-			aminoAcidPcnts.put(resourceKey, new AminoAcidPercents<>(resourceName, virus, strain));
-			// Example of empty Instance:
-			// aminoAcidPcnts.put(resourceName, AminoAcidPercents.newEmptyInstance());
-		}
-		return aminoAcidPcnts.get(resourceKey);
+		// Example of empty Instance:
+		// aminoAcidPcnts.put(resourceName, AminoAcidPercents.newEmptyInstance());
+		return aminoAcidPcnts.computeIfAbsent(resourceKey, k -> new AminoAcidPercents<>(resourceName, virus, strain));
 	}
 
 	/**
@@ -708,20 +710,51 @@ public class SARS2DataLoader<T extends Virus<T>> {
 	
 	public CodonPercents<T> getCodonPercents(Strain<T> strain, String treatment, String subtype) {
 		String resourceName = String.format(CODONPCNTS_RESPATH, treatment, subtype);
-		if (!codonPcnts.containsKey(resourceName)) {
-			codonPcnts.put(resourceName, new CodonPercents<>(resourceName, virus, strain));
-			// Example of emptyInstance:
-			// codonPcnts.put(resourceName, CodonPercents.newEmptyInstance());
-		}
-		return codonPcnts.get(resourceName);
+		// Example of emptyInstance:
+		// codonPcnts.put(resourceName, CodonPercents.newEmptyInstance());
+		return codonPcnts.computeIfAbsent(resourceName, k -> new CodonPercents<>(resourceName, virus, strain));
 	}
 
 	
+	/**
+	 * Precompute mutation prevalences of every codon position of every gene
+	 *
+	 * The table is built once and never modified afterward; each position
+	 * holds an unmodifiable list so that it can be shared by concurrent
+	 * readers without defensive copying.
+	 */
+	private synchronized void initMutPrevalenceTable() {
+		if (mutPrevalenceTable != null) {
+			return;
+		}
+		Map<Gene<T>, List<MutationPrevalence<T>>[]> table = new HashMap<>();
+		for (Strain<T> strain : getStrains()) {
+			for (Gene<T> gene : getGenes(strain)) {
+				int aaSize = gene.getAASize();
+				@SuppressWarnings("unchecked")
+				List<MutationPrevalence<T>>[] genePrevs = new List[aaSize];
+				for (int pos = 1; pos <= aaSize; pos ++) {
+					genePrevs[pos - 1] = Collections.unmodifiableList(
+						new ArrayList<>(virus.defaultGetMutationPrevalence(new GenePosition<>(gene, pos)))
+					);
+				}
+				table.put(gene, genePrevs);
+			}
+		}
+		mutPrevalenceTable = Collections.unmodifiableMap(table);
+	}
+	
 	public List<MutationPrevalence<T>> getMutationPrevalence(GenePosition<T> genePos) {
-		if (!mutPrevalenceMap.containsKey(genePos)) {
-			mutPrevalenceMap.put(genePos, virus.defaultGetMutationPrevalence(genePos));
+		if (mutPrevalenceTable == null) {
+			initMutPrevalenceTable();
+		}
+		List<MutationPrevalence<T>>[] genePrevs = mutPrevalenceTable.get(genePos.getGene());
+		int pos = genePos.getPosition();
+		if (genePrevs == null || pos < 1 || pos > genePrevs.length) {
+			// positions outside of the reference are not precomputed
+			return Collections.unmodifiableList(virus.defaultGetMutationPrevalence(genePos));
 		}
-		return new ArrayList<>(mutPrevalenceMap.get(genePos));					
+		return genePrevs[pos - 1];
 	}
 	
 	
@@ -742,10 +775,7 @@ public class SARS2DataLoader<T extends Virus<T>> {
 	
 	
 	public Map<Gene<T>, Map<String, Integer[]>> getNumPatientsForAAPercents(Strain<T> strain) {
-		if (!allAAPcntsNumPatients.containsKey(strain)) {
-			allAAPcntsNumPatients.put(strain, virus.defaultGetNumPatientsForAAPercents(strain));
-		}
-		return allAAPcntsNumPatients.get(strain);
+		return allAAPcntsNumPatients.computeIfAbsent(strain, k -> virus.defaultGetNumPatientsForAAPercents(strain));
 	}
 
 	
@@ -783,7 +813,7 @@ public class SARS2DataLoader<T extends Virus<T>> {
 	
 	public Genotyper<T> getGenotyper() {
 		if (genotyper == null) {
-			genotyper = new Genotyper<>(virus);
+			genotyper = new SARS2Genotyper<>(virus);
 		}
 		return genotyper;
 	}
@@ -791,7 +821,8 @@ public class SARS2DataLoader<T extends Virus<T>> {
 	public AlignmentConfig<T> getAlignmentConfig() {
 		if (alignmentConfig == null) {
 			String raw = loadResource(ALIGNCONFIG_RESPATH);
-			alignmentConfig = AlignmentConfig.loadJson(raw, virus);
+			alignmentConfig = AlignmentConfig.loadJson(
+				SARS2ReferenceAligner.toSierraAlignmentConfig(raw), virus);
 		}
 		return alignmentConfig;
 	}
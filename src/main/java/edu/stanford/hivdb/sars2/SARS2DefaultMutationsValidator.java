@@ -22,98 +22,182 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 import edu.stanford.hivdb.mutations.Mutation;
 import edu.stanford.hivdb.mutations.MutationSet;
 import edu.stanford.hivdb.mutations.MutationsValidator;
+import edu.stanford.hivdb.sars2.SARS2ValidationEngine.Context;
+import edu.stanford.hivdb.sars2.SARS2ValidationEngine.Rule;
 import edu.stanford.hivdb.utilities.ValidationLevel;
 import edu.stanford.hivdb.utilities.ValidationResult;
 import edu.stanford.hivdb.viruses.Gene;
 
 public class SARS2DefaultMutationsValidator implements MutationsValidator<SARS2> {
 
+	private static final Rule<MutationSet<SARS2>, ?> tooManyUnusualMutationsRule = newTooManyUnusualMutationsRule();
+
+	private static final SARS2ValidationEngine<MutationSet<SARS2>> defaultEngine = new SARS2ValidationEngine<>(
+		newStopCodonsRule(
+			ValidationLevel.SEVERE_WARNING,
+			ValidationLevel.WARNING,
+			Mutation::getHumanFormatWithAbstractGene
+		),
+		tooManyUnusualMutationsRule
+	);
+
+	private final SARS2ValidationEngine<MutationSet<SARS2>> engine;
+
+	public SARS2DefaultMutationsValidator() {
+		this(SARS2ValidationEngine.getParallelThreshold());
+	}
+
+	/**
+	 * @param parallelThreshold number of mutations from which genes are
+	 *                          validated in parallel
+	 */
+	protected SARS2DefaultMutationsValidator(int parallelThreshold) {
+		engine = defaultEngine.withParallelThreshold(parallelThreshold);
+	}
+
 	@Override
 	public List<ValidationResult> validate(MutationSet<SARS2> mutations, Collection<String> includeGenes) {
-		List<ValidationResult> validationResults = new ArrayList<>();
-		validationResults.addAll(validateNoStopCodons(mutations, includeGenes));
-		validationResults.addAll(validateNoTooManyUnusualMutations(mutations, includeGenes));
-		return validationResults;
+		return engine.validate(mutations, includeGenes, mutations);
 	}
 
-	private static List<ValidationResult> validateNoStopCodons(
+	protected static List<ValidationResult> validateNoTooManyUnusualMutations(
 		MutationSet<SARS2> mutations,
 		Collection<String> includeGenes
 	) {
-		List<ValidationResult> validationResults = new ArrayList<>();
-		MutationSet<SARS2> stopCodons = mutations
-			.getStopCodons()
-			.filterBy(mut -> includeGenes.contains(mut.getAbstractGene()));
-		for (Map.Entry<Gene<SARS2>, MutationSet<SARS2>> entry : stopCodons.groupByGene().entrySet()) {
-			String geneDisplay = entry.getKey().getDisplay();
-			MutationSet<SARS2> geneStopCodons = entry.getValue();
-			int numGeneStopCodons = geneStopCodons.size();
-			String geneStopText = geneStopCodons.join(", ", Mutation::getHumanFormatWithAbstractGene);
-			if (numGeneStopCodons > 1) {
-				validationResults.add(SARS2ValidationMessage.MultipleStopCodons.formatWithLevel(
-					ValidationLevel.SEVERE_WARNING,
-					numGeneStopCodons,
-					geneDisplay,
-					geneStopText
-				));
-			} else if (numGeneStopCodons > 0) {
-				validationResults.add(SARS2ValidationMessage.SingleStopCodon.formatWithLevel(
-					ValidationLevel.WARNING,
-					geneDisplay,
-					geneStopText
-				));
-			}
-		}
-		
-		return validationResults;
+		return new SARS2ValidationEngine<MutationSet<SARS2>>(tooManyUnusualMutationsRule)
+			.validate(mutations, includeGenes, mutations);
 	}
 
-
-	protected static List<ValidationResult> validateNoTooManyUnusualMutations(
-		MutationSet<SARS2> mutations,
-		Collection<String> includeGenes
+	/**
+	 * Per-gene stop codon rule shared by mutations, sequence and reads validators
+	 *
+	 * @param <T> validation subject
+	 * @param multipleLevel level used when a gene has more than one stop codon
+	 * @param singleLevel level used when a gene has exactly one stop codon
+	 * @param formatter stop codon text formatter
+	 * @return a rule
+	 */
+	static <T> Rule<T, List<Mutation<SARS2>>> newStopCodonsRule(
+		ValidationLevel multipleLevel,
+		ValidationLevel singleLevel,
+		Function<Mutation<SARS2>, String> formatter
 	) {
-		List<ValidationResult> validationResults = new ArrayList<>();
-		MutationSet<SARS2> unusualMuts = mutations
-			.getUnusualMutations()
-			.filterBy(mut -> includeGenes.contains(mut.getAbstractGene()));
-		
-		MutationSet<SARS2> spikeUnusualMuts = unusualMuts.getGeneMutationsNoSplit("S");
-		int numSpikeUnusual = spikeUnusualMuts.size();
-		if (numSpikeUnusual >= 10) {
-			validationResults.add(SARS2ValidationMessage.MultipleUnusualMutations.format(
-				numSpikeUnusual,
-				"Spike",
-				spikeUnusualMuts.join(", "))
-			);
-		};
-		
-		MutationSet<SARS2> rdrpUnusualMuts = unusualMuts.getGeneMutationsNoSplit("RdRP");
-		int numRdRPUnusual = rdrpUnusualMuts.size();
-		if (numRdRPUnusual >= 5) {
-			validationResults.add(SARS2ValidationMessage.MultipleUnusualMutations.format(
-				numRdRPUnusual,
-				"RdRP",
-				rdrpUnusualMuts.join(", "))
-			);
-		};
-		
-		MutationSet<SARS2> _3clproUnusualMuts = unusualMuts.getGeneMutationsNoSplit("_3CLpro");
-		int num3CLproUnusual = _3clproUnusualMuts.size();
-		if (num3CLproUnusual >= 5) {
-			validationResults.add(SARS2ValidationMessage.MultipleUnusualMutations.format(
-				num3CLproUnusual,
-				"3CLpro",
-				_3clproUnusualMuts.join(", "))
-			);
+		return new Rule<>() {
+
+			@Override
+			protected List<Mutation<SARS2>> newGeneAccumulator(Context<T> context, Gene<SARS2> gene) {
+				return new ArrayList<>();
+			}
+
+			@Override
+			protected void onMutation(List<Mutation<SARS2>> stopCodons, Mutation<SARS2> mut) {
+				if (mut.hasStop()) {
+					stopCodons.add(mut);
+				}
+			}
+
+			@Override
+			protected List<ValidationResult> finish(
+				Context<T> context,
+				Map<Gene<SARS2>, List<Mutation<SARS2>>> stopCodonsByGene
+			) {
+				List<ValidationResult> validationResults = new ArrayList<>();
+				for (Map.Entry<Gene<SARS2>, List<Mutation<SARS2>>> entry : stopCodonsByGene.entrySet()) {
+					if (entry.getValue().isEmpty()) {
+						continue;
+					}
+					String geneDisplay = entry.getKey().getDisplay();
+					MutationSet<SARS2> geneStopCodons = new MutationSet<>(entry.getValue());
+					int numGeneStopCodons = geneStopCodons.size();
+					String geneStopText = geneStopCodons.join(", ", formatter::apply);
+					if (numGeneStopCodons > 1) {
+						validationResults.add(SARS2ValidationMessage.MultipleStopCodons.formatWithLevel(
+							multipleLevel,
+							numGeneStopCodons,
+							geneDisplay,
+							geneStopText
+						));
+					} else {
+						validationResults.add(SARS2ValidationMessage.SingleStopCodon.formatWithLevel(
+							singleLevel,
+							geneDisplay,
+							geneStopText
+						));
+					}
+				}
+				return validationResults;
+			}
 		};
+	}
+
+	/**
+	 * Rule of too many unusual mutations in Spike, RdRP or 3CLpro
+	 *
+	 * @param <T> validation subject
+	 * @return a rule
+	 */
+	static <T> Rule<T, List<Mutation<SARS2>>> newTooManyUnusualMutationsRule() {
+		return new Rule<>() {
 
-		return validationResults;
+			@Override
+			protected List<Mutation<SARS2>> newGeneAccumulator(Context<T> context, Gene<SARS2> gene) {
+				switch (gene.getAbstractGene()) {
+					case "S":
+					case "RdRP":
+					case "_3CLpro":
+						return new ArrayList<>();
+					default:
+						return null;
+				}
+			}
+
+			@Override
+			protected void onMutation(List<Mutation<SARS2>> unusualMuts, Mutation<SARS2> mut) {
+				if (mut.isUnusual()) {
+					unusualMuts.add(mut);
+				}
+			}
 
+			@Override
+			protected List<ValidationResult> finish(
+				Context<T> context,
+				Map<Gene<SARS2>, List<Mutation<SARS2>>> unusualMutsByGene
+			) {
+				List<ValidationResult> validationResults = new ArrayList<>();
+				addTooManyUnusualMutations(validationResults, unusualMutsByGene, "S", "Spike", 10);
+				addTooManyUnusualMutations(validationResults, unusualMutsByGene, "RdRP", "RdRP", 5);
+				addTooManyUnusualMutations(validationResults, unusualMutsByGene, "_3CLpro", "3CLpro", 5);
+				return validationResults;
+			}
+		};
+	}
+
+	private static void addTooManyUnusualMutations(
+		List<ValidationResult> validationResults,
+		Map<Gene<SARS2>, List<Mutation<SARS2>>> unusualMutsByGene,
+		String abstractGene,
+		String geneDisplay,
+		int threshold
+	) {
+		for (Map.Entry<Gene<SARS2>, List<Mutation<SARS2>>> entry : unusualMutsByGene.entrySet()) {
+			if (!entry.getKey().getAbstractGene().equals(abstractGene)) {
+				continue;
+			}
+			MutationSet<SARS2> unusualMuts = new MutationSet<>(entry.getValue());
+			int numUnusual = unusualMuts.size();
+			if (numUnusual >= threshold) {
+				validationResults.add(SARS2ValidationMessage.MultipleUnusualMutations.format(
+					numUnusual,
+					geneDisplay,
+					unusualMuts.join(", "))
+				);
+			}
+		}
 	}
 
-}
\ No newline at end of file
+}
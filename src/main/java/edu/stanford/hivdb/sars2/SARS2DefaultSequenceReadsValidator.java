@@ -22,7 +22,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -30,8 +29,7 @@ import com.google.common.collect.Lists;
 
 import edu.stanford.hivdb.mutations.GenePosition;
 import edu.stanford.hivdb.mutations.Mutation;
-import edu.stanford.hivdb.mutations.MutationSet;
-import edu.stanford.hivdb.seqreads.OneCodonReadsCoverage;
+import edu.stanford.hivdb.sars2.SARS2ValidationEngine.Rule;
 import edu.stanford.hivdb.seqreads.SequenceReads;
 import edu.stanford.hivdb.seqreads.SequenceReadsValidator;
 import edu.stanford.hivdb.sequences.GeneRegions;
@@ -44,20 +42,60 @@ import edu.stanford.hivdb.viruses.Strain;
 
 public class SARS2DefaultSequenceReadsValidator implements SequenceReadsValidator<SARS2> {
 
+	private static final Rule<SequenceReads<SARS2>, ?> stopCodonsRule = (
+		SARS2DefaultMutationsValidator.newStopCodonsRule(
+			ValidationLevel.WARNING,
+			ValidationLevel.WARNING,
+			Mutation::getHumanFormat
+		)
+	);
+	private static final Rule<SequenceReads<SARS2>, ?> tooManyUnusualMutationsRule = (
+		SARS2DefaultMutationsValidator.newTooManyUnusualMutationsRule()
+	);
+
+	private static final SARS2ValidationEngine<SequenceReads<SARS2>> defaultEngine = new SARS2ValidationEngine<>(
+		Rule.ofSubject(ctx -> validateTrimmedPositions(ctx.getSubject(), ctx.getIncludeGenes())),
+		Rule.ofSubject(ctx -> validateNoMissingPositions(ctx.getSubject(), ctx.getIncludeGenes())),
+		Rule.ofSubject(ctx -> validateMixtureRateTooHigh(ctx.getSubject())),
+		stopCodonsRule,
+		tooManyUnusualMutationsRule
+	);
+
+	private final SARS2ValidationEngine<SequenceReads<SARS2>> engine;
+
+	public SARS2DefaultSequenceReadsValidator() {
+		this(SARS2ValidationEngine.getParallelThreshold());
+	}
+
+	/**
+	 * @param parallelThreshold number of mutations from which genes are
+	 *                          validated in parallel
+	 */
+	protected SARS2DefaultSequenceReadsValidator(int parallelThreshold) {
+		engine = defaultEngine.withParallelThreshold(parallelThreshold);
+	}
+
 	public List<ValidationResult> validate(SequenceReads<SARS2> seqReads, Collection<String> includeGenes) {
 		List<ValidationResult> results = new ArrayList<>();
 		results.addAll(validateNotEmpty(seqReads, includeGenes));
 		if (!results.isEmpty()) {
 			return results;
 		}
-		results.addAll(validateTrimmedPositions(seqReads, includeGenes));
-		results.addAll(validateNoMissingPositions(seqReads, includeGenes));
-		results.addAll(validateMixtureRateTooHigh(seqReads));
-		results.addAll(validateNoStopCodons(seqReads, includeGenes));
-		results.addAll(validateNoTooManyUnusualMutations(seqReads, includeGenes));
+		// coverage is served by SARS2CodonReadsTable instead of per-codon
+		// OneCodonReadsCoverage objects
+		results.addAll(engine.validate(seqReads, includeGenes, seqReads.getMutations()));
 		return results;
 	}
 
+	private static List<ValidationResult> validateRule(
+		Rule<SequenceReads<SARS2>, ?> rule,
+		SequenceReads<SARS2> seqReads,
+		Collection<String> includeGenes
+	) {
+		return new SARS2ValidationEngine<SequenceReads<SARS2>>(rule)
+			.validate(seqReads, includeGenes, seqReads.getMutations());
+	}
+
 	protected static List<ValidationResult> validateNotEmpty(
 		SequenceReads<SARS2> seqReads,
 		Collection<String> includeGenes
@@ -80,7 +118,11 @@ public class SARS2DefaultSequenceReadsValidator implements SequenceReadsValidato
 	
 	protected static List<ValidationResult> validateMixtureRateTooHigh(SequenceReads<SARS2> seqReads) {
 		List<ValidationResult> results = new ArrayList<>();
-		double mixtureRate = seqReads.getMixtureRate();
+		double mixtureRate = SARS2CodonReadsTable.of(seqReads).getMixtureRate(
+			seqReads.getActualMinPrevalence(),
+			seqReads.getMinCodonReads(),
+			seqReads.getMinPositionReads()
+		);
 		if (mixtureRate >= 0.02) {
 			results.add(SARS2ValidationMessage.NGSMixtureRateTooHigh.format(mixtureRate * 100));
 		}
@@ -94,36 +136,33 @@ public class SARS2DefaultSequenceReadsValidator implements SequenceReadsValidato
 	) {
 		SARS2 virusIns = SARS2.getInstance();
 		Strain<SARS2> strain = virusIns.getMainStrain();
+		SARS2CodonReadsTable table = SARS2CodonReadsTable.of(seqReads);
+		long minReadDepth = seqReads.getMinPositionReads();
 		List<ValidationResult> results = new ArrayList<>();
-		List<OneCodonReadsCoverage<SARS2>> crcs = seqReads.getCodonReadsCoverage(includeGenes);
 		for (String geneName : includeGenes) {
+			int[] trimmed = table.getTrimmedPositions(geneName, minReadDepth);
+			if (trimmed.length == 0) {
+				continue;
+			}
 			Gene<SARS2> gene = strain.getGene(geneName);
-			List<OneCodonReadsCoverage<SARS2>> geneCRCs = crcs.stream()
-				.filter(crc -> crc.getAbstractGene().equals(geneName))
-				.collect(Collectors.toList());
-			List<Number> trimmedPos = geneCRCs.stream()
-				.filter(crc -> crc.isTrimmed())
-				.map(crc -> crc.getPosition())
-				.collect(Collectors.toList());
-			if (!trimmedPos.isEmpty()) {
-				int numTrimmedPos = trimmedPos.size();
-				double totalPos = geneCRCs.size();
-				double pcnt = (double) numTrimmedPos / totalPos;
-				long minReadDepth = seqReads.getMinPositionReads();
-				List<GeneRegion> regions = GeneRegions.newGeneRegions(gene, trimmedPos).getRegions();
-				results.add(SARS2ValidationMessage.NGSMinReadDepthTooLow.format(
-					numTrimmedPos,
-					pcnt * 100,
-					virusIns.getGeneDisplay(geneName),
-					numTrimmedPos == 1 ? "" : "s",
-					minReadDepth,
-					numTrimmedPos == 1 ? "has" : "have",
-					MyStringUtils.andListFormat(regions)
-				));
+			List<Number> trimmedPos = new ArrayList<>(trimmed.length);
+			for (int pos : trimmed) {
+				trimmedPos.add(pos);
 			}
+			int numTrimmedPos = trimmedPos.size();
+			double totalPos = table.getNumPositions(geneName);
+			double pcnt = (double) numTrimmedPos / totalPos;
+			List<GeneRegion> regions = GeneRegions.newGeneRegions(gene, trimmedPos).getRegions();
+			results.add(SARS2ValidationMessage.NGSMinReadDepthTooLow.format(
+				numTrimmedPos,
+				pcnt * 100,
+				virusIns.getGeneDisplay(geneName),
+				numTrimmedPos == 1 ? "" : "s",
+				minReadDepth,
+				numTrimmedPos == 1 ? "has" : "have",
+				MyStringUtils.andListFormat(regions)
+			));
 		}
-		
-		
 		return results;
 	}
 
@@ -131,33 +170,43 @@ public class SARS2DefaultSequenceReadsValidator implements SequenceReadsValidato
 		SequenceReads<SARS2> seqReads,
 		Collection<String> includeGenes
 	) {
-		List<ValidationResult> results = new ArrayList<>();
-		List<OneCodonReadsCoverage<SARS2>> crcs = seqReads.getCodonReadsCoverage(includeGenes).stream()
-			.filter(crc -> !crc.isTrimmed())
-			.collect(Collectors.toList());
-		if (crcs.isEmpty()) {
-			return results;
+		SARS2CodonReadsTable table = SARS2CodonReadsTable.of(seqReads);
+		long minPositionReads = seqReads.getMinPositionReads();
+		Gene<SARS2> firstGene = null;
+		Gene<SARS2> lastGene = null;
+		for (Gene<SARS2> gene : SARS2.getInstance().getMainStrain().getGenes()) {
+			String geneName = gene.getAbstractGene();
+			if (
+				includeGenes.contains(geneName) &&
+				table.getCoveredPositions(geneName, minPositionReads).length > 0
+			) {
+				if (firstGene == null) {
+					firstGene = gene;
+				}
+				lastGene = gene;
+			}
 		}
-		OneCodonReadsCoverage<SARS2> tmpCRC = crcs.get(0);
-		GenePosition<SARS2> leftMost = new GenePosition<>(tmpCRC.getGene(), 1);
-		tmpCRC = crcs.get(crcs.size() - 1);
-		GenePosition<SARS2> rightMost = new GenePosition<>(tmpCRC.getGene(), tmpCRC.getGene().getAASize());
+		if (firstGene == null) {
+			return new ArrayList<>();
+		}
+		GenePosition<SARS2> leftMost = new GenePosition<>(firstGene, 1);
+		GenePosition<SARS2> rightMost = new GenePosition<>(lastGene, lastGene.getAASize());
 		
-		Set<GenePosition<SARS2>> needGenePositions = GenePosition
-			.getGenePositionsBetween(leftMost, rightMost, includeGenes);
-
 		// For DRPs, the leftMost must be the begining of the first gene and the rightMost must be the ending of the last gene
 		Set<GenePosition<SARS2>> needDRGenePositions = GenePosition
 			.getDRGenePositionsBetween(leftMost, rightMost, includeGenes);
 
-		Set<GenePosition<SARS2>> availableGenePositions = crcs.stream()
-			.map(crc -> crc.getGenePosition())
-			.collect(Collectors.toSet());
+		SARS2MissingPositions missingPositions = SARS2MissingPositions.fromCodonReadsTable(
+			table,
+			minPositionReads,
+			firstGene,
+			lastGene,
+			includeGenes
+		);
 		
 		return SARS2DefaultSequenceValidator.validateNoMissingPositions(
-				needGenePositions,
-				needDRGenePositions,
-				availableGenePositions
+				missingPositions,
+				needDRGenePositions
 		);
 	}
 
@@ -165,41 +214,14 @@ public class SARS2DefaultSequenceReadsValidator implements SequenceReadsValidato
 		SequenceReads<SARS2> seqReads,
 		Collection<String> includeGenes
 	) {
-		List<ValidationResult> results = new ArrayList<>();
-		MutationSet<SARS2> stopCodons = (
-			seqReads.getMutations()
-			.getStopCodons()
-			.filterBy(mut -> includeGenes.contains(mut.getAbstractGene()))
-		);
-		for (Map.Entry<Gene<SARS2>, MutationSet<SARS2>> entry : stopCodons.groupByGene().entrySet()) {
-			String geneDisplay = entry.getKey().getDisplay();
-			MutationSet<SARS2> geneStopCodons = entry.getValue();
-			int numGeneStopCodons = geneStopCodons.size();
-			String geneStopText = geneStopCodons.join(", ", Mutation::getHumanFormat);
-			if (numGeneStopCodons > 1) {
-				results.add(SARS2ValidationMessage.MultipleStopCodons.formatWithLevel(
-					ValidationLevel.WARNING,
-					numGeneStopCodons,
-					geneDisplay,
-					geneStopText
-				));
-			} else if (numGeneStopCodons > 0) {
-				results.add(SARS2ValidationMessage.SingleStopCodon.formatWithLevel(
-					ValidationLevel.WARNING,
-					geneDisplay,
-					geneStopText
-				));
-			}
-		}
-		
-		return results;
+		return validateRule(stopCodonsRule, seqReads, includeGenes);
 	}
 
 	protected static List<ValidationResult> validateNoTooManyUnusualMutations(
 		SequenceReads<SARS2> seqReads,
 		Collection<String> includeGenes
 	) {
-		return SARS2DefaultMutationsValidator.validateNoTooManyUnusualMutations(seqReads.getMutations(), includeGenes);
+		return validateRule(tooManyUnusualMutationsRule, seqReads, includeGenes);
 	}
 
 }
@@ -31,11 +31,12 @@ import org.apache.commons.lang3.StringUtils;
 import com.google.common.collect.Lists;
 
 import edu.stanford.hivdb.viruses.Gene;
-import edu.stanford.hivdb.viruses.Strain;
 import edu.stanford.hivdb.mutations.Mutation;
 import edu.stanford.hivdb.mutations.FrameShift;
 import edu.stanford.hivdb.mutations.GenePosition;
 import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sars2.SARS2ValidationEngine.Context;
+import edu.stanford.hivdb.sars2.SARS2ValidationEngine.Rule;
 import edu.stanford.hivdb.sequences.AlignedGeneSeq;
 import edu.stanford.hivdb.sequences.AlignedSequence;
 import edu.stanford.hivdb.sequences.SequenceValidator;
@@ -47,7 +48,51 @@ import edu.stanford.hivdb.utilities.ValidationResult;
 
 public class SARS2DefaultSequenceValidator implements SequenceValidator<SARS2> {
 
-	protected SARS2DefaultSequenceValidator() {}
+	private static final Rule<AlignedSequence<SARS2>, ?> longGapRule = newLongGapRule();
+	private static final Rule<AlignedSequence<SARS2>, ?> gapsRule = newGapsRule();
+	private static final Rule<AlignedSequence<SARS2>, ?> stopCodonsRule = (
+		SARS2DefaultMutationsValidator.newStopCodonsRule(
+			ValidationLevel.SEVERE_WARNING,
+			ValidationLevel.NOTE,
+			Mutation::getHumanFormat
+		)
+	);
+	private static final Rule<AlignedSequence<SARS2>, ?> tooManyUnusualMutationsRule = (
+		SARS2DefaultMutationsValidator.newTooManyUnusualMutationsRule()
+	);
+
+	private static final SARS2ValidationEngine<AlignedSequence<SARS2>> defaultEngine = new SARS2ValidationEngine<>(
+		Rule.ofSubject(ctx -> validateReverseComplement(ctx.getSubject())),
+		Rule.ofSubject(ctx -> validateNoMissingPositions(ctx.getSubject(), ctx.getIncludeGenes())),
+		longGapRule,
+		Rule.ofSubject(ctx -> validateNAs(ctx.getSubject())),
+		gapsRule,
+		stopCodonsRule,
+		tooManyUnusualMutationsRule
+	);
+
+	private final SARS2ValidationEngine<AlignedSequence<SARS2>> engine;
+
+	public SARS2DefaultSequenceValidator() {
+		this(SARS2ValidationEngine.getParallelThreshold());
+	}
+
+	/**
+	 * @param parallelThreshold number of mutations from which genes are
+	 *                          validated in parallel
+	 */
+	protected SARS2DefaultSequenceValidator(int parallelThreshold) {
+		engine = defaultEngine.withParallelThreshold(parallelThreshold);
+	}
+
+	private static List<ValidationResult> validateRule(
+		Rule<AlignedSequence<SARS2>, ?> rule,
+		AlignedSequence<SARS2> alignedSequence,
+		Collection<String> includeGenes
+	) {
+		return new SARS2ValidationEngine<AlignedSequence<SARS2>>(rule)
+			.validate(alignedSequence, includeGenes, alignedSequence.getMutations());
+	}
 
 	@Override
 	public List<ValidationResult> validate(AlignedSequence<SARS2> alignedSequence, Collection<String> includeGenes) {
@@ -56,13 +101,7 @@ public class SARS2DefaultSequenceValidator implements SequenceValidator<SARS2> {
 		if (results.size() > 0) {
 			return results;
 		}
-		results.addAll(validateReverseComplement(alignedSequence));
-		results.addAll(validateNoMissingPositions(alignedSequence, includeGenes));
-		results.addAll(validateLongGap(alignedSequence, includeGenes));
-		results.addAll(validateNAs(alignedSequence));
-		results.addAll(validateGaps(alignedSequence, includeGenes));
-		results.addAll(validateNoStopCodons(alignedSequence, includeGenes));
-		results.addAll(validateNoTooManyUnusualMutations(alignedSequence, includeGenes));
+		results.addAll(engine.validate(alignedSequence, includeGenes, alignedSequence.getMutations()));
 		return results;
 	}
 
@@ -94,24 +133,20 @@ public class SARS2DefaultSequenceValidator implements SequenceValidator<SARS2> {
 	}
 
 	protected static List<ValidationResult> validateNoMissingPositions(
-		final Set<GenePosition<SARS2>> needGenePositions,
-		final Set<GenePosition<SARS2>> needDRGenePositions,
-		final Set<GenePosition<SARS2>> availableGenePositions
+		final SARS2MissingPositions missingPositions,
+		final Set<GenePosition<SARS2>> needDRGenePositions
 	) {
 		List<ValidationResult> results = new ArrayList<>();
 
-		List<GenePosition<SARS2>> missingPositions = needGenePositions.stream()
-				.filter(gp -> !availableGenePositions.contains(gp))
-				.collect(Collectors.toList());
-		long numMissingPositions = missingPositions.size();
+		long numMissingPositions = missingPositions.count();
 
 		List<GenePosition<SARS2>> missingDRPs = needDRGenePositions.stream()
-				.filter(gp -> !availableGenePositions.contains(gp))
+				.filter(gp -> missingPositions.isMissing(gp))
 				.collect(Collectors.toList());
 		long numMissingDRPs = missingDRPs.size();
 		
 		String textMissingPositions = StringUtils.join(
-			GeneRegions.newListOfGeneRegions(missingPositions),
+			missingPositions.getRegions(),
 			"; "
 		);
 
@@ -171,76 +206,76 @@ public class SARS2DefaultSequenceValidator implements SequenceValidator<SARS2> {
 		GenePosition<SARS2> leftMost = new GenePosition<>(geneSeq.getGene(), 1);
 		geneSeq = geneSeqs.get(geneSeqs.size() - 1);
 		GenePosition<SARS2> rightMost = new GenePosition<>(geneSeq.getGene(), geneSeq.getGene().getAASize());
-		Strain<SARS2> strain = alignedSequence.getStrain();
-		Map<Gene<SARS2>, GeneRegions<SARS2>> unseqRegions = includeGenes.stream()
-			.map(absGene -> strain.getGene(absGene))
-			.collect(Collectors.toMap(
-				gene -> gene,
-				gene -> {
-					AlignedGeneSeq<SARS2> gs = alignedSequence.getAlignedGeneSequence(gene);
-					return gs == null ? (
-						GeneRegions.newGeneRegions(gene, 1, gene.getAASize())
-					) : gs.getUnsequencedRegions();
-				}
-			));
-			
-		Set<GenePosition<SARS2>> needGenePositions = GenePosition
-			.getGenePositionsBetween(leftMost, rightMost, includeGenes);
 		
 		// For DRPs, the leftMost must be the begining of the first gene and the rightMost must be the ending of the last gene
 		Set<GenePosition<SARS2>> needDRGenePositions = GenePosition
 			.getDRGenePositionsBetween(leftMost, rightMost, includeGenes);
 
-		Set<GenePosition<SARS2>> availableGenePositions = needGenePositions.stream()
-			.filter(gpos -> {
-				Gene<SARS2> gene = gpos.getGene();
-				GeneRegions<SARS2> geneUnseqRegions = unseqRegions.get(gene);
-				if (geneUnseqRegions == null) {
-					return true;
-				}
-				if (geneUnseqRegions.contains(gpos.getPosition())) {
-					return false;
-				}
-				return true;
-			})	
-			.collect(Collectors.toSet());
-		return validateNoMissingPositions(
-			needGenePositions,
-			needDRGenePositions,
-			availableGenePositions
+		SARS2MissingPositions missingPositions = SARS2MissingPositions.fromAlignedSequence(
+			alignedSequence,
+			leftMost.getGene(),
+			rightMost.getGene(),
+			includeGenes
 		);
+		return validateNoMissingPositions(missingPositions, needDRGenePositions);
 	}
 
 	protected static List<ValidationResult> validateLongGap(
 		AlignedSequence<SARS2> alignedSequence,
 		Collection<String> includeGenes
 	) {
-		int gapLenThreshold = 20;
-		int totalIndels = 0;
-		List<ValidationResult> result = new ArrayList<>();
-		for (Mutation<SARS2> mut : alignedSequence.getMutations()) {
-			if (!includeGenes.contains(mut.getAbstractGene())) {
-				continue;
-			}
-			if (totalIndels > gapLenThreshold) {
-				result.add(SARS2ValidationMessage.FASTAGapTooLong.format());
-				break;
-			}
-			if (mut.getInsertedNAs().length() > gapLenThreshold * 3) {
-				result.add(SARS2ValidationMessage.FASTAGapTooLong.format());
-				break;
-			}
-			if (mut.isDeletion()) {
-				totalIndels ++;
+		return validateRule(longGapRule, alignedSequence, includeGenes);
+	}
+
+	private static Rule<AlignedSequence<SARS2>, List<Mutation<SARS2>>> newLongGapRule() {
+		return new Rule<>() {
+
+			@Override
+			protected List<Mutation<SARS2>> newGeneAccumulator(
+				Context<AlignedSequence<SARS2>> context,
+				Gene<SARS2> gene
+			) {
+				return new ArrayList<>();
 			}
-			else if (mut.isInsertion()) {
-				totalIndels += Math.round(mut.getInsertedNAs().length() / 3);
+
+			@Override
+			protected void onMutation(List<Mutation<SARS2>> geneMuts, Mutation<SARS2> mut) {
+				geneMuts.add(mut);
 			}
-			else {
-				totalIndels = 0;
+
+			@Override
+			protected List<ValidationResult> finish(
+				Context<AlignedSequence<SARS2>> context,
+				Map<Gene<SARS2>, List<Mutation<SARS2>>> mutsByGene
+			) {
+				// indels are counted continuously across gene boundaries
+				int gapLenThreshold = 20;
+				int totalIndels = 0;
+				List<ValidationResult> result = new ArrayList<>();
+				for (List<Mutation<SARS2>> geneMuts : mutsByGene.values()) {
+					for (Mutation<SARS2> mut : geneMuts) {
+						if (totalIndels > gapLenThreshold) {
+							result.add(SARS2ValidationMessage.FASTAGapTooLong.format());
+							return result;
+						}
+						if (mut.getInsertedNAs().length() > gapLenThreshold * 3) {
+							result.add(SARS2ValidationMessage.FASTAGapTooLong.format());
+							return result;
+						}
+						if (mut.isDeletion()) {
+							totalIndels ++;
+						}
+						else if (mut.isInsertion()) {
+							totalIndels += Math.round(mut.getInsertedNAs().length() / 3);
+						}
+						else {
+							totalIndels = 0;
+						}
+					}
+				}
+				return result;
 			}
-		}
-		return result;
+		};
 	}
 
 	protected static List<ValidationResult> validateNAs(AlignedSequence<SARS2> alignedSequence) {
@@ -257,115 +292,130 @@ public class SARS2DefaultSequenceValidator implements SequenceValidator<SARS2> {
 		return result;
 	}
 
-	protected static List<ValidationResult> validateNoStopCodons(
+	private static class GapsAccumulator {
+		private final List<FrameShift<SARS2>> frameShifts;
+		private final List<Mutation<SARS2>> unusualInsertions = new ArrayList<>();
+		private final List<Mutation<SARS2>> unusualDeletions = new ArrayList<>();
+
+		private GapsAccumulator(AlignedGeneSeq<SARS2> alignedGeneSeq) {
+			frameShifts = alignedGeneSeq.getFrameShifts();
+		}
+	}
+
+	protected static List<ValidationResult> validateGaps(
 		AlignedSequence<SARS2> alignedSequence,
 		Collection<String> includeGenes
 	) {
+		return validateRule(gapsRule, alignedSequence, includeGenes);
+	}
+
+	private static Rule<AlignedSequence<SARS2>, GapsAccumulator> newGapsRule() {
+		return new Rule<>() {
+
+			@Override
+			protected GapsAccumulator newGeneAccumulator(
+				Context<AlignedSequence<SARS2>> context,
+				Gene<SARS2> gene
+			) {
+				AlignedGeneSeq<SARS2> alignedGeneSeq = context.getSubject().getAlignedGeneSequence(gene);
+				return alignedGeneSeq == null ? null : new GapsAccumulator(alignedGeneSeq);
+			}
+
+			@Override
+			protected void onMutation(GapsAccumulator acc, Mutation<SARS2> mut) {
+				if (!mut.isUnusual()) {
+					return;
+				}
+				if (mut.isInsertion()) {
+					acc.unusualInsertions.add(mut);
+				}
+				else if (mut.isDeletion()) {
+					acc.unusualDeletions.add(mut);
+				}
+			}
+
+			@Override
+			protected List<ValidationResult> finish(
+				Context<AlignedSequence<SARS2>> context,
+				Map<Gene<SARS2>, GapsAccumulator> accumulators
+			) {
+				List<ValidationResult> results = new ArrayList<>();
+				for (Map.Entry<Gene<SARS2>, GapsAccumulator> entry : accumulators.entrySet()) {
+					results.addAll(validateGaps(entry.getKey(), entry.getValue()));
+				}
+				return results;
+			}
+		};
+	}
+
+	private static List<ValidationResult> validateGaps(Gene<SARS2> gene, GapsAccumulator acc) {
 		List<ValidationResult> results = new ArrayList<>();
-		MutationSet<SARS2> stopCodons = (
-			alignedSequence.getMutations()
-			.getStopCodons()
-			.filterBy(mut -> includeGenes.contains(mut.getAbstractGene()))
-		);
-		for (Map.Entry<Gene<SARS2>, MutationSet<SARS2>> entry : stopCodons.groupByGene().entrySet()) {
-			String geneDisplay = entry.getKey().getDisplay();
-			MutationSet<SARS2> geneStopCodons = entry.getValue();
-			int numGeneStopCodons = geneStopCodons.size();
-			String geneStopText = geneStopCodons.join(", ", Mutation::getHumanFormat);
-			if (numGeneStopCodons > 1) {
-				results.add(SARS2ValidationMessage.MultipleStopCodons.formatWithLevel(
+		String geneDisplay = gene.getDisplay();
+		List<FrameShift<SARS2>> frameShifts = acc.frameShifts;
+		List<Mutation<SARS2>> unusualInsertions = acc.unusualInsertions;
+		List<Mutation<SARS2>> unusualDeletions = acc.unusualDeletions;
+		MutationSet<SARS2> unusualIndels = new MutationSet<>(unusualInsertions)
+			.mergesWith(new MutationSet<>(unusualDeletions));
+		int numTotal = frameShifts.size() + unusualInsertions.size() + unusualDeletions.size();
+		String frameShiftListText = FrameShift.joinFrameShifts(frameShifts);
+		String unusualIndelsListText = unusualIndels.join(", ");
+
+		if (numTotal > 1) {
+			if (frameShifts.size() > 0 && unusualIndels.size() > 0) {
+				results.add(SARS2ValidationMessage.MultipleUnusualIndelsAndFrameshifts.formatWithLevel(
 					ValidationLevel.SEVERE_WARNING,
-					numGeneStopCodons,
 					geneDisplay,
-					geneStopText
+					numTotal,
+					unusualIndelsListText,
+					frameShiftListText
 				));
-			} else if (numGeneStopCodons > 0) {
-				results.add(SARS2ValidationMessage.SingleStopCodon.formatWithLevel(
-					ValidationLevel.NOTE,
+			} else if (frameShifts.size() > 0) {
+				results.add(SARS2ValidationMessage.MultipleFrameShifts.formatWithLevel(
+					ValidationLevel.SEVERE_WARNING,
 					geneDisplay,
-					geneStopText
+					numTotal,
+					frameShiftListText
+				));
+			} else {
+				results.add(SARS2ValidationMessage.MultipleUnusualIndels.formatWithLevel(
+					ValidationLevel.SEVERE_WARNING,
+					geneDisplay,
+					numTotal,
+					unusualIndelsListText
 				));
 			}
+
+		} else if (numTotal >0 ) {
+			if (frameShifts.size() > 0) {
+				results.add(SARS2ValidationMessage.SingleFrameshift.formatWithLevel(
+					ValidationLevel.WARNING,
+					geneDisplay,
+					frameShiftListText
+				));
+			} else {
+				results.add(SARS2ValidationMessage.SingleUnusualIndel.formatWithLevel(
+					ValidationLevel.WARNING,
+					geneDisplay,
+					unusualIndelsListText
+				));
+			}
+
 		}
-		
 		return results;
 	}
 
-	protected static List<ValidationResult> validateNoTooManyUnusualMutations(
+	protected static List<ValidationResult> validateNoStopCodons(
 		AlignedSequence<SARS2> alignedSequence,
 		Collection<String> includeGenes
 	) {
-		return SARS2DefaultMutationsValidator.validateNoTooManyUnusualMutations(alignedSequence.getMutations(), includeGenes);
+		return validateRule(stopCodonsRule, alignedSequence, includeGenes);
 	}
 
-	private static List<ValidationResult> validateGaps(
+	protected static List<ValidationResult> validateNoTooManyUnusualMutations(
 		AlignedSequence<SARS2> alignedSequence,
 		Collection<String> includeGenes
 	) {
-		Map<Gene<SARS2>, AlignedGeneSeq<SARS2>> alignedGeneSeqs = alignedSequence.getAlignedGeneSequenceMap();
-		List<Gene<SARS2>> seqGenes = alignedSequence.getAvailableGenes();
-		List<ValidationResult> results = new ArrayList<>();
-
-		for (Gene<SARS2> gene : seqGenes) {
-			String geneName = gene.getAbstractGene();
-			if (!includeGenes.contains(geneName)) {
-				continue;
-			}
-			String geneDisplay = gene.getDisplay();
-			AlignedGeneSeq<SARS2> alignedGeneSeq = alignedGeneSeqs.get(gene);
-			List<FrameShift<SARS2>> frameShifts = alignedGeneSeq.getFrameShifts();
-			MutationSet<SARS2> insertions = alignedGeneSeq.getInsertions();
-			MutationSet<SARS2> deletions = alignedGeneSeq.getDeletions();
-			MutationSet<SARS2> unusualInsertions = insertions.getUnusualMutations();
-			MutationSet<SARS2> unusualDeletions = deletions.getUnusualMutations();
-			MutationSet<SARS2> unusualIndels = unusualInsertions.mergesWith(unusualDeletions);
-			int numTotal = frameShifts.size() + unusualInsertions.size() + unusualDeletions.size();
-			String frameShiftListText = FrameShift.joinFrameShifts(frameShifts);
-			String unusualIndelsListText = unusualIndels.join(", ");
-
-			if (numTotal > 1) {
-				if (frameShifts.size() > 0 && unusualIndels.size() > 0) {
-					results.add(SARS2ValidationMessage.MultipleUnusualIndelsAndFrameshifts.formatWithLevel(
-						ValidationLevel.SEVERE_WARNING,
-						geneDisplay,
-						numTotal,
-						unusualIndelsListText,
-						frameShiftListText
-					));
-				} else if (frameShifts.size() > 0) {
-					results.add(SARS2ValidationMessage.MultipleFrameShifts.formatWithLevel(
-						ValidationLevel.SEVERE_WARNING,
-						geneDisplay,
-						numTotal,
-						frameShiftListText
-					));
-				} else {
-					results.add(SARS2ValidationMessage.MultipleUnusualIndels.formatWithLevel(
-						ValidationLevel.SEVERE_WARNING,
-						geneDisplay,
-						numTotal,
-						unusualIndelsListText
-					));
-				}
-
-			} else if (numTotal >0 ) {
-				if (frameShifts.size() > 0) {
-					results.add(SARS2ValidationMessage.SingleFrameshift.formatWithLevel(
-						ValidationLevel.WARNING,
-						geneDisplay,
-						frameShiftListText
-					));
-				} else {
-					results.add(SARS2ValidationMessage.SingleUnusualIndel.formatWithLevel(
-						ValidationLevel.WARNING,
-						geneDisplay,
-						unusualIndelsListText
-					));
-				}
-
-			}
-		}
-		return results;
+		return validateRule(tooManyUnusualMutationsRule, alignedSequence, includeGenes);
 	}
 
 }
@@ -0,0 +1,480 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.google.gson.reflect.TypeToken;
+
+import edu.stanford.hivdb.genotypes.BoundGenotype;
+import edu.stanford.hivdb.genotypes.GenotypeReference;
+import edu.stanford.hivdb.genotypes.GenotypeResult;
+import edu.stanford.hivdb.genotypes.Genotyper;
+import edu.stanford.hivdb.utilities.Json;
+import edu.stanford.hivdb.viruses.Virus;
+
+/**
+ * Genotyper using precomputed reference profiles
+ *
+ * Every nucleotide is encoded as a 4-bit mask (A=1, C=2, G=4, T=8;
+ * ambiguous codes are unions; N and gaps are 0 and never compared). Two
+ * nucleotides mismatch when both masks are non-zero and they share no bit.
+ *
+ * At construction, reference positions are split into:
+ *
+ * - common positions, where all references have the same mask. They are
+ *   compared once per query against the consensus;
+ * - diagnostic positions, where references differ. They are packed, 16
+ *   per long, into one bit vector per reference, so that comparing a query
+ *   against a reference is a few bitwise operations and a popcount per 16
+ *   positions.
+ *
+ * The distance of a reference is (common + diagnostic mismatches) /
+ * (common + diagnostic compared positions), i.e. the same as comparing all
+ * positions one by one.
+ *
+ * The best match is reported unless its distance is greater than
+ * {@link SARS2#getGenotypeUnknownThreshold()}, in which case the genotype
+ * is "U". When the second best match is a parent genotype of the best match
+ * and the distance difference is not greater than
+ * {@link SARS2#getGenotypeMaxFallbackToSecondaryDistanceDiff()}, the second
+ * best match is reported instead. The reported match is also "U" when its
+ * distance is greater than the distanceUpperLimit of its genotype in
+ * genotypes.json.
+ *
+ * This class is the Genotyper returned by {@link SARS2#getGenotyper()}:
+ * {@link #compareAll} overrides sierra-core's search-tree comparison with
+ * the bit vectors above, and hands the mismatched positions of each
+ * reference to sierra-core's BoundGenotype, which computes the distances
+ * and the reported genotype as before.
+ *
+ * @param <T> virus type
+ */
+public class SARS2Genotyper<T extends Virus<T>> extends Genotyper<T> {
+
+	private static final String GENOTYPES_RESPATH = "genotypes/genotypes.json";
+	private static final String UNKNOWN = "U";
+	private static final int PARALLEL_THRESHOLD;
+	private static final long NIBBLE_LOW_BITS = 0x1111111111111111L;
+	private static final byte[] NA_MASKS = new byte[128];
+
+	static {
+		PARALLEL_THRESHOLD = Integer.parseInt(
+			System.getenv().getOrDefault("GENOTYPING_PARALLEL_THRESHOLD", "64"));
+		String[][] codes = {
+			{"A", "A"}, {"C", "C"}, {"G", "G"}, {"T", "T"}, {"U", "T"},
+			{"R", "AG"}, {"Y", "CT"}, {"M", "AC"}, {"K", "GT"}, {"S", "CG"}, {"W", "AT"},
+			{"B", "CGT"}, {"D", "AGT"}, {"H", "ACT"}, {"V", "ACG"}
+		};
+		for (String[] code : codes) {
+			byte mask = 0;
+			for (char na : code[1].toCharArray()) {
+				mask |= 1 << "ACGT".indexOf(na);
+			}
+			NA_MASKS[code[0].charAt(0)] = mask;
+			NA_MASKS[Character.toLowerCase(code[0].charAt(0))] = mask;
+		}
+	}
+
+	public static SARS2Genotyper<SARS2> getInstance() {
+		return (SARS2Genotyper<SARS2>) SARS2.getInstance().getGenotyper();
+	}
+
+	private static <T extends Virus<T>> List<Map<String, Object>> toReferenceMaps(
+		List<GenotypeReference<T>> references
+	) {
+		List<Map<String, Object>> refMaps = new ArrayList<>();
+		for (GenotypeReference<T> ref : references) {
+			Map<String, Object> refMap = new LinkedHashMap<>();
+			refMap.put("genotypeName", ref.getGenotype().getIndexName());
+			refMap.put("accession", ref.getAccession());
+			refMap.put("firstNA", ref.getFirstNA());
+			refMap.put("lastNA", ref.getLastNA());
+			refMap.put("sequence", ref.getSequence());
+			refMaps.add(refMap);
+		}
+		return refMaps;
+	}
+
+	public static class Match {
+		private final String genotypeName;
+		private final String accession;
+		private final int numMismatches;
+		private final int numCompared;
+
+		private Match(String genotypeName, String accession, int numMismatches, int numCompared) {
+			this.genotypeName = genotypeName;
+			this.accession = accession;
+			this.numMismatches = numMismatches;
+			this.numCompared = numCompared;
+		}
+
+		public String getGenotypeName() { return genotypeName; }
+
+		public String getAccession() { return accession; }
+
+		public int getNumMismatches() { return numMismatches; }
+
+		public int getNumCompared() { return numCompared; }
+
+		public double getDistance() {
+			return numCompared == 0 ? 1. : (double) numMismatches / numCompared;
+		}
+	}
+
+	public static class Result {
+		private final List<Match> matches;
+		private final Match bestMatch;
+
+		private Result(List<Match> matches, Match bestMatch) {
+			this.matches = Collections.unmodifiableList(matches);
+			this.bestMatch = bestMatch;
+		}
+
+		/**
+		 * Get all references ordered by distance
+		 *
+		 * @return a list of Match
+		 */
+		public List<Match> getMatches() { return matches; }
+
+		/**
+		 * @return the reported match, or null if the genotype is unknown
+		 */
+		public Match getBestMatch() { return bestMatch; }
+
+		public String getGenotypeName() {
+			return bestMatch == null ? UNKNOWN : bestMatch.getGenotypeName();
+		}
+	}
+
+	private static byte getNAMask(char na) {
+		return na < NA_MASKS.length ? NA_MASKS[na] : 0;
+	}
+
+	/**
+	 * @return bit 0 of each nibble is set if the nibble is non-zero
+	 */
+	private static long nonZeroNibbles(long bits) {
+		bits |= bits >>> 1;
+		bits |= bits >>> 2;
+		return bits & NIBBLE_LOW_BITS;
+	}
+
+	// null when the references are not the virus' (see the protected constructor)
+	private final List<GenotypeReference<T>> genotypeReferences;
+	private final double unknownThreshold;
+	private final double maxFallbackDiff;
+	private final String[] genotypeNames;
+	private final String[] accessions;
+	private final Map<String, String> parentGenotypes = new HashMap<>();
+	private final Map<String, Double> distanceUpperLimits = new HashMap<>();
+
+	// 1-based genomic position of profile index 0
+	private final int offset;
+	// consensus masks at common positions; 0 at diagnostic positions
+	private final byte[] commonMasks;
+	// profile index of each diagnostic position
+	private final int[] diagPositions;
+	// diagProfiles[ref][diagIdx / 16]
+	private final long[][] diagProfiles;
+
+	public SARS2Genotyper(T virus) {
+		this(
+			virus,
+			virus.getGenotypeReferences(),
+			toReferenceMaps(virus.getGenotypeReferences()),
+			Json.loads(
+				SARS2DataLoader.loadResource(GENOTYPES_RESPATH),
+				new TypeToken<Map<String, Map<String, Object>>>() {}
+			),
+			virus.getGenotypeUnknownThreshold(),
+			virus.getGenotypeMaxFallbackToSecondaryDistanceDiff()
+		);
+	}
+
+	/**
+	 * Genotyper with custom references
+	 *
+	 * {@link #compareAll} falls back to sierra-core's comparison with the
+	 * references of the virus; {@link #genotype} uses the given ones.
+	 */
+	protected SARS2Genotyper(
+		T virus,
+		List<Map<String, Object>> references,
+		Map<String, Map<String, Object>> genotypes,
+		double unknownThreshold,
+		double maxFallbackDiff
+	) {
+		this(virus, null, references, genotypes, unknownThreshold, maxFallbackDiff);
+	}
+
+	private SARS2Genotyper(
+		T virus,
+		List<GenotypeReference<T>> genotypeReferences,
+		List<Map<String, Object>> references,
+		Map<String, Map<String, Object>> genotypes,
+		double unknownThreshold,
+		double maxFallbackDiff
+	) {
+		super(virus);
+		this.genotypeReferences = genotypeReferences;
+		this.unknownThreshold = unknownThreshold;
+		this.maxFallbackDiff = maxFallbackDiff;
+		for (Map<String, Object> genotype : genotypes.values()) {
+			Object parent = genotype.get("parentGenotypes");
+			if (parent != null) {
+				parentGenotypes.put((String) genotype.get("name"), (String) parent);
+			}
+			Object upperLimit = genotype.get("distanceUpperLimit");
+			if (upperLimit != null) {
+				distanceUpperLimits.put((String) genotype.get("name"), ((Number) upperLimit).doubleValue());
+			}
+		}
+
+		int numRefs = references.size();
+		genotypeNames = new String[numRefs];
+		accessions = new String[numRefs];
+		int firstNA = Integer.MAX_VALUE;
+		int lastNA = 0;
+		for (Map<String, Object> ref : references) {
+			firstNA = Math.min(firstNA, ((Number) ref.get("firstNA")).intValue());
+			lastNA = Math.max(lastNA, ((Number) ref.get("lastNA")).intValue());
+		}
+		offset = firstNA;
+		int length = Math.max(0, lastNA - firstNA + 1);
+		byte[][] refMasks = new byte[numRefs][length];
+		for (int refIdx = 0; refIdx < numRefs; refIdx ++) {
+			Map<String, Object> ref = references.get(refIdx);
+			genotypeNames[refIdx] = (String) ref.get("genotypeName");
+			accessions[refIdx] = (String) ref.get("accession");
+			String seq = (String) ref.get("sequence");
+			int refFirstNA = ((Number) ref.get("firstNA")).intValue();
+			for (int idx = 0; idx < seq.length(); idx ++) {
+				refMasks[refIdx][refFirstNA - offset + idx] = getNAMask(seq.charAt(idx));
+			}
+		}
+
+		commonMasks = new byte[length];
+		List<Integer> diagPosList = new ArrayList<>();
+		for (int pos = 0; pos < length; pos ++) {
+			final int finalPos = pos;
+			boolean isCommon = IntStream.range(1, numRefs)
+				.allMatch(refIdx -> refMasks[refIdx][finalPos] == refMasks[0][finalPos]);
+			if (isCommon) {
+				commonMasks[pos] = numRefs == 0 ? 0 : refMasks[0][pos];
+			}
+			else {
+				diagPosList.add(pos);
+			}
+		}
+		diagPositions = diagPosList.stream().mapToInt(Integer::intValue).toArray();
+		diagProfiles = new long[numRefs][];
+		for (int refIdx = 0; refIdx < numRefs; refIdx ++) {
+			diagProfiles[refIdx] = pack(refMasks[refIdx]);
+		}
+	}
+
+	private long[] pack(byte[] masks) {
+		long[] packed = new long[(diagPositions.length + 15) / 16];
+		for (int diagIdx = 0; diagIdx < diagPositions.length; diagIdx ++) {
+			packed[diagIdx >>> 4] |= (long) masks[diagPositions[diagIdx]] << ((diagIdx & 15) << 2);
+		}
+		return packed;
+	}
+
+	/**
+	 * Query encoded against the profiles
+	 */
+	private class Query {
+		// 1-based positions of the mismatches at common positions
+		private final List<Integer> commonMismatches = new ArrayList<>();
+		private int numCommonCompared;
+		private final long[] profile;
+		private final long[] nonZero;
+
+		private Query(String sequence, int firstNA, int lastNA) {
+			byte[] queryMasks = new byte[commonMasks.length];
+			int start = Math.max(firstNA, offset);
+			int end = Math.min(lastNA, Math.min(offset + commonMasks.length - 1, firstNA + sequence.length() - 1));
+			for (int pos = start; pos <= end; pos ++) {
+				byte queryMask = getNAMask(sequence.charAt(pos - firstNA));
+				byte commonMask = commonMasks[pos - offset];
+				queryMasks[pos - offset] = queryMask;
+				if (queryMask != 0 && commonMask != 0) {
+					numCommonCompared ++;
+					if ((queryMask & commonMask) == 0) {
+						commonMismatches.add(pos);
+					}
+				}
+			}
+			profile = pack(queryMasks);
+			nonZero = new long[profile.length];
+			for (int idx = 0; idx < profile.length; idx ++) {
+				nonZero[idx] = nonZeroNibbles(profile[idx]);
+			}
+		}
+
+		/**
+		 * @return bit 0 of each nibble is set at the mismatched diagnostic positions
+		 */
+		private long getMismatches(int refIdx, int idx) {
+			long refProfile = diagProfiles[refIdx][idx];
+			long compared = nonZero[idx] & nonZeroNibbles(refProfile);
+			return compared & ~nonZeroNibbles(profile[idx] & refProfile);
+		}
+
+		private int getNumCompared(int refIdx) {
+			int numCompared = numCommonCompared;
+			for (int idx = 0; idx < profile.length; idx ++) {
+				numCompared += Long.bitCount(nonZero[idx] & nonZeroNibbles(diagProfiles[refIdx][idx]));
+			}
+			return numCompared;
+		}
+
+		private int getNumMismatches(int refIdx) {
+			int numMismatches = commonMismatches.size();
+			for (int idx = 0; idx < profile.length; idx ++) {
+				numMismatches += Long.bitCount(getMismatches(refIdx, idx));
+			}
+			return numMismatches;
+		}
+
+		/**
+		 * @return 1-based positions of the mismatches, in order
+		 */
+		private List<Integer> getDiscordanceList(int refIdx) {
+			List<Integer> discordance = new ArrayList<>(commonMismatches);
+			for (int idx = 0; idx < profile.length; idx ++) {
+				long mismatches = getMismatches(refIdx, idx);
+				while (mismatches != 0) {
+					int diagIdx = (idx << 4) + (Long.numberOfTrailingZeros(mismatches) >>> 2);
+					discordance.add(diagPositions[diagIdx] + offset);
+					mismatches &= mismatches - 1;
+				}
+			}
+			Collections.sort(discordance);
+			return discordance;
+		}
+	}
+
+	/**
+	 * Compare a sequence with all references
+	 *
+	 * @param sequence aligned nucleotides (no insertions) from firstNA to lastNA
+	 * @param firstNA 1-based genomic position of the first nucleotide
+	 * @param lastNA 1-based genomic position of the last nucleotide
+	 * @return matches ordered by distance
+	 */
+	public List<Match> getMatches(String sequence, int firstNA, int lastNA) {
+		Query query = new Query(sequence, firstNA, lastNA);
+		List<Match> matches = new ArrayList<>(diagProfiles.length);
+		for (int refIdx = 0; refIdx < diagProfiles.length; refIdx ++) {
+			matches.add(new Match(
+				genotypeNames[refIdx], accessions[refIdx],
+				query.getNumMismatches(refIdx), query.getNumCompared(refIdx)
+			));
+		}
+		// stable: ties keep the order of genotype-references.json
+		matches.sort(Comparator.comparingDouble(Match::getDistance));
+		return matches;
+	}
+
+	/**
+	 * Compare a sequence with all references of the virus
+	 *
+	 * Same result as sierra-core's Genotyper: only the mismatched positions
+	 * are computed here.
+	 *
+	 * @param sequence aligned nucleotides (no insertions) from firstNA to lastNA
+	 * @param firstNA 1-based genomic position of the first nucleotide
+	 * @param lastNA 1-based genomic position of the last nucleotide
+	 * @return a GenotypeResult
+	 */
+	@Override
+	public GenotypeResult<T> compareAll(String sequence, int firstNA, int lastNA) {
+		if (genotypeReferences == null) {
+			return super.compareAll(sequence, firstNA, lastNA);
+		}
+		Query query = new Query(sequence, firstNA, lastNA);
+		List<BoundGenotype<T>> boundGenotypes = new ArrayList<>(genotypeReferences.size());
+		for (int refIdx = 0; refIdx < genotypeReferences.size(); refIdx ++) {
+			boundGenotypes.add(genotypeReferences.get(refIdx).getBoundGenotype(
+				sequence, firstNA, lastNA, query.getDiscordanceList(refIdx)));
+		}
+		return new GenotypeResult<>(boundGenotypes);
+	}
+
+	public Result genotype(String sequence, int firstNA, int lastNA) {
+		List<Match> matches = getMatches(sequence, firstNA, lastNA);
+		if (matches.isEmpty() || matches.get(0).getDistance() > unknownThreshold) {
+			return new Result(matches, null);
+		}
+		Match first = matches.get(0);
+		Match bestMatch = first;
+		for (Match match : matches.subList(1, matches.size())) {
+			if (match.getGenotypeName().equals(first.getGenotypeName())) {
+				continue;
+			}
+			// the closest match of another genotype
+			if (
+				match.getDistance() - first.getDistance() <= maxFallbackDiff &&
+				match.getGenotypeName().equals(parentGenotypes.get(first.getGenotypeName()))
+			) {
+				bestMatch = match;
+			}
+			break;
+		}
+		if (bestMatch.getDistance() > distanceUpperLimits.getOrDefault(bestMatch.getGenotypeName(), 1.)) {
+			return new Result(matches, null);
+		}
+		return new Result(matches, bestMatch);
+	}
+
+	/**
+	 * Genotype a batch of sequences of the same range
+	 *
+	 * Batches of GENOTYPING_PARALLEL_THRESHOLD or more sequences are
+	 * genotyped in parallel.
+	 *
+	 * @param sequences
+	 * @param firstNA
+	 * @param lastNA
+	 * @return results in the same order
+	 */
+	public List<Result> genotypeAll(List<String> sequences, int firstNA, int lastNA) {
+		if (sequences.size() < PARALLEL_THRESHOLD) {
+			return sequences.stream()
+				.map(seq -> genotype(seq, firstNA, lastNA))
+				.collect(Collectors.toList());
+		}
+		return sequences.parallelStream()
+			.map(seq -> genotype(seq, firstNA, lastNA))
+			.collect(Collectors.toList());
+	}
+
+}
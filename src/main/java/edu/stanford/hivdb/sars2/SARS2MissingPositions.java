@@ -0,0 +1,198 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.stanford.hivdb.mutations.GenePosition;
+import edu.stanford.hivdb.seqreads.OneCodonReadsCoverage;
+import edu.stanford.hivdb.sequences.AlignedGeneSeq;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.GeneRegions;
+import edu.stanford.hivdb.sequences.GeneRegions.GeneRegion;
+import edu.stanford.hivdb.viruses.Gene;
+
+/**
+ * Per-gene bitmaps of positions which were not sequenced or aligned
+ *
+ * Only genes between (and including) the first and the last covered genes
+ * and listed in includeGenes are tracked. Bit N of a gene bitmap is set if
+ * amino acid position N of that gene is missing.
+ */
+class SARS2MissingPositions {
+
+	private final Map<Gene<SARS2>, BitSet> bitmaps;
+
+	private SARS2MissingPositions(
+		Gene<SARS2> firstGene,
+		Gene<SARS2> lastGene,
+		Collection<String> includeGenes
+	) {
+		bitmaps = new TreeMap<>();
+		for (Gene<SARS2> gene : firstGene.getStrain().getGenes()) {
+			if (
+				gene.compareTo(firstGene) < 0 ||
+				gene.compareTo(lastGene) > 0 ||
+				!includeGenes.contains(gene.getAbstractGene())
+			) {
+				continue;
+			}
+			int aaSize = gene.getAASize();
+			BitSet bitmap = new BitSet(aaSize + 1);
+			// all positions are missing until proven otherwise
+			bitmap.set(1, aaSize + 1);
+			bitmaps.put(gene, bitmap);
+		}
+	}
+
+	/**
+	 * Creates missing position bitmaps from unsequenced regions of an aligned sequence
+	 *
+	 * @param alignedSequence
+	 * @param firstGene
+	 * @param lastGene
+	 * @param includeGenes
+	 * @return a SARS2MissingPositions object
+	 */
+	public static SARS2MissingPositions fromAlignedSequence(
+		AlignedSequence<SARS2> alignedSequence,
+		Gene<SARS2> firstGene,
+		Gene<SARS2> lastGene,
+		Collection<String> includeGenes
+	) {
+		SARS2MissingPositions missing = new SARS2MissingPositions(firstGene, lastGene, includeGenes);
+		for (Map.Entry<Gene<SARS2>, BitSet> entry : missing.bitmaps.entrySet()) {
+			Gene<SARS2> gene = entry.getKey();
+			AlignedGeneSeq<SARS2> geneSeq = alignedSequence.getAlignedGeneSequence(gene);
+			if (geneSeq == null) {
+				continue;
+			}
+			int aaSize = gene.getAASize();
+			BitSet bitmap = entry.getValue();
+			bitmap.clear();
+			for (GeneRegion region : geneSeq.getUnsequencedRegions().getRegions()) {
+				Long posStart = region.getPosStart();
+				Long posEnd = region.getPosEnd();
+				int start = posStart == null ? 1 : (int) Math.max(1L, posStart);
+				int end = posEnd == null ? aaSize : (int) Math.min(aaSize, posEnd);
+				if (start <= end) {
+					bitmap.set(start, end + 1);
+				}
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Creates missing position bitmaps from codon reads coverage
+	 *
+	 * @param codonReadsCoverage untrimmed codon reads coverage
+	 * @param firstGene
+	 * @param lastGene
+	 * @param includeGenes
+	 * @return a SARS2MissingPositions object
+	 */
+	public static SARS2MissingPositions fromCodonReadsCoverage(
+		Collection<OneCodonReadsCoverage<SARS2>> codonReadsCoverage,
+		Gene<SARS2> firstGene,
+		Gene<SARS2> lastGene,
+		Collection<String> includeGenes
+	) {
+		SARS2MissingPositions missing = new SARS2MissingPositions(firstGene, lastGene, includeGenes);
+		for (OneCodonReadsCoverage<SARS2> crc : codonReadsCoverage) {
+			BitSet bitmap = missing.bitmaps.get(crc.getGene());
+			if (bitmap == null) {
+				continue;
+			}
+			Number pos = crc.getPosition();
+			bitmap.clear(pos.intValue());
+		}
+		return missing;
+	}
+
+	/**
+	 * Creates missing position bitmaps from a codon reads table
+	 *
+	 * @param table
+	 * @param minPositionReads positions with fewer reads are missing
+	 * @param firstGene
+	 * @param lastGene
+	 * @param includeGenes
+	 * @return a SARS2MissingPositions object
+	 */
+	public static SARS2MissingPositions fromCodonReadsTable(
+		SARS2CodonReadsTable table,
+		long minPositionReads,
+		Gene<SARS2> firstGene,
+		Gene<SARS2> lastGene,
+		Collection<String> includeGenes
+	) {
+		SARS2MissingPositions missing = new SARS2MissingPositions(firstGene, lastGene, includeGenes);
+		for (Map.Entry<Gene<SARS2>, BitSet> entry : missing.bitmaps.entrySet()) {
+			BitSet bitmap = entry.getValue();
+			for (int pos : table.getCoveredPositions(entry.getKey().getAbstractGene(), minPositionReads)) {
+				bitmap.clear(pos);
+			}
+		}
+		return missing;
+	}
+
+	public long count() {
+		long count = 0;
+		for (BitSet bitmap : bitmaps.values()) {
+			count += bitmap.cardinality();
+		}
+		return count;
+	}
+
+	/**
+	 * Checks if a gene position is missing
+	 *
+	 * Positions of untracked genes are always considered missing.
+	 *
+	 * @param genePos
+	 * @return true if missing
+	 */
+	public boolean isMissing(GenePosition<SARS2> genePos) {
+		BitSet bitmap = bitmaps.get(genePos.getGene());
+		return bitmap == null || bitmap.get(genePos.getPosition());
+	}
+
+	public List<GeneRegions<SARS2>> getRegions() {
+		List<GeneRegions<SARS2>> regions = new ArrayList<>();
+		for (Map.Entry<Gene<SARS2>, BitSet> entry : bitmaps.entrySet()) {
+			BitSet bitmap = entry.getValue();
+			if (bitmap.isEmpty()) {
+				continue;
+			}
+			List<Number> positions = new ArrayList<>(bitmap.cardinality());
+			for (int pos = bitmap.nextSetBit(0); pos > -1; pos = bitmap.nextSetBit(pos + 1)) {
+				positions.add(pos);
+			}
+			regions.add(GeneRegions.newGeneRegions(entry.getKey(), positions));
+		}
+		return regions;
+	}
+
+}
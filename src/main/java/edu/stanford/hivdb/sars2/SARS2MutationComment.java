@@ -1,15 +1,20 @@
 package edu.stanford.hivdb.sars2;
 
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
+import org.apache.commons.io.IOUtils;
+
 import com.google.gson.reflect.TypeToken;
 import com.mashape.unirest.http.HttpResponse;
 import com.mashape.unirest.http.Unirest;
@@ -23,8 +28,13 @@ import edu.stanford.hivdb.viruses.Gene;
 public class SARS2MutationComment {
 
 	public final static SARS2 sars2 = SARS2.getInstance();
-	public final static String URL_PREFIX = "https://s3-us-west-2.amazonaws.com/cms.hivdb.org/chiro-prod/downloads/mutation-comments/";
-	public static Map<String, List<SARS2MutationComment>> singletons = new HashMap<>();
+	// can be a file: URL to load local comment files, e.g. for benchmarks
+	public final static String URL_PREFIX = System.getenv().getOrDefault(
+		"MUTATION_COMMENTS_URL_PREFIX",
+		SARS2CMS.BASE_URL +
+		"/chiro-prod/downloads/mutation-comments/"
+	);
+	public static Map<String, List<SARS2MutationComment>> singletons = new ConcurrentHashMap<>();
 	
 	public static class SARS2BoundMutationComment {
 		private final MutationSet<SARS2> triggeredMutations;
@@ -49,41 +59,74 @@ public class SARS2MutationComment {
 	}
 	
 	public static List<SARS2BoundMutationComment> query(String cmtVersion, Collection<Mutation<SARS2>> mutations) {
+		return queryAll(cmtVersion, Collections.singletonList(mutations)).get(0);
+	}
+	
+	/**
+	 * Query comments of a batch of mutation lists
+	 *
+	 * The comment version is resolved only once for the whole batch.
+	 *
+	 * @param cmtVersion
+	 * @param mutationsList
+	 * @return bound comments of each mutation list, in the same order
+	 */
+	public static List<List<SARS2BoundMutationComment>> queryAll(
+		String cmtVersion,
+		List<? extends Collection<Mutation<SARS2>>> mutationsList
+	) {
 		List<SARS2MutationComment> instances = getInstances(cmtVersion);
-		List<SARS2BoundMutationComment> triggeredCmts = new ArrayList<>();
-		for (SARS2MutationComment cmtObj : instances) {
-			MutationSet<SARS2> triggered = cmtObj.getMutations().intersectsWith(mutations);
-			if (!triggered.isEmpty()) {
-				triggeredCmts.add(new SARS2BoundMutationComment(triggered, cmtObj));
+		List<List<SARS2BoundMutationComment>> results = new ArrayList<>();
+		for (Collection<Mutation<SARS2>> mutations : mutationsList) {
+			List<SARS2BoundMutationComment> triggeredCmts = new ArrayList<>();
+			for (SARS2MutationComment cmtObj : instances) {
+				MutationSet<SARS2> triggered = cmtObj.getMutations().intersectsWith(mutations);
+				if (!triggered.isEmpty()) {
+					triggeredCmts.add(new SARS2BoundMutationComment(triggered, cmtObj));
+				}
 			}
+			results.add(triggeredCmts);
 		}
-		return triggeredCmts;
+		return results;
 	}
 	
 	private static List<SARS2MutationComment> getInstances(String cmtVersion) {
-		if (!singletons.containsKey(cmtVersion)) {
-			HttpResponse<String> response;
-			Map<String, Object> results;
-			try {
-				response = Unirest.get(URL_PREFIX + cmtVersion + ".json")
-					.asString();
-				results = Json.loads(response.getBody(), new TypeToken<Map<String, Object>>() {});
-			} catch (UnirestException e) {
-				throw new RuntimeException(e);
-			}
-			cmtVersion = (String) results.get("version");
-			List<?> payload = (List<?>) results.get("payload");
-			List<SARS2MutationComment> commentObjs = new ArrayList<>();
-			for (Object cmt : payload) {
-				Map<?, ?> cmtMap = (Map<?, ?>) cmt;
-				String mutations = (String) cmtMap.get("mutations");
-				String comment = (String) cmtMap.get("comment");
-				MutationSet<SARS2> mutationSet = sars2.newMutationSet(mutations);
-				commentObjs.add(new SARS2MutationComment(mutationSet, comment, cmtVersion));
+		// cached under the requested version, so that aliases like "latest" also hit
+		return singletons.computeIfAbsent(cmtVersion, v -> loadInstances(v));
+	}
+	
+	public static int getNumLoadedVersions() {
+		return singletons.size();
+	}
+	
+	private static List<SARS2MutationComment> loadInstances(String cmtVersion) {
+		Map<String, Object> results = Json.loads(
+			fetchComments(URL_PREFIX + cmtVersion + ".json"),
+			new TypeToken<Map<String, Object>>() {}
+		);
+		String version = (String) results.get("version");
+		List<?> payload = (List<?>) results.get("payload");
+		List<SARS2MutationComment> commentObjs = new ArrayList<>();
+		for (Object cmt : payload) {
+			Map<?, ?> cmtMap = (Map<?, ?>) cmt;
+			String mutations = (String) cmtMap.get("mutations");
+			String comment = (String) cmtMap.get("comment");
+			MutationSet<SARS2> mutationSet = sars2.newMutationSet(mutations);
+			commentObjs.add(new SARS2MutationComment(mutationSet, comment, version));
+		}
+		return Collections.unmodifiableList(commentObjs);
+	}
+	
+	private static String fetchComments(String url) {
+		try {
+			if (url.startsWith("http")) {
+				HttpResponse<String> response = Unirest.get(url).asString();
+				return response.getBody();
 			}
-			singletons.put(cmtVersion, Collections.unmodifiableList(commentObjs));
+			return IOUtils.toString(new URL(url), StandardCharsets.UTF_8);
+		} catch (UnirestException | IOException e) {
+			throw new RuntimeException(e);
 		}
-		return singletons.get(cmtVersion);
 	}
 	
 	private final MutationSet<SARS2> mutations;
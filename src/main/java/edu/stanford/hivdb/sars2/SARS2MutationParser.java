@@ -0,0 +1,416 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single-pass parser of SARS-CoV-2 mutation strings
+ *
+ * This parser accepts exactly the same grammar as the regular expression
+ * previously used by SARS2DataLoader:
+ *
+ * <pre>
+ * ^\s*(__ASI__)?(GENE)?[:_-]?([AC-IK-NP-TV-Y])?(\d{1,4})(AAS)(?::([ACGTRYMWSKBDHVN-]{3})?)?\s*$
+ * </pre>
+ *
+ * Gene aliases are matched case-insensitively through a prebuilt trie. When
+ * more than one alias matches at the same offset (e.g. "nsp1" and "nsp10", or
+ * "S" and "Spike"), they are tried in the same order as the alternation of the
+ * original expression, and the first one which leads to a full match wins.
+ */
+class SARS2MutationParser {
+
+	private static final String ASI_PREFIX = "__ASI__";
+
+	// ordered by the priority of the original regex alternation; at most
+	// 64 aliases since matches are collected in a long
+	private static final String[] GENE_ALIASES = {
+		"nsp1", "nsp2", "nsp3", "nsp4", "nsp5", "nsp6", "nsp7", "nsp8", "nsp9",
+		"nsp10", "nsp13", "nsp14", "nsp15", "nsp16",
+		"PLpro", "PL", "_3CLpro", "3CLpro", "3CL", "Mpro", "RdRP",
+		"S", "Spike", "E", "M", "N",
+		"ORF3a", "ORF6", "ORF7a", "ORF7b", "ORF8", "ORF10"
+	};
+
+	private static final String[] UPPER_GENE_ALIASES;
+
+	private static final GeneAliasTrie GENE_TRIE;
+
+	static {
+		UPPER_GENE_ALIASES = new String[GENE_ALIASES.length];
+		GENE_TRIE = new GeneAliasTrie();
+		for (int i = 0; i < GENE_ALIASES.length; i ++) {
+			UPPER_GENE_ALIASES[i] = GENE_ALIASES[i].toUpperCase();
+			GENE_TRIE.add(GENE_ALIASES[i], i);
+		}
+	}
+
+	private static class GeneAliasTrie {
+		private final GeneAliasTrie[] children = new GeneAliasTrie[128];
+		private int aliasIndex = -1;
+
+		private void add(String alias, int index) {
+			GeneAliasTrie node = this;
+			for (int i = 0; i < alias.length(); i ++) {
+				int c = toLowerASCII(alias.charAt(i));
+				if (node.children[c] == null) {
+					node.children[c] = new GeneAliasTrie();
+				}
+				node = node.children[c];
+			}
+			node.aliasIndex = index;
+		}
+
+		/**
+		 * Collects indices of all aliases matched at the given offset
+		 *
+		 * @return a bit set of matched alias indices; iterating from the
+		 *         lowest bit gives the aliases in priority order
+		 */
+		private long match(String text, int offset) {
+			long matches = 0L;
+			GeneAliasTrie node = this;
+			for (int i = offset; i < text.length(); i ++) {
+				char c = text.charAt(i);
+				if (c >= 128) {
+					break;
+				}
+				node = node.children[toLowerASCII(c)];
+				if (node == null) {
+					break;
+				}
+				if (node.aliasIndex > -1) {
+					matches |= 1L << node.aliasIndex;
+				}
+			}
+			return matches;
+		}
+	}
+
+	/**
+	 * Components of a parsed mutation string
+	 */
+	static class ParsedMutation {
+		private final boolean isASI;
+		private final String geneAlias;
+		private final int position;
+		private final String aas;
+		private final boolean isNonASIAAs;
+		private final String triplet;
+
+		private ParsedMutation(
+			boolean isASI, String geneAlias, int position,
+			String aas, boolean isNonASIAAs, String triplet
+		) {
+			this.isASI = isASI;
+			this.geneAlias = geneAlias;
+			this.position = position;
+			this.aas = aas;
+			this.isNonASIAAs = isNonASIAAs;
+			this.triplet = triplet;
+		}
+
+		public boolean isASI() { return isASI; }
+
+		/**
+		 * @return uppercased gene alias, or null if no gene was specified
+		 */
+		public String getGeneAlias() { return geneAlias; }
+		public int getPosition() { return position; }
+		public String getAAs() { return aas; }
+
+		/**
+		 * @return true if the amino acids are also acceptable for non-ASI mutations
+		 */
+		public boolean isNonASIAAs() { return isNonASIAAs; }
+
+		/**
+		 * @return codon triplet, or null if not specified
+		 */
+		public String getTriplet() { return triplet; }
+	}
+
+	private static int toLowerASCII(char c) {
+		return c >= 'A' && c <= 'Z' ? c + 32 : c;
+	}
+
+	private static boolean isSpace(char c) {
+		// same as regex \s
+		return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+	}
+
+	private static boolean isDelimiter(char c) {
+		return isSpace(c) || c == ',' || c == ';' || c == '+' || c == '.';
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isSeparator(char c) {
+		return c == ':' || c == '_' || c == '-';
+	}
+
+	private static boolean isRefAA(char c) {
+		// [AC-IK-NP-TV-Y]
+		return (
+			c >= 'A' && c <= 'Y' &&
+			c != 'B' && c != 'J' && c != 'O' && c != 'U'
+		);
+	}
+
+	private static boolean isAA(char c) {
+		// [AC-IK-NP-TV-Z.*]
+		return (
+			(c >= 'A' && c <= 'Z' && c != 'B' && c != 'J' && c != 'O' && c != 'U') ||
+			c == '.' || c == '*'
+		);
+	}
+
+	private static boolean isAAOrIndel(char c) {
+		// [AC-IK-NP-TV-Zid.*]
+		return isAA(c) || c == 'i' || c == 'd';
+	}
+
+	private static boolean isSingleIndel(char c) {
+		// [id_#~-]
+		return c == 'i' || c == 'd' || c == '_' || c == '#' || c == '~' || c == '-';
+	}
+
+	private static boolean isTripletNA(char c) {
+		// [ACGTRYMWSKBDHVN-]
+		switch (c) {
+			case 'A': case 'C': case 'G': case 'T':
+			case 'R': case 'Y': case 'M': case 'W':
+			case 'S': case 'K': case 'B': case 'D':
+			case 'H': case 'V': case 'N': case '-':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static boolean isBlankToEnd(String text, int offset) {
+		for (int i = offset; i < text.length(); i ++) {
+			if (!isSpace(text.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Splits formatted mutations by delimiters
+	 *
+	 * This method yields the same result as
+	 * {@code formattedMuts.split("[\\s,;+\\.]+")}.
+	 *
+	 * @param formattedMuts
+	 * @return list of mutation strings
+	 */
+	static List<String> splitMutations(String formattedMuts) {
+		List<String> tokens = new ArrayList<>();
+		int len = formattedMuts.length();
+		int start = 0;
+		int offset = 0;
+		boolean delimited = false;
+		while (offset < len) {
+			if (isDelimiter(formattedMuts.charAt(offset))) {
+				tokens.add(formattedMuts.substring(start, offset));
+				do {
+					offset ++;
+				} while (offset < len && isDelimiter(formattedMuts.charAt(offset)));
+				start = offset;
+				delimited = true;
+			}
+			else {
+				offset ++;
+			}
+		}
+		if (!delimited) {
+			tokens.add(formattedMuts);
+			return tokens;
+		}
+		tokens.add(formattedMuts.substring(start, len));
+		int last = tokens.size() - 1;
+		while (last > -1 && tokens.get(last).isEmpty()) {
+			tokens.remove(last --);
+		}
+		return tokens;
+	}
+
+	/**
+	 * Parses a single mutation string
+	 *
+	 * @param mutText
+	 * @return a ParsedMutation object, or null if mutText is not valid
+	 */
+	static ParsedMutation parse(String mutText) {
+		int len = mutText.length();
+		int offset = 0;
+		while (offset < len && isSpace(mutText.charAt(offset))) {
+			offset ++;
+		}
+		boolean isASI = mutText.startsWith(ASI_PREFIX, offset);
+		if (isASI) {
+			offset += ASI_PREFIX.length();
+		}
+		long geneMatches = GENE_TRIE.match(mutText, offset);
+		while (geneMatches != 0L) {
+			int aliasIndex = Long.numberOfTrailingZeros(geneMatches);
+			geneMatches &= geneMatches - 1;
+			ParsedMutation result = parseAfterGene(
+				mutText,
+				offset + GENE_ALIASES[aliasIndex].length(),
+				isASI,
+				UPPER_GENE_ALIASES[aliasIndex]
+			);
+			if (result != null) {
+				return result;
+			}
+		}
+		return parseAfterGene(mutText, offset, isASI, null);
+	}
+
+	private static ParsedMutation parseAfterGene(String text, int offset, boolean isASI, String geneAlias) {
+		int len = text.length();
+		// [:_-]?
+		if (offset < len && isSeparator(text.charAt(offset))) {
+			offset ++;
+		}
+		// ([AC-IK-NP-TV-Y])?
+		if (offset < len && isRefAA(text.charAt(offset))) {
+			offset ++;
+		}
+		// (\d{1,4}); a shorter match is always followed by a digit which
+		// can not be accepted by the amino acid part, hence no backtracking
+		int posStart = offset;
+		int position = 0;
+		while (offset < len && isDigit(text.charAt(offset))) {
+			position = position * 10 + (text.charAt(offset) - '0');
+			offset ++;
+		}
+		int numDigits = offset - posStart;
+		if (numDigits < 1 || numDigits > 4) {
+			return null;
+		}
+		return parseAAs(text, offset, isASI, geneAlias, position);
+	}
+
+	private static ParsedMutation parseAAs(String text, int offset, boolean isASI, String geneAlias, int position) {
+		int len = text.length();
+		if (offset >= len) {
+			return null;
+		}
+		ParsedMutation result;
+
+		// [AC-IK-NP-TV-Zid.*]+(?:[#_]?[AC-IK-NP-TV-Z.*]+)?
+		int end = offset;
+		boolean hasIndelChar = false;
+		while (end < len && isAAOrIndel(text.charAt(end))) {
+			hasIndelChar = hasIndelChar || !isAA(text.charAt(end));
+			end ++;
+		}
+		if (end > offset) {
+			if (
+				end + 1 < len &&
+				(text.charAt(end) == '#' || text.charAt(end) == '_') &&
+				isAA(text.charAt(end + 1))
+			) {
+				end += 2;
+				while (end < len && isAA(text.charAt(end))) {
+					end ++;
+				}
+			}
+			// "i" or "d" alone is also accepted by [id_#~-]
+			boolean isNonASIAAs = !hasIndelChar || end - offset == 1;
+			result = parseTail(text, offset, end, isASI, geneAlias, position, isNonASIAAs);
+			if (result != null) {
+				return result;
+			}
+		}
+
+		// [id_#~-]
+		if (isSingleIndel(text.charAt(offset))) {
+			result = parseTail(text, offset, offset + 1, isASI, geneAlias, position, true);
+			if (result != null) {
+				return result;
+			}
+		}
+
+		// [iI]ns(?:ertion)? and [dD]el(?:etion)?
+		char first = text.charAt(offset);
+		String word = null;
+		if (first == 'i' || first == 'I') {
+			word = "nsertion";
+		}
+		else if (first == 'd' || first == 'D') {
+			word = "eletion";
+		}
+		if (word != null && text.startsWith(word.substring(0, 2), offset + 1)) {
+			if (text.startsWith(word, offset + 1)) {
+				result = parseTail(text, offset, offset + 1 + word.length(), isASI, geneAlias, position, true);
+				if (result != null) {
+					return result;
+				}
+			}
+			return parseTail(text, offset, offset + 3, isASI, geneAlias, position, true);
+		}
+		return null;
+	}
+
+	private static ParsedMutation parseTail(
+		String text, int aasStart, int aasEnd,
+		boolean isASI, String geneAlias, int position, boolean isNonASIAAs
+	) {
+		int len = text.length();
+		String triplet = null;
+		int offset = aasEnd;
+		boolean matched = false;
+		// (?::([ACGTRYMWSKBDHVN-]{3})?)?\s*$
+		if (offset < len && text.charAt(offset) == ':') {
+			if (
+				offset + 3 < len &&
+				isTripletNA(text.charAt(offset + 1)) &&
+				isTripletNA(text.charAt(offset + 2)) &&
+				isTripletNA(text.charAt(offset + 3)) &&
+				isBlankToEnd(text, offset + 4)
+			) {
+				triplet = text.substring(offset + 1, offset + 4);
+				matched = true;
+			}
+			else {
+				matched = isBlankToEnd(text, offset + 1);
+			}
+		}
+		else {
+			matched = isBlankToEnd(text, offset);
+		}
+		if (!matched) {
+			return null;
+		}
+		return new ParsedMutation(
+			isASI, geneAlias, position,
+			text.substring(aasStart, aasEnd), isNonASIAAs, triplet
+		);
+	}
+
+}
@@ -0,0 +1,189 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import com.google.gson.reflect.TypeToken;
+
+import edu.stanford.hivdb.utilities.Json;
+
+/**
+ * Genome consensus of codon reads, assembled region by region
+ *
+ * Regions follow assembly-config.json: untranslated regions are filled
+ * with N and genes with their consensus codons, minus the "trim" NA
+ * positions of overlapping genes. Genes may be added in any order; a gene
+ * added ahead of its region only keeps its consensus until the preceding
+ * regions are appended. Genes never added are filled with N.
+ */
+class SARS2ReadsAssembly {
+
+	private static final String ASSEMBLYCONFIG_RESPATH = "assembly-config.json";
+
+	private static List<Map<String, Object>> assemblyRegions;
+
+	protected static synchronized List<Map<String, Object>> getAssemblyRegions() {
+		if (assemblyRegions == null) {
+			Map<String, List<Map<String, Object>>> config = Json.loads(
+				SARS2DataLoader.loadResource(ASSEMBLYCONFIG_RESPATH),
+				new TypeToken<Map<String, List<Map<String, Object>>>>() {}
+			);
+			assemblyRegions = Collections.unmodifiableList(config.get("SARS2"));
+		}
+		return assemblyRegions;
+	}
+
+	private final List<Map<String, Object>> regions;
+	private final StringBuilder consensus = new StringBuilder();
+	private final Map<String, String> pendingGenes = new HashMap<>();
+	private int regionIdx = 0;
+
+	SARS2ReadsAssembly() {
+		this(getAssemblyRegions());
+	}
+
+	SARS2ReadsAssembly(List<Map<String, Object>> regions) {
+		this.regions = regions;
+	}
+
+	private Map<String, Object> getGeneRegion(String gene) {
+		for (Map<String, Object> region : regions) {
+			if ("GENE".equals(region.get("type")) && gene.equals(region.get("name"))) {
+				return region;
+			}
+		}
+		return null;
+	}
+
+	private static int getGeneAASize(Map<String, Object> region) {
+		String geneName = (String) region.get("geneName");
+		return SARS2.getInstance().getGene(geneName).getAASize();
+	}
+
+	/**
+	 * Get the "trim" NA positions (1-based, in descending order) of a gene region
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<Integer> getTrimPositions(Map<String, Object> region) {
+		List<Object> trim = (List<Object>) region.getOrDefault("trim", List.of());
+		return trim.stream()
+			.map(pos -> ((Number) pos).intValue())
+			.sorted(Collections.reverseOrder())
+			.collect(Collectors.toList());
+	}
+
+	/**
+	 * Make the consensus of a gene from its consensus codons
+	 *
+	 * Codons are padded with "NNN" to the gene size and the "trim" NA
+	 * positions of the gene region are removed; so are deletions.
+	 *
+	 * @param gene abstract gene name
+	 * @param codons consensus codons from position 1, as returned by
+	 *               {@link SARS2CodonReadsTable#getConsensusCodons}
+	 * @return consensus nucleotides
+	 */
+	String toGeneConsensus(String gene, String[] codons) {
+		Map<String, Object> region = getGeneRegion(gene);
+		if (region != null) {
+			int aaSize = getGeneAASize(region);
+			if (codons.length != aaSize) {
+				String[] padded = new String[aaSize];
+				for (int idx = 0; idx < aaSize; idx ++) {
+					padded[idx] = idx < codons.length ? codons[idx] : "NNN";
+				}
+				codons = padded;
+			}
+			else {
+				codons = codons.clone();
+			}
+			for (int naPos : getTrimPositions(region)) {
+				int codonIdx = (naPos - 1) / 3;
+				int naIdx = (naPos - 1) % 3;
+				if (naIdx < codons[codonIdx].length()) {
+					codons[codonIdx] = (
+						codons[codonIdx].substring(0, naIdx) +
+						codons[codonIdx].substring(naIdx + 1)
+					);
+				}
+			}
+		}
+		StringBuilder geneConsensus = new StringBuilder();
+		for (String codon : codons) {
+			for (char na : codon.toCharArray()) {
+				// deletions are removed from the consensus
+				if (na != '-') {
+					geneConsensus.append(na);
+				}
+			}
+		}
+		return geneConsensus.toString();
+	}
+
+	/**
+	 * Add the consensus of a gene
+	 *
+	 * @param gene abstract gene name
+	 * @param geneConsensus as returned by {@link #toGeneConsensus}
+	 */
+	void addGene(String gene, String geneConsensus) {
+		pendingGenes.put(gene, geneConsensus);
+		appendRegions(false);
+	}
+
+	/**
+	 * Append the remaining regions
+	 *
+	 * @return the assembled genome consensus
+	 */
+	String finish() {
+		appendRegions(true);
+		return consensus.toString();
+	}
+
+	private void appendRegions(boolean isEnd) {
+		for (; regionIdx < regions.size(); regionIdx ++) {
+			Map<String, Object> region = regions.get(regionIdx);
+			if ("UNTRANS_REGION".equals(region.get("type"))) {
+				int refStart = ((Number) region.get("refStart")).intValue();
+				int refEnd = ((Number) region.get("refEnd")).intValue();
+				consensus.append("N".repeat(refEnd - refStart + 1));
+				continue;
+			}
+			String gene = (String) region.get("name");
+			String geneConsensus = pendingGenes.remove(gene);
+			if (geneConsensus != null) {
+				consensus.append(geneConsensus);
+			}
+			else if (isEnd) {
+				// no codon reads of this gene
+				consensus.append("N".repeat(getGeneAASize(region) * 3 - getTrimPositions(region).size()));
+			}
+			else {
+				break;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,999 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+import edu.stanford.hivdb.utilities.Json;
+
+/**
+ * In-JVM aligner of SARS-CoV-2 sequences against NC_045512.2
+ *
+ * A pure-Java alternative to the minimap2 + postalign round trip for
+ * near-identical queries of a single ~30 kb reference, selected by setting
+ * "method" of alignment-config.json to "SARS2Reference":
+ *
+ * 1. query k-mers are looked up in {@link SARS2ReferenceIndex} and the
+ *    hits are chained by the longest colinear subsequence;
+ * 2. gaps between chained blocks are closed with banded affine-gap
+ *    alignment using minimap2's default scores (--score-N 0), and the
+ *    ends are extended ungapped with an X-drop;
+ * 3. in-frame indels inside each "codon-alignment" range of the
+ *    postProcessors are moved to codon boundaries, honoring the same
+ *    --gap-placement-score hints;
+ * 4. codons of each gene (refRanges) are turned into aligned sites and
+ *    mutations. Ambiguous codons are expanded into mixtures, or X when
+ *    they code for more than MAX_MIXTURE_AAS amino acids.
+ *
+ * Only forward-strand sequences without frame shifts in their genes are
+ * aligned here. {@link #align} returns null for anything else, and the
+ * caller falls back to PostAlign (see {@link SARS2AlignmentWorkerPool}).
+ *
+ * An instance is immutable after construction and therefore thread-safe.
+ */
+public class SARS2ReferenceAligner {
+
+	public static final String METHOD = "SARS2Reference";
+	private static final String FALLBACK_METHOD = "PostAlign";
+
+	private static final String ALIGNCONFIG_RESPATH = "alignment-config.json";
+	private static final String MAIN_FRAGMENT = "Wuhan-Hu-1::NC_045512.2";
+
+	private static final int KMER_SIZE = SARS2ReferenceIndex.KMER_SIZE;
+	private static final int MIN_MATCHED_NAS = 60;
+	private static final int BAND_WIDTH = 32;
+	private static final long MAX_DP_CELLS = 4_000_000L;
+	private static final int X_DROP = 50;
+	private static final int MAX_MIXTURE_AAS = 4;
+
+	// minimap2 default scores: -A2 -B4 -O4 -E2
+	private static final int MATCH = 2;
+	private static final int MISMATCH = -4;
+	private static final int GAP_OPEN = -4;
+	private static final int GAP_EXTEND = -2;
+	private static final int CODON_ALIGNED_BONUS = 10;
+	private static final int AA_CHANGE_PENALTY = 3;
+	private static final int NEG_INF = Integer.MIN_VALUE / 4;
+
+	private static final char UNCOVERED = '\0';
+	private static final char DELETED = '-';
+
+	private static final String CODON_TABLE =
+		"KNKNTTTTRSRSIIMIQHQHPPPPRRRRLLLLEDEDAAAAGGGGVVVV*Y*YSSSS*CWCLFLF";
+
+	private static final Map<Character, String> IUPAC_NAS = new HashMap<>();
+
+	static {
+		String[] codes = {
+			"AA", "CC", "GG", "TT", "RAG", "YCT", "KGT", "MAC",
+			"SCG", "WAT", "BCGT", "DAGT", "HACT", "VACG", "NACGT"
+		};
+		for (String code : codes) {
+			IUPAC_NAS.put(code.charAt(0), code.substring(1));
+		}
+	}
+
+	private static SARS2ReferenceAligner singleton;
+	private static Boolean isSelected;
+
+	public static synchronized SARS2ReferenceAligner getInstance() {
+		if (singleton == null) {
+			singleton = fromAlignmentConfig(loadAlignmentConfig(), SARS2ReferenceIndex.getInstance());
+		}
+		return singleton;
+	}
+
+	/**
+	 * Check if alignment-config.json selects this aligner
+	 *
+	 * @return true if "method" is "SARS2Reference"
+	 */
+	public static synchronized boolean isSelected() {
+		if (isSelected == null) {
+			isSelected = METHOD.equals(loadAlignmentConfig().get("method"));
+		}
+		return isSelected;
+	}
+
+	/**
+	 * Make alignment-config.json readable by the sierra-core aligners
+	 *
+	 * sierra-core does not know the "SARS2Reference" method. When it is
+	 * selected, the configuration is handed over as a PostAlign one, which
+	 * aligns the sequences this aligner does not handle.
+	 *
+	 * @param raw content of alignment-config.json
+	 * @return configuration to pass to AlignmentConfig.loadJson
+	 */
+	public static String toSierraAlignmentConfig(String raw) {
+		// JsonObject keeps numbers as written
+		JsonObject config = JsonParser.parseString(raw).getAsJsonObject();
+		JsonElement method = config.get("method");
+		if (method == null || !METHOD.equals(method.getAsString())) {
+			return raw;
+		}
+		config.addProperty("method", FALLBACK_METHOD);
+		return config.toString();
+	}
+
+	private static Map<String, Object> loadAlignmentConfig() {
+		String raw = SARS2DataLoader.loadResource(ALIGNCONFIG_RESPATH);
+		return Json.loads(raw, new TypeToken<Map<String, Object>>() {});
+	}
+
+	protected static class GeneConfig {
+		private final String geneName;
+		private final int[][] refRanges;
+		private final int minNumOfAA;
+
+		protected GeneConfig(String geneName, int[][] refRanges, int minNumOfAA) {
+			this.geneName = geneName;
+			this.refRanges = refRanges;
+			this.minNumOfAA = minNumOfAA;
+		}
+	}
+
+	protected static class CodonAlignmentRange {
+		private final int refStart;
+		private final int refEnd;
+		private final Map<String, Integer> gapPlacementScores;
+
+		protected CodonAlignmentRange(int refStart, int refEnd, String gapPlacementScores) {
+			this.refStart = refStart;
+			this.refEnd = refEnd;
+			this.gapPlacementScores = new HashMap<>();
+			if (gapPlacementScores != null) {
+				// e.g. "21635/9del:20,22031/6del:15"
+				for (String item : gapPlacementScores.split(",")) {
+					int colon = item.lastIndexOf(':');
+					if (colon > -1) {
+						this.gapPlacementScores.put(
+							item.substring(0, colon).trim(),
+							Integer.parseInt(item.substring(colon + 1).trim())
+						);
+					}
+				}
+			}
+		}
+
+		private int getGapPlacementScore(int refPos, int gapLen, String gapType) {
+			return gapPlacementScores.getOrDefault(refPos + "/" + gapLen + gapType, 0);
+		}
+	}
+
+	/**
+	 * Per-reference-position alignment of one query
+	 */
+	private static class RawAlignment {
+		// queryAt[refPos]: aligned query base, DELETED or UNCOVERED
+		private final char[] queryAt;
+		// queryPosAt[refPos]: 1-based query position of queryAt[refPos], 0 if none
+		private final int[] queryPosAt;
+		// insertions[refPos]: query bases inserted after refPos
+		private final String[] insertions;
+		private int refStart;
+		private int refEnd;
+		private int queryStart;
+
+		private RawAlignment(int refLength) {
+			queryAt = new char[refLength + 2];
+			queryPosAt = new int[refLength + 2];
+			insertions = new String[refLength + 2];
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static SARS2ReferenceAligner fromAlignmentConfig(
+		Map<String, Object> config,
+		SARS2ReferenceIndex refIndex
+	) {
+		List<String> postProcessors = new ArrayList<>();
+		List<GeneConfig> genes = new ArrayList<>();
+		for (Map<String, Object> fragment : (List<Map<String, Object>>) config.get("fragmentConfig")) {
+			if (MAIN_FRAGMENT.equals(fragment.get("fragmentName"))) {
+				postProcessors = (List<String>) fragment.getOrDefault("postProcessors", postProcessors);
+			}
+			else if (MAIN_FRAGMENT.equals(fragment.get("fromFragment")) && fragment.containsKey("geneName")) {
+				List<List<Number>> rawRanges = (List<List<Number>>) fragment.get("refRanges");
+				int[][] refRanges = rawRanges.stream()
+					.map(range -> new int[] {range.get(0).intValue(), range.get(1).intValue()})
+					.toArray(int[][]::new);
+				Number minNumOfAA = (Number) fragment.getOrDefault("minNumOfAA", 0);
+				genes.add(new GeneConfig((String) fragment.get("geneName"), refRanges, minNumOfAA.intValue()));
+			}
+		}
+		return new SARS2ReferenceAligner(refIndex, genes, parseCodonAlignmentRanges(postProcessors));
+	}
+
+	protected static List<CodonAlignmentRange> parseCodonAlignmentRanges(List<String> postProcessors) {
+		List<CodonAlignmentRange> ranges = new ArrayList<>();
+		List<String> args = postProcessors.stream()
+			.filter(arg -> !arg.startsWith("#"))
+			.collect(Collectors.toList());
+		for (int idx = 0; idx < args.size(); idx ++) {
+			if (!args.get(idx).equals("codon-alignment")) {
+				continue;
+			}
+			String gapPlacementScores = null;
+			if (args.get(idx + 1).equals("--gap-placement-score")) {
+				gapPlacementScores = args.get(idx + 2);
+				idx += 2;
+			}
+			ranges.add(new CodonAlignmentRange(
+				Integer.parseInt(args.get(idx + 1)),
+				Integer.parseInt(args.get(idx + 2)),
+				gapPlacementScores
+			));
+			idx += 2;
+		}
+		return ranges;
+	}
+
+	private final SARS2ReferenceIndex refIndex;
+	private final String refSeq;
+	private final List<GeneConfig> genes;
+	private final List<CodonAlignmentRange> codonAlignmentRanges;
+
+	protected SARS2ReferenceAligner(
+		SARS2ReferenceIndex refIndex,
+		List<GeneConfig> genes,
+		List<CodonAlignmentRange> codonAlignmentRanges
+	) {
+		this.refIndex = refIndex;
+		this.refSeq = refIndex.getRefSequence();
+		this.genes = genes;
+		this.codonAlignmentRanges = codonAlignmentRanges;
+	}
+
+	public String getRefSequence() {
+		return refSeq;
+	}
+
+	/**
+	 * Normalize a nucleotide sequence without moving its positions: uppercase, and U to T
+	 *
+	 * @param naSeq
+	 * @return normalized sequence of the same length
+	 */
+	public static String normalize(String naSeq) {
+		char[] nas = naSeq.toUpperCase().toCharArray();
+		for (int idx = 0; idx < nas.length; idx ++) {
+			if (nas[idx] == 'U') {
+				nas[idx] = 'T';
+			}
+		}
+		return new String(nas);
+	}
+
+	private static int score(char queryNA, char refNA) {
+		if (SARS2ReferenceIndex.encode(queryNA) < 0 || SARS2ReferenceIndex.encode(refNA) < 0) {
+			return 0;
+		}
+		return queryNA == refNA ? MATCH : MISMATCH;
+	}
+
+	/**
+	 * Align a sequence
+	 *
+	 * Positions of the result are positions of the given sequence, which
+	 * is normalized by {@link #normalize} first.
+	 *
+	 * @param sequence nucleotide sequence, e.g. Sequence#getSequence()
+	 * @return alignment record, or null if the sequence is not aligned on
+	 *         the forward strand or has a frame shift in a gene
+	 */
+	public SARS2AlignmentRecord align(String sequence) {
+		String query = normalize(sequence);
+		RawAlignment aln = alignStrand(query);
+		if (aln == null) {
+			return null;
+		}
+		for (CodonAlignmentRange range : codonAlignmentRanges) {
+			if (range.refEnd < aln.refStart || range.refStart > aln.refEnd) {
+				continue;
+			}
+			placeCodonGaps(aln, range);
+		}
+		locateQueryPositions(aln);
+		List<SARS2AlignmentRecord.GeneRecord> geneRecords = new ArrayList<>();
+		for (GeneConfig gene : genes) {
+			SARS2AlignmentRecord.GeneRecord geneRecord;
+			try {
+				geneRecord = translateGene(aln, gene);
+			} catch (FrameShiftException e) {
+				return null;
+			}
+			if (geneRecord != null) {
+				geneRecords.add(geneRecord);
+			}
+		}
+		return new SARS2AlignmentRecord(false, geneRecords, new LinkedHashMap<>());
+	}
+
+	/**
+	 * Chain unique k-mer hits into blocks of {queryStart, refStart, length}
+	 */
+	private List<int[]> findBlocks(String query) {
+		int mask = (1 << (2 * KMER_SIZE)) - 1;
+		int code = 0;
+		int valid = 0;
+		int[] hitQ = new int[query.length()];
+		int[] hitR = new int[hitQ.length];
+		int numHits = 0;
+		for (int pos = 0; pos < query.length(); pos ++) {
+			int na = SARS2ReferenceIndex.encode(query.charAt(pos));
+			if (na < 0) {
+				valid = 0;
+				continue;
+			}
+			code = ((code << 2) | na) & mask;
+			if (++ valid >= KMER_SIZE) {
+				int refPos = refIndex.lookupKmer(code);
+				if (refPos > -1) {
+					hitQ[numHits] = pos - KMER_SIZE + 1;
+					hitR[numHits] = refPos;
+					numHits ++;
+				}
+			}
+		}
+
+		// longest increasing subsequence of ref positions (query positions already increase)
+		int[] tails = new int[numHits];
+		int[] prev = new int[numHits];
+		int length = 0;
+		for (int idx = 0; idx < numHits; idx ++) {
+			int lo = 0;
+			int hi = length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (hitR[tails[mid]] < hitR[idx]) {
+					lo = mid + 1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+			prev[idx] = lo > 0 ? tails[lo - 1] : -1;
+			tails[lo] = idx;
+			if (lo == length) {
+				length ++;
+			}
+		}
+		int[] chain = new int[length];
+		for (int idx = length - 1, cur = length > 0 ? tails[length - 1] : -1; idx > -1; idx --) {
+			chain[idx] = cur;
+			cur = prev[cur];
+		}
+
+		List<int[]> blocks = new ArrayList<>();
+		for (int hit : chain) {
+			int q = hitQ[hit];
+			int r = hitR[hit];
+			if (!blocks.isEmpty()) {
+				int[] last = blocks.get(blocks.size() - 1);
+				int lastQEnd = last[0] + last[2];
+				int lastREnd = last[1] + last[2];
+				if (r - q == last[1] - last[0] && q <= lastQEnd) {
+					last[2] = Math.max(last[2], q + KMER_SIZE - last[0]);
+					continue;
+				}
+				if (q < lastQEnd || r < lastREnd) {
+					continue;
+				}
+			}
+			blocks.add(new int[] {q, r, KMER_SIZE});
+		}
+		return blocks;
+	}
+
+	private RawAlignment alignStrand(String query) {
+		List<int[]> blocks = findBlocks(query);
+		int matched = blocks.stream().mapToInt(block -> block[2]).sum();
+		if (matched < MIN_MATCHED_NAS) {
+			return null;
+		}
+		RawAlignment aln = new RawAlignment(refSeq.length());
+		int[] first = blocks.get(0);
+		int[] last = blocks.get(blocks.size() - 1);
+		int leftLen = extendLeft(aln, query, first[0], first[1]);
+		aln.refStart = first[1] - leftLen + 1;
+		aln.queryStart = first[0] - leftLen + 1;
+		for (int idx = 0; idx < blocks.size(); idx ++) {
+			int[] block = blocks.get(idx);
+			fillUngapped(aln, query, block[0], block[1], block[2]);
+			if (idx + 1 < blocks.size()) {
+				int[] next = blocks.get(idx + 1);
+				alignGap(aln, query, block[0] + block[2], next[0], block[1] + block[2], next[1]);
+			}
+		}
+		aln.refEnd = extendRight(aln, query, last[0] + last[2], last[1] + last[2]);
+		return aln;
+	}
+
+	/**
+	 * Fill ungapped alignment; positions are 0-based here and 1-based in RawAlignment
+	 */
+	private static void fillUngapped(RawAlignment aln, String query, int qStart, int rStart, int length) {
+		for (int idx = 0; idx < length; idx ++) {
+			aln.queryAt[rStart + idx + 1] = query.charAt(qStart + idx);
+		}
+	}
+
+	/**
+	 * @return number of extended nucleotides
+	 */
+	private int extendLeft(RawAlignment aln, String query, int qEnd, int rEnd) {
+		int score = 0;
+		int best = 0;
+		int bestLen = 0;
+		for (int len = 1; len <= Math.min(qEnd, rEnd); len ++) {
+			score += score(query.charAt(qEnd - len), refSeq.charAt(rEnd - len));
+			if (score > best) {
+				best = score;
+				bestLen = len;
+			}
+			else if (score < best - X_DROP) {
+				break;
+			}
+		}
+		fillUngapped(aln, query, qEnd - bestLen, rEnd - bestLen, bestLen);
+		return bestLen;
+	}
+
+	private int extendRight(RawAlignment aln, String query, int qStart, int rStart) {
+		int score = 0;
+		int best = 0;
+		int bestLen = 0;
+		int maxLen = Math.min(query.length() - qStart, refSeq.length() - rStart);
+		for (int len = 1; len <= maxLen; len ++) {
+			score += score(query.charAt(qStart + len - 1), refSeq.charAt(rStart + len - 1));
+			if (score > best) {
+				best = score;
+				bestLen = len;
+			}
+			else if (score < best - X_DROP) {
+				break;
+			}
+		}
+		fillUngapped(aln, query, qStart, rStart, bestLen);
+		return rStart + bestLen;
+	}
+
+	/**
+	 * Globally align query[qStart, qEnd) against ref[rStart, rEnd) with a banded Gotoh
+	 */
+	private void alignGap(RawAlignment aln, String query, int qStart, int qEnd, int rStart, int rEnd) {
+		int lq = qEnd - qStart;
+		int lr = rEnd - rStart;
+		if (lq == lr) {
+			fillUngapped(aln, query, qStart, rStart, lq);
+			return;
+		}
+		int lo = Math.min(0, lr - lq) - BAND_WIDTH;
+		int hi = Math.max(0, lr - lq) + BAND_WIDTH;
+		int width = hi - lo + 1;
+		if (lq == 0 || lr == 0 || (long) (lq + 1) * width > MAX_DP_CELLS) {
+			// trivial or too large: align the common prefix and put one gap at the end
+			int common = Math.min(lq, lr);
+			fillUngapped(aln, query, qStart, rStart, common);
+			if (lq > lr) {
+				aln.insertions[rStart + common] = query.substring(qStart + common, qEnd);
+			}
+			else {
+				for (int r = rStart + common; r < rEnd; r ++) {
+					aln.queryAt[r + 1] = DELETED;
+				}
+			}
+			return;
+		}
+
+		int size = (lq + 1) * width;
+		int[] mat = new int[size];
+		int[] ins = new int[size];
+		int[] del = new int[size];
+		byte[] tbMat = new byte[size];
+		byte[] tbIns = new byte[size];
+		byte[] tbDel = new byte[size];
+		Arrays.fill(mat, NEG_INF);
+		Arrays.fill(ins, NEG_INF);
+		Arrays.fill(del, NEG_INF);
+		mat[-lo] = 0;
+
+		for (int i = 0; i <= lq; i ++) {
+			int jFrom = Math.max(0, i + lo);
+			int jTo = Math.min(lr, i + hi);
+			for (int j = jFrom; j <= jTo; j ++) {
+				if (i == 0 && j == 0) {
+					continue;
+				}
+				int cell = i * width + (j - i - lo);
+				if (i > 0 && j > 0) {
+					int diag = (i - 1) * width + (j - i - lo);
+					int s = score(query.charAt(qStart + i - 1), refSeq.charAt(rStart + j - 1));
+					byte from = argmax(mat[diag], ins[diag], del[diag]);
+					mat[cell] = pick(from, mat[diag], ins[diag], del[diag]) + s;
+					tbMat[cell] = from;
+				}
+				if (i > 0 && j - (i - 1) <= hi) {
+					// consumes query: insertion relative to the reference
+					int up = (i - 1) * width + (j - i + 1 - lo);
+					byte from = argmax(
+						mat[up] + GAP_OPEN + GAP_EXTEND,
+						ins[up] + GAP_EXTEND,
+						del[up] + GAP_OPEN + GAP_EXTEND
+					);
+					ins[cell] = pick(
+						from,
+						mat[up] + GAP_OPEN + GAP_EXTEND,
+						ins[up] + GAP_EXTEND,
+						del[up] + GAP_OPEN + GAP_EXTEND
+					);
+					tbIns[cell] = from;
+				}
+				if (j > 0 && j - 1 - i >= lo) {
+					// consumes reference: deletion relative to the reference
+					int left = cell - 1;
+					byte from = argmax(
+						mat[left] + GAP_OPEN + GAP_EXTEND,
+						ins[left] + GAP_OPEN + GAP_EXTEND,
+						del[left] + GAP_EXTEND
+					);
+					del[cell] = pick(
+						from,
+						mat[left] + GAP_OPEN + GAP_EXTEND,
+						ins[left] + GAP_OPEN + GAP_EXTEND,
+						del[left] + GAP_EXTEND
+					);
+					tbDel[cell] = from;
+				}
+			}
+		}
+
+		// traceback from (lq, lr)
+		int i = lq;
+		int j = lr;
+		int endCell = i * width + (j - i - lo);
+		byte state = argmax(mat[endCell], ins[endCell], del[endCell]);
+		StringBuilder insertion = new StringBuilder();
+		while (i > 0 || j > 0) {
+			int cell = i * width + (j - i - lo);
+			if (state == 0) {
+				flushInsertion(aln, insertion, rStart + j);
+				aln.queryAt[rStart + j] = query.charAt(qStart + i - 1);
+				state = tbMat[cell];
+				i --;
+				j --;
+			}
+			else if (state == 1) {
+				insertion.append(query.charAt(qStart + i - 1));
+				state = tbIns[cell];
+				i --;
+			}
+			else {
+				flushInsertion(aln, insertion, rStart + j);
+				aln.queryAt[rStart + j] = DELETED;
+				state = tbDel[cell];
+				j --;
+			}
+		}
+		flushInsertion(aln, insertion, rStart);
+	}
+
+	private static void flushInsertion(RawAlignment aln, StringBuilder reversedInsertion, int afterRefPos) {
+		if (reversedInsertion.length() > 0) {
+			aln.insertions[afterRefPos] = reversedInsertion.reverse().toString();
+			reversedInsertion.setLength(0);
+		}
+	}
+
+	private static byte argmax(int mat, int ins, int del) {
+		if (mat >= ins && mat >= del) {
+			return 0;
+		}
+		return ins >= del ? (byte) 1 : (byte) 2;
+	}
+
+	private static int pick(byte state, int mat, int ins, int del) {
+		return state == 0 ? mat : state == 1 ? ins : del;
+	}
+
+	private static boolean isBase(char na) {
+		return na != UNCOVERED && na != DELETED;
+	}
+
+	/**
+	 * Number the aligned query bases once gaps are placed
+	 *
+	 * The aligned bases are the query bases in order, so walking the
+	 * reference positions and skipping inserted bases gives their positions.
+	 */
+	private static void locateQueryPositions(RawAlignment aln) {
+		int queryPos = aln.queryStart;
+		for (int pos = aln.refStart; pos <= aln.refEnd; pos ++) {
+			if (isBase(aln.queryAt[pos])) {
+				aln.queryPosAt[pos] = queryPos ++;
+			}
+			if (aln.insertions[pos] != null) {
+				queryPos += aln.insertions[pos].length();
+			}
+		}
+	}
+
+	/**
+	 * Move in-frame indels inside a codon-alignment range to their best placement
+	 */
+	private void placeCodonGaps(RawAlignment aln, CodonAlignmentRange range) {
+		int start = Math.max(range.refStart, aln.refStart);
+		int end = Math.min(range.refEnd, aln.refEnd);
+		for (int pos = start; pos <= end; pos ++) {
+			if (aln.queryAt[pos] == DELETED) {
+				int delEnd = pos;
+				while (delEnd + 1 <= end && aln.queryAt[delEnd + 1] == DELETED) {
+					delEnd ++;
+				}
+				int delLen = delEnd - pos + 1;
+				if (delLen % 3 == 0 && !hasInsertion(aln, pos, delEnd - 1)) {
+					placeDeletion(aln, range, pos, delLen, start, end);
+				}
+				pos = delEnd;
+			}
+			else if (aln.insertions[pos] != null && pos < end && aln.insertions[pos].length() % 3 == 0) {
+				placeInsertion(aln, range, pos, start, end);
+			}
+		}
+	}
+
+	private static boolean hasInsertion(RawAlignment aln, int fromPos, int toPos) {
+		for (int pos = fromPos; pos <= toPos; pos ++) {
+			if (aln.insertions[pos] != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void placeDeletion(RawAlignment aln, CodonAlignmentRange range, int delStart, int delLen, int start, int end) {
+		int delEnd = delStart + delLen - 1;
+		int a = delStart;
+		while (
+			a - 1 >= start && delStart - (a - 1) <= delLen + 2 &&
+			isBase(aln.queryAt[a - 1]) && aln.insertions[a - 1] == null
+		) {
+			a --;
+		}
+		int b = delEnd;
+		while (
+			b + 1 <= end && (b + 1) - delEnd <= delLen + 2 &&
+			isBase(aln.queryAt[b + 1]) && aln.insertions[b] == null
+		) {
+			b ++;
+		}
+		StringBuilder bases = new StringBuilder();
+		for (int pos = a; pos <= b; pos ++) {
+			if (pos < delStart || pos > delEnd) {
+				bases.append(aln.queryAt[pos]);
+			}
+		}
+		char[] window = new char[b - a + 1];
+		int bestPos = delStart;
+		int bestScore = scoreDeletion(aln, range, bases, window, a, delStart, delLen);
+		for (int cand = a; cand + delLen - 1 <= b; cand ++) {
+			int candScore = scoreDeletion(aln, range, bases, window, a, cand, delLen);
+			if (candScore > bestScore) {
+				bestScore = candScore;
+				bestPos = cand;
+			}
+		}
+		if (bestPos != delStart) {
+			fillDeletionWindow(bases, window, a, bestPos, delLen);
+			System.arraycopy(window, 0, aln.queryAt, a, window.length);
+		}
+	}
+
+	private static void fillDeletionWindow(CharSequence bases, char[] window, int a, int delStart, int delLen) {
+		int idx = 0;
+		for (int offset = 0; offset < window.length; offset ++) {
+			int pos = a + offset;
+			window[offset] = pos >= delStart && pos < delStart + delLen ? DELETED : bases.charAt(idx ++);
+		}
+	}
+
+	private int scoreDeletion(
+		RawAlignment aln,
+		CodonAlignmentRange range,
+		CharSequence bases,
+		char[] window,
+		int a,
+		int delStart,
+		int delLen
+	) {
+		fillDeletionWindow(bases, window, a, delStart, delLen);
+		int total = scoreWindow(aln, range, window, a);
+		if ((delStart - range.refStart) % 3 == 0) {
+			total += CODON_ALIGNED_BONUS;
+		}
+		return total + range.getGapPlacementScore(delStart, delLen, "del");
+	}
+
+	private void placeInsertion(RawAlignment aln, CodonAlignmentRange range, int insAfter, int start, int end) {
+		String insertion = aln.insertions[insAfter];
+		int insLen = insertion.length();
+		int a = insAfter + 1;
+		while (
+			a - 1 >= start && insAfter - (a - 1) < insLen + 2 &&
+			isBase(aln.queryAt[a - 1]) && (a - 1 == insAfter || aln.insertions[a - 1] == null)
+		) {
+			a --;
+		}
+		int b = insAfter;
+		while (
+			b + 1 <= end && (b + 1) - insAfter <= insLen + 2 &&
+			isBase(aln.queryAt[b + 1]) && (b == insAfter || aln.insertions[b] == null)
+		) {
+			b ++;
+		}
+		if (b < a) {
+			return;
+		}
+		// query bases of [a, b] with the insertion in place
+		StringBuilder bases = new StringBuilder();
+		for (int pos = a; pos <= b; pos ++) {
+			bases.append(aln.queryAt[pos]);
+		}
+		bases.insert(insAfter - a + 1, insertion);
+
+		char[] window = new char[b - a + 1];
+		int bestPos = insAfter;
+		int bestScore = scoreInsertion(aln, range, bases, window, a, insAfter, insLen);
+		for (int cand = a - 1; cand <= b; cand ++) {
+			int candScore = scoreInsertion(aln, range, bases, window, a, cand, insLen);
+			if (candScore > bestScore) {
+				bestScore = candScore;
+				bestPos = cand;
+			}
+		}
+		if (bestPos != insAfter) {
+			fillInsertionWindow(bases, window, a, bestPos, insLen);
+			System.arraycopy(window, 0, aln.queryAt, a, window.length);
+			aln.insertions[insAfter] = null;
+			int insOffset = bestPos - a + 1;
+			aln.insertions[bestPos] = bases.substring(insOffset, insOffset + insLen);
+		}
+	}
+
+	private static void fillInsertionWindow(CharSequence bases, char[] window, int a, int insAfter, int insLen) {
+		int idx = 0;
+		for (int offset = 0; offset < window.length; offset ++) {
+			if (a + offset == insAfter + 1) {
+				idx += insLen;
+			}
+			window[offset] = bases.charAt(idx ++);
+		}
+	}
+
+	private int scoreInsertion(
+		RawAlignment aln,
+		CodonAlignmentRange range,
+		CharSequence bases,
+		char[] window,
+		int a,
+		int insAfter,
+		int insLen
+	) {
+		fillInsertionWindow(bases, window, a, insAfter, insLen);
+		int total = scoreWindow(aln, range, window, a);
+		if ((insAfter - range.refStart + 1) % 3 == 0) {
+			total += CODON_ALIGNED_BONUS;
+		}
+		return total + range.getGapPlacementScore(insAfter, insLen, "ins");
+	}
+
+	/**
+	 * Score a candidate window by nucleotides and by amino acid changes of
+	 * the codons it overlaps, so that equally good nucleotide placements are
+	 * resolved the way a codon-level alignment would resolve them
+	 */
+	private int scoreWindow(RawAlignment aln, CodonAlignmentRange range, char[] window, int a) {
+		int b = a + window.length - 1;
+		int total = 0;
+		for (int offset = 0; offset < window.length; offset ++) {
+			if (window[offset] != DELETED) {
+				total += score(window[offset], refSeq.charAt(a + offset - 1));
+			}
+		}
+		int codonStart = range.refStart + (a - range.refStart) / 3 * 3;
+		for (; codonStart <= b && codonStart + 2 <= range.refEnd; codonStart += 3) {
+			char[] codon = new char[3];
+			int numDeleted = 0;
+			boolean covered = true;
+			for (int k = 0; k < 3; k ++) {
+				int pos = codonStart + k;
+				char na = pos >= a && pos <= b ? window[pos - a] : aln.queryAt[pos];
+				if (na == UNCOVERED) {
+					covered = false;
+				}
+				else if (na == DELETED) {
+					numDeleted ++;
+				}
+				codon[k] = na;
+			}
+			if (!covered || numDeleted == 3) {
+				continue;
+			}
+			String refAA = translate(
+				refSeq.charAt(codonStart - 1), refSeq.charAt(codonStart), refSeq.charAt(codonStart + 1));
+			if (numDeleted > 0 || !translate(codon[0], codon[1], codon[2]).equals(refAA)) {
+				total -= AA_CHANGE_PENALTY;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Translate a codon which may have IUPAC ambiguity codes
+	 *
+	 * @return sorted amino acids the codon codes for, or "X" if there are
+	 *         more than MAX_MIXTURE_AAS or a base is not a nucleotide code
+	 */
+	protected static String translate(char na1, char na2, char na3) {
+		String nas1 = IUPAC_NAS.get(na1);
+		String nas2 = IUPAC_NAS.get(na2);
+		String nas3 = IUPAC_NAS.get(na3);
+		if (nas1 == null || nas2 == null || nas3 == null) {
+			return "X";
+		}
+		TreeSet<Character> aas = new TreeSet<>();
+		for (int i = 0; i < nas1.length(); i ++) {
+			for (int j = 0; j < nas2.length(); j ++) {
+				for (int k = 0; k < nas3.length(); k ++) {
+					aas.add(CODON_TABLE.charAt(
+						SARS2ReferenceIndex.encode(nas1.charAt(i)) * 16 +
+						SARS2ReferenceIndex.encode(nas2.charAt(j)) * 4 +
+						SARS2ReferenceIndex.encode(nas3.charAt(k))
+					));
+				}
+			}
+		}
+		if (aas.size() > MAX_MIXTURE_AAS) {
+			return "X";
+		}
+		StringBuilder result = new StringBuilder(aas.size());
+		for (char aa : aas) {
+			result.append(aa);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Translate inserted nucleotides; a codon of mixtures becomes X
+	 */
+	private static String translateInsertion(String nas) {
+		StringBuilder aas = new StringBuilder();
+		for (int idx = 0; idx + 2 < nas.length(); idx += 3) {
+			String aa = translate(nas.charAt(idx), nas.charAt(idx + 1), nas.charAt(idx + 2));
+			aas.append(aa.length() == 1 ? aa : "X");
+		}
+		return aas.toString();
+	}
+
+	private static class FrameShiftException extends Exception {
+		private static final long serialVersionUID = 4133165734823785147L;
+	}
+
+	/**
+	 * Turn the codons of a gene into aligned sites and mutations
+	 *
+	 * @return the gene record, or null if fewer than minNumOfAA codons are covered
+	 * @throws FrameShiftException if an indel of the gene is not a whole
+	 *         number of codons at a codon boundary
+	 */
+	private SARS2AlignmentRecord.GeneRecord translateGene(
+		RawAlignment aln,
+		GeneConfig gene
+	) throws FrameShiftException {
+		int[] positions = Arrays.stream(gene.refRanges)
+			.flatMapToInt(range -> IntStream.rangeClosed(range[0], range[1]))
+			.toArray();
+		List<Integer> sites = new ArrayList<>();
+		List<SARS2AlignmentRecord.MutationRecord> mutations = new ArrayList<>();
+		int firstAA = 0;
+		int lastAA = 0;
+		int firstNA = 0;
+		int lastNA = 0;
+		int numCovered = 0;
+		// next query position, for the position of deleted codons
+		int nextQueryPos = 0;
+		for (int aaPos = 1; aaPos * 3 <= positions.length; aaPos ++) {
+			int p1 = positions[aaPos * 3 - 3];
+			int p2 = positions[aaPos * 3 - 2];
+			int p3 = positions[aaPos * 3 - 1];
+			char c1 = aln.queryAt[p1];
+			char c2 = aln.queryAt[p2];
+			char c3 = aln.queryAt[p3];
+			if (c1 == UNCOVERED || c2 == UNCOVERED || c3 == UNCOVERED) {
+				continue;
+			}
+			int numDeleted = (c1 == DELETED ? 1 : 0) + (c2 == DELETED ? 1 : 0) + (c3 == DELETED ? 1 : 0);
+			String insertion = aln.insertions[p3];
+			if (
+				(numDeleted > 0 && numDeleted < 3) ||
+				aln.insertions[p1] != null || aln.insertions[p2] != null ||
+				(insertion != null && (insertion.length() % 3 != 0 || numDeleted == 3))
+			) {
+				throw new FrameShiftException();
+			}
+			String refAA = translate(refSeq.charAt(p1 - 1), refSeq.charAt(p2 - 1), refSeq.charAt(p3 - 1));
+			int posNA;
+			int lengthNA;
+			if (numDeleted == 3) {
+				posNA = nextQueryPos > 0 ? nextQueryPos : aln.queryPosAt[p1 - 1] + 1;
+				lengthNA = 0;
+				mutations.add(new SARS2AlignmentRecord.MutationRecord(aaPos, "-", "", ""));
+			}
+			else {
+				posNA = aln.queryPosAt[p1];
+				lengthNA = 3 + (insertion == null ? 0 : insertion.length());
+				String triplet = new String(new char[] {c1, c2, c3});
+				String aas = translate(c1, c2, c3);
+				if (insertion != null) {
+					mutations.add(new SARS2AlignmentRecord.MutationRecord(
+						aaPos, aas + "_" + translateInsertion(insertion), triplet, insertion));
+				}
+				else if (!aas.equals(refAA)) {
+					mutations.add(new SARS2AlignmentRecord.MutationRecord(aaPos, aas, triplet, ""));
+				}
+				nextQueryPos = posNA + lengthNA;
+				if (firstNA == 0) {
+					firstNA = posNA;
+				}
+				lastNA = posNA + lengthNA - 1;
+			}
+			if (firstAA == 0) {
+				firstAA = aaPos;
+			}
+			lastAA = aaPos;
+			numCovered ++;
+			sites.add(aaPos);
+			sites.add(posNA);
+			sites.add(lengthNA);
+		}
+		if (numCovered == 0 || numCovered < gene.minNumOfAA || firstNA == 0) {
+			return null;
+		}
+		return new SARS2AlignmentRecord.GeneRecord(
+			gene.geneName, firstAA, lastAA, firstNA, lastNA,
+			sites.stream().mapToInt(Integer::intValue).toArray(),
+			mutations
+		);
+	}
+
+}
@@ -0,0 +1,282 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.reflect.TypeToken;
+
+import edu.stanford.hivdb.utilities.Json;
+
+/**
+ * Unique k-mer index of the NC_045512.2 reference
+ *
+ * Unique 15-mers of the main fragment of alignment-config.json are indexed
+ * once, together with the refRanges of its gene fragments, so that the
+ * reference region covered by a query, or the query region of given genes,
+ * can be estimated without an alignment (see {@link SARS2SequenceTriage}).
+ * {@link SARS2ReferenceAligner} seeds its alignments with the same index.
+ *
+ * An instance is immutable after construction and therefore thread-safe.
+ */
+public class SARS2ReferenceIndex {
+
+	private static final String ALIGNCONFIG_RESPATH = "alignment-config.json";
+	private static final String MAIN_FRAGMENT = "Wuhan-Hu-1::NC_045512.2";
+
+	protected static final int KMER_SIZE = 15;
+
+	private static SARS2ReferenceIndex singleton;
+
+	public static synchronized SARS2ReferenceIndex getInstance() {
+		if (singleton == null) {
+			String raw = SARS2DataLoader.loadResource(ALIGNCONFIG_RESPATH);
+			singleton = fromAlignmentConfig(Json.loads(raw, new TypeToken<Map<String, Object>>() {}));
+		}
+		return singleton;
+	}
+
+	protected static class GeneConfig {
+		private final String abstractGene;
+		private final int[][] refRanges;
+		private final int minNumOfAA;
+
+		protected GeneConfig(String abstractGene, int[][] refRanges, int minNumOfAA) {
+			this.abstractGene = abstractGene;
+			this.refRanges = refRanges;
+			this.minNumOfAA = minNumOfAA;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	protected static SARS2ReferenceIndex fromAlignmentConfig(Map<String, Object> config) {
+		String refSequence = null;
+		List<GeneConfig> genes = new ArrayList<>();
+		for (Map<String, Object> fragment : (List<Map<String, Object>>) config.get("fragmentConfig")) {
+			if (MAIN_FRAGMENT.equals(fragment.get("fragmentName"))) {
+				refSequence = (String) fragment.get("refSequence");
+			}
+			else if (MAIN_FRAGMENT.equals(fragment.get("fromFragment")) && fragment.containsKey("geneName")) {
+				List<List<Number>> rawRanges = (List<List<Number>>) fragment.get("refRanges");
+				int[][] refRanges = rawRanges.stream()
+					.map(range -> new int[] {range.get(0).intValue(), range.get(1).intValue()})
+					.toArray(int[][]::new);
+				Number minNumOfAA = (Number) fragment.getOrDefault("minNumOfAA", 0);
+				genes.add(new GeneConfig(
+					((String) fragment.get("geneName")).replaceFirst("^SARS2", ""),
+					refRanges,
+					minNumOfAA.intValue()
+				));
+			}
+		}
+		return new SARS2ReferenceIndex(refSequence, genes);
+	}
+
+	private final String refSeq;
+	private final Map<Integer, Integer> kmerIndex;
+	private final List<GeneConfig> genes;
+
+	protected SARS2ReferenceIndex(String refSequence, List<GeneConfig> genes) {
+		this.refSeq = refSequence.toUpperCase();
+		this.genes = genes;
+		this.kmerIndex = indexKmers(refSeq);
+	}
+
+	public String getRefSequence() {
+		return refSeq;
+	}
+
+	/**
+	 * @return 2-bit code of an unambiguous nucleotide, or -1
+	 */
+	protected static int encode(char na) {
+		switch (na) {
+			case 'A': return 0;
+			case 'C': return 1;
+			case 'G': return 2;
+			case 'T': return 3;
+			default: return -1;
+		}
+	}
+
+	/**
+	 * Index unique k-mers; repetitive k-mers are mapped to -1
+	 */
+	private static Map<Integer, Integer> indexKmers(String seq) {
+		Map<Integer, Integer> index = new HashMap<>();
+		int mask = (1 << (2 * KMER_SIZE)) - 1;
+		int code = 0;
+		int valid = 0;
+		for (int pos = 0; pos < seq.length(); pos ++) {
+			int na = encode(seq.charAt(pos));
+			if (na < 0) {
+				valid = 0;
+				continue;
+			}
+			code = ((code << 2) | na) & mask;
+			if (++ valid >= KMER_SIZE) {
+				int start = pos - KMER_SIZE + 1;
+				index.merge(code, start, (prev, cur) -> -1);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Normalize a nucleotide sequence: remove non-letters, uppercase, and U to T
+	 *
+	 * @param naSeq
+	 * @return normalized sequence
+	 */
+	protected static String normalize(String naSeq) {
+		StringBuilder result = new StringBuilder(naSeq.length());
+		for (int idx = 0; idx < naSeq.length(); idx ++) {
+			char na = Character.toUpperCase(naSeq.charAt(idx));
+			if (na == 'U') {
+				na = 'T';
+			}
+			if (na >= 'A' && na <= 'Z') {
+				result.append(na);
+			}
+		}
+		return result.toString();
+	}
+
+	protected static String reverseComplement(String seq) {
+		StringBuilder result = new StringBuilder(seq.length());
+		for (int idx = seq.length() - 1; idx > -1; idx --) {
+			char na = seq.charAt(idx);
+			switch (na) {
+				case 'A': na = 'T'; break;
+				case 'C': na = 'G'; break;
+				case 'G': na = 'C'; break;
+				case 'T': na = 'A'; break;
+				case 'R': na = 'Y'; break;
+				case 'Y': na = 'R'; break;
+				case 'K': na = 'M'; break;
+				case 'M': na = 'K'; break;
+				case 'B': na = 'V'; break;
+				case 'V': na = 'B'; break;
+				case 'D': na = 'H'; break;
+				case 'H': na = 'D'; break;
+				default: break;
+			}
+			result.append(na);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Locate a k-mer of seq in the reference
+	 *
+	 * @param seq normalized sequence
+	 * @param start 0-based start of the k-mer
+	 * @return 0-based reference position of the k-mer, or -1 if it is not
+	 *         a unique reference k-mer
+	 */
+	protected int locateKmer(String seq, int start) {
+		if (start + KMER_SIZE > seq.length()) {
+			return -1;
+		}
+		int code = 0;
+		for (int pos = start; pos < start + KMER_SIZE; pos ++) {
+			int na = encode(seq.charAt(pos));
+			if (na < 0) {
+				return -1;
+			}
+			code = (code << 2) | na;
+		}
+		return lookupKmer(code);
+	}
+
+	/**
+	 * Look up an encoded k-mer (see {@link #encode}) in the reference
+	 *
+	 * @param code 2-bit codes of KMER_SIZE nucleotides, first nucleotide highest
+	 * @return 0-based reference position of the k-mer, or -1 if it is not
+	 *         a unique reference k-mer
+	 */
+	protected int lookupKmer(int code) {
+		Integer refPos = kmerIndex.get(code);
+		return refPos == null ? -1 : refPos;
+	}
+
+	/**
+	 * @return true if seq[start, start + KMER_SIZE) only has A, C, G or T
+	 */
+	protected static boolean isUnambiguousKmer(String seq, int start) {
+		if (start + KMER_SIZE > seq.length()) {
+			return false;
+		}
+		for (int pos = start; pos < start + KMER_SIZE; pos ++) {
+			if (encode(seq.charAt(pos)) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Get genes which have at least minNumOfAA codons in ref[refStart, refEnd]
+	 *
+	 * @param refStart 1-based
+	 * @param refEnd 1-based, inclusive
+	 * @return abstract gene names
+	 */
+	protected List<String> getCoveredGenes(int refStart, int refEnd) {
+		List<String> coveredGenes = new ArrayList<>();
+		for (GeneConfig gene : genes) {
+			int numNAs = 0;
+			for (int[] range : gene.refRanges) {
+				numNAs += Math.max(0, Math.min(refEnd, range[1]) - Math.max(refStart, range[0]) + 1);
+			}
+			if (numNAs / 3 >= Math.max(1, gene.minNumOfAA)) {
+				coveredGenes.add(gene.abstractGene);
+			}
+		}
+		return coveredGenes;
+	}
+
+	/**
+	 * Get the reference span of the refRanges of the given genes
+	 *
+	 * @param geneNames abstract gene names
+	 * @return {refStart, refEnd} (1-based, inclusive), or null if none of
+	 *         the genes is configured
+	 */
+	protected int[] getGeneSpan(Collection<String> geneNames) {
+		int refStart = Integer.MAX_VALUE;
+		int refEnd = 0;
+		for (GeneConfig gene : genes) {
+			if (!geneNames.contains(gene.abstractGene)) {
+				continue;
+			}
+			for (int[] range : gene.refRanges) {
+				refStart = Math.min(refStart, range[0]);
+				refEnd = Math.max(refEnd, range[1]);
+			}
+		}
+		return refEnd == 0 ? null : new int[] {refStart, refEnd};
+	}
+
+}
@@ -0,0 +1,295 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.utilities.MyStringUtils;
+import edu.stanford.hivdb.utilities.ValidationResult;
+
+/**
+ * Cheap pre-alignment triage
+ *
+ * Every SAMPLE_STEP-th 15-mer of the query (and of its reverse complement)
+ * is looked up in {@link SARS2ReferenceIndex}. The hits tell the
+ * orientation of the query and the reference region it roughly covers (N
+ * runs are not counted as covered). A sequence is rejected with the same
+ * NoGeneFound message that {@link SARS2DefaultSequenceValidator} would
+ * report after alignment only when the k-mers are evidence against it:
+ *
+ * - at least MIN_SAMPLED_KMERS sampled k-mers have no ambiguous
+ *   nucleotide, and fewer than MIN_KMER_HITS of them hit the reference on
+ *   either strand (not SARS-CoV-2), or
+ * - the covered region does not include any of includeGenes.
+ *
+ * Empty, short or mostly N sequences do not have enough k-mers to tell;
+ * they are passed on to the aligner, so that the validator reports them as
+ * it does without triage. Thresholds are deliberately loose; borderline
+ * sequences are passed on to the aligner too.
+ *
+ * The same k-mer hits are used by {@link #scopeToGenes} to cut a sequence
+ * down to the region of the requested genes before it is aligned.
+ */
+public class SARS2SequenceTriage {
+
+	private static final int SAMPLE_STEP = 8;
+	private static final int MIN_KMER_HITS = 3;
+	private static final int MIN_SAMPLED_KMERS = 10;
+	private static final int FLANK_SIZE = 200;
+	private static final String VALID_NAS = "ACGTURYMWSKBDHVN-";
+
+	public static class Result {
+		private final Sequence sequence;
+		private final boolean isReverseComplement;
+		private final double nFraction;
+		private final int numInvalidChars;
+		private final List<String> coveredGenes;
+		private final boolean isRejected;
+		private final List<ValidationResult> validationResults;
+
+		private Result(
+			Sequence sequence,
+			boolean isReverseComplement,
+			double nFraction,
+			int numInvalidChars,
+			List<String> coveredGenes,
+			boolean isRejected,
+			List<ValidationResult> validationResults
+		) {
+			this.sequence = sequence;
+			this.isRejected = isRejected;
+			this.isReverseComplement = isReverseComplement;
+			this.nFraction = nFraction;
+			this.numInvalidChars = numInvalidChars;
+			this.coveredGenes = Collections.unmodifiableList(coveredGenes);
+			this.validationResults = Collections.unmodifiableList(validationResults);
+		}
+
+		/**
+		 * Get the sequence to be aligned
+		 *
+		 * @return the input sequence, reverse complemented if needed
+		 */
+		public Sequence getSequence() { return sequence; }
+
+		public boolean isReverseComplement() { return isReverseComplement; }
+
+		public double getNFraction() { return nFraction; }
+
+		public int getNumInvalidChars() { return numInvalidChars; }
+
+		/**
+		 * Get genes roughly covered by the sequence (estimated from k-mer hits)
+		 *
+		 * @return abstract gene names; empty if the sequence is rejected or
+		 *         has too few k-mers to tell
+		 */
+		public List<String> getCoveredGenes() { return coveredGenes; }
+
+		/**
+		 * @return true if the k-mers show that no requested gene is covered
+		 */
+		public boolean isRejected() { return isRejected; }
+
+		/**
+		 * Get triage validation results
+		 *
+		 * NoGeneFound if the sequence is rejected; FASTAReverseComplement if
+		 * the sequence was reverse complemented (the aligner will not report
+		 * it since it receives the corrected sequence).
+		 *
+		 * @return a list of ValidationResult
+		 */
+		public List<ValidationResult> getValidationResults() { return validationResults; }
+	}
+
+	private final SARS2ReferenceIndex refIndex;
+
+	public SARS2SequenceTriage() {
+		this(SARS2ReferenceIndex.getInstance());
+	}
+
+	protected SARS2SequenceTriage(SARS2ReferenceIndex refIndex) {
+		this.refIndex = refIndex;
+	}
+
+	public Result triage(Sequence sequence, Collection<String> includeGenes) {
+		String rawSeq = sequence.getSequence();
+		int numNs = 0;
+		int numInvalidChars = 0;
+		int numNAs = 0;
+		for (int idx = 0; idx < rawSeq.length(); idx ++) {
+			char na = Character.toUpperCase(rawSeq.charAt(idx));
+			if (Character.isWhitespace(na)) {
+				continue;
+			}
+			if (VALID_NAS.indexOf(na) == -1) {
+				numInvalidChars ++;
+				continue;
+			}
+			numNAs ++;
+			if (na == 'N') {
+				numNs ++;
+			}
+		}
+		double nFraction = numNAs == 0 ? 1. : (double) numNs / numNAs;
+
+		String fwdSeq = SARS2ReferenceIndex.normalize(rawSeq);
+		int[] span = sampleKmerHits(fwdSeq);
+		boolean isReverseComplement = false;
+		if (span[2] < MIN_KMER_HITS) {
+			int[] revSpan = sampleKmerHits(SARS2ReferenceIndex.reverseComplement(fwdSeq));
+			if (revSpan[2] > span[2]) {
+				span = revSpan;
+				isReverseComplement = true;
+			}
+		}
+
+		List<String> coveredGenes = new ArrayList<>();
+		boolean isRejected;
+		if (span[2] >= MIN_KMER_HITS) {
+			for (String gene : refIndex.getCoveredGenes(span[0], span[1])) {
+				if (includeGenes.contains(gene)) {
+					coveredGenes.add(gene);
+				}
+			}
+			isRejected = coveredGenes.isEmpty();
+		}
+		else {
+			// too few hits to tell the orientation; the aligner will
+			isReverseComplement = false;
+			isRejected = span[3] >= MIN_SAMPLED_KMERS;
+		}
+
+		List<ValidationResult> validationResults = new ArrayList<>();
+		if (isRejected) {
+			SARS2 sars2 = SARS2.getInstance();
+			validationResults.add(SARS2ValidationMessage.NoGeneFound.format(
+				MyStringUtils.andListFormat(
+					includeGenes.stream()
+					.map(geneName -> sars2.getGeneDisplay(geneName))
+					.collect(Collectors.toList())
+				)
+			));
+		}
+		else if (isReverseComplement) {
+			validationResults.add(SARS2ValidationMessage.FASTAReverseComplement.format());
+			// keep invalid characters so that the aligner still reports them
+			sequence = new Sequence(
+				sequence.getHeader(),
+				SARS2ReferenceIndex.reverseComplement(toUpperDNA(rawSeq))
+			);
+		}
+		return new Result(
+			sequence, isReverseComplement, nFraction,
+			numInvalidChars, coveredGenes, isRejected, validationResults);
+	}
+
+	/**
+	 * Uppercase and U to T; unlike {@link SARS2ReferenceIndex#normalize},
+	 * every character is kept in place
+	 */
+	private static String toUpperDNA(String naSeq) {
+		return naSeq.toUpperCase().replace('U', 'T');
+	}
+
+	/**
+	 * @return {first hit refStart, last hit refEnd, number of hits, number
+	 *         of unambiguous k-mers} (1-based)
+	 */
+	private int[] sampleKmerHits(String seq) {
+		int refStart = Integer.MAX_VALUE;
+		int refEnd = 0;
+		int numHits = 0;
+		int numSampled = 0;
+		for (int pos = 0; pos < seq.length(); pos += SAMPLE_STEP) {
+			if (SARS2ReferenceIndex.isUnambiguousKmer(seq, pos)) {
+				numSampled ++;
+			}
+			int refPos = refIndex.locateKmer(seq, pos);
+			if (refPos < 0) {
+				continue;
+			}
+			numHits ++;
+			refStart = Math.min(refStart, refPos + 1);
+			refEnd = Math.max(refEnd, refPos + SARS2ReferenceIndex.KMER_SIZE);
+		}
+		// unsampled bases next to the first and the last hits
+		return new int[] {refStart - SAMPLE_STEP + 1, refEnd + SAMPLE_STEP - 1, numHits, numSampled};
+	}
+
+	/**
+	 * Cut a sequence down to the reference region of the given genes
+	 *
+	 * The region spans the refRanges of genes extended by FLANK_SIZE
+	 * nucleotides on both sides, so that the aligner can still anchor the
+	 * gene ends. Query positions of the region ends are extrapolated from
+	 * the closest k-mer hits outside of the region; the flanks absorb indels
+	 * between a hit and an end. Codons outside of the region are then
+	 * never aligned, translated or validated.
+	 *
+	 * @param sequence sequence in the reference orientation (see
+	 *                 {@link Result#getSequence})
+	 * @param genes abstract gene names
+	 * @return the scoped sequence, or the sequence itself if it has no k-mer
+	 *         hit outside of the region
+	 */
+	public Sequence scopeToGenes(Sequence sequence, Collection<String> genes) {
+		int[] geneSpan = refIndex.getGeneSpan(genes);
+		if (geneSpan == null) {
+			return sequence;
+		}
+		// 0-based, end exclusive
+		int regionStart = geneSpan[0] - 1 - FLANK_SIZE;
+		int regionEnd = geneSpan[1] + FLANK_SIZE;
+		String rawSeq = sequence.getSequence();
+		// k-mer offsets are query offsets
+		String seq = toUpperDNA(rawSeq);
+		int seqStart = 0;
+		int seqEnd = seq.length();
+		int startAnchor = -1;
+		int endAnchor = Integer.MAX_VALUE;
+		for (int pos = 0; pos < seq.length(); pos += SAMPLE_STEP) {
+			int refPos = refIndex.locateKmer(seq, pos);
+			if (refPos < 0) {
+				continue;
+			}
+			if (refPos <= regionStart && refPos > startAnchor) {
+				startAnchor = refPos;
+				seqStart = pos + regionStart - refPos;
+			}
+			if (refPos + SARS2ReferenceIndex.KMER_SIZE >= regionEnd && refPos < endAnchor) {
+				endAnchor = refPos;
+				seqEnd = pos + regionEnd - refPos;
+			}
+		}
+		seqStart = Math.min(seqStart, seq.length());
+		seqEnd = Math.min(seqEnd, seq.length());
+		if (seqStart >= seqEnd || (seqStart == 0 && seqEnd == seq.length())) {
+			return sequence;
+		}
+		return new Sequence(sequence.getHeader(), rawSeq.substring(seqStart, seqEnd));
+	}
+
+}
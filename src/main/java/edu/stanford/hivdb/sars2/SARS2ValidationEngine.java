@@ -0,0 +1,307 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.seqreads.OneCodonReadsCoverage;
+import edu.stanford.hivdb.utilities.ValidationResult;
+import edu.stanford.hivdb.viruses.Gene;
+
+/**
+ * Single-pass validation engine
+ *
+ * Mutations and codon reads coverage are grouped by gene once and then
+ * walked once per gene. Each rule registers interest in a gene by returning
+ * a non-null accumulator from {@link Rule#newGeneAccumulator}, receives the
+ * events of that gene, and finally turns its accumulators into validation
+ * results. Results are concatenated in rule order, therefore the output is
+ * identical to running the rules one by one.
+ *
+ * Genes are walked in parallel when an input has at least
+ * VALIDATION_PARALLEL_THRESHOLD events (mutations plus codon reads).
+ *
+ * @param <T> validation subject (AlignedSequence, SequenceReads, MutationSet)
+ */
+class SARS2ValidationEngine<T> {
+
+	private static final int PARALLEL_THRESHOLD = Integer.parseInt(
+		System.getenv().getOrDefault("VALIDATION_PARALLEL_THRESHOLD", "5000")
+	);
+
+	public static class Context<T> {
+		private final T subject;
+		private final Collection<String> includeGenes;
+		private final List<Gene<SARS2>> genes;
+		private final Map<Gene<SARS2>, List<Mutation<SARS2>>> mutationsByGene;
+		private final List<OneCodonReadsCoverage<SARS2>> codonReadsCoverage;
+		private final Map<Gene<SARS2>, List<OneCodonReadsCoverage<SARS2>>> codonReadsByGene;
+		private final int numEvents;
+
+		private Context(
+			T subject,
+			Collection<String> includeGenes,
+			Collection<Mutation<SARS2>> mutations,
+			List<OneCodonReadsCoverage<SARS2>> codonReadsCoverage
+		) {
+			this.subject = subject;
+			this.includeGenes = includeGenes;
+			this.codonReadsCoverage = codonReadsCoverage;
+			mutationsByGene = new HashMap<>();
+			codonReadsByGene = new HashMap<>();
+			int numEvents = 0;
+			for (Mutation<SARS2> mut : mutations) {
+				if (includeGenes.contains(mut.getAbstractGene())) {
+					mutationsByGene
+						.computeIfAbsent(mut.getGene(), k -> new ArrayList<>())
+						.add(mut);
+					numEvents ++;
+				}
+			}
+			for (OneCodonReadsCoverage<SARS2> crc : codonReadsCoverage) {
+				if (includeGenes.contains(crc.getAbstractGene())) {
+					codonReadsByGene
+						.computeIfAbsent(crc.getGene(), k -> new ArrayList<>())
+						.add(crc);
+					numEvents ++;
+				}
+			}
+			this.numEvents = numEvents;
+			genes = new ArrayList<>();
+			for (Gene<SARS2> gene : SARS2.getInstance().getMainStrain().getGenes()) {
+				if (includeGenes.contains(gene.getAbstractGene())) {
+					genes.add(gene);
+				}
+			}
+		}
+
+		public T getSubject() { return subject; }
+
+		public Collection<String> getIncludeGenes() { return includeGenes; }
+
+		/**
+		 * Get included genes in the order of the reference genome
+		 *
+		 * @return a list of genes
+		 */
+		public List<Gene<SARS2>> getGenes() { return genes; }
+
+		public List<Mutation<SARS2>> getMutations(Gene<SARS2> gene) {
+			return mutationsByGene.getOrDefault(gene, Collections.emptyList());
+		}
+
+		/**
+		 * Get codon reads coverage of included genes, as returned by
+		 * {@link edu.stanford.hivdb.seqreads.SequenceReads#getCodonReadsCoverage}
+		 *
+		 * @return a list of codon reads coverage; empty for non-NGS inputs
+		 */
+		public List<OneCodonReadsCoverage<SARS2>> getCodonReadsCoverage() {
+			return codonReadsCoverage;
+		}
+
+		public List<OneCodonReadsCoverage<SARS2>> getCodonReadsCoverage(Gene<SARS2> gene) {
+			return codonReadsByGene.getOrDefault(gene, Collections.emptyList());
+		}
+	}
+
+	/**
+	 * A validation rule
+	 *
+	 * Methods receiving accumulators may be called concurrently for
+	 * different genes; an accumulator is only touched by one thread.
+	 *
+	 * @param <T> validation subject
+	 * @param <A> per-gene accumulator
+	 */
+	public abstract static class Rule<T, A> {
+
+		/**
+		 * Create the accumulator of a gene
+		 *
+		 * @param context
+		 * @param gene
+		 * @return an accumulator; or null if the rule is not interested in this gene
+		 */
+		protected A newGeneAccumulator(Context<T> context, Gene<SARS2> gene) {
+			return null;
+		}
+
+		protected void onMutation(A accumulator, Mutation<SARS2> mutation) {}
+
+		protected void onCodonReads(A accumulator, OneCodonReadsCoverage<SARS2> codonReads) {}
+
+		/**
+		 * Produce validation results
+		 *
+		 * @param context
+		 * @param accumulators non-null accumulators in gene order
+		 * @return a list of validation results
+		 */
+		protected abstract List<ValidationResult> finish(Context<T> context, Map<Gene<SARS2>, A> accumulators);
+
+		/**
+		 * Wrap a validation that looks at the whole subject instead of genes
+		 *
+		 * @param <T>
+		 * @param validation
+		 * @return a rule
+		 */
+		public static <T> Rule<T, Void> ofSubject(Function<Context<T>, List<ValidationResult>> validation) {
+			return new Rule<>() {
+				@Override
+				protected List<ValidationResult> finish(Context<T> context, Map<Gene<SARS2>, Void> accumulators) {
+					return validation.apply(context);
+				}
+			};
+		}
+	}
+
+	private final List<Rule<T, ?>> rules;
+	private final int parallelThreshold;
+
+	@SafeVarargs
+	public SARS2ValidationEngine(Rule<T, ?>... rules) {
+		this(PARALLEL_THRESHOLD, List.of(rules));
+	}
+
+	private SARS2ValidationEngine(int parallelThreshold, List<Rule<T, ?>> rules) {
+		this.rules = rules;
+		this.parallelThreshold = parallelThreshold;
+	}
+
+	/**
+	 * Get VALIDATION_PARALLEL_THRESHOLD
+	 *
+	 * @return number of events from which genes are walked in parallel
+	 */
+	public static int getParallelThreshold() {
+		return PARALLEL_THRESHOLD;
+	}
+
+	/**
+	 * Make an engine with the same rules and another parallel threshold
+	 *
+	 * @param parallelThreshold number of events from which genes are walked
+	 *                          in parallel; 0 always walks them in parallel
+	 * @return a new engine
+	 */
+	public SARS2ValidationEngine<T> withParallelThreshold(int parallelThreshold) {
+		return new SARS2ValidationEngine<>(parallelThreshold, rules);
+	}
+
+	public List<ValidationResult> validate(
+		T subject,
+		Collection<String> includeGenes,
+		Collection<Mutation<SARS2>> mutations
+	) {
+		return validate(subject, includeGenes, mutations, Collections.emptyList());
+	}
+
+	public List<ValidationResult> validate(
+		T subject,
+		Collection<String> includeGenes,
+		Collection<Mutation<SARS2>> mutations,
+		List<OneCodonReadsCoverage<SARS2>> codonReadsCoverage
+	) {
+		Context<T> context = new Context<>(subject, includeGenes, mutations, codonReadsCoverage);
+		List<Gene<SARS2>> genes = context.getGenes();
+		Object[][] accumulators = new Object[genes.size()][];
+		IntStream geneIndices = IntStream.range(0, genes.size());
+		if (context.numEvents >= parallelThreshold) {
+			geneIndices = geneIndices.parallel();
+		}
+		geneIndices.forEach(idx -> accumulators[idx] = walkGene(context, genes.get(idx)));
+
+		List<ValidationResult> results = new ArrayList<>();
+		for (int ruleIdx = 0; ruleIdx < rules.size(); ruleIdx ++) {
+			results.addAll(finishRule(rules.get(ruleIdx), context, accumulators, ruleIdx));
+		}
+		return results;
+	}
+
+	private Object[] walkGene(Context<T> context, Gene<SARS2> gene) {
+		Object[] geneAccumulators = new Object[rules.size()];
+		boolean interested = false;
+		for (int ruleIdx = 0; ruleIdx < rules.size(); ruleIdx ++) {
+			geneAccumulators[ruleIdx] = rules.get(ruleIdx).newGeneAccumulator(context, gene);
+			interested = interested || geneAccumulators[ruleIdx] != null;
+		}
+		if (!interested) {
+			return geneAccumulators;
+		}
+		for (Mutation<SARS2> mut : context.getMutations(gene)) {
+			for (int ruleIdx = 0; ruleIdx < rules.size(); ruleIdx ++) {
+				if (geneAccumulators[ruleIdx] != null) {
+					dispatchMutation(rules.get(ruleIdx), geneAccumulators[ruleIdx], mut);
+				}
+			}
+		}
+		for (OneCodonReadsCoverage<SARS2> crc : context.getCodonReadsCoverage(gene)) {
+			for (int ruleIdx = 0; ruleIdx < rules.size(); ruleIdx ++) {
+				if (geneAccumulators[ruleIdx] != null) {
+					dispatchCodonReads(rules.get(ruleIdx), geneAccumulators[ruleIdx], crc);
+				}
+			}
+		}
+		return geneAccumulators;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T, A> void dispatchMutation(Rule<T, A> rule, Object accumulator, Mutation<SARS2> mut) {
+		rule.onMutation((A) accumulator, mut);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T, A> void dispatchCodonReads(
+		Rule<T, A> rule,
+		Object accumulator,
+		OneCodonReadsCoverage<SARS2> crc
+	) {
+		rule.onCodonReads((A) accumulator, crc);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T, A> List<ValidationResult> finishRule(
+		Rule<T, A> rule,
+		Context<T> context,
+		Object[][] accumulators,
+		int ruleIdx
+	) {
+		Map<Gene<SARS2>, A> ruleAccumulators = new LinkedHashMap<>();
+		List<Gene<SARS2>> genes = context.getGenes();
+		for (int geneIdx = 0; geneIdx < genes.size(); geneIdx ++) {
+			Object accumulator = accumulators[geneIdx][ruleIdx];
+			if (accumulator != null) {
+				ruleAccumulators.put(genes.get(geneIdx), (A) accumulator);
+			}
+		}
+		return rule.finish(context, ruleAccumulators);
+	}
+
+}
@@ -1,8 +1,8 @@
 package edu.stanford.hivdb.sars2.drdb;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import edu.stanford.hivdb.mutations.Mutation;
@@ -11,15 +11,12 @@ import edu.stanford.hivdb.sars2.SARS2;
 
 public class ConvPlasmaSuscResult extends SuscResult {
 
-	private static final Map<String, Map<Mutation<SARS2>, List<SuscResult>>> searchTrees = new HashMap<>();
+	private static final Map<String, Map<Mutation<SARS2>, List<SuscResult>>> searchTrees = new ConcurrentHashMap<>();
 
 	private final String infectedVarName;
 	private final String cumulativeGroup;
 
-	private static void prepareSearchTree(String drdbVersion) {
-		if (searchTrees.containsKey(drdbVersion)) {
-			return;
-		}
+	private static Map<Mutation<SARS2>, List<SuscResult>> buildSearchTree(String drdbVersion) {
 		DRDB drdb = DRDB.getInstance(drdbVersion);
 		List<SuscResult> allSuscResults = (
 			drdb
@@ -28,13 +25,22 @@ public class ConvPlasmaSuscResult extends SuscResult {
 			.map(d -> new ConvPlasmaSuscResult(drdbVersion, d))
 			.collect(Collectors.toList())
 		);
-		searchTrees.put(drdbVersion, SuscResult.buildSuscResultSearchTree(allSuscResults));
+		return SuscResult.buildSuscResultSearchTree(allSuscResults);
 	}
 	
 	public static List<BoundSuscResult> query(String drdbVersion, MutationSet<SARS2> queryMuts) {
-		prepareSearchTree(drdbVersion);
+		Map<Mutation<SARS2>, List<SuscResult>> searchTree = searchTrees.computeIfAbsent(drdbVersion, v -> buildSearchTree(v));
 		final MutationSet<SARS2> finalQueryMuts = prepareQueryMutations(queryMuts);
-		return SuscResult.query(drdbVersion, searchTrees.get(drdbVersion), finalQueryMuts);
+		return SuscResult.query(drdbVersion, searchTree, finalQueryMuts);
+	}
+
+	public static List<List<BoundSuscResult>> queryAll(String drdbVersion, List<MutationSet<SARS2>> queryMutsList) {
+		Map<Mutation<SARS2>, List<SuscResult>> searchTree = searchTrees.computeIfAbsent(drdbVersion, v -> buildSearchTree(v));
+		return (
+			queryMutsList.stream()
+			.map(queryMuts -> SuscResult.query(drdbVersion, searchTree, prepareQueryMutations(queryMuts)))
+			.collect(Collectors.toList())
+		);
 	}
 	
 	private ConvPlasmaSuscResult(
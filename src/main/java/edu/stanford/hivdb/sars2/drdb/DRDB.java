@@ -3,8 +3,8 @@ package edu.stanford.hivdb.sars2.drdb;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
@@ -18,6 +18,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -30,6 +32,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import edu.stanford.hivdb.mutations.AAMutation;
 import edu.stanford.hivdb.mutations.Mutation;
 import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.SARS2CMS;
 
 public class DRDB {
 	
@@ -39,10 +42,18 @@ public class DRDB {
 	private static final String COVID_DRDB_RESURL_PREFIX;
 	
 	static {
-		COVID_DRDB_RESURL_PREFIX = "https://s3-us-west-2.amazonaws.com/cms.hivdb.org/covid-drdb";
+		// can be a file: URL to load local DRDB files, e.g. for benchmarks
+		Map<String, String> envs = System.getenv();
+		COVID_DRDB_RESURL_PREFIX = envs.getOrDefault(
+			"COVID_DRDB_RESURL_PREFIX",
+			SARS2CMS.BASE_URL + "/covid-drdb"
+		);
 	}
 
-	private static final Map<String, DRDB> singletons = Collections.synchronizedMap(new LRUMap<String, DRDB>(MAX_ENTRIES));
+	// a version is downloaded once by the first caller; the map is locked
+	// only to register or look up the future, never during the download
+	private static final Map<String, CompletableFuture<DRDB>> singletons = (
+		Collections.synchronizedMap(new LRUMap<String, CompletableFuture<DRDB>>(MAX_ENTRIES)));
 	
 	public static <T> Map<String, Map<String, T>> initVersionalSingletons() {
 		return Collections.synchronizedMap(new LRUMap<String, Map<String, T>>(MAX_ENTRIES));
@@ -53,19 +64,48 @@ public class DRDB {
 		Map<String, Map<String, T>> singletons,
 		Function<DRDB, Map<String, T>> getInstances
 	) {
+		// built outside of the map lock; concurrent first callers may both
+		// build the instances, but only one is kept
 		if (!singletons.containsKey(version)) {
-			DRDB drdb = DRDB.getInstance(version);
-			singletons.put(version, Collections.unmodifiableMap(getInstances.apply(drdb)));
+			singletons.putIfAbsent(
+				version, Collections.unmodifiableMap(getInstances.apply(DRDB.getInstance(version))));
 		}
 	}
 	
+	public static int getNumInstances() {
+		synchronized (singletons) {
+			return (int) (
+				singletons.values().stream()
+				.filter(future -> future.isDone() && !future.isCompletedExceptionally())
+				.count()
+			);
+		}
+	}
+
 	public static DRDB getInstance(String version) {
 		String resourcePath = String.format("%s/covid-drdb-%s.db", COVID_DRDB_RESURL_PREFIX, version);
-		if (!singletons.containsKey(resourcePath)) {
-			DRDB instance = new DRDB(resourcePath);
-			singletons.put(resourcePath, instance);
+		CompletableFuture<DRDB> future = new CompletableFuture<>();
+		CompletableFuture<DRDB> existing = singletons.putIfAbsent(resourcePath, future);
+		if (existing != null) {
+			try {
+				return existing.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+		}
+		try {
+			DRDB drdb = new DRDB(resourcePath);
+			future.complete(drdb);
+			return drdb;
+		} catch (RuntimeException e) {
+			// not cached, the next caller retries
+			singletons.remove(resourcePath, future);
+			future.completeExceptionally(e);
+			throw e;
 		}
-		return singletons.get(resourcePath);
 	}
 	
 	private final Connection conn;
@@ -84,7 +124,7 @@ public class DRDB {
     File targetFile = new File("/tmp/drdb-payload/" + FilenameUtils.getName(resourcePath));
 		try {
 			URL url = new URL(resourcePath);
-			HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+			URLConnection conn = url.openConnection();
 			conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
 			InputStream dbStream;
       if ("gzip".equals(conn.getContentEncoding())) {
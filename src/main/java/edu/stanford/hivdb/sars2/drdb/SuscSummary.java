@@ -29,9 +29,29 @@ public class SuscSummary {
 	private transient List<VaccineSuscSummary> itemsByVaccine;
 	
 	public static SuscSummary queryAntibodySuscSummary(String drdbVersion, MutationSet<SARS2> queryMuts) {
-		String lastUpdate = DRDB.getInstance(drdbVersion).queryLastUpdate();
+		return queryAntibodySuscSummary(drdbVersion, DRDB.getInstance(drdbVersion).queryLastUpdate(), queryMuts);
+	}
+
+	public static SuscSummary queryAntibodySuscSummary(String drdbVersion, String lastUpdate, MutationSet<SARS2> queryMuts) {
+		return newAntibodySuscSummary(AntibodySuscResult.query(drdbVersion, queryMuts), queryMuts, lastUpdate, drdbVersion);
+	}
+
+	public static List<SuscSummary> queryAntibodySuscSummaries(
+		String drdbVersion, String lastUpdate, List<MutationSet<SARS2>> queryMutsList
+	) {
+		List<List<BoundSuscResult>> allResults = AntibodySuscResult.queryAll(drdbVersion, queryMutsList);
+		List<SuscSummary> summaries = new ArrayList<>();
+		for (int idx = 0; idx < queryMutsList.size(); idx ++) {
+			summaries.add(newAntibodySuscSummary(allResults.get(idx), queryMutsList.get(idx), lastUpdate, drdbVersion));
+		}
+		return summaries;
+	}
+
+	private static SuscSummary newAntibodySuscSummary(
+		List<BoundSuscResult> allResults, MutationSet<SARS2> queryMuts, String lastUpdate, String drdbVersion
+	) {
 		List<BoundSuscResult> results = (
-			AntibodySuscResult.query(drdbVersion, queryMuts)
+			allResults
 			.stream()
 			.filter(r -> (
 				r.getAntibodies().stream().allMatch(
@@ -48,7 +68,10 @@ public class SuscSummary {
 	}
 	
 	public static SuscSummary queryConvPlasmaSuscSummary(String drdbVersion, MutationSet<SARS2> queryMuts) {
-		String lastUpdate = DRDB.getInstance(drdbVersion).queryLastUpdate();
+		return queryConvPlasmaSuscSummary(drdbVersion, DRDB.getInstance(drdbVersion).queryLastUpdate(), queryMuts);
+	}
+
+	public static SuscSummary queryConvPlasmaSuscSummary(String drdbVersion, String lastUpdate, MutationSet<SARS2> queryMuts) {
 		List<BoundSuscResult> results = (
 			ConvPlasmaSuscResult.query(drdbVersion, queryMuts)
 			.stream()
@@ -57,8 +80,22 @@ public class SuscSummary {
 		return new SuscSummary(results, queryMuts, lastUpdate, drdbVersion);
 	}
 
+	public static List<SuscSummary> queryConvPlasmaSuscSummaries(
+		String drdbVersion, String lastUpdate, List<MutationSet<SARS2>> queryMutsList
+	) {
+		List<List<BoundSuscResult>> allResults = ConvPlasmaSuscResult.queryAll(drdbVersion, queryMutsList);
+		List<SuscSummary> summaries = new ArrayList<>();
+		for (int idx = 0; idx < queryMutsList.size(); idx ++) {
+			summaries.add(new SuscSummary(allResults.get(idx), queryMutsList.get(idx), lastUpdate, drdbVersion));
+		}
+		return summaries;
+	}
+
 	public static SuscSummary queryVaccPlasmaSuscSummary(String drdbVersion, MutationSet<SARS2> queryMuts) {
-		String lastUpdate = DRDB.getInstance(drdbVersion).queryLastUpdate();
+		return queryVaccPlasmaSuscSummary(drdbVersion, DRDB.getInstance(drdbVersion).queryLastUpdate(), queryMuts);
+	}
+
+	public static SuscSummary queryVaccPlasmaSuscSummary(String drdbVersion, String lastUpdate, MutationSet<SARS2> queryMuts) {
 		List<BoundSuscResult> results = (
 			VaccPlasmaSuscResult.query(drdbVersion, queryMuts)
 			.stream()
@@ -66,6 +103,17 @@ public class SuscSummary {
 		);
 		return new SuscSummary(results, queryMuts, lastUpdate, drdbVersion);
 	}
+
+	public static List<SuscSummary> queryVaccPlasmaSuscSummaries(
+		String drdbVersion, String lastUpdate, List<MutationSet<SARS2>> queryMutsList
+	) {
+		List<List<BoundSuscResult>> allResults = VaccPlasmaSuscResult.queryAll(drdbVersion, queryMutsList);
+		List<SuscSummary> summaries = new ArrayList<>();
+		for (int idx = 0; idx < queryMutsList.size(); idx ++) {
+			summaries.add(new SuscSummary(allResults.get(idx), queryMutsList.get(idx), lastUpdate, drdbVersion));
+		}
+		return summaries;
+	}
 	
 	protected SuscSummary(List<BoundSuscResult> items, MutationSet<SARS2> queryMuts, String lastUpdate, String drdbVersion) {
 		this.items = Collections.unmodifiableList(
@@ -1,8 +1,8 @@
 package edu.stanford.hivdb.sars2.drdb;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import edu.stanford.hivdb.mutations.Mutation;
@@ -11,17 +11,14 @@ import edu.stanford.hivdb.sars2.SARS2;
 
 public class VaccPlasmaSuscResult extends SuscResult {
 
-	private static final Map<String, Map<Mutation<SARS2>, List<SuscResult>>> searchTrees = new HashMap<>();
+	private static final Map<String, Map<Mutation<SARS2>, List<SuscResult>>> searchTrees = new ConcurrentHashMap<>();
 
 	private final String vaccineName;
 	private final Integer vaccinePriority;
 	private final String vaccineType;
 	private final String cumulativeGroup;
 	
-	private static void prepareSearchTree(String drdbVersion) {
-		if (searchTrees.containsKey(drdbVersion)) {
-			return;
-		}
+	private static Map<Mutation<SARS2>, List<SuscResult>> buildSearchTree(String drdbVersion) {
 		DRDB drdb = DRDB.getInstance(drdbVersion);
 		List<SuscResult> allSuscResults = (
 			drdb
@@ -30,13 +27,30 @@ public class VaccPlasmaSuscResult extends SuscResult {
 			.map(d -> new VaccPlasmaSuscResult(drdbVersion, d))
 			.collect(Collectors.toList())
 		);
-		searchTrees.put(drdbVersion, SuscResult.buildSuscResultSearchTree(allSuscResults));
+		return SuscResult.buildSuscResultSearchTree(allSuscResults);
 	}
 	
 	public static List<BoundSuscResult> query(String drdbVersion, MutationSet<SARS2> queryMuts) {
-		prepareSearchTree(drdbVersion);
+		Map<Mutation<SARS2>, List<SuscResult>> searchTree = searchTrees.computeIfAbsent(drdbVersion, v -> buildSearchTree(v));
+		return query(drdbVersion, searchTree, queryMuts);
+	}
+
+	public static List<List<BoundSuscResult>> queryAll(String drdbVersion, List<MutationSet<SARS2>> queryMutsList) {
+		Map<Mutation<SARS2>, List<SuscResult>> searchTree = searchTrees.computeIfAbsent(drdbVersion, v -> buildSearchTree(v));
+		return (
+			queryMutsList.stream()
+			.map(queryMuts -> query(drdbVersion, searchTree, queryMuts))
+			.collect(Collectors.toList())
+		);
+	}
+
+	private static List<BoundSuscResult> query(
+		String drdbVersion,
+		Map<Mutation<SARS2>, List<SuscResult>> searchTree,
+		MutationSet<SARS2> queryMuts
+	) {
 		final MutationSet<SARS2> finalQueryMuts = prepareQueryMutations(queryMuts);
-		List<BoundSuscResult> results = SuscResult.query(drdbVersion, searchTrees.get(drdbVersion), finalQueryMuts);
+		List<BoundSuscResult> results = SuscResult.query(drdbVersion, searchTree, finalQueryMuts);
 		results.sort((a, b) -> (
 			((VaccPlasmaSuscResult) a.getSuscResult()).getVaccinePriority() - 
 			((VaccPlasmaSuscResult) b.getSuscResult()).getVaccinePriority()
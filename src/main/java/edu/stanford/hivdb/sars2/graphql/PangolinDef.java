@@ -23,6 +23,8 @@ import static graphql.Scalars.*;
 import static graphql.schema.GraphQLObjectType.newObject;
 
 import edu.stanford.hivdb.sars2.PangolinLambda;
+import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.SARS2CodonReadsTable;
 import edu.stanford.hivdb.seqreads.SequenceReads;
 import edu.stanford.hivdb.sequences.AlignedSequence;
 import edu.stanford.hivdb.sequences.Sequence;
@@ -38,8 +40,12 @@ public class PangolinDef {
 			instance = new PangolinLambda(inputSeq);
 		}
 		else if (seq instanceof SequenceReads) {
-			SequenceReads<?> seqReads = (SequenceReads<?>) seq;
-			String concatSeq = seqReads.getAssembledUnambiguousConsensus();
+			@SuppressWarnings("unchecked")
+			SequenceReads<SARS2> seqReads = (SequenceReads<SARS2>) seq;
+			String concatSeq = (
+				SARS2CodonReadsTable.of(seqReads)
+				.getAssembledUnambiguousConsensus(seqReads.getMinPositionReads())
+			);
 			Sequence inputSeq = new Sequence(seqReads.getName(), concatSeq);
 			instance = new PangolinLambda(inputSeq);
 		}
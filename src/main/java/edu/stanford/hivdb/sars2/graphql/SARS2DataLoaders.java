@@ -0,0 +1,227 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.graphql;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import org.dataloader.BatchLoader;
+import org.dataloader.DataLoader;
+import org.dataloader.DataLoaderRegistry;
+import org.dataloader.Try;
+
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.SARS2MutationComment;
+import edu.stanford.hivdb.sars2.SARS2MutationComment.SARS2BoundMutationComment;
+import edu.stanford.hivdb.sars2.drdb.DRDB;
+import edu.stanford.hivdb.sars2.drdb.SuscSummary;
+
+/**
+ * Per-request batch loaders of susceptibility summaries and comments
+ *
+ * Fetchers of N sequences register N loads of (version, mutations) keys.
+ * DataLoader dedupes identical keys (surveillance batches share most
+ * mutation sets), then each batch groups the distinct mutation sets by
+ * version, on the given executor if any:
+ *
+ * - susceptibility summaries: the DRDB last update is resolved once per
+ *   version, as a task of its own, then the mutation sets are queried by
+ *   batched queries of up to SUSC_SUMMARY_BATCH_SIZE sets each, which
+ *   share one search tree lookup;
+ * - mutation comments: one batched query per version.
+ *
+ * The dispatching thread never queries DRDB itself. An unknown version or
+ * a failed query only fails the keys of its version or its batched query,
+ * not the whole batch.
+ *
+ * A new registry must be created for each request so that cached values
+ * never outlive it.
+ */
+public class SARS2DataLoaders {
+
+	public static final String ANTIBODY_SUSC_SUMMARY = "antibodySuscSummary";
+	public static final String CONV_PLASMA_SUSC_SUMMARY = "convPlasmaSuscSummary";
+	public static final String VACC_PLASMA_SUSC_SUMMARY = "vaccPlasmaSuscSummary";
+	public static final String MUTATION_COMMENTS = "mutationComments";
+	public static final int SUSC_SUMMARY_BATCH_SIZE = 32;
+
+	public static class VersionedMutations<M> {
+		private final String version;
+		private final M mutations;
+
+		public VersionedMutations(String version, M mutations) {
+			this.version = version;
+			this.mutations = mutations;
+		}
+
+		public String getVersion() { return version; }
+
+		public M getMutations() { return mutations; }
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) { return true; }
+			if (!(o instanceof VersionedMutations)) { return false; }
+			VersionedMutations<?> other = (VersionedMutations<?>) o;
+			return Objects.equals(version, other.version) && Objects.equals(mutations, other.mutations);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(version, mutations);
+		}
+	}
+
+	@FunctionalInterface
+	private static interface SuscSummariesQuery {
+		List<SuscSummary> query(String drdbVersion, String lastUpdate, List<MutationSet<SARS2>> queryMutsList);
+	}
+
+	/**
+	 * Runs batch queries asynchronously
+	 *
+	 * Unlike an Executor, a rejected task fails its own future, even when
+	 * the rejection happens after the task was queued.
+	 */
+	public static interface AsyncSupplier {
+		<T> CompletableFuture<T> supplyAsync(Supplier<T> supplier);
+	}
+
+	public static DataLoaderRegistry newDataLoaderRegistry(AsyncSupplier executor) {
+		DataLoaderRegistry registry = new DataLoaderRegistry();
+		registry.register(
+			ANTIBODY_SUSC_SUMMARY,
+			DataLoader.newDataLoaderWithTry(suscSummaryLoader(SuscSummary::queryAntibodySuscSummaries, executor)));
+		registry.register(
+			CONV_PLASMA_SUSC_SUMMARY,
+			DataLoader.newDataLoaderWithTry(suscSummaryLoader(SuscSummary::queryConvPlasmaSuscSummaries, executor)));
+		registry.register(
+			VACC_PLASMA_SUSC_SUMMARY,
+			DataLoader.newDataLoaderWithTry(suscSummaryLoader(SuscSummary::queryVaccPlasmaSuscSummaries, executor)));
+		registry.register(MUTATION_COMMENTS, DataLoader.newDataLoaderWithTry(mutationCommentsLoader(executor)));
+		return registry;
+	}
+
+	private static BatchLoader<VersionedMutations<MutationSet<SARS2>>, Try<SuscSummary>> suscSummaryLoader(
+		SuscSummariesQuery query,
+		AsyncSupplier executor
+	) {
+		return keys -> {
+			Map<String, List<MutationSet<SARS2>>> byVersion = new LinkedHashMap<>();
+			for (VersionedMutations<MutationSet<SARS2>> key : keys) {
+				byVersion.computeIfAbsent(key.getVersion(), v -> new ArrayList<>()).add(key.getMutations());
+			}
+			Map<String, List<CompletableFuture<List<SuscSummary>>>> results = new LinkedHashMap<>();
+			for (Map.Entry<String, List<MutationSet<SARS2>>> entry : byVersion.entrySet()) {
+				String drdbVersion = entry.getKey();
+				List<MutationSet<SARS2>> queryMutsList = entry.getValue();
+				CompletableFuture<String> lastUpdate = supply(
+					() -> DRDB.getInstance(drdbVersion).queryLastUpdate(), executor);
+				List<CompletableFuture<List<SuscSummary>>> batches = new ArrayList<>();
+				for (int from = 0; from < queryMutsList.size(); from += SUSC_SUMMARY_BATCH_SIZE) {
+					List<MutationSet<SARS2>> batch = queryMutsList.subList(
+						from, Math.min(from + SUSC_SUMMARY_BATCH_SIZE, queryMutsList.size()));
+					batches.add(lastUpdate.thenCompose(
+						lu -> supply(() -> query.query(drdbVersion, lu, batch), executor)));
+				}
+				results.put(drdbVersion, batches);
+			}
+			Map<String, Integer> offsets = new LinkedHashMap<>();
+			List<CompletableFuture<Try<SuscSummary>>> futures = new ArrayList<>();
+			for (VersionedMutations<MutationSet<SARS2>> key : keys) {
+				int offset = offsets.merge(key.getVersion(), 1, Integer::sum) - 1;
+				CompletableFuture<List<SuscSummary>> batch = (
+					results.get(key.getVersion()).get(offset / SUSC_SUMMARY_BATCH_SIZE));
+				futures.add(toTry(batch.thenApply(values -> values.get(offset % SUSC_SUMMARY_BATCH_SIZE))));
+			}
+			return allOf(futures);
+		};
+	}
+
+	private static BatchLoader<VersionedMutations<Set<Mutation<SARS2>>>, Try<List<SARS2BoundMutationComment>>> mutationCommentsLoader(
+		AsyncSupplier executor
+	) {
+		return keys -> {
+			// comment matching is cheap; one task per version
+			Map<String, List<Set<Mutation<SARS2>>>> byVersion = new LinkedHashMap<>();
+			for (VersionedMutations<Set<Mutation<SARS2>>> key : keys) {
+				byVersion.computeIfAbsent(key.getVersion(), v -> new ArrayList<>()).add(key.getMutations());
+			}
+			Map<String, CompletableFuture<List<List<SARS2BoundMutationComment>>>> results = new LinkedHashMap<>();
+			for (Map.Entry<String, List<Set<Mutation<SARS2>>>> entry : byVersion.entrySet()) {
+				results.put(
+					entry.getKey(),
+					supply(() -> SARS2MutationComment.queryAll(entry.getKey(), entry.getValue()), executor)
+				);
+			}
+			Map<String, Integer> offsets = new LinkedHashMap<>();
+			List<CompletableFuture<Try<List<SARS2BoundMutationComment>>>> futures = new ArrayList<>();
+			for (VersionedMutations<Set<Mutation<SARS2>>> key : keys) {
+				int offset = offsets.merge(key.getVersion(), 1, Integer::sum) - 1;
+				futures.add(toTry(results.get(key.getVersion()).thenApply(values -> values.get(offset))));
+			}
+			return allOf(futures);
+		};
+	}
+
+	private static <T> CompletableFuture<T> supply(Supplier<T> supplier, AsyncSupplier executor) {
+		if (executor == null) {
+			try {
+				return CompletableFuture.completedFuture(supplier.get());
+			} catch (RuntimeException e) {
+				return CompletableFuture.failedFuture(e);
+			}
+		}
+		return executor.supplyAsync(supplier);
+	}
+
+	private static <T> CompletableFuture<Try<T>> toTry(CompletableFuture<T> future) {
+		return future.handle((value, e) -> {
+			if (e == null) {
+				return Try.succeeded(value);
+			}
+			return Try.failed(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+		});
+	}
+
+	/**
+	 * @param futures futures which never complete exceptionally
+	 */
+	private static <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> futures) {
+		return CompletableFuture
+			.allOf(futures.toArray(new CompletableFuture<?>[0]))
+			.thenApply(done -> {
+				List<T> values = new ArrayList<>();
+				for (CompletableFuture<T> future : futures) {
+					values.add(future.join());
+				}
+				return values;
+			});
+	}
+
+}
@@ -3,8 +3,11 @@ package edu.stanford.hivdb.sars2.graphql;
 import static graphql.Scalars.*;
 
 import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.SARS2AlignmentWorkerPool;
 import edu.stanford.hivdb.sars2.drdb.Antibody;
 import edu.stanford.hivdb.sars2.drdb.DRDB;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Sequence;
 import edu.stanford.hivdb.viruses.VirusGraphQLExtension;
 import graphql.schema.DataFetcher;
 import graphql.schema.GraphQLCodeRegistry;
@@ -13,7 +16,11 @@ import graphql.schema.GraphQLNonNull;
 import graphql.schema.GraphQLObjectType;
 import static graphql.schema.FieldCoordinates.coordinates;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class SARS2GraphQLExtension implements VirusGraphQLExtension {
@@ -43,6 +50,32 @@ public class SARS2GraphQLExtension implements VirusGraphQLExtension {
 		return DRDB.getInstance(drdbVersion).queryLastUpdate();
 	};
 
+	/**
+	 * Align the input sequences with {@link SARS2AlignmentWorkerPool}
+	 *
+	 * Replaces the sierra fetcher, which aligns every request with its own
+	 * aligner call, so that GraphQL requests share the pool's batches and
+	 * alignment cache. A lone sequence takes the interactive lane.
+	 */
+	private static DataFetcher<CompletableFuture<List<AlignedSequence<SARS2>>>> sequenceAnalysisDataFetcher = env -> {
+		List<Map<String, String>> input = env.getArgument("sequences");
+		if (input == null) {
+			return CompletableFuture.completedFuture(List.of());
+		}
+		SARS2AlignmentWorkerPool pool = SARS2AlignmentWorkerPool.getInstance();
+		List<CompletableFuture<AlignedSequence<SARS2>>> futures = new ArrayList<>();
+		for (Map<String, String> seq : input) {
+			Sequence sequence = new Sequence(seq.get("header"), seq.get("sequence"));
+			futures.add(input.size() == 1 ? pool.submit(sequence) : pool.submitBulk(sequence));
+		}
+		return CompletableFuture
+			.allOf(futures.toArray(new CompletableFuture<?>[0]))
+			.thenApply(ignored -> futures.stream()
+				.map(CompletableFuture::join)
+				.collect(Collectors.toList())
+			);
+	};
+
 	private static DataFetcher<Boolean> purgeCacheDataFetcher = env -> {
 		return SARS2.purgeCache();
 	};
@@ -106,6 +139,14 @@ public class SARS2GraphQLExtension implements VirusGraphQLExtension {
 			coordinates("MutationsAnalysis", "vaccPlasmaSuscSummary"),
 			SuscResultDef.vaccPlasmaSuscSummaryFetcher
 		)
+		.dataFetcher(
+			coordinates("Root", "sequenceAnalysis"),
+			sequenceAnalysisDataFetcher
+		)
+		.dataFetcher(
+			coordinates("Viewer", "sequenceAnalysis"),
+			sequenceAnalysisDataFetcher
+		)
 		.dataFetchers(AntibodyDef.antibodyCodeRegistry)
 		.dataFetchers(ArticleDef.articleCodeRegistry)
 		.dataFetcher(
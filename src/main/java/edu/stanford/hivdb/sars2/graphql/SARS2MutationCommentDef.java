@@ -25,6 +25,9 @@ import static graphql.schema.GraphQLObjectType.newObject;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.dataloader.DataLoader;
 
 import edu.stanford.hivdb.graphql.GeneDef;
 import edu.stanford.hivdb.graphql.MutationSetDef;
@@ -34,13 +37,14 @@ import edu.stanford.hivdb.mutations.MutationSet;
 import edu.stanford.hivdb.sars2.SARS2;
 import edu.stanford.hivdb.sars2.SARS2MutationComment;
 import edu.stanford.hivdb.sars2.SARS2MutationComment.SARS2BoundMutationComment;
+import edu.stanford.hivdb.sars2.graphql.SARS2DataLoaders.VersionedMutations;
 import edu.stanford.hivdb.sequences.GeneRegions;
 import edu.stanford.hivdb.viruses.Gene;
 
 
 public class SARS2MutationCommentDef {
 	
-	public static DataFetcher<List<SARS2BoundMutationComment>> boundMutationCommentsFetcher = env -> {
+	public static DataFetcher<CompletableFuture<List<SARS2BoundMutationComment>>> boundMutationCommentsFetcher = env -> {
 		SARS2 sars2 = SARS2.getInstance(); 
 		String cmtVersion = env.getArgument("cmtVersion");
 		Object src = env.getSource();
@@ -53,7 +57,13 @@ public class SARS2MutationCommentDef {
 				.filterByNoSplit(mut -> !mut.isUnsequenced(unseqRegions))
 			);
 		}
-		return SARS2MutationComment.query(cmtVersion, filteredMuts);
+		DataLoader<VersionedMutations<Set<Mutation<SARS2>>>, List<SARS2BoundMutationComment>> loader = (
+			env.getDataLoader(SARS2DataLoaders.MUTATION_COMMENTS)
+		);
+		if (loader == null) {
+			return CompletableFuture.completedFuture(SARS2MutationComment.query(cmtVersion, filteredMuts));
+		}
+		return loader.load(new VersionedMutations<>(cmtVersion, filteredMuts));
 	};
 
 	public static GraphQLObjectType oSARS2MutComment = newObject()
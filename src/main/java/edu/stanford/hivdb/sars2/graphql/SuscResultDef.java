@@ -22,32 +22,43 @@ import graphql.schema.*;
 import static graphql.Scalars.*;
 import static graphql.schema.GraphQLObjectType.newObject;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+import org.dataloader.DataLoader;
+
 import edu.stanford.hivdb.graphql.MutationSetDef;
 import edu.stanford.hivdb.mutations.MutationSet;
 import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.graphql.SARS2DataLoaders.VersionedMutations;
 import edu.stanford.hivdb.sars2.drdb.SuscSummary;
 
 import static edu.stanford.hivdb.graphql.DescriptiveStatisticsDef.*;
 
 public class SuscResultDef {
 
-	public static DataFetcher<SuscSummary> antibodySuscSummaryFetcher = env -> {
+	private static CompletableFuture<SuscSummary> loadSuscSummary(
+		DataFetchingEnvironment env,
+		String loaderName,
+		BiFunction<String, MutationSet<SARS2>, SuscSummary> query
+	) {
 		String drdbVersion = env.getArgument("drdbVersion");
 		MutationSet<SARS2> mutations = MutationSetDef.getMutationSetFromSource(env.getSource());
-		return SuscSummary.queryAntibodySuscSummary(drdbVersion, mutations);
-	};
+		DataLoader<VersionedMutations<MutationSet<SARS2>>, SuscSummary> loader = env.getDataLoader(loaderName);
+		if (loader == null) {
+			return CompletableFuture.completedFuture(query.apply(drdbVersion, mutations));
+		}
+		return loader.load(new VersionedMutations<>(drdbVersion, mutations));
+	}
 
-	public static DataFetcher<SuscSummary> convPlasmaSuscSummaryFetcher = env -> {
-		String drdbVersion = env.getArgument("drdbVersion");
-		MutationSet<SARS2> mutations = MutationSetDef.getMutationSetFromSource(env.getSource());
-		return SuscSummary.queryConvPlasmaSuscSummary(drdbVersion, mutations);
-	};
+	public static DataFetcher<CompletableFuture<SuscSummary>> antibodySuscSummaryFetcher = env -> loadSuscSummary(
+		env, SARS2DataLoaders.ANTIBODY_SUSC_SUMMARY, SuscSummary::queryAntibodySuscSummary);
 
-	public static DataFetcher<SuscSummary> vaccPlasmaSuscSummaryFetcher = env -> {
-		String drdbVersion = env.getArgument("drdbVersion");
-		MutationSet<SARS2> mutations = MutationSetDef.getMutationSetFromSource(env.getSource());
-		return SuscSummary.queryVaccPlasmaSuscSummary(drdbVersion, mutations);
-	};
+	public static DataFetcher<CompletableFuture<SuscSummary>> convPlasmaSuscSummaryFetcher = env -> loadSuscSummary(
+		env, SARS2DataLoaders.CONV_PLASMA_SUSC_SUMMARY, SuscSummary::queryConvPlasmaSuscSummary);
+
+	public static DataFetcher<CompletableFuture<SuscSummary>> vaccPlasmaSuscSummaryFetcher = env -> loadSuscSummary(
+		env, SARS2DataLoaders.VACC_PLASMA_SUSC_SUMMARY, SuscSummary::queryVaccPlasmaSuscSummary);
 
 	public static GraphQLObjectType oSuscResult = newObject()
 		.name("SuscResultObject")
@@ -0,0 +1,133 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.StreamingOutput;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import edu.stanford.hivdb.sars2.SARS2CodfreqStreamReader;
+import edu.stanford.hivdb.sars2.SARS2CodfreqStreamReader.GeneAssembly;
+
+/**
+ * Analysis of codfreq uploads with streamed results
+ *
+ * The request body is a codfreq file (CSV or TSV; columns gene, position,
+ * total, codon and count) read by {@link SARS2CodfreqStreamReader}. Only
+ * the codon reads of the gene being read are held in memory: one JSON
+ * object (NDJSON) is written for each gene as soon as its rows end, with
+ * its coverage, mixtures and consensus. The last line summarizes the whole
+ * upload with the mixture rate and the assembled genome consensus.
+ *
+ * A malformed row ends the stream with an object whose only property is
+ * "error"; the genes written before it are still valid.
+ */
+@Path("/codfreq-analysis")
+public class CodfreqAnalysisService {
+
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+	@POST
+	@Consumes({MediaType.TEXT_PLAIN, "text/csv", "text/tab-separated-values"})
+	@Produces(MutationsAnalysisService.NDJSON)
+	public Response execute(
+		final InputStream body,
+		@QueryParam("minPrevalence") @DefaultValue("0.05") final double minPrevalence,
+		@QueryParam("minCodonReads") @DefaultValue("1") final long minCodonReads,
+		@QueryParam("minPositionReads") @DefaultValue("1") final long minPositionReads
+	) {
+		if (minPrevalence < 0 || minPrevalence > 1 || minCodonReads < 0 || minPositionReads < 0) {
+			return Response
+				.status(Status.BAD_REQUEST)
+				.entity("minPrevalence must be between 0 and 1; minCodonReads and minPositionReads must not be negative.")
+				.type(MediaType.TEXT_PLAIN)
+				.build();
+		}
+		SARS2CodfreqStreamReader reader = new SARS2CodfreqStreamReader(minPrevalence, minCodonReads, minPositionReads);
+		StreamingOutput stream = output -> {
+			Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+			analyze(reader, body, writer);
+			writer.flush();
+		};
+		return Response.ok(stream, MutationsAnalysisService.NDJSON).build();
+	}
+
+	static void analyze(SARS2CodfreqStreamReader reader, InputStream codfreq, Writer writer) throws IOException {
+		SARS2CodfreqStreamReader.Result result;
+		try {
+			result = reader.read(codfreq, geneAssembly -> {
+				try {
+					writeLine(writer, geneAssemblyToMap(geneAssembly));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			// client disconnected
+			throw e.getCause();
+		} catch (IllegalArgumentException e) {
+			writeLine(writer, Map.of("error", e.getMessage()));
+			return;
+		}
+		Map<String, Object> summary = new LinkedHashMap<>();
+		summary.put("mixtureRate", result.getMixtureRate());
+		summary.put("minPositionReads", result.getMinPositionReads());
+		summary.put("assembledConsensus", result.getAssembledConsensus());
+		writeLine(writer, summary);
+	}
+
+	private static void writeLine(Writer writer, Map<String, ?> object) throws IOException {
+		writer.write(gson.toJson(object));
+		writer.write('\n');
+		writer.flush();
+	}
+
+	static Map<String, Object> geneAssemblyToMap(GeneAssembly geneAssembly) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("gene", geneAssembly.getGene());
+		result.put("numPositions", geneAssembly.getNumPositions());
+		result.put("numCoveredPositions", geneAssembly.getNumCoveredPositions());
+		result.put("minPositionReads", geneAssembly.getMinPositionReads());
+		result.put("numNAs", geneAssembly.getNumNAs());
+		result.put("numMixtures", geneAssembly.getNumMixtures());
+		result.put("consensus", geneAssembly.getConsensus());
+		return result;
+	}
+
+}
@@ -0,0 +1,155 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental FASTA parser
+ *
+ * Only the current record is held in memory. Headers longer than
+ * MAX_HEADER_LENGTH are truncated; sequences longer than maxLength are
+ * truncated and flagged with {@link Record#isTooLong()}, so that a single
+ * oversized record cannot exhaust the heap either.
+ */
+class FastaStreamReader implements Closeable {
+
+	private static final int MAX_HEADER_LENGTH = 1000;
+
+	static class Record {
+		private final int index;
+		private final String header;
+		private final String sequence;
+		private final boolean tooLong;
+
+		private Record(int index, String header, String sequence, boolean tooLong) {
+			this.index = index;
+			this.header = header;
+			this.sequence = sequence;
+			this.tooLong = tooLong;
+		}
+
+		/**
+		 * @return 1-based index of the record in the upload
+		 */
+		int getIndex() { return index; }
+
+		String getHeader() { return header; }
+
+		String getSequence() { return sequence; }
+
+		boolean isTooLong() { return tooLong; }
+	}
+
+	private final Reader reader;
+	private final int maxLength;
+	private final char[] buffer = new char[8192];
+	private int bufferPos = 0;
+	private int bufferEnd = 0;
+	private int numRecords = 0;
+	private boolean atHeader = false;
+
+	FastaStreamReader(InputStream input, int maxLength) {
+		this.reader = new InputStreamReader(input, StandardCharsets.UTF_8);
+		this.maxLength = maxLength;
+	}
+
+	private int read() throws IOException {
+		if (bufferPos == bufferEnd) {
+			bufferEnd = reader.read(buffer, 0, buffer.length);
+			bufferPos = 0;
+			if (bufferEnd < 1) {
+				bufferEnd = 0;
+				return -1;
+			}
+		}
+		return buffer[bufferPos ++];
+	}
+
+	/**
+	 * Read the next record
+	 *
+	 * @return the next record or null if the stream is exhausted
+	 * @throws IOException
+	 */
+	Record next() throws IOException {
+		StringBuilder header = new StringBuilder();
+		StringBuilder sequence = new StringBuilder();
+		boolean tooLong = false;
+		// a header read by the previous call starts this record
+		boolean hasContent = atHeader;
+		boolean lineStart = true;
+		int chr;
+		while ((chr = read()) != -1) {
+			if (atHeader) {
+				if (chr == '\n' || chr == '\r') {
+					atHeader = false;
+					lineStart = true;
+				}
+				else if (header.length() < MAX_HEADER_LENGTH) {
+					header.append((char) chr);
+				}
+				continue;
+			}
+			if (chr == '>' && lineStart) {
+				if (hasContent) {
+					// the header belongs to the next record
+					atHeader = true;
+					break;
+				}
+				atHeader = true;
+				hasContent = true;
+				continue;
+			}
+			lineStart = chr == '\n' || chr == '\r';
+			if (Character.isLetter(chr) || chr == '-' || chr == '*') {
+				hasContent = true;
+				if (sequence.length() < maxLength) {
+					sequence.append((char) chr);
+				}
+				else {
+					tooLong = true;
+				}
+			}
+		}
+		if (chr == -1) {
+			atHeader = false;
+		}
+		if (!hasContent) {
+			return null;
+		}
+		numRecords ++;
+		String name = header.toString().trim();
+		if (name.isEmpty()) {
+			name = "Sequence " + numRecords;
+		}
+		return new Record(numRecords, name, sequence.toString(), tooLong);
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
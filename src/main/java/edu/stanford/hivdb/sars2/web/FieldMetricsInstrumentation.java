@@ -0,0 +1,140 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import graphql.execution.instrumentation.InstrumentationContext;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.SimpleInstrumentationContext;
+import graphql.execution.instrumentation.parameters.InstrumentationFieldFetchParameters;
+import graphql.schema.GraphQLTypeUtil;
+
+/**
+ * Per-field resolver latency histograms
+ *
+ * Every non-trivial data fetcher (i.e. not a plain property getter) is
+ * timed from the start of the fetch to the completion of its value, so
+ * asynchronous and batched fields include their queueing time. Timings are
+ * keyed by "ParentType.field", e.g. "SequenceAnalysis.pangolin".
+ *
+ * With GRAPHQL_METRICS_ALLOCATION=true the bytes allocated by the fetching
+ * thread are also recorded, for fetchers completing on the thread that
+ * started them.
+ */
+public class FieldMetricsInstrumentation extends SimpleInstrumentation {
+
+	// upper bounds in seconds; the last bucket is +Inf
+	public static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30};
+
+	private static final boolean RECORD_ALLOCATION;
+	private static final com.sun.management.ThreadMXBean threadMXBean;
+	private static final Map<String, FieldTiming> timings = new ConcurrentHashMap<>();
+
+	static {
+		RECORD_ALLOCATION = Boolean.parseBoolean(
+			System.getenv().getOrDefault("GRAPHQL_METRICS_ALLOCATION", "false"));
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		threadMXBean = (
+			RECORD_ALLOCATION && bean instanceof com.sun.management.ThreadMXBean ?
+			(com.sun.management.ThreadMXBean) bean : null
+		);
+	}
+
+	public static class FieldTiming {
+		private final LongAdder[] bucketCounts = new LongAdder[BUCKETS.length + 1];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sumNanos = new LongAdder();
+		private final LongAdder allocatedBytes = new LongAdder();
+
+		FieldTiming() {
+			for (int idx = 0; idx < bucketCounts.length; idx ++) {
+				bucketCounts[idx] = new LongAdder();
+			}
+		}
+
+		void record(long nanos, long bytes) {
+			double seconds = nanos / 1e9;
+			int idx = 0;
+			while (idx < BUCKETS.length && seconds > BUCKETS[idx]) {
+				idx ++;
+			}
+			bucketCounts[idx].increment();
+			count.increment();
+			sumNanos.add(nanos);
+			allocatedBytes.add(bytes);
+		}
+
+		/**
+		 * @return non-cumulative count of each bucket, the last one is +Inf
+		 */
+		public long[] getBucketCounts() {
+			long[] counts = new long[bucketCounts.length];
+			for (int idx = 0; idx < counts.length; idx ++) {
+				counts[idx] = bucketCounts[idx].sum();
+			}
+			return counts;
+		}
+
+		public long getCount() { return count.sum(); }
+
+		public double getSumSeconds() { return sumNanos.sum() / 1e9; }
+
+		public long getAllocatedBytes() { return allocatedBytes.sum(); }
+	}
+
+	public static boolean isRecordAllocation() {
+		return threadMXBean != null;
+	}
+
+	/**
+	 * @return timings by field path, sorted
+	 */
+	public static Map<String, FieldTiming> getTimings() {
+		return Collections.unmodifiableMap(new TreeMap<>(timings));
+	}
+
+	@Override
+	public InstrumentationContext<Object> beginFieldFetch(InstrumentationFieldFetchParameters parameters) {
+		if (parameters.isTrivialDataFetcher()) {
+			return super.beginFieldFetch(parameters);
+		}
+		String fieldPath = (
+			GraphQLTypeUtil.simplePrint(parameters.getEnvironment().getParentType()) + "." +
+			parameters.getField().getName()
+		);
+		long threadId = Thread.currentThread().getId();
+		long startBytes = threadMXBean == null ? 0 : threadMXBean.getThreadAllocatedBytes(threadId);
+		long start = System.nanoTime();
+		return SimpleInstrumentationContext.whenCompleted((result, exception) -> {
+			long nanos = System.nanoTime() - start;
+			long bytes = 0;
+			if (threadMXBean != null && Thread.currentThread().getId() == threadId) {
+				bytes = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+			}
+			timings.computeIfAbsent(fieldPath, k -> new FieldTiming()).record(nanos, bytes);
+		});
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+import graphql.ExecutionInput;
+import graphql.execution.preparsed.PreparsedDocumentEntry;
+import graphql.execution.preparsed.PreparsedDocumentProvider;
+
+/**
+ * Bounded cache of parsed and validated GraphQL documents
+ *
+ * Documents are keyed by the SHA-256 hash of the query text, so the same
+ * (possibly very large) report query is parsed and validated against the
+ * schema only once per GRAPHQL_DOCUMENT_CACHE_SIZE-bounded lifetime.
+ *
+ * Also keeps a bounded store of persisted queries (Apollo "automatic
+ * persisted queries" protocol): a client sends only
+ * extensions.persistedQuery.sha256Hash; if the hash is unknown it resends
+ * the hash together with the full query, which is then registered.
+ */
+public class GraphQLDocumentCache implements PreparsedDocumentProvider {
+
+	private static final int DOCUMENT_CACHE_SIZE;
+	private static final int PERSISTED_QUERIES_SIZE;
+
+	static {
+		Map<String, String> envs = System.getenv();
+		DOCUMENT_CACHE_SIZE = Integer.parseInt(envs.getOrDefault("GRAPHQL_DOCUMENT_CACHE_SIZE", "200"));
+		PERSISTED_QUERIES_SIZE = Integer.parseInt(envs.getOrDefault("GRAPHQL_PERSISTED_QUERIES_SIZE", "1000"));
+	}
+
+	private final Cache<String, PreparsedDocumentEntry> documents;
+	private final Cache<String, String> persistedQueries;
+	private final AtomicLong documentHits = new AtomicLong();
+	private final AtomicLong documentMisses = new AtomicLong();
+	private final AtomicLong persistedQueryHits = new AtomicLong();
+	private final AtomicLong persistedQueryMisses = new AtomicLong();
+
+	public GraphQLDocumentCache() {
+		this(DOCUMENT_CACHE_SIZE, PERSISTED_QUERIES_SIZE);
+	}
+
+	protected GraphQLDocumentCache(int documentCacheSize, int persistedQueriesSize) {
+		documents = CacheBuilder.newBuilder().maximumSize(documentCacheSize).build();
+		persistedQueries = CacheBuilder.newBuilder().maximumSize(persistedQueriesSize).build();
+	}
+
+	public static String hash(String query) {
+		return Hashing.sha256().hashString(query, StandardCharsets.UTF_8).toString();
+	}
+
+	@Override
+	public PreparsedDocumentEntry getDocument(
+		ExecutionInput executionInput,
+		Function<ExecutionInput, PreparsedDocumentEntry> parseAndValidateFunction
+	) {
+		String key = hash(executionInput.getQuery());
+		PreparsedDocumentEntry entry = documents.getIfPresent(key);
+		if (entry == null) {
+			documentMisses.incrementAndGet();
+			// concurrent misses of the same query may parse it twice; harmless
+			entry = parseAndValidateFunction.apply(executionInput);
+			documents.put(key, entry);
+		}
+		else {
+			documentHits.incrementAndGet();
+		}
+		return entry;
+	}
+
+	/**
+	 * Look up a persisted query
+	 *
+	 * @param sha256Hash
+	 * @return the query text, or null if the hash is not registered
+	 */
+	public String getPersistedQuery(String sha256Hash) {
+		String query = persistedQueries.getIfPresent(sha256Hash.toLowerCase());
+		if (query == null) {
+			persistedQueryMisses.incrementAndGet();
+		}
+		else {
+			persistedQueryHits.incrementAndGet();
+		}
+		return query;
+	}
+
+	/**
+	 * Register a persisted query
+	 *
+	 * @param sha256Hash hash sent by the client
+	 * @param query full query text
+	 * @return false if the hash does not match the query
+	 */
+	public boolean putPersistedQuery(String sha256Hash, String query) {
+		String key = hash(query);
+		if (!key.equalsIgnoreCase(sha256Hash)) {
+			return false;
+		}
+		persistedQueries.put(key, query);
+		return true;
+	}
+
+	public long getDocumentHits() { return documentHits.get(); }
+
+	public long getDocumentMisses() { return documentMisses.get(); }
+
+	public long getPersistedQueryHits() { return persistedQueryHits.get(); }
+
+	public long getPersistedQueryMisses() { return persistedQueryMisses.get(); }
+
+	public long getNumDocuments() { return documents.size(); }
+
+	public long getNumPersistedQueries() { return persistedQueries.size(); }
+
+}
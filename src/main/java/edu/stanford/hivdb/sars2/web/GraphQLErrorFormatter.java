@@ -0,0 +1,182 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import graphql.ExceptionWhileDataFetching;
+import graphql.GraphQLError;
+
+/**
+ * Convert GraphQL errors into response payloads
+ *
+ * By default errors are compact: each carries a typed code in
+ * extensions.code (e.g. INVALID_MUTATION for InvalidMutationException) and
+ * errors of the same code and exception message are merged into one entry.
+ * The entry keeps the spec fields (message, locations and path) of the
+ * first occurrence; extensions.count is the number of occurrences and
+ * extensions.paths lists the paths of up to MAX_PATHS other ones. The stack trace
+ * of each distinct data fetching exception is logged once, tagged with
+ * the request's correlation id, which is also returned in every error.
+ *
+ * With GRAPHQL_DEBUG_ERRORS=true the full cause chains and stack traces
+ * are returned as before.
+ */
+public class GraphQLErrorFormatter {
+
+	private static final Logger LOGGER = Logger.getLogger(GraphQLErrorFormatter.class.getName());
+	private static final int MAX_PATHS = 20;
+	private static final boolean DEBUG_ERRORS;
+
+	static {
+		DEBUG_ERRORS = Boolean.parseBoolean(System.getenv().getOrDefault("GRAPHQL_DEBUG_ERRORS", "false"));
+	}
+
+	public static boolean isDebugErrors() {
+		return DEBUG_ERRORS;
+	}
+
+	/**
+	 * Get a typed error code from an exception class
+	 *
+	 * @param exception
+	 * @return upper snake case class name without the "Exception" suffix
+	 */
+	public static String getErrorCode(Throwable exception) {
+		String name = exception.getClass().getSimpleName().replaceAll("(Exception|Error)$", "");
+		return name.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase();
+	}
+
+	/**
+	 * Unwrap the exceptions of asynchronous data fetchers
+	 *
+	 * A data fetcher whose future fails reports the CompletionException or
+	 * ExecutionException wrapping the actual exception; the code and the
+	 * message are derived from the latter.
+	 *
+	 * @param exception
+	 * @return the innermost cause not wrapped by a future
+	 */
+	public static Throwable unwrap(Throwable exception) {
+		while (
+			(exception instanceof CompletionException || exception instanceof ExecutionException) &&
+			exception.getCause() != null
+		) {
+			exception = exception.getCause();
+		}
+		return exception;
+	}
+
+	public static List<Map<String, Object>> format(List<GraphQLError> errors, String correlationId) {
+		return DEBUG_ERRORS ? formatDetailed(errors) : formatCompact(errors, correlationId);
+	}
+
+	private static List<Map<String, Object>> formatCompact(List<GraphQLError> errors, String correlationId) {
+		Map<String, Map<String, Object>> merged = new LinkedHashMap<>();
+		for (GraphQLError error : errors) {
+			String code;
+			// the message of ExceptionWhileDataFetching includes the path
+			String mergeMessage = error.getMessage();
+			Throwable exception = null;
+			Map<String, Object> extensions = new LinkedHashMap<>();
+			if (error.getExtensions() != null) {
+				extensions.putAll(error.getExtensions());
+			}
+			if (error instanceof ExceptionWhileDataFetching) {
+				exception = unwrap(((ExceptionWhileDataFetching) error).getException());
+				code = (
+					exception instanceof GraphQLError && ((GraphQLError) exception).getExtensions() != null ?
+					String.valueOf(((GraphQLError) exception).getExtensions().getOrDefault("code", getErrorCode(exception))) :
+					getErrorCode(exception)
+				);
+				mergeMessage = exception.getMessage();
+			}
+			else {
+				code = String.valueOf(extensions.getOrDefault("code", error.getErrorType()));
+			}
+			String key = code + "\n" + mergeMessage;
+			Map<String, Object> errorMap = merged.get(key);
+			if (errorMap == null) {
+				if (exception != null) {
+					LOGGER.log(Level.WARNING, String.format("[%s] %s: %s", correlationId, code, mergeMessage), exception);
+				}
+				extensions.put("code", code);
+				extensions.put("correlationId", correlationId);
+				extensions.put("count", 1);
+				errorMap = new LinkedHashMap<>();
+				errorMap.put("type", error.getErrorType());
+				errorMap.put("message", error.getMessage());
+				errorMap.put("locations", error.getLocations());
+				if (error.getPath() != null) {
+					errorMap.put("path", error.getPath());
+				}
+				errorMap.put("extensions", extensions);
+				merged.put(key, errorMap);
+				continue;
+			}
+			@SuppressWarnings("unchecked")
+			Map<String, Object> mergedExtensions = (Map<String, Object>) errorMap.get("extensions");
+			mergedExtensions.put("count", (int) mergedExtensions.get("count") + 1);
+			if (error.getPath() != null) {
+				@SuppressWarnings("unchecked")
+				List<Object> paths = (List<Object>) mergedExtensions.computeIfAbsent("paths", k -> new ArrayList<>());
+				if (paths.size() < MAX_PATHS) {
+					paths.add(error.getPath());
+				}
+			}
+		}
+		return new ArrayList<>(merged.values());
+	}
+
+	private static List<Map<String, Object>> formatDetailed(List<GraphQLError> errors) {
+		List<Map<String, Object>> errorMaps = new ArrayList<>();
+		for (GraphQLError error : errors) {
+			Map<String, Object> errorMap = new LinkedHashMap<>();
+			errorMap.put("type", error.getErrorType());
+			errorMap.put("message", error.getMessage());
+			errorMap.put("locations", error.getLocations());
+			if (error.getExtensions() != null) {
+				errorMap.put("extensions", error.getExtensions());
+			}
+			if (error instanceof ExceptionWhileDataFetching) {
+				Throwable innerExc = ((ExceptionWhileDataFetching) error).getException();
+				List<Map<String, Object>> details = new ArrayList<>();
+				do {
+					Map<String, Object> errDetail = new LinkedHashMap<>();
+					errDetail.put("exception", innerExc.toString());
+					errDetail.put("message", innerExc.getMessage());
+					errDetail.put("stackTrace", innerExc.getStackTrace());
+					details.add(errDetail);
+					innerExc = innerExc.getCause();
+				} while (innerExc != null);
+				errorMap.put("details", details);
+			}
+			errorMaps.add(errorMap);
+		}
+		return errorMaps;
+	}
+
+}
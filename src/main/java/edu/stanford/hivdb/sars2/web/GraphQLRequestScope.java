@@ -0,0 +1,145 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import edu.stanford.hivdb.sars2.graphql.SARS2DataLoaders;
+
+/**
+ * State of one GraphQL request, passed as the execution context
+ *
+ * Expensive fields and the DataLoader batches of the request are submitted
+ * through {@link #supplyAsync(Supplier)}: at most maxConcurrency of them
+ * run on the shared executor at the same time, the rest wait in a
+ * per-request queue so that one large report cannot occupy every analysis
+ * thread.
+ *
+ * When the shared executor rejects a task (its queue is full), the future
+ * of the task fails with RejectedExecutionException. The task never runs
+ * on the calling thread, which may be a request or an executor thread.
+ *
+ * {@link #cancel()} (called when the client disconnects) makes queued
+ * fields fail with CancellationException instead of running. Fields
+ * already running are not interrupted.
+ */
+public class GraphQLRequestScope implements SARS2DataLoaders.AsyncSupplier {
+
+	private static class Task {
+		private final Runnable runnable;
+		private final Consumer<Throwable> onRejected;
+
+		private Task(Runnable runnable, Consumer<Throwable> onRejected) {
+			this.runnable = runnable;
+			this.onRejected = onRejected;
+		}
+	}
+
+	private final Executor executor;
+	private final int maxConcurrency;
+	private final Deque<Task> pending = new ArrayDeque<>();
+	private int numRunning = 0;
+	private volatile boolean cancelled = false;
+
+	public GraphQLRequestScope(Executor executor, int maxConcurrency) {
+		this.executor = executor;
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	@Override
+	public <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		if (cancelled) {
+			future.completeExceptionally(new CancellationException("Request cancelled"));
+			return future;
+		}
+		submit(new Task(() -> {
+			try {
+				if (cancelled) {
+					future.completeExceptionally(new CancellationException("Request cancelled"));
+				}
+				else {
+					future.complete(supplier.get());
+				}
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		}, future::completeExceptionally));
+		return future;
+	}
+
+	private void submit(Task task) {
+		synchronized (this) {
+			if (numRunning >= maxConcurrency) {
+				pending.add(task);
+				return;
+			}
+			numRunning ++;
+		}
+		dispatch(task);
+	}
+
+	/**
+	 * @return the next pending task, which takes over the slot of a
+	 *         finished or rejected task, or null if the slot is released
+	 */
+	private synchronized Task nextTask() {
+		Task next = pending.poll();
+		if (next == null) {
+			numRunning --;
+		}
+		return next;
+	}
+
+	private void dispatch(Task task) {
+		// loops instead of recursing when several tasks are rejected in a row
+		while (task != null) {
+			Task current = task;
+			try {
+				executor.execute(() -> {
+					try {
+						current.runnable.run();
+					} finally {
+						dispatch(nextTask());
+					}
+				});
+				return;
+			} catch (RejectedExecutionException e) {
+				current.onRejected.accept(e);
+				task = nextTask();
+			}
+		}
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+}
@@ -0,0 +1,130 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import jakarta.ws.rs.core.StreamingOutput;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+
+import edu.stanford.hivdb.utilities.Json;
+
+/**
+ * Write a GraphQL output object directly to the response stream
+ *
+ * Maps, iterables, arrays, strings, numbers and booleans (i.e. everything
+ * in ExecutionResult.getData()) are walked and written token by token,
+ * so no intermediate JSON string of the whole response is built. Other
+ * objects (e.g. error locations) are serialized by Gson into the same
+ * stream.
+ *
+ * Non-finite numbers (NaN, Infinity) have no JSON representation; they are
+ * written exactly as {@link Json#dumps} writes them, i.e. the same as
+ * before responses were streamed.
+ */
+public class GraphQLResponseWriter implements StreamingOutput {
+
+	private static final int BUFFER_SIZE = 65536;
+	private static final Gson gson = new GsonBuilder().serializeNulls().create();
+
+	private final Object output;
+	private final boolean gzip;
+
+	public GraphQLResponseWriter(Object output, boolean gzip) {
+		this.output = output;
+		this.gzip = gzip;
+	}
+
+	@Override
+	public void write(OutputStream stream) throws IOException {
+		GZIPOutputStream gzipStream = gzip ? new GZIPOutputStream(stream, BUFFER_SIZE) : null;
+		JsonWriter writer = new JsonWriter(new BufferedWriter(
+			new OutputStreamWriter(gzip ? gzipStream : stream, StandardCharsets.UTF_8),
+			BUFFER_SIZE
+		));
+		writer.setSerializeNulls(true);
+		writeValue(writer, output);
+		writer.flush();
+		if (gzipStream != null) {
+			// the container closes the underlying stream
+			gzipStream.finish();
+		}
+	}
+
+	private static void writeValue(JsonWriter writer, Object value) throws IOException {
+		if (value == null) {
+			writer.nullValue();
+		}
+		else if (value instanceof String) {
+			writer.value((String) value);
+		}
+		else if (value instanceof Boolean) {
+			writer.value((Boolean) value);
+		}
+		else if (value instanceof Number) {
+			double number = ((Number) value).doubleValue();
+			if (Double.isNaN(number) || Double.isInfinite(number)) {
+				writer.jsonValue(Json.dumps(value));
+			}
+			else {
+				writer.value((Number) value);
+			}
+		}
+		else if (value instanceof Enum) {
+			writer.value(((Enum<?>) value).name());
+		}
+		else if (value instanceof Map) {
+			writer.beginObject();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				writer.name(String.valueOf(entry.getKey()));
+				writeValue(writer, entry.getValue());
+			}
+			writer.endObject();
+		}
+		else if (value instanceof Iterable) {
+			writer.beginArray();
+			for (Object item : (Iterable<?>) value) {
+				writeValue(writer, item);
+			}
+			writer.endArray();
+		}
+		else if (value.getClass().isArray()) {
+			writer.beginArray();
+			int length = Array.getLength(value);
+			for (int idx = 0; idx < length; idx ++) {
+				writeValue(writer, Array.get(value, idx));
+			}
+			writer.endArray();
+		}
+		else {
+			gson.toJson(value, value.getClass(), writer);
+		}
+	}
+
+}
@@ -18,28 +18,35 @@
 
 package edu.stanford.hivdb.sars2.web;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.ConnectionCallback;
+import jakarta.ws.rs.container.Suspended;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.Status;
 
 import edu.stanford.hivdb.graphql.SierraSchema;
 import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.graphql.SARS2DataLoaders;
 import edu.stanford.hivdb.utilities.Json;
 import graphql.ExceptionWhileDataFetching;
 import graphql.ExecutionInput;
 import graphql.ExecutionResult;
 import graphql.GraphQL;
 import graphql.GraphQLError;
+import graphql.execution.instrumentation.ChainedInstrumentation;
 import graphql.schema.GraphQLSchema;
 
 @Path("/graphql")
@@ -48,82 +55,183 @@ import graphql.schema.GraphQLSchema;
 public class GraphQLService {
 
 	private final static GraphQLSchema schema = SierraSchema.makeSchema(SARS2.getInstance());
+	private final static GraphQLDocumentCache documentCache = new GraphQLDocumentCache();
+	private final static boolean PARALLEL_EXECUTION;
+	final static boolean GZIP_RESPONSE;
+	private final static String CORRELATION_ID_HEADER = "X-Correlation-Id";
 	private final GraphQL graphql;
 
+	static {
+		// opt-in: resolves GRAPHQL_PARALLEL_FIELDS and DataLoader batches on
+		// the analysis executor instead of the request thread
+		PARALLEL_EXECUTION = Boolean.parseBoolean(
+			System.getenv().getOrDefault("GRAPHQL_PARALLEL_EXECUTION", "false"));
+		GZIP_RESPONSE = Boolean.parseBoolean(
+			System.getenv().getOrDefault("GRAPHQL_GZIP_RESPONSE", "true"));
+	}
+
 	public GraphQLService() {
-		graphql = GraphQL.newGraphQL(schema).build();
+		graphql = (
+			GraphQL.newGraphQL(schema)
+			.preparsedDocumentProvider(documentCache)
+			.instrumentation(new ChainedInstrumentation(List.of(
+				new QueryCostInstrumentation(),
+				new ParallelFieldsInstrumentation(),
+				new FieldMetricsInstrumentation()
+			)))
+			.build()
+		);
+	}
+
+	public static GraphQLDocumentCache getDocumentCache() {
+		return documentCache;
+	}
+
+	private static ExecutionInput newExecutionInput(
+		String query,
+		Map<String, Object> variables,
+		GraphQLRequestScope context
+	) {
+		return (
+			ExecutionInput
+			.newExecutionInput()
+			.query(query).context(context).variables(variables)
+			.dataLoaderRegistry(SARS2DataLoaders.newDataLoaderRegistry(context))
+			.build()
+		);
+	}
+
+	/**
+	 * Execute a query in-process, the same way as an HTTP request
+	 *
+	 * @param query
+	 * @param variables
+	 * @return execution result
+	 */
+	protected ExecutionResult executeLocal(String query, Map<String, Object> variables) {
+		GraphQLRequestScope context = PARALLEL_EXECUTION ? ParallelFieldsInstrumentation.newRequestScope() : null;
+		return graphql.executeAsync(newExecutionInput(query, variables, context)).join();
 	}
 
 	private static class GraphQLRequest {
 		public String query;
 		public Map<String, Object> variables;
+		public Map<String, Object> extensions;
 	}
 
 	@POST
-	public Response execute(String x) {
+	public void execute(
+		String x,
+		@HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+		@Suspended final AsyncResponse asyncResponse
+	) {
+		boolean gzip = GZIP_RESPONSE && acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
 		GraphQLRequest request = Json.loads(x, GraphQLRequest.class);
 		String query = request.query;
-		Object context = null;
+		GraphQLRequestScope context = PARALLEL_EXECUTION ? ParallelFieldsInstrumentation.newRequestScope() : null;
 		Map<String, Object> variables = request.variables;
+		String persistedQueryHash = getPersistedQueryHash(request.extensions);
+		if (persistedQueryHash != null) {
+			if (query == null) {
+				query = documentCache.getPersistedQuery(persistedQueryHash);
+				if (query == null) {
+					// the client is expected to retry with the full query
+					asyncResponse.resume(errorResponse("PersistedQueryNotFound", "PERSISTED_QUERY_NOT_FOUND"));
+					return;
+				}
+			}
+			else if (!documentCache.putPersistedQuery(persistedQueryHash, query)) {
+				asyncResponse.resume(errorResponse("provided sha does not match query", "PERSISTED_QUERY_HASH_MISMATCH"));
+				return;
+			}
+		}
 		if (query == null) { query = ""; }
 		if (variables == null) {variables = Collections.emptyMap(); }
-		ExecutionInput input = (
-			ExecutionInput
-			.newExecutionInput()
-			.query(query).context(context).variables(variables)
-			.build()
-		);
-		ExecutionResult result = graphql.execute(input);
-		List<Map<String, Object>> errors = handleErrors(result);
+		ExecutionInput input = newExecutionInput(query, variables, context);
+		if (context != null) {
+			// skip queued fields once the client is gone
+			asyncResponse.register((ConnectionCallback) disconnected -> context.cancel());
+		}
+		graphql.executeAsync(input).whenComplete((result, exception) -> {
+			if (exception != null) {
+				asyncResponse.resume(exception);
+			}
+			else {
+				asyncResponse.resume(toResponse(result, gzip));
+			}
+		});
+	}
+
+	static Response toResponse(ExecutionResult result, boolean gzip) {
+		String correlationId = UUID.randomUUID().toString();
+		List<Map<String, Object>> errors = GraphQLErrorFormatter.format(result.getErrors(), correlationId);
 		Map<String, Object> output = new LinkedHashMap<>();
 		Status status = Status.OK;
 		if (!errors.isEmpty()) {
 			// react-relay rejected when
 			// key "errors" presented even it's empty
 			output.put("errors", errors);
-			status = Status.BAD_REQUEST;
+			status = isServerBusy(result) ? Status.SERVICE_UNAVAILABLE : Status.BAD_REQUEST;
 		}
 		output.put("data", result.getData());
-		return Response
+		// written to the response stream without building a JSON string
+		Response.ResponseBuilder response = Response
 			.status(status)
 			.type(MediaType.APPLICATION_JSON)
-			.entity(Json.dumps(output))
-			.build();
+			.entity(new GraphQLResponseWriter(output, gzip));
+		if (GZIP_RESPONSE) {
+			response.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		}
+		if (!errors.isEmpty()) {
+			response.header(CORRELATION_ID_HEADER, correlationId);
+		}
+		if (status == Status.SERVICE_UNAVAILABLE) {
+			response.header(HttpHeaders.RETRY_AFTER, "5");
+		}
+		if (gzip) {
+			response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+		}
+		return response.build();
 	}
 
-	private List<Map<String, Object>> handleErrors(ExecutionResult result) {
-		List<Map<String, Object>> errors = new ArrayList<>();
-		for (GraphQLError error : result.getErrors()) {
-			Map<String, Object> errorMap = new LinkedHashMap<>();
-			errorMap.put("type", error.getErrorType());
-			errorMap.put("message", error.getMessage());
-			errorMap.put("locations", error.getLocations());
+	private static boolean isServerBusy(ExecutionResult result) {
+		return result.getErrors().stream().anyMatch(error -> {
+			Map<String, Object> extensions = error.getExtensions();
 			if (error instanceof ExceptionWhileDataFetching) {
-				Throwable innerExc = ((ExceptionWhileDataFetching) error).getException();
-				List<Map<String, Object>> details = new ArrayList<>();
-				do {
-					Map<String, Object> errDetail = new LinkedHashMap<>();
-					errDetail.put("exception", innerExc.toString());
-					errDetail.put("message", innerExc.getMessage());
-					errDetail.put("stackTrace", innerExc.getStackTrace());
-					details.add(errDetail);
-					innerExc = innerExc.getCause();
-				} while (innerExc != null);
-				errorMap.put("details", details);
-				/*if (!(innerExc instanceof InvalidMutationStringException)) {
-					throw new RuntimeException("Unhandled exception", innerExc);
-				}*/
+				// a root field timed out in the admission queue; its
+				// ServerBusyException is wrapped by the failed future
+				Throwable exception = GraphQLErrorFormatter.unwrap(
+					((ExceptionWhileDataFetching) error).getException());
+				if (exception instanceof GraphQLError) {
+					extensions = ((GraphQLError) exception).getExtensions();
+				}
 			}
-			errors.add(errorMap);
-			/*else if (error instanceof InvalidSyntaxError) {
-				Map<String, Object> errorMap = new LinkedHashMap<>();
-				errorMap.put("type", "InvalidSyntaxError");
-				errorMap.put("message", ((InvalidSyntaxError) error).getMessage());
-				errorMap.put("locations", ((InvalidSyntaxError) error).getLocations());
-				errors.add(errorMap);
-			}*/
-			// errors.add(error);
+			return (
+				extensions != null &&
+				QueryCostInstrumentation.SERVER_BUSY.equals(extensions.get("code"))
+			);
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private static String getPersistedQueryHash(Map<String, Object> extensions) {
+		if (extensions == null || !(extensions.get("persistedQuery") instanceof Map)) {
+			return null;
 		}
-		return errors;
+		Object hash = ((Map<String, Object>) extensions.get("persistedQuery")).get("sha256Hash");
+		return hash instanceof String ? (String) hash : null;
+	}
+
+	private static Response errorResponse(String message, String code) {
+		Map<String, Object> errorMap = new LinkedHashMap<>();
+		errorMap.put("message", message);
+		errorMap.put("extensions", Collections.singletonMap("code", code));
+		Map<String, Object> output = new LinkedHashMap<>();
+		output.put("errors", Collections.singletonList(errorMap));
+		return Response
+			.status(Status.BAD_REQUEST)
+			.type(MediaType.APPLICATION_JSON)
+			.entity(Json.dumps(output))
+			.build();
 	}
 }
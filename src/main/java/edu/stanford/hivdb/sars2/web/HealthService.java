@@ -0,0 +1,68 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+
+import edu.stanford.hivdb.utilities.Json;
+
+/**
+ * Liveness and readiness probes
+ *
+ * /health/live answers as soon as the application is deployed;
+ * /health/ready answers 503 until the {@link WarmUp} stage is finished,
+ * and keeps answering 503 if it failed, so load balancers only route
+ * traffic to warmed-up instances.
+ */
+@Path("/health")
+@Produces(MediaType.APPLICATION_JSON)
+public class HealthService {
+
+	@GET
+	@Path("/live")
+	public Response live() {
+		return Response.ok(Json.dumps(Map.of("status", "UP"))).build();
+	}
+
+	@GET
+	@Path("/ready")
+	public Response ready() {
+		Map<String, Object> output = new LinkedHashMap<>();
+		output.put("status", WarmUp.getStatus());
+		output.put("completedIterations", WarmUp.getCompletedIterations());
+		output.put("iterations", WarmUp.getIterations());
+		if (WarmUp.getLastError() != null) {
+			output.put("lastError", WarmUp.getLastError());
+		}
+		return Response
+			.status(WarmUp.isReady() ? Status.OK : Status.SERVICE_UNAVAILABLE)
+			.entity(Json.dumps(output))
+			.build();
+	}
+
+}
@@ -0,0 +1,164 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.util.Map;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.Response;
+
+import edu.stanford.hivdb.sars2.PangolinLambda;
+import edu.stanford.hivdb.sars2.SARS2AlignmentWorkerPool;
+import edu.stanford.hivdb.sars2.SARS2MutationComment;
+import edu.stanford.hivdb.sars2.drdb.DRDB;
+
+/**
+ * Prometheus metrics in the text exposition format
+ *
+ * Exposes the per-field resolver histograms of
+ * {@link FieldMetricsInstrumentation} together with GraphQL document
+ * cache, analysis executor, admission control, alignment worker pool and
+ * DRDB / mutation comment / Pangolin report cache statistics.
+ */
+@Path("/metrics")
+public class MetricsService {
+
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	@GET
+	@Produces(CONTENT_TYPE)
+	public Response metrics() {
+		StringBuilder out = new StringBuilder();
+		writeFieldMetrics(out, FieldMetricsInstrumentation.getTimings());
+
+		GraphQLDocumentCache documentCache = GraphQLService.getDocumentCache();
+		writeMetric(out, "graphql_document_cache_hits_total", "counter",
+			"Parsed document cache hits.", documentCache.getDocumentHits());
+		writeMetric(out, "graphql_document_cache_misses_total", "counter",
+			"Parsed document cache misses.", documentCache.getDocumentMisses());
+		writeMetric(out, "graphql_persisted_query_hits_total", "counter",
+			"Persisted query hits.", documentCache.getPersistedQueryHits());
+		writeMetric(out, "graphql_persisted_query_misses_total", "counter",
+			"Persisted query misses.", documentCache.getPersistedQueryMisses());
+		writeMetric(out, "graphql_document_cache_size", "gauge",
+			"Cached parsed documents.", documentCache.getNumDocuments());
+		writeMetric(out, "graphql_persisted_query_cache_size", "gauge",
+			"Cached persisted queries.", documentCache.getNumPersistedQueries());
+
+		writeMetric(out, "graphql_analysis_executor_active", "gauge",
+			"Running analysis tasks.", ParallelFieldsInstrumentation.getActiveCount());
+		writeMetric(out, "graphql_analysis_executor_queued", "gauge",
+			"Queued analysis tasks.", ParallelFieldsInstrumentation.getQueueSize());
+		writeMetric(out, "graphql_analysis_executor_completed_total", "counter",
+			"Completed analysis tasks.", ParallelFieldsInstrumentation.getCompletedTaskCount());
+
+		writeMetric(out, "graphql_cost_budget_available", "gauge",
+			"Available query cost budget.", QueryCostInstrumentation.getAvailableBudget());
+		writeMetric(out, "graphql_cost_queue_length", "gauge",
+			"Requests waiting for cost budget.", QueryCostInstrumentation.getQueueLength());
+		writeMetric(out, "graphql_cost_rejected_total", "counter",
+			"Requests rejected by admission control.", QueryCostInstrumentation.getNumRejected());
+
+		// does not create the pool: zeros until the first alignment
+		SARS2AlignmentWorkerPool.Stats pool = SARS2AlignmentWorkerPool.getStats();
+		writeMetric(out, "alignment_interactive_queue_depth", "gauge",
+			"Sequences waiting in the interactive alignment queue.", pool.getInteractiveQueueDepth());
+		writeMetric(out, "alignment_bulk_queue_depth", "gauge",
+			"Sequences waiting in the bulk alignment queue.", pool.getBulkQueueDepth());
+		writeMetric(out, "alignment_batches_total", "counter",
+			"Aligner batches run.", pool.getNumBatches());
+		writeMetric(out, "alignment_batched_nas_total", "counter",
+			"Nucleotides of the aligner batches.", pool.getNumBatchedNAs());
+		writeMetric(out, "alignment_batch_wait_seconds_total", "counter",
+			"Time aligner batches waited in the queues.", pool.getBatchWaitSeconds());
+		writeMetric(out, "alignment_batch_align_seconds_total", "counter",
+			"Time spent aligning batches.", pool.getBatchAlignSeconds());
+		writeMetric(out, "alignment_sequences_total", "counter",
+			"Sequences aligned by the aligner.", pool.getNumAligned());
+		writeMetric(out, "alignment_worker_restarts_total", "counter",
+			"Alignment workers replaced.", pool.getNumRestarts());
+		writeMetric(out, "alignment_workers_healthy", "gauge",
+			"1 if the alignment pool is started and every worker is alive.", pool.isHealthy() ? 1 : 0);
+		writeMetric(out, "alignment_cache_hits_total", "counter",
+			"Alignment cache hits.", pool.getNumCacheHits());
+		writeMetric(out, "alignment_cache_disk_hits_total", "counter",
+			"Alignment cache hits served by the disk tier.", pool.getNumCacheDiskHits());
+		writeMetric(out, "alignment_cache_misses_total", "counter",
+			"Alignment cache misses.", pool.getNumCacheMisses());
+		writeMetric(out, "alignment_cache_size", "gauge",
+			"Cached alignments.", pool.getCacheSize());
+
+		writeMetric(out, "drdb_instances", "gauge",
+			"Loaded DRDB versions.", DRDB.getNumInstances());
+		writeMetric(out, "mutation_comment_versions", "gauge",
+			"Loaded mutation comment versions.", SARS2MutationComment.getNumLoadedVersions());
+		writeMetric(out, "pangolin_report_cache_hits_total", "counter",
+			"Pangolin reports found in the S3 cache.", PangolinLambda.getNumReportCacheHits());
+		writeMetric(out, "pangolin_report_cache_misses_total", "counter",
+			"Pangolin reports missing or outdated in the S3 cache.", PangolinLambda.getNumReportCacheMisses());
+
+		return Response.ok(out.toString(), CONTENT_TYPE).build();
+	}
+
+	static void writeFieldMetrics(
+		StringBuilder out, Map<String, FieldMetricsInstrumentation.FieldTiming> timings
+	) {
+		out.append("# HELP graphql_field_duration_seconds Resolver latency by field.\n");
+		out.append("# TYPE graphql_field_duration_seconds histogram\n");
+		for (Map.Entry<String, FieldMetricsInstrumentation.FieldTiming> entry : timings.entrySet()) {
+			String label = "field=\"" + entry.getKey() + "\"";
+			FieldMetricsInstrumentation.FieldTiming timing = entry.getValue();
+			long[] counts = timing.getBucketCounts();
+			long cumulative = 0;
+			for (int idx = 0; idx < counts.length; idx ++) {
+				cumulative += counts[idx];
+				String le = idx < FieldMetricsInstrumentation.BUCKETS.length ?
+					String.valueOf(FieldMetricsInstrumentation.BUCKETS[idx]) : "+Inf";
+				out.append(String.format(
+					"graphql_field_duration_seconds_bucket{%s,le=\"%s\"} %d\n", label, le, cumulative));
+			}
+			out.append(String.format("graphql_field_duration_seconds_sum{%s} %s\n", label, timing.getSumSeconds()));
+			out.append(String.format("graphql_field_duration_seconds_count{%s} %d\n", label, cumulative));
+		}
+		if (FieldMetricsInstrumentation.isRecordAllocation()) {
+			out.append("# HELP graphql_field_allocated_bytes_total Bytes allocated by resolvers by field.\n");
+			out.append("# TYPE graphql_field_allocated_bytes_total counter\n");
+			for (Map.Entry<String, FieldMetricsInstrumentation.FieldTiming> entry : timings.entrySet()) {
+				out.append(String.format(
+					"graphql_field_allocated_bytes_total{field=\"%s\"} %d\n",
+					entry.getKey(), entry.getValue().getAllocatedBytes()));
+			}
+		}
+	}
+
+	private static void writeMetric(StringBuilder out, String name, String type, String help, double value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void writeMetric(StringBuilder out, String name, String type, String help, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+}
@@ -0,0 +1,386 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.SARS2DefaultMutationsValidator;
+import edu.stanford.hivdb.sars2.SARS2MutationComment;
+import edu.stanford.hivdb.sars2.SARS2MutationComment.SARS2BoundMutationComment;
+import edu.stanford.hivdb.sars2.drdb.AntibodySuscSummary;
+import edu.stanford.hivdb.sars2.drdb.ResistLevelSuscSummary;
+import edu.stanford.hivdb.sars2.drdb.SuscSummary;
+import edu.stanford.hivdb.sars2.drdb.VaccineSuscSummary;
+import edu.stanford.hivdb.utilities.ValidationResult;
+import edu.stanford.hivdb.viruses.Gene;
+
+/**
+ * Bulk analysis of mutation lists
+ *
+ * The request body is a text file of mutation lists, one profile per line.
+ * A line is either a mutation list (e.g. "S:E484K, S:N501Y") or a
+ * tab-separated pair of profile name and mutation list. Profiles are analyzed
+ * concurrently and one JSON object is written per line (NDJSON) as soon as
+ * each profile is finished; therefore the output order is not guaranteed to
+ * be the same as the input order. The "index" property (1-based input line
+ * number) can be used to restore the order.
+ *
+ * When drdbVersion is given, the susceptibility summaries have the same
+ * shape as the GraphQL mutationsAnalysis fields antibodySuscSummary,
+ * convPlasmaSuscSummary and vaccPlasmaSuscSummary queried with
+ * {@link #ANTIBODY_SUSC_SUMMARY_FIELDS}, {@link #CONV_PLASMA_SUSC_SUMMARY_FIELDS}
+ * and {@link #VACC_PLASMA_SUSC_SUMMARY_FIELDS}.
+ *
+ * Profiles are analyzed by a fixed pool of BULK_ANALYSIS_WORKERS threads
+ * whose queue holds at most BULK_ANALYSIS_QUEUE_SIZE profiles across all
+ * requests; once it is full, the request thread analyzes its next profile
+ * itself, which slows down reading the upload.
+ */
+@Path("/mutations-analysis")
+public class MutationsAnalysisService {
+
+	public static final String NDJSON = "application/x-ndjson";
+
+	private static final int NUM_WORKERS;
+	private static final int MAX_IN_FLIGHT;
+	private static final int QUEUE_SIZE;
+	private static final ExecutorService executor;
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+
+	static {
+		Map<String, String> envs = System.getenv();
+		NUM_WORKERS = Integer.parseInt(envs.getOrDefault(
+			"BULK_ANALYSIS_WORKERS",
+			String.valueOf(Runtime.getRuntime().availableProcessors())
+		));
+		MAX_IN_FLIGHT = NUM_WORKERS * 4;
+		QUEUE_SIZE = Integer.parseInt(envs.getOrDefault(
+			"BULK_ANALYSIS_QUEUE_SIZE",
+			String.valueOf(MAX_IN_FLIGHT * 4)
+		));
+		executor = new ThreadPoolExecutor(
+			NUM_WORKERS, NUM_WORKERS, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(QUEUE_SIZE),
+			runnable -> {
+				Thread thread = new Thread(runnable, "bulk-mutations-analysis");
+				thread.setDaemon(true);
+				return thread;
+			},
+			new ThreadPoolExecutor.CallerRunsPolicy()
+		);
+	}
+
+	static final String RESIST_LEVEL_FIELDS = "itemsByResistLevel { resistanceLevel cumulativeCount }";
+	static final String ANTIBODY_SUSC_SUMMARY_FIELDS = (
+		"lastUpdate itemsByAntibody { antibodies { name } cumulativeCount " + RESIST_LEVEL_FIELDS + " }");
+	static final String CONV_PLASMA_SUSC_SUMMARY_FIELDS = "lastUpdate " + RESIST_LEVEL_FIELDS;
+	static final String VACC_PLASMA_SUSC_SUMMARY_FIELDS = (
+		"lastUpdate itemsByVaccine { vaccineName cumulativeCount " + RESIST_LEVEL_FIELDS + " }");
+
+	private static class MutationsProfile {
+		private final int index;
+		private final String name;
+		private final String mutations;
+
+		private MutationsProfile(int index, String line) {
+			this.index = index;
+			int tabPos = line.indexOf('\t');
+			if (tabPos > -1) {
+				name = line.substring(0, tabPos).trim();
+				mutations = line.substring(tabPos + 1);
+			}
+			else {
+				name = null;
+				mutations = line;
+			}
+		}
+	}
+
+	@POST
+	@Consumes({MediaType.TEXT_PLAIN, "text/tab-separated-values"})
+	@Produces(NDJSON)
+	public Response execute(
+		final InputStream body,
+		@QueryParam("drdbVersion") final String drdbVersion,
+		@QueryParam("cmtVersion") final String cmtVersion
+	) {
+		StreamingOutput stream = output -> analyzeAll(body, output, drdbVersion, cmtVersion);
+		return Response.ok(stream, NDJSON).build();
+	}
+
+	static void analyzeAll(
+		InputStream body,
+		OutputStream output,
+		String drdbVersion,
+		String cmtVersion
+	) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+		Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+		CompletionService<String> completion = new ExecutorCompletionService<>(executor);
+		Set<Future<String>> inFlight = new HashSet<>();
+		try {
+			String line;
+			int index = 0;
+			while ((line = reader.readLine()) != null) {
+				index ++;
+				if (line.isBlank()) {
+					continue;
+				}
+				final MutationsProfile profile = new MutationsProfile(index, line);
+				inFlight.add(completion.submit(() -> analyze(profile, drdbVersion, cmtVersion)));
+				// bounded in-flight profiles keep the heap proportional to
+				// the number of workers instead of the upload size
+				if (inFlight.size() >= MAX_IN_FLIGHT) {
+					writeLine(writer, completion.take(), inFlight);
+				}
+				Future<String> done;
+				while ((done = completion.poll()) != null) {
+					writeLine(writer, done, inFlight);
+				}
+			}
+			while (!inFlight.isEmpty()) {
+				writeLine(writer, completion.take(), inFlight);
+			}
+			writer.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			// client disconnected or reader failed; abandon remaining work
+			for (Future<String> future : inFlight) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	static void writeLine(
+		Writer writer,
+		Future<String> done,
+		Set<Future<String>> inFlight
+	) throws IOException, InterruptedException {
+		inFlight.remove(done);
+		try {
+			writer.write(done.get());
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		writer.write('\n');
+		writer.flush();
+	}
+
+	private static String analyze(MutationsProfile profile, String drdbVersion, String cmtVersion) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("index", profile.index);
+		result.put("name", profile.name);
+		try {
+			analyze(profile, drdbVersion, cmtVersion, result);
+		} catch (RuntimeException e) {
+			// one bad profile must not abort the whole stream
+			result.put("error", e.getMessage());
+		}
+		return gson.toJson(result);
+	}
+
+	private static void analyze(
+		MutationsProfile profile,
+		String drdbVersion,
+		String cmtVersion,
+		Map<String, Object> result
+	) {
+		SARS2 sars2 = SARS2.getInstance();
+		MutationSet<SARS2> mutations = sars2.newMutationSet(profile.mutations);
+		Collection<String> includeGenes = (
+			sars2.getMainStrain().getGenes()
+			.stream()
+			.map(Gene::getAbstractGene)
+			.collect(Collectors.toList())
+		);
+		result.put("mutations", mutationsToList(mutations));
+		result.put(
+			"validationResults",
+			new SARS2DefaultMutationsValidator().validate(mutations, includeGenes)
+			.stream()
+			.map(MutationsAnalysisService::validationResultToMap)
+			.collect(Collectors.toList())
+		);
+		if (drdbVersion != null) {
+			result.put(
+				"antibodySuscSummary",
+				antibodySuscSummaryToMap(SuscSummary.queryAntibodySuscSummary(drdbVersion, mutations))
+			);
+			result.put(
+				"convPlasmaSuscSummary",
+				convPlasmaSuscSummaryToMap(SuscSummary.queryConvPlasmaSuscSummary(drdbVersion, mutations))
+			);
+			result.put(
+				"vaccPlasmaSuscSummary",
+				vaccPlasmaSuscSummaryToMap(SuscSummary.queryVaccPlasmaSuscSummary(drdbVersion, mutations))
+			);
+		}
+		if (cmtVersion != null) {
+			result.put(
+				"mutationComments",
+				SARS2MutationComment.query(cmtVersion, mutations)
+				.stream()
+				.map(MutationsAnalysisService::boundMutationCommentToMap)
+				.collect(Collectors.toList())
+			);
+		}
+	}
+
+	static List<String> mutationsToList(Collection<Mutation<SARS2>> mutations) {
+		return (
+			mutations.stream()
+			.map(Mutation::getHumanFormatWithAbstractGene)
+			.collect(Collectors.toList())
+		);
+	}
+
+	static Map<String, Object> validationResultToMap(ValidationResult validationResult) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("level", validationResult.getLevel().toString());
+		result.put("message", validationResult.getMessage());
+		return result;
+	}
+
+	private static List<Map<String, Object>> itemsByResistLevelToList(SuscSummary summary) {
+		return (
+			summary.getItemsByResistLevel()
+			.stream()
+			.map(MutationsAnalysisService::resistLevelSuscSummaryToMap)
+			.collect(Collectors.toList())
+		);
+	}
+
+	private static Map<String, Object> resistLevelSuscSummaryToMap(ResistLevelSuscSummary summary) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("resistanceLevel", summary.getResistanceLevel());
+		result.put("cumulativeCount", summary.getCumulativeCount());
+		return result;
+	}
+
+	private static Map<String, Object> antibodyItemToMap(AntibodySuscSummary summary) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put(
+			"antibodies",
+			summary.getAntibodies().stream()
+			.map(ab -> Map.of("name", ab.getName()))
+			.collect(Collectors.toList())
+		);
+		result.put("cumulativeCount", summary.getCumulativeCount());
+		result.put("itemsByResistLevel", itemsByResistLevelToList(summary));
+		return result;
+	}
+
+	private static Map<String, Object> vaccineItemToMap(VaccineSuscSummary summary) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("vaccineName", summary.getVaccineName());
+		result.put("cumulativeCount", summary.getCumulativeCount());
+		result.put("itemsByResistLevel", itemsByResistLevelToList(summary));
+		return result;
+	}
+
+	/**
+	 * @return the GraphQL antibodySuscSummary { ANTIBODY_SUSC_SUMMARY_FIELDS }
+	 */
+	static Map<String, Object> antibodySuscSummaryToMap(SuscSummary summary) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("lastUpdate", summary.getLastUpdate());
+		result.put(
+			"itemsByAntibody",
+			summary.getItemsByAntibody()
+			.stream()
+			.map(MutationsAnalysisService::antibodyItemToMap)
+			.collect(Collectors.toList())
+		);
+		return result;
+	}
+
+	/**
+	 * @return the GraphQL convPlasmaSuscSummary { CONV_PLASMA_SUSC_SUMMARY_FIELDS }
+	 */
+	static Map<String, Object> convPlasmaSuscSummaryToMap(SuscSummary summary) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("lastUpdate", summary.getLastUpdate());
+		result.put("itemsByResistLevel", itemsByResistLevelToList(summary));
+		return result;
+	}
+
+	/**
+	 * @return the GraphQL vaccPlasmaSuscSummary { VACC_PLASMA_SUSC_SUMMARY_FIELDS }
+	 */
+	static Map<String, Object> vaccPlasmaSuscSummaryToMap(SuscSummary summary) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("lastUpdate", summary.getLastUpdate());
+		result.put(
+			"itemsByVaccine",
+			summary.getItemsByVaccine()
+			.stream()
+			.map(MutationsAnalysisService::vaccineItemToMap)
+			.collect(Collectors.toList())
+		);
+		return result;
+	}
+
+	private static Map<String, Object> boundMutationCommentToMap(SARS2BoundMutationComment comment) {
+		Map<String, Object> result = new LinkedHashMap<>();
+		result.put("triggeredMutations", mutationsToList(comment.getTriggeredMutations()));
+		result.put("comment", comment.getComment());
+		result.put("version", comment.getVersion());
+		return result;
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.parameters.InstrumentationFieldFetchParameters;
+import graphql.schema.DataFetcher;
+
+/**
+ * Resolve expensive fields concurrently on a bounded analysis executor
+ *
+ * Data fetchers of the fields listed in GRAPHQL_PARALLEL_FIELDS are
+ * wrapped to return a CompletableFuture supplied by the request's
+ * {@link GraphQLRequestScope}. graphql-java's default
+ * AsyncExecutionStrategy then resolves sibling fields and list elements
+ * (e.g. the pangolin field of every sequence) without waiting for each
+ * other, so a multi-sequence report takes about as long as its slowest
+ * sequence.
+ *
+ * Fields of requests without a GraphQLRequestScope context are resolved
+ * synchronously as before. Fields backed by a DataLoader (see
+ * {@link edu.stanford.hivdb.sars2.graphql.SARS2DataLoaders}) must not be
+ * listed: their loads have to be registered on the dispatching thread.
+ * Their batches already run on the request scope.
+ */
+public class ParallelFieldsInstrumentation extends SimpleInstrumentation {
+
+	private static final int NUM_THREADS;
+	private static final int QUEUE_SIZE;
+	private static final int REQUEST_CONCURRENCY;
+	private static final Set<String> PARALLEL_FIELDS;
+	private static final ThreadPoolExecutor executor;
+
+	static {
+		Map<String, String> envs = System.getenv();
+		NUM_THREADS = Integer.parseInt(envs.getOrDefault(
+			"GRAPHQL_ANALYSIS_THREADS",
+			String.valueOf(Runtime.getRuntime().availableProcessors())
+		));
+		QUEUE_SIZE = Integer.parseInt(envs.getOrDefault("GRAPHQL_ANALYSIS_QUEUE_SIZE", "1000"));
+		REQUEST_CONCURRENCY = Integer.parseInt(envs.getOrDefault(
+			"GRAPHQL_REQUEST_CONCURRENCY",
+			String.valueOf(Math.max(1, NUM_THREADS / 2))
+		));
+		PARALLEL_FIELDS = Arrays.stream(envs.getOrDefault("GRAPHQL_PARALLEL_FIELDS", "pangolin").split(","))
+			.map(String::trim)
+			.filter(name -> !name.isEmpty())
+			.collect(Collectors.toSet());
+		executor = new ThreadPoolExecutor(
+			NUM_THREADS, NUM_THREADS, 0L, TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<>(QUEUE_SIZE),
+			runnable -> {
+				Thread thread = new Thread(runnable, "graphql-analysis");
+				thread.setDaemon(true);
+				return thread;
+			}
+		);
+	}
+
+	public static GraphQLRequestScope newRequestScope() {
+		return new GraphQLRequestScope(executor, REQUEST_CONCURRENCY);
+	}
+
+	public static int getActiveCount() { return executor.getActiveCount(); }
+
+	public static int getQueueSize() { return executor.getQueue().size(); }
+
+	public static long getCompletedTaskCount() { return executor.getCompletedTaskCount(); }
+
+	@Override
+	public DataFetcher<?> instrumentDataFetcher(
+		DataFetcher<?> dataFetcher,
+		InstrumentationFieldFetchParameters parameters
+	) {
+		String fieldName = parameters.getExecutionStepInfo().getFieldDefinition().getName();
+		Object context = parameters.getEnvironment().getContext();
+		if (!PARALLEL_FIELDS.contains(fieldName) || !(context instanceof GraphQLRequestScope)) {
+			return dataFetcher;
+		}
+		GraphQLRequestScope scope = (GraphQLRequestScope) context;
+		return env -> scope.supplyAsync(() -> {
+			try {
+				return dataFetcher.get(env);
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+}
@@ -0,0 +1,370 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import graphql.ErrorType;
+import graphql.ExecutionResult;
+import graphql.GraphQLError;
+import graphql.GraphqlErrorBuilder;
+import graphql.analysis.QueryTraverser;
+import graphql.analysis.QueryVisitorFieldEnvironment;
+import graphql.analysis.QueryVisitorStub;
+import graphql.execution.AbortExecutionException;
+import graphql.execution.ExecutionContext;
+import graphql.execution.instrumentation.InstrumentationContext;
+import graphql.execution.instrumentation.InstrumentationState;
+import graphql.execution.instrumentation.SimpleInstrumentation;
+import graphql.execution.instrumentation.SimpleInstrumentationContext;
+import graphql.execution.instrumentation.parameters.InstrumentationExecuteOperationParameters;
+import graphql.execution.instrumentation.parameters.InstrumentationFieldFetchParameters;
+import graphql.language.Document;
+import graphql.language.SourceLocation;
+import graphql.schema.DataFetcher;
+import graphql.schema.GraphQLSchema;
+
+/**
+ * Static query cost analysis and admission control
+ *
+ * Before execution, the cost of the operation is estimated by walking
+ * the query: each field costs its weight (1 unless listed in FIELD_WEIGHTS)
+ * times the product of the sizes of the fan-out arguments of the field and
+ * its ancestors, e.g. sequenceAnalysis(sequences: [100 items]) { pangolin }
+ * costs 100 + 100 * 50. Only the arguments listed in FANOUT_ARGUMENTS,
+ * whose items are each analyzed separately, multiply the cost; other list
+ * arguments (e.g. the mutations of one profile or includeGenes) do not.
+ *
+ * A query costing more than GRAPHQL_MAX_QUERY_COST is rejected. Otherwise
+ * its cost is taken from a global budget of GRAPHQL_COST_BUDGET, released
+ * when the execution finishes. Requests wait for the budget in FIFO order
+ * for at most GRAPHQL_COST_QUEUE_TIMEOUT milliseconds; when
+ * GRAPHQL_COST_MAX_QUEUED requests are already waiting, new ones are
+ * rejected at once. Rejections are GraphQL errors with the extension code
+ * QUERY_COST_EXCEEDED or SERVER_BUSY.
+ *
+ * Waiting never blocks a thread: the budget hands out a future, and the
+ * data fetchers of the root fields are chained on it, so the request
+ * thread returns to the container while the request is queued. Admitted
+ * root fields are resolved on a "graphql-admitted" thread; a request
+ * admitted at once is resolved on its own thread as before. A request
+ * timing out in the queue gets one SERVER_BUSY error per root field.
+ */
+public class QueryCostInstrumentation extends SimpleInstrumentation {
+
+	public static final String QUERY_COST_EXCEEDED = "QUERY_COST_EXCEEDED";
+	public static final String SERVER_BUSY = "SERVER_BUSY";
+
+	private static final Map<String, Integer> FIELD_WEIGHTS = Map.of(
+		"pangolin", 50,
+		"antibodySuscSummary", 20,
+		"convPlasmaSuscSummary", 20,
+		"vaccPlasmaSuscSummary", 20,
+		"mutationComments", 5,
+		"itemsByAntibody", 5,
+		"itemsByResistLevel", 5,
+		"itemsByVaccine", 5,
+		"itemsByMutations", 5,
+		"itemsByVariantOrMutations", 5
+	);
+	// field name => argument whose items are each resolved into a result
+	private static final Map<String, String> FANOUT_ARGUMENTS = Map.of(
+		"sequenceAnalysis", "sequences",
+		"sequenceReadsAnalysis", "sequenceReads",
+		"patternAnalysis", "patterns"
+	);
+	// pangolin(syncFetch: true) blocks on the remote lineage service
+	private static final int SYNC_FETCH_FACTOR = 4;
+
+	private static final int MAX_QUERY_COST;
+	private static final int COST_BUDGET;
+	private static final long QUEUE_TIMEOUT;
+	private static final int MAX_QUEUED;
+	private static final Budget budget;
+	private static final AtomicLong numRejected = new AtomicLong();
+
+	static {
+		Map<String, String> envs = System.getenv();
+		MAX_QUERY_COST = Integer.parseInt(envs.getOrDefault("GRAPHQL_MAX_QUERY_COST", "200000"));
+		COST_BUDGET = Integer.parseInt(envs.getOrDefault("GRAPHQL_COST_BUDGET", "1000000"));
+		QUEUE_TIMEOUT = Long.parseLong(envs.getOrDefault("GRAPHQL_COST_QUEUE_TIMEOUT", "30000"));
+		MAX_QUEUED = Integer.parseInt(envs.getOrDefault("GRAPHQL_COST_MAX_QUEUED", "50"));
+		budget = new Budget(COST_BUDGET);
+	}
+
+	/**
+	 * FIFO budget of permits whose waiters hold futures instead of threads
+	 */
+	static class Budget {
+
+		private static class Waiter {
+			private final int permits;
+			private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+			private Waiter(int permits) {
+				this.permits = permits;
+			}
+		}
+
+		private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "graphql-admission-timer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// runs the root fields of queued requests once admitted
+		private final ExecutorService admitted = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "graphql-admitted");
+			thread.setDaemon(true);
+			return thread;
+		});
+		private final Deque<Waiter> waiters = new ArrayDeque<>();
+		private int available;
+
+		Budget(int permits) {
+			available = permits;
+		}
+
+		/**
+		 * @return a future completed when the permits are acquired, or
+		 *         completed exceptionally with a SERVER_BUSY error after
+		 *         timeoutMillis; null if maxQueued requests are waiting
+		 */
+		CompletableFuture<Void> acquire(int permits, long timeoutMillis, int maxQueued, long cost) {
+			Waiter waiter;
+			synchronized (this) {
+				if (waiters.isEmpty() && available >= permits) {
+					available -= permits;
+					return CompletableFuture.completedFuture(null);
+				}
+				if (waiters.size() >= maxQueued) {
+					return null;
+				}
+				waiter = new Waiter(permits);
+				waiters.add(waiter);
+			}
+			timer.schedule(() -> {
+				boolean isTimedOut;
+				synchronized (this) {
+					isTimedOut = waiters.remove(waiter);
+				}
+				if (isTimedOut) {
+					numRejected.incrementAndGet();
+					waiter.future.completeExceptionally(
+						new ServerBusyException("The server is busy; retry later.", cost));
+					// a large waiter leaving the head may let smaller ones in
+					grant();
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+			return waiter.future;
+		}
+
+		void release(int permits) {
+			synchronized (this) {
+				available += permits;
+			}
+			grant();
+		}
+
+		private void grant() {
+			List<Waiter> granted = new ArrayList<>();
+			synchronized (this) {
+				while (!waiters.isEmpty() && waiters.peekFirst().permits <= available) {
+					Waiter waiter = waiters.pollFirst();
+					available -= waiter.permits;
+					granted.add(waiter);
+				}
+			}
+			for (Waiter waiter : granted) {
+				admitted.execute(() -> waiter.future.complete(null));
+			}
+		}
+
+		synchronized int getAvailable() { return available; }
+
+		synchronized int getQueueLength() { return waiters.size(); }
+
+	}
+
+	/**
+	 * Admission of one execution, shared by its root fields
+	 */
+	private static class AdmissionState implements InstrumentationState {
+		private volatile CompletableFuture<Void> admission = CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * SERVER_BUSY error of a root field whose request timed out in the queue
+	 */
+	public static class ServerBusyException extends RuntimeException implements GraphQLError {
+
+		private static final long serialVersionUID = 1L;
+		private final long cost;
+
+		public ServerBusyException(String message, long cost) {
+			super(message);
+			this.cost = cost;
+		}
+
+		@Override
+		public List<SourceLocation> getLocations() { return null; }
+
+		@Override
+		public ErrorType getErrorType() { return ErrorType.ExecutionAborted; }
+
+		@Override
+		public Map<String, Object> getExtensions() {
+			return Map.of("code", SERVER_BUSY, "cost", cost, "maxCost", MAX_QUERY_COST);
+		}
+	}
+
+	public static int getAvailableBudget() { return budget.getAvailable(); }
+
+	public static int getQueueLength() { return budget.getQueueLength(); }
+
+	public static long getNumRejected() { return numRejected.get(); }
+
+	public static long computeCost(ExecutionContext executionContext) {
+		return computeCost(
+			executionContext.getGraphQLSchema(),
+			executionContext.getDocument(),
+			executionContext.getOperationDefinition().getName(),
+			executionContext.getVariables()
+		);
+	}
+
+	static long computeCost(
+		GraphQLSchema schema,
+		Document document,
+		String operationName,
+		Map<String, Object> variables
+	) {
+		QueryTraverser traverser = (
+			QueryTraverser.newQueryTraverser()
+			.schema(schema)
+			.document(document)
+			.operationName(operationName)
+			.variables(variables)
+			.build()
+		);
+		long[] cost = {0};
+		traverser.visitPreOrder(new QueryVisitorStub() {
+			@Override
+			public void visitField(QueryVisitorFieldEnvironment env) {
+				String fieldName = env.getField().getName();
+				long weight = FIELD_WEIGHTS.getOrDefault(fieldName, 1);
+				if ("pangolin".equals(fieldName) && Boolean.TRUE.equals(env.getArguments().get("syncFetch"))) {
+					weight *= SYNC_FETCH_FACTOR;
+				}
+				cost[0] += weight * getMultiplier(env);
+			}
+		});
+		return cost[0];
+	}
+
+	private static long getMultiplier(QueryVisitorFieldEnvironment env) {
+		long multiplier = 1;
+		for (; env != null; env = env.getParentEnvironment()) {
+			String argName = FANOUT_ARGUMENTS.get(env.getField().getName());
+			Object value = argName == null ? null : env.getArguments().get(argName);
+			if (value instanceof Collection && !((Collection<?>) value).isEmpty()) {
+				// capped to avoid overflow; such queries are rejected anyway
+				multiplier = Math.min(multiplier * ((Collection<?>) value).size(), Integer.MAX_VALUE);
+			}
+		}
+		return multiplier;
+	}
+
+	private static AbortExecutionException reject(String code, String message, long cost) {
+		numRejected.incrementAndGet();
+		return new AbortExecutionException(List.of(
+			GraphqlErrorBuilder.newError()
+			.message(message)
+			.extensions(Map.of("code", code, "cost", cost, "maxCost", MAX_QUERY_COST))
+			.build()
+		));
+	}
+
+	@Override
+	public InstrumentationState createState() {
+		return new AdmissionState();
+	}
+
+	@Override
+	public InstrumentationContext<ExecutionResult> beginExecuteOperation(
+		InstrumentationExecuteOperationParameters parameters
+	) {
+		long cost = computeCost(parameters.getExecutionContext());
+		if (cost > MAX_QUERY_COST) {
+			throw reject(QUERY_COST_EXCEEDED, String.format(
+				"Query cost %d exceeds the limit of %d; split the request into smaller batches.",
+				cost, MAX_QUERY_COST
+			), cost);
+		}
+		int permits = (int) Math.min(cost, COST_BUDGET);
+		CompletableFuture<Void> admission = budget.acquire(permits, QUEUE_TIMEOUT, MAX_QUEUED, cost);
+		if (admission == null) {
+			throw reject(SERVER_BUSY, "Too many requests are waiting; retry later.", cost);
+		}
+		AdmissionState state = parameters.getInstrumentationState();
+		state.admission = admission;
+		// a timed-out admission holds no permits and never runs thenRun
+		return SimpleInstrumentationContext.whenCompleted(
+			(result, exception) -> admission.thenRun(() -> budget.release(permits)));
+	}
+
+	@Override
+	public DataFetcher<?> instrumentDataFetcher(
+		DataFetcher<?> dataFetcher,
+		InstrumentationFieldFetchParameters parameters
+	) {
+		AdmissionState state = parameters.getInstrumentationState();
+		CompletableFuture<Void> admission = state.admission;
+		if (admission.isDone() && !admission.isCompletedExceptionally()) {
+			return dataFetcher;
+		}
+		if (parameters.getExecutionStepInfo().getPath().getLevel() != 1) {
+			// descendants of root fields only run once these are admitted
+			return dataFetcher;
+		}
+		return env -> admission.thenCompose(admitted -> {
+			try {
+				Object value = dataFetcher.get(env);
+				if (value instanceof CompletionStage) {
+					return ((CompletionStage<?>) value).thenApply(result -> (Object) result);
+				}
+				return CompletableFuture.completedFuture(value);
+			} catch (Exception e) {
+				return CompletableFuture.failedFuture(e);
+			}
+		});
+	}
+
+}
@@ -0,0 +1,371 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.web;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.StreamingOutput;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.SARS2AlignmentWorkerPool;
+import edu.stanford.hivdb.sars2.SARS2DefaultSequenceValidator;
+import edu.stanford.hivdb.sars2.SARS2SequenceTriage;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.utilities.ValidationResult;
+import edu.stanford.hivdb.viruses.Gene;
+
+/**
+ * Analysis of FASTA uploads with streamed results
+ *
+ * The request body is parsed by {@link FastaStreamReader} before the
+ * response starts, so that a malformed or oversized upload is answered with
+ * an error status instead of a truncated stream. At most MAX_SEQUENCES
+ * sequences (BULK_ANALYSIS_MAX_SEQUENCES) are accepted per request.
+ *
+ * Sequences are then processed in chunks of MAX_IN_FLIGHT: they are triaged
+ * by {@link SARS2SequenceTriage}, those passed are submitted to
+ * {@link SARS2AlignmentWorkerPool} together, so that the pool can batch
+ * them, and the results are written once their alignments complete. The
+ * next chunk is submitted before the results of the previous one are
+ * written. The first sequence takes the interactive lane, the rest the bulk
+ * lane.
+ *
+ * The optional "genes" query parameter (comma separated abstract gene names,
+ * e.g. "S") restricts the analysis to those genes: each sequence is cut
+ * down to the region of the genes by {@link SARS2SequenceTriage#scopeToGenes}
+ * before alignment, and only their mutations and validation results are
+ * reported.
+ *
+ * One JSON object is written per sequence (NDJSON). Like
+ * {@link MutationsAnalysisService}, the output order is not guaranteed; use
+ * the "index" property (1-based) to restore it.
+ */
+@Path("/sequences-analysis")
+public class SequencesAnalysisService {
+
+	private static final int NUM_WORKERS;
+	private static final int MAX_IN_FLIGHT;
+	private static final int MAX_SEQUENCES;
+	private static final int MAX_SEQUENCE_LENGTH;
+	private static final ExecutorService executor;
+	private static final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+	private static final SARS2SequenceTriage triage = new SARS2SequenceTriage();
+	private static final SARS2DefaultSequenceValidator validator = new SARS2DefaultSequenceValidator();
+
+	static {
+		Map<String, String> envs = System.getenv();
+		NUM_WORKERS = Integer.parseInt(envs.getOrDefault(
+			"BULK_ANALYSIS_WORKERS",
+			String.valueOf(Runtime.getRuntime().availableProcessors())
+		));
+		MAX_IN_FLIGHT = NUM_WORKERS * 4;
+		MAX_SEQUENCES = Integer.parseInt(envs.getOrDefault("BULK_ANALYSIS_MAX_SEQUENCES", "2000"));
+		MAX_SEQUENCE_LENGTH = Integer.parseInt(envs.getOrDefault("BULK_ANALYSIS_MAX_SEQUENCE_LENGTH", "100000"));
+		executor = Executors.newFixedThreadPool(NUM_WORKERS, runnable -> {
+			Thread thread = new Thread(runnable, "bulk-sequences-analysis");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * A sequence between triage and alignment
+	 */
+	private static class Analysis {
+		private final FastaStreamReader.Record record;
+		private final Map<String, Object> result = new LinkedHashMap<>();
+		private final List<ValidationResult> validationResults = new ArrayList<>();
+		// null if the sequence is not aligned
+		private Sequence sequence;
+
+		private Analysis(FastaStreamReader.Record record) {
+			this.record = record;
+			result.put("index", record.getIndex());
+			result.put("name", record.getHeader());
+		}
+
+		private String fail(Throwable e) {
+			if (e instanceof CompletionException && e.getCause() != null) {
+				e = e.getCause();
+			}
+			// one bad sequence must not abort the whole stream
+			result.put("error", e.getMessage());
+			return gson.toJson(result);
+		}
+	}
+
+	@POST
+	@Consumes({MediaType.TEXT_PLAIN, "text/x-fasta", MediaType.APPLICATION_OCTET_STREAM})
+	@Produces(MutationsAnalysisService.NDJSON)
+	public Response execute(
+		final InputStream body,
+		@QueryParam("genes") final String genes
+	) {
+		List<String> allGenes = getAllGenes();
+		final List<String> includeGenes;
+		if (genes == null || genes.isBlank()) {
+			includeGenes = allGenes;
+		}
+		else {
+			includeGenes = (
+				Arrays.stream(genes.split(","))
+				.map(String::trim)
+				.filter(gene -> !gene.isEmpty())
+				.distinct()
+				.collect(Collectors.toList())
+			);
+			List<String> unknownGenes = (
+				includeGenes.stream()
+				.filter(gene -> !allGenes.contains(gene))
+				.collect(Collectors.toList())
+			);
+			if (!unknownGenes.isEmpty()) {
+				return Response
+					.status(Status.BAD_REQUEST)
+					.entity("Unknown genes: " + String.join(", ", unknownGenes))
+					.type(MediaType.TEXT_PLAIN)
+					.build();
+			}
+		}
+		final List<FastaStreamReader.Record> records;
+		try {
+			records = readAll(body, MAX_SEQUENCES + 1);
+		} catch (IOException e) {
+			return Response
+				.status(Status.BAD_REQUEST)
+				.entity("Unable to read the request body: " + e.getMessage())
+				.type(MediaType.TEXT_PLAIN)
+				.build();
+		}
+		if (records.size() > MAX_SEQUENCES) {
+			return Response
+				.status(Status.REQUEST_ENTITY_TOO_LARGE)
+				.entity(String.format("At most %d sequences can be analyzed per request.", MAX_SEQUENCES))
+				.type(MediaType.TEXT_PLAIN)
+				.build();
+		}
+		boolean isScoped = includeGenes.size() < allGenes.size();
+		StreamingOutput stream = output -> analyzeAll(records, output, includeGenes, isScoped);
+		return Response.ok(stream, MutationsAnalysisService.NDJSON).build();
+	}
+
+	private static List<String> getAllGenes() {
+		return (
+			SARS2.getInstance().getMainStrain().getGenes()
+			.stream()
+			.map(Gene::getAbstractGene)
+			.collect(Collectors.toList())
+		);
+	}
+
+	private static List<FastaStreamReader.Record> readAll(InputStream body, int limit) throws IOException {
+		List<FastaStreamReader.Record> records = new ArrayList<>();
+		try (FastaStreamReader reader = new FastaStreamReader(body, MAX_SEQUENCE_LENGTH)) {
+			FastaStreamReader.Record record;
+			while (records.size() < limit && (record = reader.next()) != null) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	private static void analyzeAll(
+		List<FastaStreamReader.Record> records,
+		OutputStream output,
+		List<String> includeGenes,
+		boolean isScoped
+	) throws IOException {
+		Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+		List<CompletableFuture<String>> pending = List.of();
+		for (int start = 0; start < records.size(); start += MAX_IN_FLIGHT) {
+			List<FastaStreamReader.Record> chunk = records.subList(
+				start, Math.min(start + MAX_IN_FLIGHT, records.size()));
+			// keep the pool busy while the previous chunk is written
+			List<CompletableFuture<String>> submitted = submitChunk(chunk, includeGenes, isScoped);
+			writeAll(writer, pending);
+			pending = submitted;
+		}
+		writeAll(writer, pending);
+		writer.flush();
+	}
+
+	private static void writeAll(Writer writer, List<CompletableFuture<String>> futures) throws IOException {
+		for (CompletableFuture<String> future : futures) {
+			writer.write(future.join());
+			writer.write('\n');
+			writer.flush();
+		}
+	}
+
+	private static List<CompletableFuture<String>> submitChunk(
+		List<FastaStreamReader.Record> chunk,
+		List<String> includeGenes,
+		boolean isScoped
+	) {
+		List<CompletableFuture<Analysis>> triaged = new ArrayList<>();
+		for (FastaStreamReader.Record record : chunk) {
+			triaged.add(CompletableFuture.supplyAsync(() -> triage(record, includeGenes, isScoped), executor));
+		}
+		SARS2AlignmentWorkerPool pool = SARS2AlignmentWorkerPool.getInstance();
+		List<CompletableFuture<String>> results = new ArrayList<>();
+		for (CompletableFuture<Analysis> future : triaged) {
+			Analysis analysis = future.join();
+			if (analysis.sequence == null) {
+				results.add(CompletableFuture.completedFuture(gson.toJson(analysis.result)));
+				continue;
+			}
+			CompletableFuture<AlignedSequence<SARS2>> aligned;
+			try {
+				aligned = align(pool, analysis);
+			} catch (RuntimeException e) {
+				results.add(CompletableFuture.completedFuture(analysis.fail(e)));
+				continue;
+			}
+			results.add(
+				aligned
+				.thenApplyAsync(alignedSeq -> analyze(analysis, alignedSeq, includeGenes, isScoped), executor)
+				.exceptionally(analysis::fail)
+			);
+		}
+		return results;
+	}
+
+	private static CompletableFuture<AlignedSequence<SARS2>> align(
+		SARS2AlignmentWorkerPool pool,
+		Analysis analysis
+	) {
+		// the first sequence takes the interactive lane, so that single-sequence
+		// uploads never wait behind the batches of a large upload
+		if (analysis.record.getIndex() == 1) {
+			try {
+				return pool.submit(analysis.sequence);
+			} catch (RejectedExecutionException e) {
+				// the interactive lane is full; wait in the bulk lane instead
+			}
+		}
+		return pool.submitBulk(analysis.sequence);
+	}
+
+	private static Analysis triage(
+		FastaStreamReader.Record record,
+		Collection<String> includeGenes,
+		boolean isScoped
+	) {
+		Analysis analysis = new Analysis(record);
+		if (record.isTooLong()) {
+			analysis.result.put("error", String.format(
+				"The sequence is longer than %d nucleotides.", MAX_SEQUENCE_LENGTH));
+			return analysis;
+		}
+		try {
+			SARS2SequenceTriage.Result triageResult = triage.triage(
+				new Sequence(record.getHeader(), record.getSequence()),
+				includeGenes
+			);
+			analysis.validationResults.addAll(triageResult.getValidationResults());
+			if (triageResult.isRejected()) {
+				// not worth an alignment
+				analysis.result.put("availableGenes", List.of());
+				analysis.result.put("mutations", List.of());
+				analysis.result.put("validationResults", toMaps(analysis.validationResults));
+				return analysis;
+			}
+			Sequence sequence = triageResult.getSequence();
+			if (isScoped) {
+				sequence = triage.scopeToGenes(sequence, includeGenes);
+			}
+			analysis.sequence = sequence;
+		} catch (RuntimeException e) {
+			analysis.fail(e);
+		}
+		return analysis;
+	}
+
+	private static String analyze(
+		Analysis analysis,
+		AlignedSequence<SARS2> alignedSeq,
+		Collection<String> includeGenes,
+		boolean isScoped
+	) {
+		List<ValidationResult> validationResults = analysis.validationResults;
+		if (isScoped) {
+			validationResults.addAll(validator.validate(alignedSeq, includeGenes));
+		}
+		else {
+			validationResults.addAll(alignedSeq.getValidationResults());
+		}
+		Map<String, Object> result = analysis.result;
+		result.put(
+			"availableGenes",
+			alignedSeq.getAvailableGenes()
+			.stream()
+			.map(Gene::getAbstractGene)
+			.filter(includeGenes::contains)
+			.collect(Collectors.toList())
+		);
+		result.put(
+			"mutations",
+			MutationsAnalysisService.mutationsToList(
+				alignedSeq.getMutations()
+				.filterBy(mut -> includeGenes.contains(mut.getAbstractGene()))
+			)
+		);
+		result.put("validationResults", toMaps(validationResults));
+		return gson.toJson(result);
+	}
+
+	private static List<Map<String, Object>> toMaps(List<ValidationResult> validationResults) {
+		return (
+			validationResults.stream()
+			.map(MutationsAnalysisService::validationResultToMap)
+			.collect(Collectors.toList())
+		);
+	}
+
+}
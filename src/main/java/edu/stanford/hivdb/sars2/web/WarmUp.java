@@ -0,0 +1,215 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2.web;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.SARS2AlignmentWorkerPool;
+import edu.stanford.hivdb.sars2.SARS2MutationComment;
+import edu.stanford.hivdb.sars2.SARS2ReferenceIndex;
+import edu.stanford.hivdb.sars2.drdb.DRDB;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.utilities.Json;
+import graphql.ExecutionResult;
+
+/**
+ * Warm-up stage run once after the application is constructed
+ *
+ * Preloads the DRDB and mutation comment versions listed in
+ * WARMUP_DRDB_VERSIONS and WARMUP_CMT_VERSIONS (comma separated; by
+ * default the versions the recorded client workloads query), then runs
+ * a synthetic workload WARMUP_ITERATIONS times: a bulk alignment and
+ * GraphQL sequence / mutations analyses of a genome derived from the
+ * bundled reference, querying the susceptibility summaries and comments
+ * of every configured version. The lazily loaded virus data, the DRDB
+ * search trees, the parsed document cache and the JIT-compiled hot paths
+ * are then ready before {@link HealthService} reports the application as
+ * ready.
+ *
+ * Every step is required: when one fails, the stage stops with the
+ * FAILED status and {@link HealthService} keeps reporting the application
+ * as not ready, so that a broken instance (e.g. unreachable DRDB or CMS)
+ * never receives traffic. Set WARMUP_ENABLED=false to skip the stage.
+ */
+public class WarmUp {
+
+	public static enum Status { PENDING, RUNNING, READY, FAILED }
+
+	private static final Logger LOGGER = Logger.getLogger(WarmUp.class.getName());
+	private static final boolean ENABLED;
+	private static final int ITERATIONS;
+	private static final List<String> DRDB_VERSIONS;
+	private static final List<String> CMT_VERSIONS;
+
+	// Spike mutations S:E484K, S:N501Y and S:D614G on NC_045512.2
+	private static final Map<Integer, Character> GENOME_CHANGES = Map.of(23012, 'A', 23063, 'T', 23403, 'G');
+	private static final String MUTATIONS = "S:69del, S:70del, S:144del, S:417N, S:484K, S:501Y, S:614G, S:681H";
+
+	private static volatile Status status = Status.PENDING;
+	private static volatile int completedIterations = 0;
+	private static volatile String lastError;
+
+	static {
+		Map<String, String> envs = System.getenv();
+		ENABLED = Boolean.parseBoolean(envs.getOrDefault("WARMUP_ENABLED", "true"));
+		ITERATIONS = Integer.parseInt(envs.getOrDefault("WARMUP_ITERATIONS", "3"));
+		DRDB_VERSIONS = splitVersions(envs.getOrDefault("WARMUP_DRDB_VERSIONS", "20220328-162024-slim"));
+		CMT_VERSIONS = splitVersions(envs.getOrDefault("WARMUP_CMT_VERSIONS", "20210406"));
+	}
+
+	private static List<String> splitVersions(String versions) {
+		return (
+			Arrays.stream(versions.split(","))
+			.map(String::trim)
+			.filter(v -> !v.isEmpty())
+			.collect(Collectors.toList())
+		);
+	}
+
+	public static Status getStatus() { return status; }
+
+	public static boolean isReady() { return status == Status.READY; }
+
+	public static int getCompletedIterations() { return completedIterations; }
+
+	public static int getIterations() { return ITERATIONS; }
+
+	public static String getLastError() { return lastError; }
+
+	/**
+	 * Start the warm-up stage in a background thread
+	 *
+	 * @param graphqlService the service whose GraphQL instance is warmed up
+	 */
+	public static synchronized void start(GraphQLService graphqlService) {
+		if (status != Status.PENDING) {
+			return;
+		}
+		if (!ENABLED) {
+			status = Status.READY;
+			return;
+		}
+		status = Status.RUNNING;
+		Thread thread = new Thread(() -> run(graphqlService), "warm-up");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void run(GraphQLService graphqlService) {
+		long start = System.currentTimeMillis();
+		Status finalStatus = Status.FAILED;
+		try {
+			preload();
+			Sequence genome = makeGenome();
+			String sequenceQuery = makeQuery(
+				"query WarmUpSequence($sequences: [UnalignedSequenceInput]!) " +
+				"{ sequenceAnalysis(sequences: $sequences) { validationResults { level message } %s } }"
+			);
+			String mutationsQuery = makeQuery(
+				"query WarmUpMutations($mutations: [String]!) " +
+				"{ mutationsAnalysis(mutations: $mutations) { validationResults { level message } %s } }"
+			);
+			Map<String, Object> sequenceVariables = Map.of(
+				"sequences", List.of(Map.of("header", genome.getHeader(), "sequence", genome.getSequence())));
+			Map<String, Object> mutationsVariables = Map.of(
+				"mutations", Arrays.asList(MUTATIONS.split(", ")));
+			for (int idx = 0; idx < ITERATIONS; idx ++) {
+				step("bulk alignment", () -> SARS2AlignmentWorkerPool.getInstance().alignAll(List.of(genome)));
+				step("sequence analysis", () -> checkResult(graphqlService.executeLocal(sequenceQuery, sequenceVariables)));
+				step("mutations analysis", () -> checkResult(graphqlService.executeLocal(mutationsQuery, mutationsVariables)));
+				completedIterations = idx + 1;
+			}
+			finalStatus = Status.READY;
+		} catch (RuntimeException e) {
+			if (lastError == null) {
+				lastError = e.getMessage();
+			}
+			LOGGER.log(Level.SEVERE, "Warm-up failed", e);
+		} finally {
+			status = finalStatus;
+			LOGGER.info(String.format(
+				"Warm-up %s in %d ms (%d/%d iterations)",
+				finalStatus == Status.READY ? "finished" : "failed",
+				System.currentTimeMillis() - start, completedIterations, ITERATIONS
+			));
+		}
+	}
+
+	private static void preload() {
+		SARS2 sars2 = SARS2.getInstance();
+		step("virus data", () -> {
+			sars2.getDrugResistMutations();
+			sars2.newMutationSet(MUTATIONS);
+		});
+		for (String drdbVersion : DRDB_VERSIONS) {
+			step("DRDB " + drdbVersion, () -> DRDB.getInstance(drdbVersion).queryLastUpdate());
+		}
+		for (String cmtVersion : CMT_VERSIONS) {
+			step("mutation comments " + cmtVersion, () -> SARS2MutationComment.query(cmtVersion, Collections.emptyList()));
+		}
+	}
+
+	private static Sequence makeGenome() {
+		StringBuilder genome = new StringBuilder(SARS2ReferenceIndex.getInstance().getRefSequence());
+		for (Map.Entry<Integer, Character> change : GENOME_CHANGES.entrySet()) {
+			genome.setCharAt(change.getKey() - 1, change.getValue());
+		}
+		return new Sequence("warm-up", genome.toString());
+	}
+
+	// adds a susceptibility summary or comments field for every configured version
+	private static String makeQuery(String template) {
+		StringBuilder fields = new StringBuilder();
+		for (int idx = 0; idx < DRDB_VERSIONS.size(); idx ++) {
+			String version = Json.dumps(DRDB_VERSIONS.get(idx));
+			for (String field : List.of("antibodySuscSummary", "convPlasmaSuscSummary", "vaccPlasmaSuscSummary")) {
+				fields.append(String.format(
+					" %s%d: %s(drdbVersion: %s) { cumulativeCount items { fold } }", field, idx, field, version));
+			}
+		}
+		for (int idx = 0; idx < CMT_VERSIONS.size(); idx ++) {
+			fields.append(String.format(
+				" mutationComments%d: mutationComments(cmtVersion: %s) { comment }", idx, Json.dumps(CMT_VERSIONS.get(idx))));
+		}
+		return String.format(template, fields);
+	}
+
+	private static void checkResult(ExecutionResult result) {
+		if (!result.getErrors().isEmpty()) {
+			throw new RuntimeException(result.getErrors().get(0).getMessage());
+		}
+	}
+
+	private static void step(String name, Runnable runnable) {
+		try {
+			runnable.run();
+		} catch (RuntimeException e) {
+			lastError = name + ": " + e.getMessage();
+			throw e;
+		}
+	}
+
+}
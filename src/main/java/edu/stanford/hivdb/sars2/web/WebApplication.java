@@ -31,8 +31,16 @@ public class WebApplication extends Application {
 	private Set<Class<?>> classes = new HashSet<>();
 	
 	public WebApplication() {
-		singletons.add(new GraphQLService());
+		GraphQLService graphqlService = new GraphQLService();
+		singletons.add(graphqlService);
+		singletons.add(new MutationsAnalysisService());
+		singletons.add(new SequencesAnalysisService());
+		singletons.add(new CodfreqAnalysisService());
+		singletons.add(new MetricsService());
+		singletons.add(new HealthService());
 		classes.add(CorsFilter.class);
+		// readiness is reported by HealthService once finished
+		WarmUp.start(graphqlService);
 	}
 
 	@Override
@@ -5,6 +5,9 @@ import static org.junit.Assert.*;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.junit.Test;
 
@@ -18,6 +21,30 @@ public class DRDBTest {
 	private final String drdbVer = "20220328-162024-slim";
 	private final DRDB drdbObj = DRDB.getInstance(drdbVer);
 
+	@Test
+	public void testGetInstanceConcurrently() {
+		List<CompletableFuture<DRDB>> futures = (
+			IntStream.range(0, 4)
+			.mapToObj(idx -> CompletableFuture.supplyAsync(() -> DRDB.getInstance(drdbVer)))
+			.collect(Collectors.toList())
+		);
+		for (CompletableFuture<DRDB> future : futures) {
+			assertSame(drdbObj, future.join());
+		}
+	}
+
+	@Test
+	public void testGetInstanceFailureIsNotCached() {
+		for (int idx = 0; idx < 2; idx ++) {
+			try {
+				DRDB.getInstance("not-a-version");
+				fail("RuntimeException expected");
+			} catch (RuntimeException e) {
+				// retried, and failed again
+			}
+		}
+	}
+
 	@Test
 	public void testQuerySuscResultsForAntibodies() {
 		List<Map<String, Object>> results = drdbObj.queryAllSuscResultsForAntibodies();
@@ -0,0 +1,99 @@
+package edu.stanford.hivdb.sars2;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Sequence;
+
+public class SARS2AlignmentCacheTest {
+
+	@Rule
+	public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+	@Test
+	public void testNewKey() {
+		String key = SARS2AlignmentCache.newKey("ACGTN");
+		assertTrue(key.startsWith(SARS2AlignmentCache.getConfigVersion() + "/"));
+		assertEquals(key, SARS2AlignmentCache.newKey("ACGTN"));
+		// records keep positions, so case and U/T do not matter
+		assertEquals(key, SARS2AlignmentCache.newKey("acgtn"));
+		assertEquals(key, SARS2AlignmentCache.newKey("acgun"));
+		assertNotEquals(key, SARS2AlignmentCache.newKey("AC-GTN"));
+		assertNotEquals(key, SARS2AlignmentCache.newKey("ACGTNN"));
+	}
+
+	@Test
+	public void testGetPut() {
+		SARS2AlignmentCache<String> cache = new SARS2AlignmentCache<>((Path) null);
+		String key = SARS2AlignmentCache.newKey("ACGTN");
+		assertNull(cache.get(key));
+		cache.put(key, "aligned");
+		assertEquals("aligned", cache.get(key));
+		assertEquals(1, cache.getNumHits());
+		assertEquals(0, cache.getNumDiskHits());
+		assertEquals(1, cache.getNumMisses());
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testDiskTier() throws IOException {
+		Path dir = tmpFolder.newFolder().toPath();
+		String key = SARS2AlignmentCache.newKey("ACGTN");
+		new SARS2AlignmentCache<String>(dir).put(key, "aligned");
+
+		// a new cache (e.g. after a restart) finds the entry on disk
+		SARS2AlignmentCache<String> cache = new SARS2AlignmentCache<>(dir);
+		assertEquals("aligned", cache.get(key));
+		assertEquals(1, cache.getNumDiskHits());
+		assertEquals("aligned", cache.get(key));
+		assertEquals(1, cache.getNumDiskHits());
+		assertEquals(2, cache.getNumHits());
+	}
+
+	@Test
+	public void testCorruptDiskEntry() throws IOException {
+		Path dir = tmpFolder.newFolder().toPath();
+		String key = SARS2AlignmentCache.newKey("ACGTN");
+		new SARS2AlignmentCache<String>(dir).put(key, "aligned");
+		Path entry;
+		try (Stream<Path> paths = Files.walk(dir)) {
+			entry = paths.filter(Files::isRegularFile).findFirst().get();
+		}
+		Files.write(entry, new byte[] {1, 2, 3});
+
+		SARS2AlignmentCache<String> cache = new SARS2AlignmentCache<>(dir);
+		assertNull(cache.get(key));
+		assertFalse(Files.exists(entry));
+		assertEquals(1, cache.getNumMisses());
+	}
+
+	@Test
+	public void testRecordServesOtherHeaders() throws IOException {
+		String naSeq = SARS2ReferenceIndex.getInstance().getRefSequence().substring(21000, 25500);
+		SARS2AlignmentRecord record = SARS2ReferenceAligner.getInstance().align(naSeq);
+		Path dir = tmpFolder.newFolder().toPath();
+		new SARS2AlignmentCache<SARS2AlignmentRecord>(dir).put(SARS2AlignmentCache.newKey(naSeq), record);
+
+		String otherInput = naSeq.toLowerCase();
+		SARS2AlignmentRecord cached = new SARS2AlignmentCache<SARS2AlignmentRecord>(dir)
+			.get(SARS2AlignmentCache.newKey(otherInput));
+		assertNotNull(cached);
+		AlignedSequence<SARS2> alignedSeq = cached.toAlignedSequence(new Sequence("other header", otherInput));
+		assertEquals("other header", alignedSeq.getInputSequence().getHeader());
+		assertEquals(
+			record.toAlignedSequence(new Sequence("header", naSeq)).getAvailableGenes(),
+			alignedSeq.getAvailableGenes()
+		);
+		assertTrue(alignedSeq.getMutations().isEmpty());
+	}
+
+}
@@ -0,0 +1,30 @@
+package edu.stanford.hivdb.sars2;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class SARS2AlignmentWorkerPoolTest {
+
+	private static final long GENOME_NAS = 29903;
+
+	@Test
+	public void testTargetBatchNAsSpreadsOverWorkers() {
+		// eight genomes over four workers: two genomes per batch
+		assertEquals(2 * GENOME_NAS, SARS2AlignmentWorkerPool.getTargetBatchNAs(8 * GENOME_NAS, 4, 3000000));
+		// fewer genomes than workers: any single genome fills a batch
+		assertEquals(GENOME_NAS / 2, SARS2AlignmentWorkerPool.getTargetBatchNAs(2 * GENOME_NAS, 4, 3000000));
+	}
+
+	@Test
+	public void testTargetBatchNAsIsCapped() {
+		assertEquals(3000000, SARS2AlignmentWorkerPool.getTargetBatchNAs(1000 * GENOME_NAS, 4, 3000000));
+	}
+
+	@Test
+	public void testTargetBatchNAsIsPositive() {
+		assertEquals(1, SARS2AlignmentWorkerPool.getTargetBatchNAs(0, 4, 3000000));
+		assertEquals(1, SARS2AlignmentWorkerPool.getTargetBatchNAs(3, 0, 3000000));
+	}
+
+}
@@ -0,0 +1,109 @@
+package edu.stanford.hivdb.sars2;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SARS2CodfreqStreamReaderTest {
+
+	private static final SARS2CodfreqStreamReader reader = new SARS2CodfreqStreamReader(0.05, 1, 10);
+
+	private static SARS2CodfreqStreamReader.Result read(String codfreq, List<String> finalized) throws IOException {
+		return reader.read(
+			new ByteArrayInputStream(codfreq.getBytes(StandardCharsets.UTF_8)),
+			geneAssembly -> finalized.add(geneAssembly.getGene())
+		);
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		SARS2CodfreqStreamReader.Result result = read("gene,position,total,codon,count\n", new ArrayList<>());
+		assertTrue(result.getGenes().isEmpty());
+		assertEquals("N".repeat(29903), result.getAssembledConsensus());
+		assertEquals(0., result.getMixtureRate(), 1e-9);
+	}
+
+	@Test
+	public void testReadSpike() throws IOException {
+		String ref = SARS2ReferenceIndex.getInstance().getRefSequence();
+		String codfreq = (
+			"gene\tposition\ttotal\tcodon\tcount\n" +
+			"S\t1\t100\tATG\t100\n" +
+			"S\t2\t100\tTTT\t90\n" +
+			"S\t2\t100\tTTC\t10\n" +
+			"S\t3\t5\tGTT\t5\n" +
+			"E\t1\t100\tATG\t100\n"
+		);
+		List<String> finalized = new ArrayList<>();
+		SARS2CodfreqStreamReader.Result result = read(codfreq, finalized);
+		assertEquals(List.of("S", "E"), finalized);
+
+		SARS2CodfreqStreamReader.GeneAssembly spike = result.getGenes().get(0);
+		assertEquals(3, spike.getNumPositions());
+		assertEquals(2, spike.getNumCoveredPositions());
+		assertEquals(1, spike.getNumMixtures());
+		assertEquals(1273 * 3, spike.getConsensus().length());
+		assertTrue(spike.getConsensus().startsWith("ATGTTTNNNNNN"));
+		assertEquals(1. / 9, result.getMixtureRate(), 1e-6);
+		assertEquals(100, result.getMinPositionReads());
+
+		String assembled = result.getAssembledConsensus();
+		assertEquals(29903, assembled.length());
+		assertEquals(ref.substring(21562, 21568), assembled.substring(21562, 21568));
+		assertEquals("NNN", assembled.substring(21568, 21571));
+	}
+
+	@Test
+	public void testMatchesCodonReadsTable() throws IOException {
+		String codfreq = (
+			"S,1,100,ATG,100\n" +
+			"S,2,100,TTT,90\n" +
+			"S,2,100,TTC,10\n" +
+			"S,6,100,---,80\n" +
+			"S,6,100,CTT,20\n" +
+			"RdRP,1,200,TCA,200\n"
+		);
+		SARS2CodonReadsTable table = SARS2CodonReadsTable.newBuilder()
+			.add("S", 1, 100, "ATG", 100)
+			.add("S", 2, 100, "TTT", 90)
+			.add("S", 2, 100, "TTC", 10)
+			.add("S", 6, 100, "---", 80)
+			.add("S", 6, 100, "CTT", 20)
+			.add("RdRP", 1, 200, "TCA", 200)
+			.build();
+		SARS2CodfreqStreamReader.Result result = read(codfreq, new ArrayList<>());
+		// genes streamed out of the assembly order give the same genome
+		assertEquals(table.getAssembledUnambiguousConsensus(10), result.getAssembledConsensus());
+		assertEquals(table.getMixtureRate(0.05, 1, 10), result.getMixtureRate(), 1e-9);
+	}
+
+	@Test
+	public void testHeaderColumnsAndGenePrefix() throws IOException {
+		String codfreq = (
+			"count,codon,gene,position,total\n" +
+			"100,ATG,SARS2S,1,100\n"
+		);
+		List<String> finalized = new ArrayList<>();
+		SARS2CodfreqStreamReader.Result result = read(codfreq, finalized);
+		assertEquals(List.of("S"), finalized);
+		assertEquals(1, result.getGenes().get(0).getNumCoveredPositions());
+		assertTrue(result.getGenes().get(0).getConsensus().startsWith("ATGNNN"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNonContiguousGene() throws IOException {
+		read("S,1,100,ATG,100\nE,1,100,ATG,100\nS,2,100,TTT,100\n", new ArrayList<>());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMalformedRow() throws IOException {
+		read("S,1,100,ATG,100\nS,two,100,TTT,100\n", new ArrayList<>());
+	}
+
+}
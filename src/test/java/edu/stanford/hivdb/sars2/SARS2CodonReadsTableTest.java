@@ -0,0 +1,110 @@
+package edu.stanford.hivdb.sars2;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.seqreads.PositionCodonReads;
+
+public class SARS2CodonReadsTableTest {
+
+	private static final SARS2CodonReadsTable table = SARS2CodonReadsTable.newBuilder()
+		.add("S", 1, 100, "ATG", 100)
+		.add("S", 2, 100, "TTT", 90)
+		.add("S", 2, 100, "TTC", 10)
+		.add("S", 3, 100, "GTT", 95)
+		.add("S", 3, 100, "ATT", 5)
+		.add("S", 5, 5, "AAA", 5)
+		.add("S", 6, 100, "---", 80)
+		.add("S", 6, 100, "CTT", 20)
+		.add("RdRP", 1, 200, "TCAGCC", 150)
+		.add("RdRP", 1, 200, "TCA", 50)
+		.build();
+
+	private static final SARS2 sars2 = SARS2.getInstance();
+
+	@Test
+	public void testCoverage() {
+		assertEquals(5, table.getNumPositions("S"));
+		assertArrayEquals(new int[] {5}, table.getTrimmedPositions("S", 10));
+		assertArrayEquals(new int[] {1, 2, 3, 6}, table.getCoveredPositions("S", 10));
+		assertArrayEquals(new int[] {1, 2, 3, 5, 6}, table.getCoveredPositions("S", 1));
+		assertEquals(0, table.getNumPositions("E"));
+		assertArrayEquals(new int[0], table.getCoveredPositions("E", 10));
+	}
+
+	@Test
+	public void testFromPositionCodonReads() {
+		SARS2CodonReadsTable fromReads = SARS2CodonReadsTable.fromPositionCodonReads(List.of(
+			new PositionCodonReads<>(sars2.getGene("SARS2S"), 1, 100, Map.of("ATG", 100L)),
+			new PositionCodonReads<>(sars2.getGene("SARS2S"), 2, 100, Map.of("TTT", 90L, "TTC", 10L))
+		));
+		assertEquals(List.of("S"), fromReads.getGenes());
+		assertEquals(1. / 6, fromReads.getMixtureRate(0.01, 1, 10), 1e-9);
+		assertEquals("ATGTTT", fromReads.getUnambiguousConsensus(10).get("S"));
+	}
+
+	@Test
+	public void testMissingPositions() {
+		SARS2MissingPositions missing = SARS2MissingPositions.fromCodonReadsTable(
+			table, 10, sars2.getGene("SARS2S"), sars2.getGene("SARS2S"), List.of("S"));
+		// S4, S5 (trimmed) and S7-S1273
+		assertEquals(1273 - 4, missing.count());
+	}
+
+	@Test
+	public void testGetAssembledUnambiguousConsensus() {
+		String ref = SARS2ReferenceIndex.getInstance().getRefSequence();
+		String assembled = SARS2CodonReadsTable.newBuilder()
+			.add("S", 1, 100, "ATG", 100)
+			.add("S", 2, 100, "TTT", 90)
+			.add("S", 2, 100, "TTC", 10)
+			.add("S", 3, 5, "GTT", 5)
+			.build()
+			.getAssembledUnambiguousConsensus(10);
+		assertEquals(29903, assembled.length());
+		assertEquals(ref.substring(21562, 21568), assembled.substring(21562, 21568));
+		// S3 is trimmed
+		assertEquals("NNN", assembled.substring(21568, 21571));
+		assertEquals("N".repeat(21562), assembled.substring(0, 21562));
+	}
+
+	@Test
+	public void testGetMixtureRate() {
+		// 5 positions with enough reads; S2 and S3 have one mixture each
+		assertEquals(2. / 15, table.getMixtureRate(0.01, 1, 10), 1e-9);
+		assertEquals(0., table.getMixtureRate(0.2, 1, 10), 1e-9);
+	}
+
+	@Test
+	public void testGetMinPositionReads() {
+		assertEquals(100, table.getMinPositionReads(10));
+		assertEquals(5, table.getMinPositionReads(1));
+	}
+
+	@Test
+	public void testComputePrevalenceCutoff() {
+		assertEquals(0.2, table.computePrevalenceCutoff(0.05, 0.01, 1, 10), 1e-9);
+		assertEquals(0.05, table.computePrevalenceCutoff(0.2, 0.01, 1, 10), 1e-9);
+		assertEquals(0.2, table.computePrevalenceCutoff(0., 0.01, 1, 10), 1e-9);
+	}
+
+	@Test
+	public void testGetUnambiguousConsensus() {
+		Map<String, String> consensus = table.getUnambiguousConsensus(10);
+		assertEquals("ATGTTTGTTNNNNNN", consensus.get("S"));
+		assertEquals("TCAGCC", consensus.get("RdRP"));
+	}
+
+	@Test
+	public void testGetConsensusCodons() {
+		assertArrayEquals(
+			new String[] {"ATG", "TTT", "GTT", "NNN", "NNN", "---"},
+			table.getConsensusCodons("S", 10));
+		assertArrayEquals(new String[0], table.getConsensusCodons("E", 10));
+	}
+
+}
@@ -0,0 +1,162 @@
+package edu.stanford.hivdb.sars2;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.mutations.FrameShift;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sequences.AlignedGeneSeq;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Aligner;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.utilities.FastaUtils;
+import edu.stanford.hivdb.utilities.ValidationLevel;
+import edu.stanford.hivdb.utilities.ValidationResult;
+import edu.stanford.hivdb.viruses.Gene;
+
+public class SARS2DefaultSequenceValidatorTest {
+
+	private static final SARS2 sars2 = SARS2.getInstance();
+	private static final SARS2ReferenceIndex refIndex = SARS2ReferenceIndex.getInstance();
+	private static final List<String> allGenes = (
+		sars2.getMainStrain().getGenes().stream()
+		.map(Gene::getAbstractGene)
+		.collect(Collectors.toList())
+	);
+
+	// 1-based NC_045512.2 position of the first base of a Spike codon
+	private static int spikeNA(int posAA) {
+		return 21563 + (posAA - 1) * 3;
+	}
+
+	// Spike region (NC_045512.2 21001-25500) with unusual indels and a stop codon
+	private static String makeSpikeWithIndels(boolean withFrameShift) {
+		StringBuilder seq = new StringBuilder(refIndex.getRefSequence());
+		seq.replace(spikeNA(500) - 1, spikeNA(500) + 2, "TAA");
+		if (withFrameShift) {
+			seq.deleteCharAt(spikeNA(1100) - 1);
+		}
+		seq.delete(spikeNA(1000) - 1, spikeNA(1000) + 2);
+		seq.insert(spikeNA(800) + 2, "GCAGCA");
+		seq.delete(spikeNA(300) - 1, spikeNA(302) + 2);
+		return seq.substring(21000, 25500);
+	}
+
+	private static Sequence loadSequence(String resource) {
+		InputStream input = SARS2DefaultSequenceValidatorTest.class.getClassLoader().getResourceAsStream(resource);
+		return FastaUtils.readStream(input).get(0);
+	}
+
+	private static List<AlignedSequence<SARS2>> alignSamples() {
+		Aligner<SARS2> aligner = Aligner.getInstance(sars2);
+		return List.of(
+			aligner.align(new Sequence("Spike", refIndex.getRefSequence().substring(21000, 25500))),
+			aligner.align(new Sequence("SpikeIndels", makeSpikeWithIndels(false))),
+			aligner.align(new Sequence("SpikeFrameShift", makeSpikeWithIndels(true))),
+			aligner.align(loadSequence("EPI_ISL_455161.fas")),
+			aligner.align(loadSequence("MT568634.fas"))
+		);
+	}
+
+	private static List<String> toTexts(List<ValidationResult> results) {
+		return results.stream().map(ValidationResult::toString).collect(Collectors.toList());
+	}
+
+	/**
+	 * The gaps validation as it was before the validation engine: unusual
+	 * indels are taken from getInsertions() and getDeletions()
+	 */
+	private static List<ValidationResult> legacyValidateGaps(AlignedSequence<SARS2> alignedSequence) {
+		Map<Gene<SARS2>, AlignedGeneSeq<SARS2>> alignedGeneSeqs = alignedSequence.getAlignedGeneSequenceMap();
+		List<ValidationResult> results = new ArrayList<>();
+		for (Gene<SARS2> gene : alignedSequence.getAvailableGenes()) {
+			String geneDisplay = gene.getDisplay();
+			AlignedGeneSeq<SARS2> alignedGeneSeq = alignedGeneSeqs.get(gene);
+			List<FrameShift<SARS2>> frameShifts = alignedGeneSeq.getFrameShifts();
+			MutationSet<SARS2> unusualInsertions = alignedGeneSeq.getInsertions().getUnusualMutations();
+			MutationSet<SARS2> unusualDeletions = alignedGeneSeq.getDeletions().getUnusualMutations();
+			MutationSet<SARS2> unusualIndels = unusualInsertions.mergesWith(unusualDeletions);
+			int numTotal = frameShifts.size() + unusualInsertions.size() + unusualDeletions.size();
+			String frameShiftListText = FrameShift.joinFrameShifts(frameShifts);
+			String unusualIndelsListText = unusualIndels.join(", ");
+			if (numTotal > 1) {
+				if (frameShifts.size() > 0 && unusualIndels.size() > 0) {
+					results.add(SARS2ValidationMessage.MultipleUnusualIndelsAndFrameshifts.formatWithLevel(
+						ValidationLevel.SEVERE_WARNING, geneDisplay, numTotal,
+						unusualIndelsListText, frameShiftListText));
+				} else if (frameShifts.size() > 0) {
+					results.add(SARS2ValidationMessage.MultipleFrameShifts.formatWithLevel(
+						ValidationLevel.SEVERE_WARNING, geneDisplay, numTotal, frameShiftListText));
+				} else {
+					results.add(SARS2ValidationMessage.MultipleUnusualIndels.formatWithLevel(
+						ValidationLevel.SEVERE_WARNING, geneDisplay, numTotal, unusualIndelsListText));
+				}
+			} else if (numTotal > 0) {
+				if (frameShifts.size() > 0) {
+					results.add(SARS2ValidationMessage.SingleFrameshift.formatWithLevel(
+						ValidationLevel.WARNING, geneDisplay, frameShiftListText));
+				} else {
+					results.add(SARS2ValidationMessage.SingleUnusualIndel.formatWithLevel(
+						ValidationLevel.WARNING, geneDisplay, unusualIndelsListText));
+				}
+			}
+		}
+		return results;
+	}
+
+	@Test
+	public void testGapsRuleMatchesInsertionsAndDeletions() {
+		boolean hasGapResults = false;
+		for (AlignedSequence<SARS2> alignedSeq : alignSamples()) {
+			List<String> expected = toTexts(legacyValidateGaps(alignedSeq));
+			assertEquals(
+				alignedSeq.getInputSequence().getHeader(),
+				expected,
+				toTexts(SARS2DefaultSequenceValidator.validateGaps(alignedSeq, allGenes))
+			);
+			hasGapResults = hasGapResults || !expected.isEmpty();
+		}
+		// the samples do exercise the rule
+		assertTrue(hasGapResults);
+	}
+
+	@Test
+	public void testDelegatesMatchValidate() {
+		SARS2DefaultSequenceValidator validator = new SARS2DefaultSequenceValidator();
+		for (AlignedSequence<SARS2> alignedSeq : alignSamples()) {
+			// the validation order before the validation engine
+			List<ValidationResult> expected = new ArrayList<>();
+			expected.addAll(SARS2DefaultSequenceValidator.validateReverseComplement(alignedSeq));
+			expected.addAll(SARS2DefaultSequenceValidator.validateNoMissingPositions(alignedSeq, allGenes));
+			expected.addAll(SARS2DefaultSequenceValidator.validateLongGap(alignedSeq, allGenes));
+			expected.addAll(SARS2DefaultSequenceValidator.validateNAs(alignedSeq));
+			expected.addAll(SARS2DefaultSequenceValidator.validateGaps(alignedSeq, allGenes));
+			expected.addAll(SARS2DefaultSequenceValidator.validateNoStopCodons(alignedSeq, allGenes));
+			expected.addAll(SARS2DefaultSequenceValidator.validateNoTooManyUnusualMutations(alignedSeq, allGenes));
+			assertEquals(
+				alignedSeq.getInputSequence().getHeader(),
+				toTexts(expected),
+				toTexts(validator.validate(alignedSeq, allGenes))
+			);
+		}
+	}
+
+	@Test
+	public void testNoStopCodons() {
+		AlignedSequence<SARS2> alignedSeq = Aligner.getInstance(sars2).align(
+			new Sequence("SpikeIndels", makeSpikeWithIndels(false)));
+		List<ValidationResult> results = SARS2DefaultSequenceValidator.validateNoStopCodons(alignedSeq, allGenes);
+		assertEquals(1, results.size());
+		assertEquals(ValidationLevel.NOTE, results.get(0).getLevel());
+		assertTrue(results.get(0).getMessage().contains("500*"));
+		assertTrue(SARS2DefaultSequenceValidator.validateNoStopCodons(alignedSeq, List.of("RdRP")).isEmpty());
+	}
+
+}
@@ -0,0 +1,142 @@
+package edu.stanford.hivdb.sars2;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.gson.reflect.TypeToken;
+
+import edu.stanford.hivdb.genotypes.BoundGenotype;
+import edu.stanford.hivdb.genotypes.Genotyper;
+import edu.stanford.hivdb.utilities.FastaUtils;
+import edu.stanford.hivdb.utilities.Json;
+
+public class SARS2GenotyperTest {
+
+	private static final SARS2Genotyper<SARS2> genotyper = SARS2Genotyper.getInstance();
+	private static final SARS2ReferenceIndex refIndex = SARS2ReferenceIndex.getInstance();
+
+	// genotyped region of genotype-references.json
+	private static final int SPIKE_FIRST_NA = 21563;
+	private static final int SPIKE_LAST_NA = 25381;
+
+	@Test
+	public void testGenotypeReference() {
+		String spike = refIndex.getRefSequence().substring(21562, 25384);
+		SARS2Genotyper.Result result = genotyper.genotype(spike, 21563, 25384);
+		assertEquals("WT", result.getGenotypeName());
+		assertEquals(0., result.getBestMatch().getDistance(), 1e-9);
+	}
+
+	@Test
+	public void testGenotypeUnknown() {
+		SARS2Genotyper.Result result = genotyper.genotype("ACGT".repeat(500), 22000, 23999);
+		assertEquals("U", result.getGenotypeName());
+		assertNull(result.getBestMatch());
+	}
+
+	@Test
+	public void testDistanceUpperLimit() {
+		String refSeq = "ACGT".repeat(25);
+		SARS2Genotyper<SARS2> custom = new SARS2Genotyper<>(
+			SARS2.getInstance(),
+			List.of(
+				Map.of("genotypeName", "X", "accession", "X1", "firstNA", 1, "lastNA", 100, "sequence", refSeq),
+				Map.of("genotypeName", "Y", "accession", "Y1", "firstNA", 1, "lastNA", 100, "sequence", "T" + refSeq.substring(1))
+			),
+			Map.of(
+				"X", Map.of("name", "X", "distanceUpperLimit", 0.02),
+				"Y", Map.of("name", "Y", "distanceUpperLimit", 0.5)
+			),
+			0.1, 0.
+		);
+		// 2 mismatches with X: within the limit of X
+		String query = "AC" + "CA" + refSeq.substring(4);
+		assertEquals("X", custom.genotype(query, 1, 100).getGenotypeName());
+		// 3 mismatches with X: under unknownThreshold, over the limit of X
+		query = "AC" + "CA" + "G" + refSeq.substring(5);
+		SARS2Genotyper.Result result = custom.genotype(query, 1, 100);
+		assertEquals("X", result.getMatches().get(0).getGenotypeName());
+		assertEquals("U", result.getGenotypeName());
+	}
+
+	private static String getName(BoundGenotype<SARS2> match) {
+		return match.shouldDisplayUnknown() ? "U" : match.getGenotype().getIndexName();
+	}
+
+	// sierra-core's search-tree genotyper
+	private static final Genotyper<SARS2> sierraGenotyper = new Genotyper<>(SARS2.getInstance());
+
+	private static void assertParity(String name, String sequence, int firstNA, int lastNA) {
+		BoundGenotype<SARS2> expectedMatch = sierraGenotyper.compareAll(sequence, firstNA, lastNA).getBestMatch();
+		SARS2Genotyper.Result result = genotyper.genotype(sequence, firstNA, lastNA);
+		assertEquals(name, getName(expectedMatch), result.getGenotypeName());
+		if (result.getBestMatch() != null) {
+			assertEquals(name, expectedMatch.getDistance(), result.getBestMatch().getDistance(), 1e-9);
+		}
+
+		// SARS2.getGenotyper() returns this class; its BoundGenotypes must be the same
+		BoundGenotype<SARS2> match = SARS2.getInstance().getGenotyper()
+			.compareAll(sequence, firstNA, lastNA).getBestMatch();
+		assertEquals(name, getName(expectedMatch), getName(match));
+		assertEquals(name, expectedMatch.getReferenceAccession(), match.getReferenceAccession());
+		assertEquals(name, expectedMatch.getDistance(), match.getDistance(), 1e-9);
+		assertEquals(name, expectedMatch.getDiscordanceList(), match.getDiscordanceList());
+	}
+
+	@Test
+	public void testGetGenotyper() {
+		assertSame(genotyper, SARS2.getInstance().getGenotyper());
+	}
+
+	// Spike window of a genome, located by its first unique k-mer in Spike
+	private static String extractSpike(String genome) {
+		String seq = SARS2ReferenceIndex.normalize(genome);
+		for (int pos = 0; pos < seq.length(); pos ++) {
+			int refPos = refIndex.locateKmer(seq, pos);
+			if (refPos >= SPIKE_FIRST_NA - 1 && refPos < SPIKE_LAST_NA) {
+				int start = pos - (refPos - SPIKE_FIRST_NA + 1);
+				return seq.substring(start, start + SPIKE_LAST_NA - SPIKE_FIRST_NA + 1);
+			}
+		}
+		throw new IllegalArgumentException("Spike not found");
+	}
+
+	@Test
+	public void testParityWithGenotyper() {
+		List<Map<String, Object>> references = Json.loads(
+			SARS2DataLoader.loadResource("genotypes/genotype-references.json"),
+			new TypeToken<List<Map<String, Object>>>() {}
+		);
+		for (Map<String, Object> ref : references) {
+			String sequence = (String) ref.get("sequence");
+			int firstNA = ((Number) ref.get("firstNA")).intValue();
+			int lastNA = ((Number) ref.get("lastNA")).intValue();
+			assertParity((String) ref.get("accession"), sequence, firstNA, lastNA);
+			// 1% of positions changed, every 20th masked
+			StringBuilder mutated = new StringBuilder(sequence);
+			for (int idx = 0; idx < mutated.length(); idx += 100) {
+				mutated.setCharAt(idx, mutated.charAt(idx) == 'A' ? 'G' : 'A');
+			}
+			for (int idx = 50; idx < mutated.length(); idx += 20) {
+				mutated.setCharAt(idx, 'N');
+			}
+			assertParity(ref.get("accession") + " (mutated)", mutated.toString(), firstNA, lastNA);
+		}
+
+		List<String> fixtures = new ArrayList<>();
+		for (String resourceName : List.of("EPI_ISL_455161.fas", "MT568634.fas")) {
+			InputStream input = SARS2GenotyperTest.class.getClassLoader().getResourceAsStream(resourceName);
+			fixtures.add(extractSpike(FastaUtils.readStream(input).get(0).getSequence()));
+		}
+		for (int idx = 0; idx < fixtures.size(); idx ++) {
+			assertParity("fixture " + idx, fixtures.get(idx), SPIKE_FIRST_NA, SPIKE_LAST_NA);
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+
+    Copyright (C) 2021 Stanford HIVDB team
+
+    Sierra is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    Sierra is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package edu.stanford.hivdb.sars2;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.sars2.SARS2MutationParser.ParsedMutation;
+
+public class SARS2MutationParserTest {
+
+	// the regular expressions SARS2MutationParser replaced
+	private static final Pattern SARS2_MUTATION_PATTERN = Pattern.compile(
+		"^\\s*" +
+		"(__ASI__)?((?i:nsp(?:1|2|3|4|5|6|7|8|9|10|13|14|15|16)|PLpro|PL|_?3CLpro|3CL|Mpro|RdRP|S|Spike|E|M|N|ORF(?:3a|6|7a|7b|8|10)))?[:_-]?" +
+		"([AC-IK-NP-TV-Y])?" +
+		"(\\d{1,4})" +
+		"([AC-IK-NP-TV-Zid.*]+(?:[#_]?[AC-IK-NP-TV-Z.*]+)?|[id_#~-]|[iI]ns(?:ertion)?|[dD]el(?:etion)?)" +
+		"(?::([ACGTRYMWSKBDHVN-]{3})?)?" +
+		"\\s*$");
+
+	private static final Pattern NON_ASI_AA_PATTERN = Pattern.compile(
+		"^([AC-IK-NP-TV-Z.*]+(?:[#_]?[AC-IK-NP-TV-Z.*]+)?|[id_#~-]|[iI]ns(?:ertion)?|[dD]el(?:etion)?)$"
+	);
+
+	private static final String[] MUTATION_STRINGS = {
+		"E484K", "N501Y", "S:D614G", "s:d614g", "Spike:D614G", "SPIKE-E484K",
+		"S:69del", "S:69-", "S:69_", "S:69~", "S:69i", "S:69d", "S:69ins",
+		"S:69Insertion", "S:69Deletion", "S:69dele", "S:214#EPE", "S:214_EPE",
+		"S:D614GH", "S:D614*", "S:D614.", "S:E484K:AAG", "S:E484K:", "S:E484K:AG",
+		"  S:E484K  ", "__ASI__S:E484K", "__ASI__S:484Kd", "S:484Kd", "S:484iK",
+		"nsp1:A5V", "nsp10:A5V", "nsp13A5V", "nsp15V", "NSP16_K46R",
+		"RdRP:P323L", "RdRP:164V", "_3CLpro:P132H", "3CLpro:P132H", "3CL:P132H",
+		"Mpro:P132H", "PLpro:A5V", "PL:A5V", "ORF7a:A5V", "ORF10:A5V", "ORF8:12345A",
+		"S:B614G", "S:614", "S:", "", "484K", "3CL5V", "M1A", "E1*", "N:R203K:AAA"
+	};
+
+	@Test
+	public void testParseSameAsRegex() {
+		for (String mutText : MUTATION_STRINGS) {
+			Matcher m = SARS2_MUTATION_PATTERN.matcher(mutText);
+			ParsedMutation parsed = SARS2MutationParser.parse(mutText);
+			if (!m.matches()) {
+				assertNull(mutText, parsed);
+				continue;
+			}
+			assertNotNull(mutText, parsed);
+			assertEquals(mutText, m.group(1) != null, parsed.isASI());
+			assertEquals(mutText, m.group(2) == null ? null : m.group(2).toUpperCase(), parsed.getGeneAlias());
+			assertEquals(mutText, Integer.parseInt(m.group(4)), parsed.getPosition());
+			assertEquals(mutText, m.group(5), parsed.getAAs());
+			assertEquals(mutText, NON_ASI_AA_PATTERN.matcher(m.group(5)).matches(), parsed.isNonASIAAs());
+			assertEquals(mutText, m.group(6), parsed.getTriplet());
+		}
+	}
+
+	@Test
+	public void testSplitMutations() {
+		String[] formattedMutsList = {
+			"", " ", ",", "S:E484K", "S:E484K, S:N501Y", " S:E484K S:N501Y ",
+			"S:E484K+S:N501Y.S:D614G;RdRP:P323L\tS:69del\r\nS:70del", ",S:E484K", "S:E484K,,"
+		};
+		for (String formattedMuts : formattedMutsList) {
+			List<String> expected = Arrays.asList(formattedMuts.split("[\\s,;+\\.]+"));
+			assertEquals(formattedMuts, expected, SARS2MutationParser.splitMutations(formattedMuts));
+		}
+	}
+
+}
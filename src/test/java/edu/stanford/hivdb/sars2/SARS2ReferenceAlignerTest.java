@@ -0,0 +1,206 @@
+package edu.stanford.hivdb.sars2;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.google.gson.JsonParser;
+
+import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sequences.AlignedGeneSeq;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Aligner;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.utilities.FastaUtils;
+
+public class SARS2ReferenceAlignerTest {
+
+	private static final SARS2 sars2 = SARS2.getInstance();
+	private static final SARS2ReferenceAligner aligner = SARS2ReferenceAligner.getInstance();
+
+	// Spike region (NC_045512.2 21001-25500) with S:HV69-70del, S:E484K, S:N501Y and S:D614G
+	private static String makeSpikeVariant(boolean withInsertion) {
+		StringBuilder seq = new StringBuilder(aligner.getRefSequence());
+		seq.setCharAt(23403 - 1, 'G');
+		seq.setCharAt(23063 - 1, 'T');
+		seq.setCharAt(23012 - 1, 'A');
+		if (withInsertion) {
+			seq.insert(22204, "GAGCCAGAA");
+		}
+		seq.delete(21765 - 1, 21770);
+		return seq.substring(21000, 25500);
+	}
+
+	private static Sequence loadSequence(String resource) {
+		InputStream input = SARS2ReferenceAlignerTest.class.getClassLoader().getResourceAsStream(resource);
+		return FastaUtils.readStream(input).get(0);
+	}
+
+	private static AlignedSequence<SARS2> align(Sequence sequence) {
+		SARS2AlignmentRecord record = aligner.align(sequence.getSequence());
+		assertNotNull(record);
+		return record.toAlignedSequence(sequence);
+	}
+
+	private static Mutation<SARS2> getMutation(AlignedSequence<SARS2> alignedSeq, String gene, int pos) {
+		for (Mutation<SARS2> mut : alignedSeq.getAlignedGeneSequence(gene).getMutations()) {
+			if (mut.getPosition() == pos) {
+				return mut;
+			}
+		}
+		return null;
+	}
+
+	private static Set<String> toTexts(Iterable<Mutation<SARS2>> mutations) {
+		Set<String> texts = new TreeSet<>();
+		for (Mutation<SARS2> mut : mutations) {
+			texts.add(mut.getHumanFormatWithAbstractGene());
+		}
+		return texts;
+	}
+
+	@Test
+	public void testAlignReference() {
+		AlignedSequence<SARS2> result = align(new Sequence("Reference", aligner.getRefSequence()));
+		assertTrue(result.getMutations().isEmpty());
+		assertEquals(25, result.getAvailableGenes().size());
+		assertEquals(1, result.getAlignedGeneSequence("RdRP").getFirstAA());
+		assertEquals(932, result.getAlignedGeneSequence("RdRP").getLastAA());
+		assertEquals(1, result.getAlignedGeneSequence("S").getFirstAA());
+		assertEquals(1273, result.getAlignedGeneSequence("S").getLastAA());
+	}
+
+	@Test
+	public void testAlignGenome() {
+		// same expectations as SARS2Test.testAlignment
+		AlignedSequence<SARS2> result = align(loadSequence("EPI_ISL_455161.fas"));
+		assertEquals(Collections.emptyList(), result.getFrameShifts());
+		assertEquals(
+			MutationSet.parseString(sars2, "RdRP:P323L"),
+			result.getAlignedGeneSequence("RdRP").getMutations());
+		assertEquals(
+			MutationSet.parseString(sars2, "S:D614G"),
+			result.getAlignedGeneSequence("S").getMutations());
+		assertEquals(932, result.getAlignedGeneSequence("RdRP").getLastAA());
+		assertEquals(1273, result.getAlignedGeneSequence("S").getLastAA());
+	}
+
+	@Test
+	public void testAlignSpikeVariant() {
+		AlignedSequence<SARS2> result = align(new Sequence("Variant", makeSpikeVariant(false)));
+		AlignedGeneSeq<SARS2> spike = result.getAlignedGeneSequence("S");
+		assertEquals(
+			MutationSet.parseString(sars2, "S:H69del, S:V70del, S:E484K, S:N501Y, S:D614G"),
+			spike.getMutations());
+		// query positions: the sequence starts at NC_045512.2 21001
+		assertEquals(21563 - 21000, spike.getFirstNA());
+		assertEquals(1, spike.getFirstAA());
+		assertEquals(1273, spike.getLastAA());
+	}
+
+	@Test
+	public void testAlignInsertion() {
+		AlignedSequence<SARS2> result = align(new Sequence("Variant", makeSpikeVariant(true)));
+		List<Mutation<SARS2>> insertions = new ArrayList<>();
+		for (Mutation<SARS2> mut : result.getAlignedGeneSequence("S").getMutations()) {
+			if (mut.isInsertion()) {
+				insertions.add(mut);
+			}
+		}
+		assertEquals(1, insertions.size());
+		assertEquals(214, insertions.get(0).getPosition());
+		assertEquals("GAGCCAGAA", insertions.get(0).getInsertedNAs());
+	}
+
+	@Test
+	public void testAlignMixtures() {
+		StringBuilder seq = new StringBuilder(makeSpikeVariant(false));
+		// S:D614G with an A/G mixture; NNN at S:501
+		seq.setCharAt(23403 - 21001 - 6, 'R');
+		int n501 = 23063 - 21001 - 6;
+		seq.replace(n501, n501 + 3, "NNN");
+		AlignedSequence<SARS2> result = align(new Sequence("Mixtures", seq.toString()));
+		assertEquals(
+			sars2.parseMutationString("S:D614DG").getHumanFormatWithAbstractGene(),
+			getMutation(result, "S", 614).getHumanFormatWithAbstractGene()
+		);
+		assertEquals("X", getMutation(result, "S", 501).getAAs());
+		assertEquals("NNN", getMutation(result, "S", 501).getTriplet());
+	}
+
+	@Test
+	public void testTranslate() {
+		assertEquals("D", SARS2ReferenceAligner.translate('G', 'A', 'T'));
+		assertEquals("DG", SARS2ReferenceAligner.translate('G', 'R', 'T'));
+		assertEquals("*", SARS2ReferenceAligner.translate('T', 'A', 'A'));
+		assertEquals("X", SARS2ReferenceAligner.translate('N', 'N', 'N'));
+		assertEquals("X", SARS2ReferenceAligner.translate('G', '-', 'T'));
+	}
+
+	@Test
+	public void testFallbackToPostAlign() {
+		String seq = makeSpikeVariant(false);
+		String revcomp = SARS2ReferenceIndex.reverseComplement(seq);
+		assertNull(aligner.align(revcomp));
+		// one-base deletion in the Spike gene
+		String frameShifted = seq.substring(0, 2000) + seq.substring(2001);
+		assertNull(aligner.align(frameShifted));
+		assertNull(aligner.align("ACGTTGCAACGTTGCAACGTTGCAACGTTGCA"));
+	}
+
+	@Test
+	public void testNormalize() {
+		assertEquals("ACGTTN-", SARS2ReferenceAligner.normalize("acgUtn-"));
+		// positions are kept, so records are valid for any input of the same sequence
+		AlignedSequence<SARS2> lower = align(new Sequence("Lower", makeSpikeVariant(false).toLowerCase()));
+		assertEquals(
+			MutationSet.parseString(sars2, "S:H69del, S:V70del, S:E484K, S:N501Y, S:D614G"),
+			lower.getAlignedGeneSequence("S").getMutations());
+	}
+
+	@Test
+	public void testAlignmentConfigMethod() {
+		// the shipped configuration keeps PostAlign
+		assertFalse(SARS2ReferenceAligner.isSelected());
+		String config = "{\"method\": \"SARS2Reference\", \"fragmentConfig\": [{\"refRanges\": [[266, 805]]}]}";
+		String sierraConfig = SARS2ReferenceAligner.toSierraAlignmentConfig(config);
+		assertEquals(
+			"PostAlign",
+			JsonParser.parseString(sierraConfig).getAsJsonObject().get("method").getAsString());
+		assertTrue(sierraConfig.contains("[[266,805]]"));
+		String postAlignConfig = "{\"method\": \"PostAlign\"}";
+		assertSame(postAlignConfig, SARS2ReferenceAligner.toSierraAlignmentConfig(postAlignConfig));
+	}
+
+	private static void assertParity(Sequence seq) {
+		AlignedSequence<SARS2> expected = Aligner.getInstance(sars2).align(seq);
+		AlignedSequence<SARS2> result = align(seq);
+		assertEquals(new HashSet<>(expected.getAvailableGenes()), new HashSet<>(result.getAvailableGenes()));
+		for (AlignedGeneSeq<SARS2> expectedGeneSeq : expected.getAlignedGeneSequences()) {
+			AlignedGeneSeq<SARS2> geneSeq = result.getAlignedGeneSequence(expectedGeneSeq.getGene());
+			String gene = expectedGeneSeq.getGene().getAbstractGene();
+			assertEquals(gene, toTexts(expectedGeneSeq.getMutations()), toTexts(geneSeq.getMutations()));
+			assertEquals(gene, expectedGeneSeq.getFirstAA(), geneSeq.getFirstAA());
+			assertEquals(gene, expectedGeneSeq.getLastAA(), geneSeq.getLastAA());
+			assertEquals(gene, expectedGeneSeq.getFirstNA(), geneSeq.getFirstNA());
+			assertEquals(gene, expectedGeneSeq.getLastNA(), geneSeq.getLastNA());
+		}
+	}
+
+	@Test
+	public void testParityWithPostAlign() {
+		assertParity(new Sequence("SpikeVariant", makeSpikeVariant(true)));
+		assertParity(loadSequence("EPI_ISL_455161.fas"));
+		assertParity(loadSequence("MT568634.fas"));
+	}
+
+}
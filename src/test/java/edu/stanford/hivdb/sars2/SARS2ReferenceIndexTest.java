@@ -0,0 +1,48 @@
+package edu.stanford.hivdb.sars2;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class SARS2ReferenceIndexTest {
+
+	private static final SARS2ReferenceIndex refIndex = SARS2ReferenceIndex.getInstance();
+
+	@Test
+	public void testLocateKmer() {
+		String ref = refIndex.getRefSequence();
+		assertEquals(29903, ref.length());
+		assertEquals(21562, refIndex.locateKmer(ref, 21562));
+		assertEquals(21562, refIndex.locateKmer("NN" + ref.substring(21562, 21600), 2));
+		assertEquals(-1, refIndex.locateKmer("N" + ref.substring(21563, 21600), 0));
+		// too short
+		assertEquals(-1, refIndex.locateKmer(ref.substring(21562, 21570), 0));
+	}
+
+	@Test
+	public void testNormalize() {
+		assertEquals("ACGTTN", SARS2ReferenceIndex.normalize("acg-u t\nN1"));
+	}
+
+	@Test
+	public void testReverseComplement() {
+		assertEquals("NACGTRYKMBVDH", SARS2ReferenceIndex.reverseComplement("DHBVKMRYACGTN"));
+	}
+
+	@Test
+	public void testGetCoveredGenes() {
+		assertEquals(List.of("S"), refIndex.getCoveredGenes(21563, 25384));
+		assertEquals(List.of("ORF7a", "ORF7b"), refIndex.getCoveredGenes(27394, 27884));
+		assertTrue(refIndex.getCoveredGenes(25382, 25392).isEmpty());
+	}
+
+	@Test
+	public void testGetGeneSpan() {
+		assertArrayEquals(new int[] {21563, 25381}, refIndex.getGeneSpan(Set.of("S")));
+		assertNull(refIndex.getGeneSpan(Set.of("RT")));
+	}
+
+}
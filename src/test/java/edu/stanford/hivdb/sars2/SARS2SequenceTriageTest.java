@@ -0,0 +1,108 @@
+package edu.stanford.hivdb.sars2;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.sequences.Sequence;
+
+public class SARS2SequenceTriageTest {
+
+	private static final SARS2ReferenceIndex refIndex = SARS2ReferenceIndex.getInstance();
+	private static final SARS2SequenceTriage triage = new SARS2SequenceTriage(refIndex);
+	private static final Set<String> spikeOnly = Set.of("S");
+
+	@Test
+	public void testTriageSpike() {
+		String spike = refIndex.getRefSequence().substring(21000, 25500);
+		SARS2SequenceTriage.Result result = triage.triage(new Sequence("Spike", spike), spikeOnly);
+		assertFalse(result.isRejected());
+		assertFalse(result.isReverseComplement());
+		assertEquals(List.of("S"), result.getCoveredGenes());
+		assertTrue(result.getValidationResults().isEmpty());
+	}
+
+	@Test
+	public void testTriageReverseComplement() {
+		String spike = refIndex.getRefSequence().substring(21000, 25500);
+		SARS2SequenceTriage.Result result = triage.triage(
+			new Sequence("Spike", SARS2ReferenceIndex.reverseComplement(spike)), spikeOnly);
+		assertFalse(result.isRejected());
+		assertTrue(result.isReverseComplement());
+		assertEquals(spike, result.getSequence().getSequence());
+		assertEquals(
+			SARS2ValidationMessage.FASTAReverseComplement.format().toString(),
+			result.getValidationResults().get(0).toString()
+		);
+	}
+
+	@Test
+	public void testTriageReverseComplementRNA() {
+		String spike = refIndex.getRefSequence().substring(21000, 25500);
+		String rna = SARS2ReferenceIndex.reverseComplement(spike).replace('T', 'U').toLowerCase();
+		SARS2SequenceTriage.Result result = triage.triage(new Sequence("Spike", rna), spikeOnly);
+		assertTrue(result.isReverseComplement());
+		assertEquals(spike, result.getSequence().getSequence());
+	}
+
+	@Test
+	public void testTriageRejected() {
+		String ref = refIndex.getRefSequence();
+		// outside of Spike
+		SARS2SequenceTriage.Result result = triage.triage(new Sequence("RdRP", ref.substring(14000, 16000)), spikeOnly);
+		assertTrue(result.isRejected());
+		assertEquals(
+			"CRITICAL: There were no Spike genes found, refuse to process.",
+			result.getValidationResults().get(0).toString()
+		);
+		// not SARS-CoV-2
+		StringBuilder random = new StringBuilder();
+		Random rand = new Random(42);
+		for (int idx = 0; idx < 1000; idx ++) {
+			random.append("ACGT".charAt(rand.nextInt(4)));
+		}
+		result = triage.triage(new Sequence("random", random.toString()), spikeOnly);
+		assertTrue(result.isRejected());
+	}
+
+	@Test
+	public void testTriageInconclusive() {
+		String ref = refIndex.getRefSequence();
+		// mostly N: passed on to the aligner and the validator
+		SARS2SequenceTriage.Result result = triage.triage(
+			new Sequence("N", "N".repeat(4000) + ref.substring(22000, 22030)), spikeOnly);
+		assertFalse(result.isRejected());
+		assertTrue(result.getCoveredGenes().isEmpty());
+		assertTrue(result.getValidationResults().isEmpty());
+		assertEquals(1., result.getNFraction(), 0.01);
+		// empty and short
+		for (String seq : List.of("", "ACGTACGTAC", "ACGT".repeat(10))) {
+			result = triage.triage(new Sequence("short", seq), spikeOnly);
+			assertFalse(seq, result.isRejected());
+			assertFalse(seq, result.isReverseComplement());
+			assertEquals(seq, result.getSequence().getSequence());
+			assertTrue(seq, result.getValidationResults().isEmpty());
+		}
+	}
+
+	@Test
+	public void testScopeToGenes() {
+		String ref = refIndex.getRefSequence();
+		// S refRanges [21563, 25381] with 200 nt flanks
+		Sequence scoped = triage.scopeToGenes(new Sequence("genome", ref), spikeOnly);
+		assertEquals("genome", scoped.getHeader());
+		assertEquals(ref.substring(21362, 25581), scoped.getSequence());
+		// leading Ns, lowercase and an insertion inside Spike
+		String genome = ref.substring(0, 23000) + "GGG" + ref.substring(23000);
+		scoped = triage.scopeToGenes(new Sequence("genome", "NNNNN" + genome.toLowerCase()), spikeOnly);
+		assertEquals(genome.substring(21362, 25584).toLowerCase(), scoped.getSequence());
+		// already within the region
+		String spike = ref.substring(21400, 25500);
+		assertEquals(spike, triage.scopeToGenes(new Sequence("Spike", spike), spikeOnly).getSequence());
+	}
+
+}
@@ -14,7 +14,9 @@ import com.google.common.collect.Lists;
 
 import edu.stanford.hivdb.drugs.DrugClass;
 import edu.stanford.hivdb.graphql.SierraSchema;
+import edu.stanford.hivdb.mutations.GenePosition;
 import edu.stanford.hivdb.mutations.Mutation;
+import edu.stanford.hivdb.mutations.MutationPrevalence;
 import edu.stanford.hivdb.mutations.MutationSet;
 import edu.stanford.hivdb.sequences.AlignedSequence;
 import edu.stanford.hivdb.sequences.Aligner;
@@ -91,6 +93,14 @@ public class SARS2Test {
 		assertTrue(mutation.isUnusual());
 	}
 	
+	@Test
+	public void testGetMutationPrevalence() {
+		Gene<SARS2> spike = virusIns.getGene("SARS2S");
+		List<MutationPrevalence<SARS2>> prevs = virusIns.getMutationPrevalence(new GenePosition<>(spike, 614));
+		assertFalse(prevs.isEmpty());
+		assertSame(prevs, virusIns.getMutationPrevalence(new GenePosition<>(spike, 614)));
+	}
+	
 	@Test
 	public void testDRMs() {
 		Map<DrugClass<SARS2>, MutationSet<SARS2>> drms = virusIns.getDrugResistMutations();
@@ -0,0 +1,100 @@
+package edu.stanford.hivdb.sars2;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sequences.AlignedSequence;
+import edu.stanford.hivdb.sequences.Aligner;
+import edu.stanford.hivdb.sequences.Sequence;
+import edu.stanford.hivdb.utilities.ValidationResult;
+import edu.stanford.hivdb.viruses.Gene;
+
+public class SARS2ValidationEngineTest {
+
+	private static final SARS2 sars2 = SARS2.getInstance();
+	private static final List<String> allGenes = (
+		sars2.getMainStrain().getGenes().stream()
+		.map(Gene::getAbstractGene)
+		.collect(Collectors.toList())
+	);
+	private static final int SERIAL = Integer.MAX_VALUE;
+	private static final int PARALLEL = 0;
+
+	private static List<String> toTexts(List<ValidationResult> results) {
+		return results.stream().map(ValidationResult::toString).collect(Collectors.toList());
+	}
+
+	// one mutation at every position of every gene; every 50th is a stop codon
+	private static MutationSet<SARS2> makeManyMutations() {
+		List<String> muts = new ArrayList<>();
+		for (Gene<SARS2> gene : sars2.getMainStrain().getGenes()) {
+			for (int pos = 1; pos <= gene.getAASize(); pos ++) {
+				muts.add(String.format("%s:%d%s", gene.getAbstractGene(), pos, pos % 50 == 0 ? "*" : "W"));
+			}
+		}
+		return MutationSet.parseString(sars2, String.join(", ", muts));
+	}
+
+	@Test
+	public void testMutationsParityBelowThreshold() {
+		MutationSet<SARS2> mutations = MutationSet.parseString(
+			sars2, "S:E484K, S:N501Y, S:D614G, S:P681*, S:Q493*, RdRP:P323L");
+		assertTrue(mutations.size() < SARS2ValidationEngine.getParallelThreshold());
+		List<String> expected = toTexts(new SARS2DefaultMutationsValidator(SERIAL).validate(mutations, allGenes));
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, toTexts(new SARS2DefaultMutationsValidator().validate(mutations, allGenes)));
+		assertEquals(expected, toTexts(new SARS2DefaultMutationsValidator(PARALLEL).validate(mutations, allGenes)));
+	}
+
+	@Test
+	public void testMutationsParityAboveThreshold() {
+		MutationSet<SARS2> mutations = makeManyMutations();
+		assertTrue(mutations.size() >= SARS2ValidationEngine.getParallelThreshold());
+		List<String> expected = toTexts(new SARS2DefaultMutationsValidator(SERIAL).validate(mutations, allGenes));
+		assertFalse(expected.isEmpty());
+		// the default threshold walks genes in parallel for this input
+		assertEquals(expected, toTexts(new SARS2DefaultMutationsValidator().validate(mutations, allGenes)));
+		assertEquals(expected, toTexts(new SARS2DefaultMutationsValidator(PARALLEL).validate(mutations, allGenes)));
+		// and so do the scoped validations
+		List<String> spikeOnly = List.of("S");
+		assertEquals(
+			toTexts(new SARS2DefaultMutationsValidator(SERIAL).validate(mutations, spikeOnly)),
+			toTexts(new SARS2DefaultMutationsValidator(PARALLEL).validate(mutations, spikeOnly))
+		);
+	}
+
+	@Test
+	public void testSequenceParity() {
+		String ref = SARS2ReferenceIndex.getInstance().getRefSequence();
+		StringBuilder variant = new StringBuilder(ref.substring(21000, 25500));
+		// S:N501Y, S:D614G and a stop codon at S:1000
+		variant.setCharAt(23063 - 21001, 'T');
+		variant.setCharAt(23403 - 21001, 'G');
+		int s1000 = 21563 + 999 * 3 - 21001;
+		variant.replace(s1000, s1000 + 3, "TAA");
+		AlignedSequence<SARS2> alignedSeq = Aligner.getInstance(sars2).align(
+			new Sequence("Variant", variant.toString()));
+		List<String> expected = toTexts(new SARS2DefaultSequenceValidator(SERIAL).validate(alignedSeq, allGenes));
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, toTexts(new SARS2DefaultSequenceValidator().validate(alignedSeq, allGenes)));
+		assertEquals(expected, toTexts(new SARS2DefaultSequenceValidator(PARALLEL).validate(alignedSeq, allGenes)));
+	}
+
+	@Test
+	public void testWithParallelThreshold() {
+		SARS2ValidationEngine<MutationSet<SARS2>> engine = new SARS2ValidationEngine<>(
+			SARS2DefaultMutationsValidator.newTooManyUnusualMutationsRule());
+		MutationSet<SARS2> mutations = makeManyMutations();
+		assertEquals(
+			toTexts(engine.withParallelThreshold(SERIAL).validate(mutations, allGenes, mutations)),
+			toTexts(engine.withParallelThreshold(PARALLEL).validate(mutations, allGenes, mutations))
+		);
+	}
+
+}
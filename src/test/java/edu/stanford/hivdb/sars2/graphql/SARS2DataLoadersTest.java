@@ -0,0 +1,150 @@
+package edu.stanford.hivdb.sars2.graphql;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import org.dataloader.DataLoader;
+import org.dataloader.DataLoaderRegistry;
+import org.junit.Test;
+
+import edu.stanford.hivdb.mutations.MutationSet;
+import edu.stanford.hivdb.sars2.SARS2;
+import edu.stanford.hivdb.sars2.drdb.SuscSummary;
+import edu.stanford.hivdb.sars2.graphql.SARS2DataLoaders.VersionedMutations;
+
+public class SARS2DataLoadersTest {
+
+	private static final String DRDB_VERSION = "20220328-162024-slim";
+	private static final SARS2 sars2 = SARS2.getInstance();
+
+	/**
+	 * Queues the tasks until {@link #runAll} is called
+	 */
+	private static class QueuedSupplier implements SARS2DataLoaders.AsyncSupplier {
+		private final Deque<Runnable> tasks = new ArrayDeque<>();
+		private int numTasks = 0;
+
+		@Override
+		public synchronized <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+			CompletableFuture<T> future = new CompletableFuture<>();
+			numTasks ++;
+			tasks.add(() -> {
+				try {
+					future.complete(supplier.get());
+				} catch (RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+			});
+			return future;
+		}
+
+		private void runAll() {
+			while (true) {
+				Runnable task;
+				synchronized (this) {
+					task = tasks.poll();
+				}
+				if (task == null) {
+					return;
+				}
+				task.run();
+			}
+		}
+	}
+
+	private static List<CompletableFuture<SuscSummary>> loadAll(
+		DataLoaderRegistry registry,
+		List<VersionedMutations<MutationSet<SARS2>>> keys
+	) {
+		DataLoader<VersionedMutations<MutationSet<SARS2>>, SuscSummary> loader = (
+			registry.getDataLoader(SARS2DataLoaders.ANTIBODY_SUSC_SUMMARY));
+		List<CompletableFuture<SuscSummary>> futures = new ArrayList<>();
+		for (VersionedMutations<MutationSet<SARS2>> key : keys) {
+			futures.add(loader.load(key));
+		}
+		loader.dispatch();
+		return futures;
+	}
+
+	private static VersionedMutations<MutationSet<SARS2>> newKey(String version, String mutations) {
+		return new VersionedMutations<>(version, MutationSet.parseString(sars2, mutations));
+	}
+
+	@Test
+	public void testBatchedQuery() {
+		List<VersionedMutations<MutationSet<SARS2>>> keys = List.of(
+			newKey(DRDB_VERSION, "S:E484K"),
+			newKey(DRDB_VERSION, "S:N501Y"),
+			newKey(DRDB_VERSION, "S:E484K"),
+			newKey(DRDB_VERSION, "S:K417N, S:E484K, S:N501Y")
+		);
+		QueuedSupplier supplier = new QueuedSupplier();
+		List<CompletableFuture<SuscSummary>> futures = loadAll(
+			SARS2DataLoaders.newDataLoaderRegistry(supplier), keys);
+
+		// nothing runs on the dispatching thread
+		for (CompletableFuture<SuscSummary> future : futures) {
+			assertFalse(future.isDone());
+		}
+		supplier.runAll();
+		// one last update task and one batched query
+		assertEquals(2, supplier.numTasks);
+
+		for (int idx = 0; idx < keys.size(); idx ++) {
+			SuscSummary expected = SuscSummary.queryAntibodySuscSummary(DRDB_VERSION, keys.get(idx).getMutations());
+			SuscSummary result = futures.get(idx).join();
+			assertEquals(expected.getLastUpdate(), result.getLastUpdate());
+			assertEquals(expected.getItems().size(), result.getItems().size());
+			assertEquals(expected.getCumulativeCount(), result.getCumulativeCount());
+		}
+		assertSame(futures.get(0).join(), futures.get(2).join());
+	}
+
+	@Test
+	public void testBatchSize() {
+		String[] positions = {"S:417N", "S:484K", "S:501Y", "S:614G", "S:681H", "S:452R"};
+		List<VersionedMutations<MutationSet<SARS2>>> keys = new ArrayList<>();
+		for (int mask = 1; keys.size() < SARS2DataLoaders.SUSC_SUMMARY_BATCH_SIZE + 1; mask ++) {
+			List<String> mutations = new ArrayList<>();
+			for (int idx = 0; idx < positions.length; idx ++) {
+				if ((mask & (1 << idx)) != 0) {
+					mutations.add(positions[idx]);
+				}
+			}
+			keys.add(newKey(DRDB_VERSION, String.join(", ", mutations)));
+		}
+		QueuedSupplier supplier = new QueuedSupplier();
+		List<CompletableFuture<SuscSummary>> futures = loadAll(
+			SARS2DataLoaders.newDataLoaderRegistry(supplier), keys);
+		supplier.runAll();
+		// one last update task and two batched queries
+		assertEquals(3, supplier.numTasks);
+		for (int idx = 0; idx < keys.size(); idx ++) {
+			SuscSummary expected = SuscSummary.queryAntibodySuscSummary(DRDB_VERSION, keys.get(idx).getMutations());
+			assertEquals(expected.getItems().size(), futures.get(idx).join().getItems().size());
+		}
+	}
+
+	@Test
+	public void testUnknownVersionFailsItsKeysOnly() {
+		List<CompletableFuture<SuscSummary>> futures = loadAll(
+			SARS2DataLoaders.newDataLoaderRegistry(null),
+			List.of(newKey("not-a-version", "S:E484K"), newKey(DRDB_VERSION, "S:E484K"))
+		);
+		try {
+			futures.get(0).join();
+			fail("CompletionException expected");
+		} catch (CompletionException e) {
+			// failed key
+		}
+		assertNotNull(futures.get(1).join().getLastUpdate());
+	}
+
+}
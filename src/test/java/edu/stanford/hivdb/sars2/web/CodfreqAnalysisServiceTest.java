@@ -0,0 +1,61 @@
+package edu.stanford.hivdb.sars2.web;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+import edu.stanford.hivdb.sars2.SARS2CodfreqStreamReader;
+
+public class CodfreqAnalysisServiceTest {
+
+	private static final Gson gson = new Gson();
+
+	private static String[] analyze(String codfreq) throws IOException {
+		StringWriter writer = new StringWriter();
+		CodfreqAnalysisService.analyze(
+			new SARS2CodfreqStreamReader(0.05, 1, 10),
+			new ByteArrayInputStream(codfreq.getBytes(StandardCharsets.UTF_8)),
+			writer
+		);
+		return writer.toString().split("\n");
+	}
+
+	@Test
+	public void testOneLinePerGene() throws IOException {
+		String[] lines = analyze(
+			"gene,position,total,codon,count\n" +
+			"S,1,100,ATG,100\n" +
+			"S,2,100,TTT,90\n" +
+			"S,2,100,TTC,10\n" +
+			"E,1,100,ATG,100\n"
+		);
+		assertEquals(3, lines.length);
+		Map<?, ?> spike = gson.fromJson(lines[0], Map.class);
+		assertEquals("S", spike.get("gene"));
+		assertEquals(2., spike.get("numCoveredPositions"));
+		assertEquals(1., spike.get("numMixtures"));
+		assertEquals("E", gson.fromJson(lines[1], Map.class).get("gene"));
+		Map<?, ?> summary = gson.fromJson(lines[2], Map.class);
+		assertEquals(1. / 9, (Double) summary.get("mixtureRate"), 1e-6);
+		assertEquals(29903, ((String) summary.get("assembledConsensus")).length());
+	}
+
+	@Test
+	public void testMalformedRow() throws IOException {
+		String[] lines = analyze("S,1,100,ATG,100\nE,1,100,ATG,100\nE,two,100,TTT,100\n");
+		// the finished gene is kept
+		assertEquals(2, lines.length);
+		assertEquals("S", gson.fromJson(lines[0], Map.class).get("gene"));
+		Map<?, ?> error = gson.fromJson(lines[1], Map.class);
+		assertTrue(((String) error.get("error")).contains("line 3"));
+	}
+
+}
@@ -0,0 +1,102 @@
+package edu.stanford.hivdb.sars2.web;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FastaStreamReaderTest {
+
+	private static List<FastaStreamReader.Record> readAll(String fasta, int maxLength) throws IOException {
+		List<FastaStreamReader.Record> records = new ArrayList<>();
+		try (FastaStreamReader reader = new FastaStreamReader(
+			new ByteArrayInputStream(fasta.getBytes(StandardCharsets.UTF_8)), maxLength)
+		) {
+			FastaStreamReader.Record record;
+			while ((record = reader.next()) != null) {
+				records.add(record);
+			}
+		}
+		return records;
+	}
+
+	@Test
+	public void testMultiLineRecords() throws IOException {
+		List<FastaStreamReader.Record> records = readAll(
+			">seq1 first\nACGT\nACGT\nAC\n>seq2\nTTTT\nGG-N\n", 100);
+		assertEquals(2, records.size());
+		assertEquals(1, records.get(0).getIndex());
+		assertEquals("seq1 first", records.get(0).getHeader());
+		assertEquals("ACGTACGTAC", records.get(0).getSequence());
+		assertEquals(2, records.get(1).getIndex());
+		assertEquals("seq2", records.get(1).getHeader());
+		assertEquals("TTTTGG-N", records.get(1).getSequence());
+		assertFalse(records.get(1).isTooLong());
+	}
+
+	@Test
+	public void testBlankLines() throws IOException {
+		List<FastaStreamReader.Record> records = readAll(
+			"\n\n>seq1\r\nACGT\r\n\r\nACGT\r\n\n\n>seq2\r\n\r\nTTTT\r\n\r\n", 100);
+		assertEquals(2, records.size());
+		assertEquals("seq1", records.get(0).getHeader());
+		assertEquals("ACGTACGT", records.get(0).getSequence());
+		assertEquals("seq2", records.get(1).getHeader());
+		assertEquals("TTTT", records.get(1).getSequence());
+	}
+
+	@Test
+	public void testNoHeader() throws IOException {
+		List<FastaStreamReader.Record> records = readAll("ACGT\nACGT\n>\nTTTT", 100);
+		assertEquals(2, records.size());
+		assertEquals("Sequence 1", records.get(0).getHeader());
+		assertEquals("ACGTACGT", records.get(0).getSequence());
+		assertEquals("Sequence 2", records.get(1).getHeader());
+		assertEquals("TTTT", records.get(1).getSequence());
+	}
+
+	@Test
+	public void testEmptyRecord() throws IOException {
+		List<FastaStreamReader.Record> records = readAll(">seq1\n>seq2\nACGT", 100);
+		assertEquals(2, records.size());
+		assertEquals("", records.get(0).getSequence());
+		assertEquals("ACGT", records.get(1).getSequence());
+	}
+
+	@Test
+	public void testEmptyStream() throws IOException {
+		assertTrue(readAll("", 100).isEmpty());
+		assertTrue(readAll("\n\r\n  \n", 100).isEmpty());
+	}
+
+	@Test
+	public void testOversizedSequence() throws IOException {
+		List<FastaStreamReader.Record> records = readAll(">seq1\nACGTAC\nGTACGT\n>seq2\nACGT\n", 8);
+		assertEquals(2, records.size());
+		assertTrue(records.get(0).isTooLong());
+		// only maxLength nucleotides are kept
+		assertEquals("ACGTACGT", records.get(0).getSequence());
+		// the following record is not affected
+		assertFalse(records.get(1).isTooLong());
+		assertEquals("seq2", records.get(1).getHeader());
+		assertEquals("ACGT", records.get(1).getSequence());
+	}
+
+	@Test
+	public void testOversizedHeader() throws IOException {
+		StringBuilder header = new StringBuilder();
+		for (int idx = 0; idx < 1500; idx ++) {
+			header.append('h');
+		}
+		List<FastaStreamReader.Record> records = readAll(">" + header + "\nACGT\n", 100);
+		assertEquals(1, records.size());
+		assertEquals(1000, records.get(0).getHeader().length());
+		assertEquals("ACGT", records.get(0).getSequence());
+	}
+
+}
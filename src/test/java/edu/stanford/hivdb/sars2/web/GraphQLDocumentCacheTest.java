@@ -0,0 +1,78 @@
+package edu.stanford.hivdb.sars2.web;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import graphql.ExecutionInput;
+import graphql.execution.preparsed.PreparsedDocumentEntry;
+import graphql.parser.Parser;
+
+public class GraphQLDocumentCacheTest {
+
+	private static final String QUERY = "{ viewer { currentVersion { text } } }";
+
+	@Test
+	public void testDocumentMissThenHit() {
+		GraphQLDocumentCache cache = new GraphQLDocumentCache(10, 10);
+		AtomicInteger numParsed = new AtomicInteger();
+		ExecutionInput input = ExecutionInput.newExecutionInput().query(QUERY).build();
+		PreparsedDocumentEntry first = cache.getDocument(input, in -> {
+			numParsed.incrementAndGet();
+			return new PreparsedDocumentEntry(new Parser().parseDocument(in.getQuery()));
+		});
+		PreparsedDocumentEntry second = cache.getDocument(input, in -> {
+			numParsed.incrementAndGet();
+			return new PreparsedDocumentEntry(new Parser().parseDocument(in.getQuery()));
+		});
+		assertSame(first, second);
+		assertEquals(1, numParsed.get());
+		assertEquals(1, cache.getDocumentMisses());
+		assertEquals(1, cache.getDocumentHits());
+		assertEquals(1, cache.getNumDocuments());
+	}
+
+	@Test
+	public void testPersistedQueryMiss() {
+		GraphQLDocumentCache cache = new GraphQLDocumentCache(10, 10);
+		assertNull(cache.getPersistedQuery(GraphQLDocumentCache.hash(QUERY)));
+		assertEquals(1, cache.getPersistedQueryMisses());
+		assertEquals(0, cache.getPersistedQueryHits());
+	}
+
+	@Test
+	public void testPersistedQueryRegistered() {
+		GraphQLDocumentCache cache = new GraphQLDocumentCache(10, 10);
+		String hash = GraphQLDocumentCache.hash(QUERY);
+		// clients may send the hash in upper case
+		assertTrue(cache.putPersistedQuery(hash.toUpperCase(), QUERY));
+		assertEquals(QUERY, cache.getPersistedQuery(hash));
+		assertEquals(QUERY, cache.getPersistedQuery(hash.toUpperCase()));
+		assertEquals(2, cache.getPersistedQueryHits());
+		assertEquals(1, cache.getNumPersistedQueries());
+	}
+
+	@Test
+	public void testPersistedQueryHashMismatch() {
+		GraphQLDocumentCache cache = new GraphQLDocumentCache(10, 10);
+		String otherHash = GraphQLDocumentCache.hash(QUERY + " ");
+		assertFalse(cache.putPersistedQuery(otherHash, QUERY));
+		// neither hash is registered
+		assertNull(cache.getPersistedQuery(otherHash));
+		assertNull(cache.getPersistedQuery(GraphQLDocumentCache.hash(QUERY)));
+		assertEquals(0, cache.getNumPersistedQueries());
+	}
+
+	@Test
+	public void testPersistedQueriesAreBounded() {
+		GraphQLDocumentCache cache = new GraphQLDocumentCache(10, 2);
+		for (int idx = 0; idx < 5; idx ++) {
+			String query = "{ q" + idx + " }";
+			assertTrue(cache.putPersistedQuery(GraphQLDocumentCache.hash(query), query));
+		}
+		assertTrue(cache.getNumPersistedQueries() <= 2);
+	}
+
+}
@@ -0,0 +1,94 @@
+package edu.stanford.hivdb.sars2.web;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.mutations.Mutation;
+import graphql.ExceptionWhileDataFetching;
+import graphql.GraphQLError;
+import graphql.execution.ResultPath;
+import graphql.language.SourceLocation;
+
+public class GraphQLErrorFormatterTest {
+
+	private static final SourceLocation LOCATION = new SourceLocation(1, 2);
+
+	private static GraphQLError fetchError(int seqIdx, Throwable exception) {
+		ResultPath path = ResultPath.rootPath().segment("sequenceAnalysis").segment(seqIdx).segment("mutations");
+		return new ExceptionWhileDataFetching(path, exception, LOCATION);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> getExtensions(Map<String, Object> error) {
+		return (Map<String, Object>) error.get("extensions");
+	}
+
+	@Test
+	public void testGetErrorCode() {
+		assertEquals("INVALID_MUTATION", GraphQLErrorFormatter.getErrorCode(new Mutation.InvalidMutationException("x")));
+		assertEquals("ILLEGAL_ARGUMENT", GraphQLErrorFormatter.getErrorCode(new IllegalArgumentException()));
+	}
+
+	@Test
+	public void testMergeKeepsSpecFieldsOfFirstOccurrence() {
+		RuntimeException exception = new IllegalArgumentException("bad sequence");
+		List<GraphQLError> errors = List.of(
+			fetchError(0, exception), fetchError(1, exception), fetchError(2, exception));
+		List<Map<String, Object>> formatted = GraphQLErrorFormatter.format(errors, "abc");
+		assertEquals(1, formatted.size());
+		Map<String, Object> error = formatted.get(0);
+		assertEquals(errors.get(0).getMessage(), error.get("message"));
+		assertEquals(List.of("sequenceAnalysis", 0, "mutations"), error.get("path"));
+		assertEquals(1, ((List<?>) error.get("locations")).size());
+		assertFalse(error.containsKey("paths"));
+
+		Map<String, Object> extensions = getExtensions(error);
+		assertEquals("ILLEGAL_ARGUMENT", extensions.get("code"));
+		assertEquals("abc", extensions.get("correlationId"));
+		assertEquals(3, extensions.get("count"));
+		assertEquals(
+			List.of(
+				List.of("sequenceAnalysis", 1, "mutations"),
+				List.of("sequenceAnalysis", 2, "mutations")
+			),
+			extensions.get("paths")
+		);
+	}
+
+	@Test
+	public void testSingleErrorHasNoExtraPaths() {
+		List<Map<String, Object>> formatted = GraphQLErrorFormatter.format(
+			List.of(fetchError(0, new IllegalStateException("oops"))), "abc");
+		Map<String, Object> extensions = getExtensions(formatted.get(0));
+		assertEquals(1, extensions.get("count"));
+		assertFalse(extensions.containsKey("paths"));
+	}
+
+	@Test
+	public void testDifferentMessagesAreNotMerged() {
+		List<Map<String, Object>> formatted = GraphQLErrorFormatter.format(
+			List.of(
+				fetchError(0, new IllegalArgumentException("first")),
+				fetchError(1, new IllegalArgumentException("second"))
+			),
+			"abc"
+		);
+		assertEquals(2, formatted.size());
+		assertEquals(List.of("sequenceAnalysis", 1, "mutations"), formatted.get(1).get("path"));
+	}
+
+	@Test
+	public void testCodeOfFutureException() {
+		GraphQLError error = fetchError(0, new CompletionException(new Mutation.InvalidMutationException("bad")));
+		Map<String, Object> formatted = GraphQLErrorFormatter.format(List.of(error), "abc").get(0);
+		assertEquals("INVALID_MUTATION", getExtensions(formatted).get("code"));
+		// the message is the one of the GraphQL error, not of the inner exception
+		assertEquals(error.getMessage(), formatted.get("message"));
+	}
+
+}
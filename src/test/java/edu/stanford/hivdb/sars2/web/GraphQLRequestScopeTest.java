@@ -0,0 +1,121 @@
+package edu.stanford.hivdb.sars2.web;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class GraphQLRequestScopeTest {
+
+	private static Throwable getFailure(CompletableFuture<?> future) {
+		try {
+			future.join();
+			fail("the future should fail");
+			return null;
+		} catch (CompletionException e) {
+			return e.getCause();
+		}
+	}
+
+	@Test
+	public void testMaxConcurrency() throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			GraphQLRequestScope scope = new GraphQLRequestScope(executor, 2);
+			AtomicInteger running = new AtomicInteger();
+			AtomicInteger maxRunning = new AtomicInteger();
+			List<CompletableFuture<Integer>> futures = new ArrayList<>();
+			for (int idx = 0; idx < 20; idx ++) {
+				final int value = idx;
+				futures.add(scope.supplyAsync(() -> {
+					maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+					try {
+						Thread.sleep(5);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					running.decrementAndGet();
+					return value;
+				}));
+			}
+			for (int idx = 0; idx < 20; idx ++) {
+				assertEquals(Integer.valueOf(idx), futures.get(idx).join());
+			}
+			assertTrue(maxRunning.get() <= 2);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testRejectedTaskFailsWithoutRunningInline() {
+		Executor rejecting = command -> {
+			throw new RejectedExecutionException("saturated");
+		};
+		GraphQLRequestScope scope = new GraphQLRequestScope(rejecting, 1);
+		AtomicInteger numRuns = new AtomicInteger();
+		CompletableFuture<Integer> first = scope.supplyAsync(numRuns::incrementAndGet);
+		CompletableFuture<Integer> second = scope.supplyAsync(numRuns::incrementAndGet);
+		assertTrue(getFailure(first) instanceof RejectedExecutionException);
+		assertTrue(getFailure(second) instanceof RejectedExecutionException);
+		assertEquals(0, numRuns.get());
+	}
+
+	@Test
+	public void testQueuedTaskRejectedByExecutorThread() throws InterruptedException {
+		CountDownLatch release = new CountDownLatch(1);
+		// one thread and no queue: the second task is rejected when the
+		// first one finishes and hands its slot over
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1));
+		try {
+			GraphQLRequestScope scope = new GraphQLRequestScope(executor, 1);
+			CompletableFuture<String> first = scope.supplyAsync(() -> {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return "first";
+			});
+			CompletableFuture<String> second = scope.supplyAsync(() -> "second");
+			// fill the executor queue so that the pending task is rejected
+			executor.execute(() -> {});
+			release.countDown();
+			assertEquals("first", first.join());
+			Throwable failure = getFailure(second);
+			assertTrue(failure instanceof RejectedExecutionException);
+
+			// the slot is released: later tasks still run
+			while (executor.getActiveCount() > 0 || !executor.getQueue().isEmpty()) {
+				Thread.sleep(1);
+			}
+			assertEquals("third", scope.supplyAsync(() -> "third").join());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testCancel() {
+		GraphQLRequestScope scope = new GraphQLRequestScope(Runnable::run, 1);
+		scope.cancel();
+		assertTrue(scope.isCancelled());
+		assertTrue(getFailure(scope.supplyAsync(() -> 1)) instanceof CancellationException);
+	}
+
+}
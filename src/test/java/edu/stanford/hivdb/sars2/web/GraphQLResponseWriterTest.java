@@ -0,0 +1,88 @@
+package edu.stanford.hivdb.sars2.web;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import edu.stanford.hivdb.utilities.Json;
+
+public class GraphQLResponseWriterTest {
+
+	private static enum Level { LOW, HIGH }
+
+	private static byte[] write(Object output, boolean gzip) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		new GraphQLResponseWriter(output, gzip).write(stream);
+		return stream.toByteArray();
+	}
+
+	private static String gunzip(byte[] bytes) throws IOException {
+		try (GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+			return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	private static Map<String, Object> makeOutput() {
+		Map<String, Object> data = new LinkedHashMap<>();
+		data.put("text", "S:N501Y \"quoted\"");
+		data.put("count", 3);
+		data.put("fold", 2.5);
+		data.put("isUnusual", false);
+		data.put("level", Level.HIGH);
+		data.put("missing", null);
+		data.put("list", List.of(1, "two", List.of()));
+		data.put("array", new int[] {1, 2});
+		Map<String, Object> output = new LinkedHashMap<>();
+		output.put("data", data);
+		return output;
+	}
+
+	@Test
+	public void testWrite() throws IOException {
+		assertEquals(
+			"{\"data\":{\"text\":\"S:N501Y \\\"quoted\\\"\",\"count\":3,\"fold\":2.5,\"isUnusual\":false," +
+			"\"level\":\"HIGH\",\"missing\":null,\"list\":[1,\"two\",[]],\"array\":[1,2]}}",
+			new String(write(makeOutput(), false), StandardCharsets.UTF_8)
+		);
+	}
+
+	@Test
+	public void testGzip() throws IOException {
+		byte[] plain = write(makeOutput(), false);
+		byte[] compressed = write(makeOutput(), true);
+		assertEquals(0x1f, compressed[0] & 0xff);
+		assertEquals(0x8b, compressed[1] & 0xff);
+		assertEquals(new String(plain, StandardCharsets.UTF_8), gunzip(compressed));
+	}
+
+	@Test
+	public void testNonFiniteNumbers() throws IOException {
+		for (Double number : Arrays.asList(Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY)) {
+			String expected;
+			try {
+				expected = "{\"fold\":" + Json.dumps(number) + "}";
+			} catch (IllegalArgumentException e) {
+				// Json.dumps rejects non-finite numbers; so does the writer
+				try {
+					write(Map.of("fold", number), false);
+					fail("IllegalArgumentException expected");
+				} catch (IllegalArgumentException expectedException) {
+					// same behavior as Json.dumps
+				}
+				continue;
+			}
+			assertEquals(expected, new String(write(Map.of("fold", number), false), StandardCharsets.UTF_8));
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package edu.stanford.hivdb.sars2.web;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+
+import org.junit.Test;
+
+import graphql.ExceptionWhileDataFetching;
+import graphql.ExecutionResultImpl;
+import graphql.GraphQLError;
+import graphql.GraphqlErrorBuilder;
+import graphql.execution.ResultPath;
+import graphql.language.SourceLocation;
+
+public class GraphQLServiceTest {
+
+	private static Response toResponse(GraphQLError error) {
+		return GraphQLService.toResponse(new ExecutionResultImpl(null, List.of(error)), false);
+	}
+
+	private static GraphQLError rejection(String code) {
+		return GraphqlErrorBuilder.newError().message("rejected").extensions(Map.of("code", code)).build();
+	}
+
+	@Test
+	public void testServerBusyRejection() {
+		Response response = toResponse(rejection(QueryCostInstrumentation.SERVER_BUSY));
+		assertEquals(503, response.getStatus());
+		assertEquals("5", response.getHeaderString(HttpHeaders.RETRY_AFTER));
+	}
+
+	@Test
+	public void testQueueTimeout() {
+		// a root field timed out in the admission queue
+		GraphQLError error = new ExceptionWhileDataFetching(
+			ResultPath.rootPath().segment("sequenceAnalysis"),
+			new CompletionException(new QueryCostInstrumentation.ServerBusyException("busy", 10)),
+			new SourceLocation(1, 1)
+		);
+		Response response = toResponse(error);
+		assertEquals(503, response.getStatus());
+		assertEquals("5", response.getHeaderString(HttpHeaders.RETRY_AFTER));
+	}
+
+	@Test
+	public void testQueryCostExceeded() {
+		Response response = toResponse(rejection(QueryCostInstrumentation.QUERY_COST_EXCEEDED));
+		assertEquals(400, response.getStatus());
+		assertNull(response.getHeaderString(HttpHeaders.RETRY_AFTER));
+	}
+
+	@Test
+	public void testGzipHeaders() {
+		Response response = GraphQLService.toResponse(new ExecutionResultImpl(Map.of("a", 1), List.of()), true);
+		assertEquals(200, response.getStatus());
+		assertEquals("gzip", response.getHeaderString(HttpHeaders.CONTENT_ENCODING));
+		assertTrue(response.getEntity() instanceof GraphQLResponseWriter);
+		if (GraphQLService.GZIP_RESPONSE) {
+			assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getHeaderString(HttpHeaders.VARY));
+		}
+	}
+
+	@Test
+	public void testPlainHeaders() {
+		Response response = GraphQLService.toResponse(new ExecutionResultImpl(Map.of("a", 1), List.of()), false);
+		assertNull(response.getHeaderString(HttpHeaders.CONTENT_ENCODING));
+		// caches must not serve a gzip response to a client that did not ask for it
+		if (GraphQLService.GZIP_RESPONSE) {
+			assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getHeaderString(HttpHeaders.VARY));
+		}
+	}
+
+}
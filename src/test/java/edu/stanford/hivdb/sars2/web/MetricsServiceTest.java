@@ -0,0 +1,92 @@
+package edu.stanford.hivdb.sars2.web;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class MetricsServiceTest {
+
+	private static List<String> writeFieldMetrics(FieldMetricsInstrumentation.FieldTiming timing) {
+		StringBuilder out = new StringBuilder();
+		MetricsService.writeFieldMetrics(out, Map.of("SequenceAnalysis.pangolin", timing));
+		return Arrays.asList(out.toString().split("\n"));
+	}
+
+	private static List<String> getBucketLines(List<String> lines) {
+		return lines.stream()
+			.filter(line -> line.startsWith("graphql_field_duration_seconds_bucket"))
+			.collect(Collectors.toList());
+	}
+
+	@Test
+	public void testBucketCounts() {
+		FieldMetricsInstrumentation.FieldTiming timing = new FieldMetricsInstrumentation.FieldTiming();
+		timing.record(500_000L, 0);          // 0.5ms
+		timing.record(20_000_000L, 0);       // 20ms
+		timing.record(2_000_000_000L, 0);    // 2s
+		timing.record(100_000_000_000L, 0);  // 100s
+		assertArrayEquals(
+			new long[] {1, 0, 0, 1, 0, 0, 0, 1, 0, 0, 1},
+			timing.getBucketCounts()
+		);
+		assertEquals(4, timing.getCount());
+		assertEquals(102.0205, timing.getSumSeconds(), 1e-9);
+	}
+
+	@Test
+	public void testBucketUpperBoundIsInclusive() {
+		FieldMetricsInstrumentation.FieldTiming timing = new FieldMetricsInstrumentation.FieldTiming();
+		timing.record(1_000_000L, 0);        // exactly 0.001s
+		timing.record(1_000_001L, 0);
+		assertEquals(1, timing.getBucketCounts()[0]);
+		assertEquals(1, timing.getBucketCounts()[1]);
+	}
+
+	@Test
+	public void testHistogramOutput() {
+		FieldMetricsInstrumentation.FieldTiming timing = new FieldMetricsInstrumentation.FieldTiming();
+		timing.record(500_000L, 0);
+		timing.record(20_000_000L, 0);
+		timing.record(2_000_000_000L, 0);
+		timing.record(100_000_000_000L, 0);
+		List<String> lines = writeFieldMetrics(timing);
+		assertEquals("# HELP graphql_field_duration_seconds Resolver latency by field.", lines.get(0));
+		assertEquals("# TYPE graphql_field_duration_seconds histogram", lines.get(1));
+
+		String prefix = "graphql_field_duration_seconds_bucket{field=\"SequenceAnalysis.pangolin\",le=";
+		// buckets are cumulative and end with +Inf
+		assertEquals(
+			List.of(
+				prefix + "\"0.001\"} 1",
+				prefix + "\"0.005\"} 1",
+				prefix + "\"0.01\"} 1",
+				prefix + "\"0.05\"} 2",
+				prefix + "\"0.1\"} 2",
+				prefix + "\"0.5\"} 2",
+				prefix + "\"1.0\"} 2",
+				prefix + "\"5.0\"} 3",
+				prefix + "\"10.0\"} 3",
+				prefix + "\"30.0\"} 3",
+				prefix + "\"+Inf\"} 4"
+			),
+			getBucketLines(lines)
+		);
+		assertTrue(lines.contains(
+			"graphql_field_duration_seconds_sum{field=\"SequenceAnalysis.pangolin\"} 102.0205"));
+		assertTrue(lines.contains(
+			"graphql_field_duration_seconds_count{field=\"SequenceAnalysis.pangolin\"} 4"));
+	}
+
+	@Test
+	public void testNoTimings() {
+		StringBuilder out = new StringBuilder();
+		MetricsService.writeFieldMetrics(out, Map.of());
+		assertTrue(getBucketLines(Arrays.asList(out.toString().split("\n"))).isEmpty());
+	}
+
+}
@@ -0,0 +1,84 @@
+package edu.stanford.hivdb.sars2.web;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+import graphql.ExecutionResult;
+
+public class MutationsAnalysisServiceTest {
+
+	private static final String DRDB_VERSION = "20220328-162024-slim";
+	private static final Gson gson = new Gson();
+
+	private static String[] analyzeAll(String body, String drdbVersion) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		MutationsAnalysisService.analyzeAll(
+			new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), output, drdbVersion, null);
+		return output.toString(StandardCharsets.UTF_8).split("\n");
+	}
+
+	// round trip through JSON so that numbers compare equal
+	private static Object normalize(Object value) {
+		return gson.fromJson(gson.toJson(value), Object.class);
+	}
+
+	@Test
+	public void testSuscSummariesMatchGraphQL() throws IOException {
+		String mutations = "S:K417N, S:E484K, S:N501Y";
+		String[] lines = analyzeAll("B.1.351\t" + mutations + "\n", DRDB_VERSION);
+		assertEquals(1, lines.length);
+		Map<?, ?> result = gson.fromJson(lines[0], Map.class);
+
+		String version = gson.toJson(DRDB_VERSION);
+		String query = String.format(
+			"query ($mutations: [String]!) { mutationsAnalysis(mutations: $mutations) { " +
+			"antibodySuscSummary(drdbVersion: %s) { %s } " +
+			"convPlasmaSuscSummary(drdbVersion: %s) { %s } " +
+			"vaccPlasmaSuscSummary(drdbVersion: %s) { %s } } }",
+			version, MutationsAnalysisService.ANTIBODY_SUSC_SUMMARY_FIELDS,
+			version, MutationsAnalysisService.CONV_PLASMA_SUSC_SUMMARY_FIELDS,
+			version, MutationsAnalysisService.VACC_PLASMA_SUSC_SUMMARY_FIELDS
+		);
+		ExecutionResult graphqlResult = new GraphQLService().executeLocal(
+			query, Map.of("mutations", List.of(mutations.split(", "))));
+		assertTrue(graphqlResult.getErrors().toString(), graphqlResult.getErrors().isEmpty());
+		Map<String, Object> data = graphqlResult.getData();
+		Map<?, ?> expected = (Map<?, ?>) normalize(data.get("mutationsAnalysis"));
+
+		for (String field : List.of("antibodySuscSummary", "convPlasmaSuscSummary", "vaccPlasmaSuscSummary")) {
+			assertNotNull(field, expected.get(field));
+			assertEquals(field, expected.get(field), result.get(field));
+		}
+	}
+
+	@Test
+	public void testMoreProfilesThanQueue() throws IOException {
+		StringBuilder body = new StringBuilder();
+		int numProfiles = 500;
+		for (int idx = 0; idx < numProfiles; idx ++) {
+			body.append("S:E484K\n");
+		}
+		String[] lines = analyzeAll(body.toString(), null);
+		assertEquals(numProfiles, lines.length);
+		Set<Object> indices = new HashSet<>();
+		for (String line : lines) {
+			Map<?, ?> result = gson.fromJson(line, Map.class);
+			assertNull(result.get("error"));
+			indices.add(result.get("index"));
+		}
+		assertEquals(numProfiles, indices.size());
+	}
+
+}
@@ -0,0 +1,148 @@
+package edu.stanford.hivdb.sars2.web;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.RuntimeWiring;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+
+public class QueryCostInstrumentationTest {
+
+	private static final GraphQLSchema schema = new SchemaGenerator().makeExecutableSchema(
+		new SchemaParser().parse(
+			"type Query {\n" +
+			"  sequenceAnalysis(sequences: [UnalignedSequenceInput]): [SequenceAnalysis]\n" +
+			"  patternAnalysis(patterns: [[String]]): [PatternAnalysis]\n" +
+			"  mutationsAnalysis(mutations: [String]): MutationsAnalysis\n" +
+			"}\n" +
+			"input UnalignedSequenceInput { header: String sequence: String }\n" +
+			"type SequenceAnalysis {\n" +
+			"  pangolin(syncFetch: Boolean): Pangolin\n" +
+			"  mutations(includeGenes: [String]): [Mutation]\n" +
+			"}\n" +
+			"type PatternAnalysis { name: String }\n" +
+			"type MutationsAnalysis { mutationComments(cmtVersion: String): [Comment] }\n" +
+			"type Pangolin { lineage: String }\n" +
+			"type Mutation { text: String }\n" +
+			"type Comment { comment: String }\n"
+		),
+		RuntimeWiring.newRuntimeWiring().build()
+	);
+
+	private static long computeCost(String query, Map<String, Object> variables) {
+		return QueryCostInstrumentation.computeCost(schema, new Parser().parseDocument(query), null, variables);
+	}
+
+	private static long computeCost(String query) {
+		return computeCost(query, Collections.emptyMap());
+	}
+
+	@Test
+	public void testCostWithoutFanOut() {
+		// mutationsAnalysis 1 + mutationComments 5 + comment 1; mutations do not multiply
+		assertEquals(7, computeCost(
+			"{ mutationsAnalysis(mutations: [\"S:N501Y\", \"S:E484K\"]) { mutationComments(cmtVersion: \"1\") { comment } } }"));
+	}
+
+	@Test
+	public void testCostOfFanOutArguments() {
+		// 3 sequences: sequenceAnalysis 1, pangolin 50, lineage 1, mutations 1, text 1;
+		// includeGenes is a list argument but not a fan-out one
+		String query = (
+			"{ sequenceAnalysis(sequences: [{header: \"a\"}, {header: \"b\"}, {header: \"c\"}]) " +
+			"{ pangolin { lineage } mutations(includeGenes: [\"S\", \"ORF1a\"]) { text } } }"
+		);
+		assertEquals(3 * (1 + 50 + 1 + 1 + 1), computeCost(query));
+	}
+
+	@Test
+	public void testCostOfFanOutVariables() {
+		String query = (
+			"query Q($sequences: [UnalignedSequenceInput]) " +
+			"{ sequenceAnalysis(sequences: $sequences) { pangolin(syncFetch: true) { lineage } } }"
+		);
+		Map<String, Object> variables = Map.of(
+			"sequences", Collections.nCopies(4, Map.of("header", "a", "sequence", "ACGT")));
+		// syncFetch quadruples the weight of pangolin
+		assertEquals(4 * (1 + 50 * 4 + 1), computeCost(query, variables));
+		// an empty list does not zero the cost
+		assertEquals(1 + 50 * 4 + 1, computeCost(query, Map.of("sequences", List.of())));
+	}
+
+	@Test
+	public void testCostOfNestedLists() {
+		// only the items of the outer list are analyzed separately
+		assertEquals(2 * 2, computeCost(
+			"{ patternAnalysis(patterns: [[\"S:N501Y\", \"S:E484K\", \"S:K417N\"], [\"S:D614G\"]]) { name } }"));
+	}
+
+	@Test
+	public void testBudgetAdmitsAtOnce() {
+		QueryCostInstrumentation.Budget budget = new QueryCostInstrumentation.Budget(10);
+		CompletableFuture<Void> admission = budget.acquire(6, 1000, 10, 6);
+		assertTrue(admission.isDone());
+		assertEquals(4, budget.getAvailable());
+		budget.release(6);
+		assertEquals(10, budget.getAvailable());
+	}
+
+	@Test
+	public void testBudgetWaitsInOrder() throws Exception {
+		QueryCostInstrumentation.Budget budget = new QueryCostInstrumentation.Budget(10);
+		budget.acquire(8, 10000, 10, 8);
+		CompletableFuture<Void> large = budget.acquire(6, 10000, 10, 6);
+		// would fit, but waits behind the large request
+		CompletableFuture<Void> small = budget.acquire(2, 10000, 10, 2);
+		assertFalse(large.isDone());
+		assertFalse(small.isDone());
+		assertEquals(2, budget.getQueueLength());
+
+		budget.release(8);
+		large.get(5, TimeUnit.SECONDS);
+		small.get(5, TimeUnit.SECONDS);
+		assertEquals(2, budget.getAvailable());
+		assertEquals(0, budget.getQueueLength());
+	}
+
+	@Test
+	public void testBudgetRejectsWhenQueueIsFull() {
+		QueryCostInstrumentation.Budget budget = new QueryCostInstrumentation.Budget(10);
+		budget.acquire(10, 10000, 1, 10);
+		assertNotNull(budget.acquire(1, 10000, 1, 1));
+		assertNull(budget.acquire(1, 10000, 1, 1));
+	}
+
+	@Test
+	public void testBudgetTimeout() throws Exception {
+		QueryCostInstrumentation.Budget budget = new QueryCostInstrumentation.Budget(10);
+		budget.acquire(5, 10000, 10, 5);
+		CompletableFuture<Void> timedOut = budget.acquire(8, 50, 10, 8);
+		CompletableFuture<Void> small = budget.acquire(5, 10000, 10, 5);
+		try {
+			timedOut.join();
+			fail("the admission should time out");
+		} catch (CompletionException e) {
+			assertTrue(e.getCause() instanceof QueryCostInstrumentation.ServerBusyException);
+			assertEquals(
+				QueryCostInstrumentation.SERVER_BUSY,
+				((QueryCostInstrumentation.ServerBusyException) e.getCause()).getExtensions().get("code")
+			);
+		}
+		// the timed-out request left the head of the queue: the next one is admitted
+		small.get(5, TimeUnit.SECONDS);
+		assertEquals(0, budget.getAvailable());
+		assertEquals(0, budget.getQueueLength());
+	}
+
+}